@@ -0,0 +1,186 @@
+package edu.berkeley.nlp.lm.bench;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal benchmark harness in the spirit of JMH: each benchmark is run for a
+ * number of time-bounded warmup iterations, then for a number of measured
+ * iterations, and the average time per operation is reported together with a
+ * 99.9% confidence interval. Results are written in the same CSV layout as
+ * JMH's <code>-rf csv</code> output, so they can be processed with the same
+ * tools.
+ *
+ * @author adampauls
+ *
+ */
+public final class BenchmarkRunner
+{
+
+	/**
+	 * A single benchmark. Subclasses perform some number of operations per
+	 * call to {@link #run()}.
+	 *
+	 * @author adampauls
+	 *
+	 */
+	public static abstract class Benchmark
+	{
+		final String name;
+
+		final String[] params;
+
+		final boolean reportMillis;
+
+		/**
+		 *
+		 * @param name
+		 * @param reportMillis
+		 *            report ms/op instead of ns/op (for slow operations like
+		 *            loading)
+		 * @param params
+		 *            values of the parameters named by
+		 *            {@link BenchmarkRunner#BenchmarkRunner(PrintStream, int, int, long, String...)}
+		 */
+		public Benchmark(final String name, final boolean reportMillis, final String... params) {
+			this.name = name;
+			this.reportMillis = reportMillis;
+			this.params = params;
+		}
+
+		/**
+		 * Called once before any iterations are run.
+		 */
+		public void setUp() {
+		}
+
+		/**
+		 * Called once after all iterations are run, so that memory can be
+		 * reclaimed before the next benchmark.
+		 */
+		public void tearDown() {
+		}
+
+		/**
+		 * Performs some operations.
+		 *
+		 * @return the number of operations performed
+		 */
+		public abstract long run();
+
+	}
+
+	// Student's t quantiles for a two-sided 99.9% interval, indexed by degrees of freedom
+	private static final double[] T_999 = { Double.NaN, 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587, 4.437, 4.318, 4.221,
+		4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850 };
+
+	private static final double NORMAL_999 = 3.291;
+
+	/**
+	 * Results of benchmarks are added to this to make sure the JIT cannot
+	 * eliminate them as dead code.
+	 */
+	public static volatile double sink;
+
+	private final PrintStream out;
+
+	private final int warmupIterations;
+
+	private final int measurementIterations;
+
+	private final long iterationNanos;
+
+	private final String[] paramNames;
+
+	/**
+	 *
+	 * @param out
+	 *            Where to write CSV results.
+	 * @param warmupIterations
+	 * @param measurementIterations
+	 * @param iterationMillis
+	 *            Minimum length of each iteration. Each iteration performs at
+	 *            least one call to {@link Benchmark#run()}.
+	 * @param paramNames
+	 */
+	public BenchmarkRunner(final PrintStream out, final int warmupIterations, final int measurementIterations, final long iterationMillis,
+		final String... paramNames) {
+		this.out = out;
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationNanos = iterationMillis * 1000L * 1000L;
+		this.paramNames = paramNames;
+		final StringBuilder header = new StringBuilder("\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\",\"Score Error (99.9%)\",\"Unit\"");
+		for (final String param : paramNames)
+			header.append(",\"Param: ").append(param).append("\"");
+		out.println(header);
+		out.flush();
+	}
+
+	public void run(final Benchmark benchmark) {
+		System.err.println("# Running " + benchmark.name + " " + join(benchmark.params));
+		benchmark.setUp();
+		for (int i = 0; i < warmupIterations; ++i) {
+			final double score = iteration(benchmark);
+			System.err.println("#   warmup " + (i + 1) + ": " + format(score, benchmark));
+		}
+		final List<Double> scores = new ArrayList<Double>();
+		for (int i = 0; i < measurementIterations; ++i) {
+			final double score = iteration(benchmark);
+			System.err.println("#   iteration " + (i + 1) + ": " + format(score, benchmark));
+			scores.add(score);
+		}
+		benchmark.tearDown();
+		report(benchmark, scores);
+	}
+
+	/**
+	 * @return nanoseconds per operation
+	 */
+	private double iteration(final Benchmark benchmark) {
+		long numOps = 0;
+		final long start = System.nanoTime();
+		long elapsed = 0;
+		do {
+			numOps += benchmark.run();
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < iterationNanos);
+		return (double) elapsed / numOps;
+	}
+
+	private void report(final Benchmark benchmark, final List<Double> scores) {
+		final double scale = benchmark.reportMillis ? 1e-6 : 1.0;
+		double mean = 0.0;
+		for (final double score : scores)
+			mean += score;
+		mean /= scores.size();
+		double variance = 0.0;
+		for (final double score : scores)
+			variance += (score - mean) * (score - mean);
+		final int df = scores.size() - 1;
+		final double error = df == 0 ? Double.NaN : Math.sqrt(variance / df) / Math.sqrt(scores.size()) * (df < T_999.length ? T_999[df] : NORMAL_999);
+		final StringBuilder line = new StringBuilder();
+		line.append("\"").append(benchmark.name).append("\",\"avgt\",1,").append(scores.size()).append(",");
+		line.append(mean * scale).append(",").append(Double.isNaN(error) ? "NaN" : String.valueOf(error * scale)).append(",");
+		line.append("\"").append(benchmark.reportMillis ? "ms/op" : "ns/op").append("\"");
+		for (int i = 0; i < paramNames.length; ++i)
+			line.append(",").append(i < benchmark.params.length ? benchmark.params[i] : "");
+		out.println(line);
+		out.flush();
+	}
+
+	private static String format(final double nanosPerOp, final Benchmark benchmark) {
+		return benchmark.reportMillis ? String.format("%.3f ms/op", nanosPerOp * 1e-6) : String.format("%.3f ns/op", nanosPerOp);
+	}
+
+	private static String join(final String[] params) {
+		final StringBuilder sb = new StringBuilder();
+		for (final String param : params) {
+			if (sb.length() > 0) sb.append(" ");
+			sb.append(param);
+		}
+		return sb.toString();
+	}
+
+}
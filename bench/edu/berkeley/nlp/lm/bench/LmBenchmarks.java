@@ -0,0 +1,462 @@
+package edu.berkeley.nlp.lm.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.berkeley.nlp.lm.AliasTableSampler;
+import edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel.LmContextInfo;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.bench.BenchmarkRunner.Benchmark;
+import edu.berkeley.nlp.lm.cache.ArrayEncodedCachingLmWrapper;
+import edu.berkeley.nlp.lm.cache.ContextEncodedCachingLmWrapper;
+import edu.berkeley.nlp.lm.io.ArpaLmReader;
+import edu.berkeley.nlp.lm.io.IOUtils;
+import edu.berkeley.nlp.lm.io.LmReaders;
+import edu.berkeley.nlp.lm.util.VirtualThreads;
+
+/**
+ * Benchmarks for the query and build paths of the language models: n-gram
+ * queries and sentence scoring for array- and context-encoded LMs over hash and
+ * compressed maps (with and without caches), concurrent scoring on thread
+ * pools and virtual threads, loading from ARPA files, and estimation from raw
+ * text.
+ * <p>
+ * By default, the fixtures in the test directory are used. Larger models can
+ * be added with <code>-arpa</code>, e.g. ones written by
+ * {@link edu.berkeley.nlp.lm.io.MakeSyntheticLm}. Results are written as CSV (see
+ * {@link BenchmarkRunner}). Run with the <code>bench</code> target in
+ * <code>build.xml</code>. With no arguments, every benchmark is run on the
+ * fixtures; an unrecognized option prints usage.
+ *
+ * @author adampauls
+ *
+ */
+public class LmBenchmarks
+{
+
+	private static final String[] PARAM_NAMES = { "model", "map", "cache" };
+
+	private enum MapType
+	{
+		HASH
+		{
+			@Override
+			public NgramLanguageModel<String> load(final String arpaFile) {
+				return LmReaders.readArrayEncodedLmFromArpa(arpaFile, false);
+			}
+		},
+		COMPRESSED
+		{
+			@Override
+			public NgramLanguageModel<String> load(final String arpaFile) {
+				return LmReaders.readArrayEncodedLmFromArpa(arpaFile, true);
+			}
+		},
+		CONTEXT
+		{
+			@Override
+			public NgramLanguageModel<String> load(final String arpaFile) {
+				return LmReaders.readContextEncodedLmFromArpa(arpaFile);
+			}
+		};
+
+		public abstract NgramLanguageModel<String> load(String arpaFile);
+
+		public String paramName() {
+			return name().toLowerCase();
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: [opts]");
+		System.err.println("\t-fixtures <dir>: directory with big_test.arpa, big_test.txt and test_perplex.txt (default test/edu/berkeley/nlp/lm/io)");
+		System.err.println("\t-arpa <file>: additional ARPA model to benchmark (may be repeated)");
+		System.err.println("\t-text <file>: sentences to query (default test_perplex.txt in the fixtures directory)");
+		System.err.println("\t-out <file>: CSV output file (default stdout)");
+		System.err.println("\t-filter <string>: only run benchmarks whose name contains this string");
+		System.err.println("\t-warmup <n>: number of warmup iterations (default 3)");
+		System.err.println("\t-iterations <n>: number of measured iterations (default 5)");
+		System.err.println("\t-millis <n>: minimum length of each iteration in milliseconds (default 1000)");
+		System.exit(1);
+	}
+
+	public static void main(final String[] argv) throws FileNotFoundException {
+		String fixtures = "test/edu/berkeley/nlp/lm/io";
+		final List<String> arpaFiles = new ArrayList<String>();
+		String textFile = null;
+		String outFile = null;
+		String filter = "";
+		int warmup = 3;
+		int iterations = 5;
+		long millis = 1000;
+		for (int i = 0; i < argv.length; ++i) {
+			final String arg = argv[i];
+			if (i + 1 >= argv.length) usage();
+			final String val = argv[++i];
+			if (arg.equals("-fixtures"))
+				fixtures = val;
+			else if (arg.equals("-arpa"))
+				arpaFiles.add(val);
+			else if (arg.equals("-text"))
+				textFile = val;
+			else if (arg.equals("-out"))
+				outFile = val;
+			else if (arg.equals("-filter"))
+				filter = val;
+			else if (arg.equals("-warmup"))
+				warmup = Integer.parseInt(val);
+			else if (arg.equals("-iterations"))
+				iterations = Integer.parseInt(val);
+			else if (arg.equals("-millis"))
+				millis = Long.parseLong(val);
+			else {
+				System.err.println("Unrecognized opts: " + arg);
+				usage();
+			}
+		}
+		arpaFiles.add(0, new File(fixtures, "big_test.arpa").getPath());
+		if (textFile == null) textFile = new File(fixtures, "test_perplex.txt").getPath();
+		final List<String[]> sentences = readSentences(textFile);
+
+		final PrintStream out = outFile == null ? System.out : new PrintStream(outFile);
+		final BenchmarkRunner runner = new BenchmarkRunner(out, warmup, iterations, millis, PARAM_NAMES);
+		final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (final String arpaFile : arpaFiles) {
+			final String modelName = new File(arpaFile).getName();
+			for (final MapType mapType : MapType.values()) {
+				benchmarks.add(loadArpa(arpaFile, modelName, mapType));
+				for (final boolean cached : new boolean[] { false, true }) {
+					benchmarks.add(getLogProb(arpaFile, modelName, mapType, cached, sentences));
+					benchmarks.add(scoreSentence(arpaFile, modelName, mapType, cached, sentences));
+				}
+			}
+		}
+		for (final String arpaFile : arpaFiles) {
+			benchmarks.add(sample(arpaFile, new File(arpaFile).getName()));
+			for (final boolean batched : new boolean[] { false, true })
+				benchmarks.add(scoreShortlist(arpaFile, new File(arpaFile).getName(), batched, sentences));
+		}
+		for (final boolean virtualThreads : VirtualThreads.isAvailable() ? new boolean[] { false, true } : new boolean[] { false }) {
+			for (final boolean sharedCache : new boolean[] { false, true })
+				benchmarks.add(scoreConcurrently(arpaFiles.get(0), new File(arpaFiles.get(0)).getName(), virtualThreads, sharedCache, sentences));
+		}
+		benchmarks.add(estimateFromText(new File(fixtures, "big_test.txt").getPath(), 5));
+		for (final Benchmark benchmark : benchmarks) {
+			if (benchmark.name.contains(filter)) runner.run(benchmark);
+		}
+		if (out != System.out) out.close();
+		System.err.println("# Done (" + BenchmarkRunner.sink + ")");
+	}
+
+	private static Benchmark loadArpa(final String arpaFile, final String modelName, final MapType mapType) {
+		return new Benchmark("load.arpa", true, modelName, mapType.paramName(), "")
+		{
+			@Override
+			public long run() {
+				BenchmarkRunner.sink += mapType.load(arpaFile).getLmOrder();
+				return 1;
+			}
+		};
+	}
+
+	private static Benchmark estimateFromText(final String textFile, final int lmOrder) {
+		return new Benchmark("load.text", true, new File(textFile).getName(), MapType.HASH.paramName(), "")
+		{
+			@Override
+			public long run() {
+				final StringWordIndexer wordIndexer = new StringWordIndexer();
+				wordIndexer.setStartSymbol(ArpaLmReader.START_SYMBOL);
+				wordIndexer.setEndSymbol(ArpaLmReader.END_SYMBOL);
+				wordIndexer.setUnkSymbol(ArpaLmReader.UNK_SYMBOL);
+				BenchmarkRunner.sink += LmReaders.readKneserNeyLmFromTextFile(Arrays.asList(textFile), wordIndexer, lmOrder, new ConfigOptions(), false)
+					.getLmOrder();
+				return 1;
+			}
+		};
+	}
+
+	/**
+	 * Queries every n-gram of every sentence (using contexts for
+	 * context-encoded LMs).
+	 */
+	private static Benchmark getLogProb(final String arpaFile, final String modelName, final MapType mapType, final boolean cached,
+		final List<String[]> sentences) {
+		return new ModelBenchmark("getLogProb", arpaFile, modelName, mapType, cached, sentences)
+		{
+			@Override
+			public long run() {
+				float sum = 0.0f;
+				long numOps = 0;
+				if (arrayEncodedLm != null) {
+					final int lmOrder = arrayEncodedLm.getLmOrder();
+					for (final int[] sent : intSentences) {
+						for (int i = 1; i < sent.length; ++i) {
+							sum += arrayEncodedLm.getLogProb(sent, Math.max(0, i + 1 - lmOrder), i + 1);
+							numOps++;
+						}
+					}
+				} else {
+					final LmContextInfo context = new LmContextInfo();
+					for (final int[] sent : intSentences) {
+						context.offset = -1L;
+						context.order = -1;
+						contextEncodedLm.getLogProb(context.offset, context.order, sent[0], context);
+						for (int i = 1; i < sent.length; ++i) {
+							sum += contextEncodedLm.getLogProb(context.offset, context.order, sent[i], context);
+							numOps++;
+						}
+					}
+				}
+				BenchmarkRunner.sink += sum;
+				return numOps;
+			}
+		};
+	}
+
+	/**
+	 * Generates sentences from a context-encoded LM with an
+	 * {@link AliasTableSampler} (reported per token, including end symbols).
+	 */
+	private static Benchmark sample(final String arpaFile, final String modelName) {
+		return new Benchmark("sample", false, modelName, MapType.CONTEXT.paramName(), "alias-table")
+		{
+			private AliasTableSampler<String> sampler;
+
+			private final Random random = new Random(0);
+
+			@Override
+			public void setUp() {
+				final ConfigOptions opts = new ConfigOptions();
+				opts.indexSuccessors = true;
+				sampler = new AliasTableSampler<String>(LmReaders.readContextEncodedLmFromArpa(arpaFile, new StringWordIndexer(), opts, Integer.MAX_VALUE));
+			}
+
+			@Override
+			public long run() {
+				long numTokens = 0;
+				for (int i = 0; i < 100; ++i)
+					numTokens += sampler.sampleSentence(random).size() + 1;
+				BenchmarkRunner.sink += numTokens;
+				return numTokens;
+			}
+
+			@Override
+			public void tearDown() {
+				sampler = null;
+			}
+		};
+	}
+
+	/**
+	 * Scores a shortlist of candidate words after every context of every
+	 * sentence, either one word at a time or with
+	 * {@link ContextEncodedProbBackoffLm#getLogProbs(long, int, int[], float[], LmContextInfo[])}
+	 * (reported per word).
+	 */
+	private static Benchmark scoreShortlist(final String arpaFile, final String modelName, final boolean batched, final List<String[]> sentences) {
+		final int shortlistSize = 100;
+		return new ModelBenchmark(batched ? "getLogProbs.batched" : "getLogProbs.single", arpaFile, modelName, MapType.CONTEXT, false, sentences)
+		{
+			private final int[] shortlist = new int[shortlistSize];
+
+			private final float[] logProbs = new float[shortlistSize];
+
+			@Override
+			public void setUp() {
+				super.setUp();
+				for (int i = 0; i < shortlistSize; ++i)
+					shortlist[i] = i % lm.getWordIndexer().numWords();
+			}
+
+			@Override
+			public long run() {
+				final ContextEncodedProbBackoffLm<String> probBackoffLm = (ContextEncodedProbBackoffLm<String>) contextEncodedLm;
+				float sum = 0.0f;
+				long numOps = 0;
+				final LmContextInfo context = new LmContextInfo();
+				for (final int[] sent : intSentences) {
+					context.offset = -1L;
+					context.order = -1;
+					for (int i = 0; i < sent.length; ++i) {
+						if (batched) {
+							probBackoffLm.getLogProbs(context.offset, context.order, shortlist, logProbs, null);
+						} else {
+							for (int j = 0; j < shortlistSize; ++j)
+								logProbs[j] = probBackoffLm.getLogProb(context.offset, context.order, shortlist[j], null);
+						}
+						sum += logProbs[i % shortlistSize];
+						numOps += shortlistSize;
+						probBackoffLm.getLogProb(context.offset, context.order, sent[i], context);
+					}
+				}
+				BenchmarkRunner.sink += sum;
+				return numOps;
+			}
+		};
+	}
+
+	/**
+	 * Scores each sentence as a separate task, as a server would, on either a
+	 * fixed pool of one thread per core or a new virtual thread per task, with
+	 * either a cache per thread or caches shared by all threads (reported per
+	 * sentence). Virtual threads are only benchmarked on JVMs which have them.
+	 */
+	private static Benchmark scoreConcurrently(final String arpaFile, final String modelName, final boolean virtualThreads, final boolean sharedCache,
+		final List<String[]> sentences) {
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		return new Benchmark(virtualThreads ? "concurrent.virtual" : "concurrent.fixed-pool", false, modelName, MapType.CONTEXT.paramName(),
+			sharedCache ? "shared" : "thread-local")
+		{
+			private ContextEncodedNgramLanguageModel<String> lm;
+
+			private ExecutorService executor;
+
+			@Override
+			public void setUp() {
+				final ContextEncodedNgramLanguageModel<String> loaded = (ContextEncodedNgramLanguageModel<String>) MapType.CONTEXT.load(arpaFile);
+				lm = sharedCache ? ContextEncodedCachingLmWrapper.wrapWithCacheShared(loaded, 16, numThreads) : ContextEncodedCachingLmWrapper
+					.wrapWithCacheThreadSafe(loaded, 16);
+				executor = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor() : Executors.newFixedThreadPool(numThreads);
+			}
+
+			@Override
+			public long run() {
+				final List<Future<Float>> scores = new ArrayList<Future<Float>>();
+				for (final String[] sentence : sentences) {
+					scores.add(executor.submit(new Callable<Float>()
+					{
+						@Override
+						public Float call() {
+							return lm.scoreSentence(Arrays.asList(sentence));
+						}
+					}));
+				}
+				float sum = 0.0f;
+				try {
+					for (final Future<Float> score : scores)
+						sum += score.get();
+				} catch (final Exception e) {
+					throw new RuntimeException(e);
+				}
+				BenchmarkRunner.sink += sum;
+				return sentences.size();
+			}
+
+			@Override
+			public void tearDown() {
+				executor.shutdown();
+				executor = null;
+				lm = null;
+			}
+		};
+	}
+
+	private static Benchmark scoreSentence(final String arpaFile, final String modelName, final MapType mapType, final boolean cached,
+		final List<String[]> sentences) {
+		return new ModelBenchmark("scoreSentence", arpaFile, modelName, mapType, cached, sentences)
+		{
+			@Override
+			public long run() {
+				float sum = 0.0f;
+				for (final List<String> sentence : listSentences)
+					sum += lm.scoreSentence(sentence);
+				BenchmarkRunner.sink += sum;
+				return listSentences.size();
+			}
+		};
+	}
+
+	/**
+	 * Benchmark over a model which is loaded in {@link #setUp()}.
+	 *
+	 * @author adampauls
+	 *
+	 */
+	private static abstract class ModelBenchmark extends Benchmark
+	{
+		private final String arpaFile;
+
+		private final MapType mapType;
+
+		private final boolean cached;
+
+		private final List<String[]> sentences;
+
+		protected NgramLanguageModel<String> lm;
+
+		protected ArrayEncodedNgramLanguageModel<String> arrayEncodedLm;
+
+		protected ContextEncodedNgramLanguageModel<String> contextEncodedLm;
+
+		protected List<int[]> intSentences;
+
+		protected List<List<String>> listSentences;
+
+		public ModelBenchmark(final String name, final String arpaFile, final String modelName, final MapType mapType, final boolean cached,
+			final List<String[]> sentences) {
+			super(name, false, modelName, mapType.paramName(), cached ? "direct-mapped" : "none");
+			this.arpaFile = arpaFile;
+			this.mapType = mapType;
+			this.cached = cached;
+			this.sentences = sentences;
+		}
+
+		@Override
+		public void setUp() {
+			final NgramLanguageModel<String> loaded = mapType.load(arpaFile);
+			if (loaded instanceof ArrayEncodedNgramLanguageModel) {
+				arrayEncodedLm = (ArrayEncodedNgramLanguageModel<String>) loaded;
+				if (cached) arrayEncodedLm = ArrayEncodedCachingLmWrapper.wrapWithCacheNotThreadSafe(arrayEncodedLm);
+				lm = arrayEncodedLm;
+			} else {
+				contextEncodedLm = (ContextEncodedNgramLanguageModel<String>) loaded;
+				if (cached) contextEncodedLm = ContextEncodedCachingLmWrapper.wrapWithCacheNotThreadSafe(contextEncodedLm);
+				lm = contextEncodedLm;
+			}
+			intSentences = new ArrayList<int[]>();
+			listSentences = new ArrayList<List<String>>();
+			final WordIndexer<String> wordIndexer = lm.getWordIndexer();
+			for (final String[] sentence : sentences) {
+				final int[] sent = new int[sentence.length + 2];
+				sent[0] = wordIndexer.getIndexPossiblyUnk(wordIndexer.getStartSymbol());
+				sent[sent.length - 1] = wordIndexer.getIndexPossiblyUnk(wordIndexer.getEndSymbol());
+				for (int i = 0; i < sentence.length; ++i)
+					sent[i + 1] = wordIndexer.getIndexPossiblyUnk(sentence[i]);
+				intSentences.add(sent);
+				listSentences.add(Arrays.asList(sentence));
+			}
+		}
+
+		@Override
+		public void tearDown() {
+			lm = null;
+			arrayEncodedLm = null;
+			contextEncodedLm = null;
+		}
+	}
+
+	private static List<String[]> readSentences(final String textFile) {
+		final List<String[]> sentences = new ArrayList<String[]>();
+		for (final String line : IOUtils.readLinesHard(textFile)) {
+			final String trimmed = line.trim();
+			if (trimmed.length() > 0) sentences.add(trimmed.split("\\s+"));
+		}
+		return sentences;
+	}
+
+}
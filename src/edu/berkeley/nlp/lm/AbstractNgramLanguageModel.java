@@ -41,6 +41,10 @@ public abstract class AbstractNgramLanguageModel<W> implements NgramLanguageMode
 		return wordIndexer;
 	}
 	
+	public float getOovWordLogProb() {
+		return oovWordLogProb;
+	}
+
 	@Override
 	public void setOovWordLogProb(float oovWordLogProb) {
 		this.oovWordLogProb = oovWordLogProb;
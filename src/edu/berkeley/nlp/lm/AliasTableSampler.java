@@ -0,0 +1,280 @@
+package edu.berkeley.nlp.lm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel.LmContextInfo;
+import edu.berkeley.nlp.lm.map.HashNgramMap;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+import edu.berkeley.nlp.lm.values.ProbBackoffValueContainer;
+
+/**
+ * Samples words from a {@link ContextEncodedProbBackoffLm} in (expected)
+ * constant time per word.
+ * <p>
+ * The distribution following a context is a mixture of the explicit
+ * successors of the context and the backoff-weighted distribution following
+ * its suffix, restricted to words which are not explicit successors. For each
+ * context, an alias table over the explicit successors is built the first
+ * time the context is sampled from, together with the total mass of the
+ * mixture and a pointer to the table of the suffix; the unigram table is built
+ * up front. A sample then draws from one alias table per order it backs off,
+ * rejecting words which are explicit at a higher order.
+ * <p>
+ * Tables are kept in a direct-mapped cache with <code>2^cacheBits</code>
+ * entries, so memory is bounded by the cache size and the number of
+ * successors of the cached contexts. The LM must have a successor index (see
+ * {@link ContextEncodedProbBackoffLm#precomputeSuccessors()}). Tables are
+ * immutable, so a sampler may be shared between threads (each with its own
+ * {@link Random}).
+ *
+ * @author adampauls
+ *
+ * @param <W>
+ */
+public final class AliasTableSampler<W>
+{
+
+	public static final int DEFAULT_CACHE_BITS = 16;
+
+	private static final int MAX_REJECTIONS = 1000;
+
+	/**
+	 * The alias table for the explicit successors of a single context.
+	 *
+	 * @author adampauls
+	 *
+	 */
+	private static final class Table
+	{
+		final long contextOffset;
+
+		final int contextOrder;
+
+		/**
+		 * Null for the unigram table, whose words are its indices
+		 */
+		final int[] words;
+
+		final float[] cutoffs;
+
+		final int[] aliases;
+
+		final double explicitMass;
+
+		final double totalMass;
+
+		/**
+		 * Table for the suffix of the context, or null for the unigram table
+		 */
+		final Table lower;
+
+		Table(final long contextOffset, final int contextOrder, final int[] words, final double[] weights, final double explicitMass,
+			final double totalMass, final Table lower) {
+			this.contextOffset = contextOffset;
+			this.contextOrder = contextOrder;
+			this.words = words;
+			this.explicitMass = explicitMass;
+			this.totalMass = totalMass;
+			this.lower = lower;
+			cutoffs = new float[weights.length];
+			aliases = new int[weights.length];
+			buildAliasTable(weights, explicitMass, cutoffs, aliases);
+		}
+
+		int sample(final Random random) {
+			final int i = random.nextInt(cutoffs.length);
+			final int index = random.nextFloat() < cutoffs[i] ? i : aliases[i];
+			return words == null ? index : words[index];
+		}
+	}
+
+	private final ContextEncodedProbBackoffLm<W> lm;
+
+	private final HashNgramMap<ProbBackoffPair> map;
+
+	private final ProbBackoffValueContainer values;
+
+	private final Table unigramTable;
+
+	private final Table[] cache;
+
+	private final int cacheMask;
+
+	public AliasTableSampler(final ContextEncodedProbBackoffLm<W> lm) {
+		this(lm, DEFAULT_CACHE_BITS);
+	}
+
+	public AliasTableSampler(final ContextEncodedProbBackoffLm<W> lm, final int cacheBits) {
+		this.lm = lm;
+		this.map = (HashNgramMap<ProbBackoffPair>) lm.getNgramMap();
+		this.values = (ProbBackoffValueContainer) map.getValues();
+		if (!map.hasSuccessorIndex()) throw new RuntimeException("Sampling with alias tables requires a successor index (see ConfigOptions.indexSuccessors)");
+		cache = new Table[1 << cacheBits];
+		cacheMask = cache.length - 1;
+		final int numWords = (int) map.getNumNgrams(0);
+		final double[] weights = new double[numWords];
+		double mass = 0.0;
+		for (int word = 0; word < numWords; ++word) {
+			weights[word] = pow10(getUnigramLogProb(word));
+			mass += weights[word];
+		}
+		unigramTable = new Table(0L, -1, null, weights, mass, mass, null);
+	}
+
+	/**
+	 * Samples a word following a context. Only words in the LM are sampled.
+	 *
+	 * @param contextOffset
+	 * @param contextOrder
+	 * @param random
+	 * @return
+	 */
+	public int sample(final long contextOffset, final int contextOrder, final Random random) {
+		final int word = sampleHelp(getTable(contextOffset, contextOrder), random);
+		// too many rejections can only happen if rounding error leaves a tiny positive mass to words which are not there
+		return word >= 0 ? word : lm.sampleFromAllWords(contextOffset, contextOrder, random);
+	}
+
+	/**
+	 * Samples a sentence (without start and end symbols).
+	 *
+	 * @param random
+	 * @return
+	 */
+	public List<W> sampleSentence(final Random random) {
+		final WordIndexer<W> wordIndexer = lm.getWordIndexer();
+		final int startIndex = wordIndexer.getIndexPossiblyUnk(wordIndexer.getStartSymbol());
+		final int endIndex = wordIndexer.getIndexPossiblyUnk(wordIndexer.getEndSymbol());
+		final List<W> ret = new ArrayList<W>();
+		final LmContextInfo context = new LmContextInfo();
+		lm.getLogProb(context.offset, context.order, startIndex, context);
+		while (true) {
+			int sample;
+			// rejecting samples is the same as leaving these words out of the distribution
+			do {
+				sample = sample(context.offset, context.order, random);
+			} while (sample == startIndex || (ret.isEmpty() && sample == endIndex));
+			if (sample == endIndex) break;
+			ret.add(wordIndexer.getWord(sample));
+			lm.getLogProb(context.offset, context.order, sample, context);
+		}
+		return ret;
+	}
+
+	private int sampleHelp(final Table table, final Random random) {
+		if (table.lower == null || random.nextDouble() * table.totalMass < table.explicitMass) return table.sample(random);
+		for (int tries = 0; tries < MAX_REJECTIONS; ++tries) {
+			final int word = sampleHelp(table.lower, random);
+			if (word < 0) return word;
+			if (!isExplicitSuccessor(table.contextOffset, table.contextOrder, word)) return word;
+		}
+		return -1;
+	}
+
+	private boolean isExplicitSuccessor(final long contextOffset, final int contextOrder, final int word) {
+		final long offset = map.getOffset(contextOffset, contextOrder, word);
+		return offset >= 0 && !Float.isNaN(values.getProb(contextOrder + 1, offset));
+	}
+
+	private Table getTable(final long contextOffset, final int contextOrder) {
+		if (contextOrder < 0) return unigramTable;
+		final int index = (int) (hash(contextOffset, contextOrder) & cacheMask);
+		final Table cached = cache[index];
+		if (cached != null && cached.contextOffset == contextOffset && cached.contextOrder == contextOrder) return cached;
+		final Table table = buildTable(contextOffset, contextOrder);
+		cache[index] = table;
+		return table;
+	}
+
+	private Table buildTable(final long contextOffset, final int contextOrder) {
+		final long suffixOffset = contextOrder == 0 ? 0L : values.getSuffixOffset(contextOffset, contextOrder);
+		final Table lower = getTable(suffixOffset, contextOrder - 1);
+		final int numSuccessors = (int) map.getNumSuccessors(contextOffset, contextOrder);
+		int[] words = new int[numSuccessors];
+		double[] weights = new double[numSuccessors];
+		int numExplicit = 0;
+		double explicitMass = 0.0;
+		double shadowedMass = 0.0;
+		for (int i = 0; i < numSuccessors; ++i) {
+			final long offset = map.getSuccessorOffset(contextOffset, contextOrder, i);
+			final float prob = values.getProb(contextOrder + 1, offset);
+			if (Float.isNaN(prob)) continue;
+			final int word = map.getNextWord(offset, contextOrder + 1);
+			words[numExplicit] = word;
+			weights[numExplicit] = pow10(prob);
+			explicitMass += weights[numExplicit];
+			shadowedMass += pow10(contextOrder == 0 ? getUnigramLogProb(word) : lm.getLogProb(suffixOffset, contextOrder - 1, word, null));
+			numExplicit++;
+		}
+		if (numExplicit < numSuccessors) {
+			final int[] explicitWords = new int[numExplicit];
+			final double[] explicitWeights = new double[numExplicit];
+			System.arraycopy(words, 0, explicitWords, 0, numExplicit);
+			System.arraycopy(weights, 0, explicitWeights, 0, numExplicit);
+			words = explicitWords;
+			weights = explicitWeights;
+		}
+		final float backoff = values.getBackoff(contextOrder, contextOffset);
+		final double totalMass = explicitMass + (Float.isNaN(backoff) ? 1.0 : pow10(backoff)) * Math.max(0.0, lower.totalMass - shadowedMass);
+		return new Table(contextOffset, contextOrder, words, weights, explicitMass, totalMass, lower);
+	}
+
+	/**
+	 * Builds an alias table with Vose's method.
+	 */
+	private static void buildAliasTable(final double[] weights, final double totalWeight, final float[] cutoffs, final int[] aliases) {
+		final int n = weights.length;
+		if (n == 0) return;
+		final double[] scaled = new double[n];
+		final int[] small = new int[n];
+		final int[] large = new int[n];
+		int numSmall = 0;
+		int numLarge = 0;
+		for (int i = 0; i < n; ++i) {
+			scaled[i] = weights[i] * n / totalWeight;
+			if (scaled[i] < 1.0)
+				small[numSmall++] = i;
+			else
+				large[numLarge++] = i;
+		}
+		while (numSmall > 0 && numLarge > 0) {
+			final int s = small[--numSmall];
+			final int l = large[--numLarge];
+			cutoffs[s] = (float) scaled[s];
+			aliases[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+			if (scaled[l] < 1.0)
+				small[numSmall++] = l;
+			else
+				large[numLarge++] = l;
+		}
+		// whatever is left has (up to rounding) a scaled weight of 1
+		while (numLarge > 0) {
+			final int l = large[--numLarge];
+			cutoffs[l] = 1.0f;
+			aliases[l] = l;
+		}
+		while (numSmall > 0) {
+			final int s = small[--numSmall];
+			cutoffs[s] = 1.0f;
+			aliases[s] = s;
+		}
+	}
+
+	private float getUnigramLogProb(final int word) {
+		final float prob = values.getProb(0, word);
+		return Float.isNaN(prob) ? lm.oovWordLogProb : prob;
+	}
+
+	private static long hash(final long contextOffset, final int contextOrder) {
+		final long h = (contextOffset * 31 + contextOrder) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+
+	private static double pow10(final float logProb) {
+		return Math.exp(logProb * Math.log(10));
+	}
+
+}
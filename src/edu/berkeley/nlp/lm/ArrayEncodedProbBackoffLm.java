@@ -8,6 +8,8 @@ import java.util.Random;
 import edu.berkeley.nlp.lm.collections.Counter;
 import edu.berkeley.nlp.lm.map.ContextEncodedNgramMap;
 import edu.berkeley.nlp.lm.map.NgramMap;
+import edu.berkeley.nlp.lm.util.LookupStatistics;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.values.ProbBackoffValueContainer;
 import edu.berkeley.nlp.lm.values.ProbBackoffPair;
 
@@ -69,20 +71,38 @@ public class ArrayEncodedProbBackoffLm<W> extends AbstractArrayEncodedNgramLangu
 
 		final ProbBackoffPair scratch = !useScratchValues ? null : new ProbBackoffPair(Float.NaN, Float.NaN);
 		final int unigramWord = ngram[endPos - 1];
-		if (unigramWord < 0 || unigramWord >= numWords) return oovWordLogProb;
+		if (unigramWord < 0 || unigramWord >= numWords) {
+			if (LookupStatistics.ENABLED) LookupStatistics.recordOovQuery();
+			return oovWordLogProb;
+		}
 
+		// Fake entries (n-grams with NaN probabilities which only exist because a longer n-gram needs them) 
+		// are filled in with their backed-off probabilities when hash maps are built. Compressed maps 
+		// decode the value of every n-gram along the way anyway, so we just keep the longest real match.
+		float logProb = Float.NaN;
+		if (scratch != null) {
+			localMap.getValueAndOffset(0, -1, unigramWord, scratch);
+			logProb = scratch.prob;
+		}
+		long currContext = unigramWord;
 		long matchedProbContext = unigramWord;
 		int matchedProbContextOrder = -1;
 		for (int i = endPos - 2; i >= startPos_; --i) {
 			final int probContextOrder = endPos - i - 2;
-			final long probContext = localMap.getValueAndOffset(matchedProbContext, probContextOrder, ngram[i], scratch);
-			if (probContext < 0) break;
-			matchedProbContext = probContext;
+			currContext = localMap.getValueAndOffset(currContext, probContextOrder, ngram[i], scratch);
+			if (currContext < 0) break;
+			if (scratch != null) {
+				if (Float.isNaN(scratch.prob)) continue;
+				logProb = scratch.prob;
+			}
+			matchedProbContext = currContext;
 			matchedProbContextOrder = probContextOrder;
 		}
-		float logProb = scratch == null ? values.getProb(matchedProbContextOrder + 1, matchedProbContext) : scratch.prob;
+		if (scratch == null) logProb = values.getProb(matchedProbContextOrder + 1, matchedProbContext);
 		if (Float.isNaN(logProb)) {
-			// this was a fake entry, let's do it again, but only keep track of the biggest match which was not fake
+			if (LookupStatistics.ENABLED) LookupStatistics.recordNanFallback();
+			// this was a fake entry which could not be filled in (e.g. in a binary written by an older version), 
+			// let's do it again, but only keep track of the biggest match which was not fake
 			matchedProbContext = 0;
 			matchedProbContextOrder = -1;
 			for (int i = endPos - 1; i >= startPos_; --i) {
@@ -98,6 +118,7 @@ public class ArrayEncodedProbBackoffLm<W> extends AbstractArrayEncodedNgramLangu
 			}
 		}
 
+		if (LookupStatistics.ENABLED) LookupStatistics.recordQuery(endPos - startPos_ - 2 - matchedProbContextOrder);
 		final float backoff = matchedProbContextOrder == endPos - startPos_ - 2 || endPos - startPos_ <= 1 ? 0.0f : getBackoffSum(ngram, startPos_, endPos,
 			localMap, matchedProbContextOrder, scratch);
 		return logProb + backoff;
@@ -171,4 +192,9 @@ public class ArrayEncodedProbBackoffLm<W> extends AbstractArrayEncodedNgramLangu
 		return map;
 	}
 
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		return map.getMemoryUsage();
+	}
+
 }
@@ -0,0 +1,225 @@
+package edu.berkeley.nlp.lm;
+
+import java.io.Serializable;
+import java.util.List;
+
+import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
+import edu.berkeley.nlp.lm.util.MurmurHash;
+
+/**
+ * Randomized language model which stores quantized log counts in a single
+ * Bloom filter (the "log-frequency Bloom filter" of Talbot and Osborne, 2007)
+ * and scores n-grams using stupid backoff, like {@link StupidBackoffLm}.
+ * <p>
+ * An n-gram whose count quantizes to <code>q</code> is stored by inserting the
+ * pairs <code>(ngram,1),...,(ngram,q)</code> into the filter. Counts are
+ * recovered by probing <code>(ngram,j)</code> for increasing <code>j</code>
+ * until a probe fails. Errors are one-sided (counts can only be
+ * overestimated), and are further reduced by never allowing the count of an
+ * n-gram to exceed the count of its suffix, nor the count of an n-gram to
+ * exceed the count of its context.
+ * <p>
+ * Counts are quantized as <code>1 + floor(log_b(count/minCount))</code>, where
+ * <code>minCount</code> is the smallest count in the collection (e.g. 40 for
+ * the Google Web1T corpus), and are decoded to the midpoint of their bucket.
+ *
+ * @author adampauls
+ *
+ * @param <W>
+ */
+public class BloomFilterLm<W> extends AbstractArrayEncodedNgramLanguageModel<W> implements ArrayEncodedNgramLanguageModel<W>, Serializable
+{
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	private static final int SEED = 0x9747b28c;
+
+	@PrintMemoryCount
+	private final long[] bits;
+
+	private final long numBits;
+
+	private final int numHashFunctions;
+
+	private final double quantizationBase;
+
+	private final long minCount;
+
+	private final int maxQuantizedCount;
+
+	private final float alpha;
+
+	private long unigramSum = 0L;
+
+	/**
+	 *
+	 * @param lmOrder
+	 * @param wordIndexer
+	 * @param numInsertions
+	 *            total number of quantized counts which will be added (see
+	 *            {@link #getQuantizedCount(long, long, double)})
+	 * @param minCount
+	 *            smallest count which will be added.
+	 * @param maxCount
+	 *            largest count which will be added
+	 * @param opts
+	 */
+	public BloomFilterLm(final int lmOrder, final WordIndexer<W> wordIndexer, final long numInsertions, final long minCount, final long maxCount,
+		final ConfigOptions opts) {
+		super(lmOrder, wordIndexer, (float) opts.unknownWordLogProb);
+		final double falsePositiveRate = opts.bloomFilterFalsePositiveRate;
+		if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) throw new IllegalArgumentException("False positive rate must be in (0,1)");
+		if (opts.bloomFilterQuantizationBase <= 1.0) throw new IllegalArgumentException("Quantization base must be greater than 1");
+		final double ln2 = Math.log(2.0);
+		final long numBits_ = (long) Math.ceil(-Math.max(1L, numInsertions) * Math.log(falsePositiveRate) / (ln2 * ln2));
+		this.bits = new long[(int) ((numBits_ + Long.SIZE - 1) / Long.SIZE)];
+		this.numBits = bits.length * (long) Long.SIZE;
+		this.numHashFunctions = Math.max(1, (int) Math.round(numBits / (double) Math.max(1L, numInsertions) * ln2));
+		this.quantizationBase = opts.bloomFilterQuantizationBase;
+		this.minCount = Math.max(1L, minCount);
+		this.maxQuantizedCount = getQuantizedCount(maxCount, this.minCount, quantizationBase);
+		this.alpha = (float) opts.stupidBackoffAlpha;
+	}
+
+	/**
+	 * Adds the count of an n-gram. Each n-gram should be added exactly once.
+	 */
+	public void add(final int[] ngram, final int startPos, final int endPos, final long count) {
+		if (endPos - startPos == 1) unigramSum += count;
+		final int quantizedCount = Math.min(maxQuantizedCount, getQuantizedCount(count, minCount, quantizationBase));
+		final long hash = MurmurHash.hash64(ngram, startPos, endPos, SEED);
+		for (int j = 1; j <= quantizedCount; ++j)
+			setBits(hash, j);
+	}
+
+	@Override
+	public float getLogProb(final int[] ngram, final int startPos, final int endPos) {
+		float logProb = oovWordLogProb;
+		int suffixQuantizedCount = maxQuantizedCount;
+		for (int i = endPos - 1; i >= startPos; --i) {
+			final int quantizedCount = getQuantizedCount(ngram, i, endPos, suffixQuantizedCount);
+			if (quantizedCount == 0) return logProb;
+			final double backoffCount;
+			if (i == endPos - 1) {
+				backoffCount = unigramSum;
+			} else {
+				// the context of an n-gram is at least as frequent as the n-gram itself
+				final int contextQuantizedCount = Math.max(quantizedCount, getQuantizedCount(ngram, i, endPos - 1, maxQuantizedCount));
+				backoffCount = getApproximateCount(contextQuantizedCount);
+			}
+			logProb = StupidBackoffLm.scoreFromCounts(getApproximateCount(quantizedCount), backoffCount, alpha, i - startPos);
+			suffixQuantizedCount = quantizedCount;
+		}
+		return logProb;
+	}
+
+	/**
+	 * Gets the approximate count of an n-gram.
+	 *
+	 * @param ngram
+	 * @param startPos
+	 * @param endPos
+	 * @return approximate count of n-gram, or -1 if n-gram is not (believed to
+	 *         be) in the filter.
+	 */
+	public long getApproximateCount(final int[] ngram, final int startPos, final int endPos) {
+		int suffixQuantizedCount = maxQuantizedCount;
+		for (int i = endPos - 1; i >= startPos; --i) {
+			suffixQuantizedCount = getQuantizedCount(ngram, i, endPos, suffixQuantizedCount);
+			if (suffixQuantizedCount == 0) return -1;
+		}
+		return Math.round(getApproximateCount(suffixQuantizedCount));
+	}
+
+	/**
+	 * Number of bits in the filter.
+	 *
+	 * @return
+	 */
+	public long getNumBits() {
+		return numBits;
+	}
+
+	public int getNumHashFunctions() {
+		return numHashFunctions;
+	}
+
+	/**
+	 * N-grams of all orders (together with their quantized counts) share a
+	 * single filter, which is counted as keys.
+	 */
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		final MemoryUsage usage = new MemoryUsage();
+		usage.addBits(MemoryUsage.ALL_ORDERS, MemoryUsage.Component.KEYS, (long) bits.length * Long.SIZE);
+		return usage;
+	}
+
+	@Override
+	public float getLogProb(final int[] ngram) {
+		return ArrayEncodedNgramLanguageModel.DefaultImplementations.getLogProb(ngram, this);
+	}
+
+	@Override
+	public float getLogProb(final List<W> ngram) {
+		return ArrayEncodedNgramLanguageModel.DefaultImplementations.getLogProb(ngram, this);
+	}
+
+	/**
+	 * Quantizes a count.
+	 *
+	 * @param count
+	 * @param minCount
+	 * @param base
+	 * @return
+	 */
+	public static int getQuantizedCount(final long count, final long minCount, final double base) {
+		if (count < minCount) return 1;
+		return 1 + (int) Math.floor(Math.log(count / (double) minCount) / Math.log(base) + 1e-9);
+	}
+
+	private double getApproximateCount(final int quantizedCount) {
+		final double lower = minCount * Math.pow(quantizationBase, quantizedCount - 1);
+		final double upper = minCount * Math.pow(quantizationBase, quantizedCount);
+		return Math.max(minCount, (lower + upper - 1.0) / 2.0);
+	}
+
+	/**
+	 * Probes for increasing quantized counts of an n-gram, up to
+	 * <code>maxQuantizedCount_</code>.
+	 *
+	 * @return the largest quantized count found, or 0 if the n-gram is not in
+	 *         the filter
+	 */
+	private int getQuantizedCount(final int[] ngram, final int startPos, final int endPos, final int maxQuantizedCount_) {
+		final long hash = MurmurHash.hash64(ngram, startPos, endPos, SEED);
+		int j = 0;
+		while (j < maxQuantizedCount_ && containsBits(hash, j + 1))
+			j++;
+		return j;
+	}
+
+	private void setBits(final long ngramHash, final int quantizedCount) {
+		final long hash1 = MurmurHash.hashOneLong(ngramHash ^ quantizedCount, SEED);
+		final long hash2 = MurmurHash.hashOneLong(hash1, quantizedCount) | 1L;
+		for (int i = 0; i < numHashFunctions; ++i) {
+			final long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+			bits[(int) (bit >>> 6)] |= 1L << (bit & 63);
+		}
+	}
+
+	private boolean containsBits(final long ngramHash, final int quantizedCount) {
+		final long hash1 = MurmurHash.hashOneLong(ngramHash ^ quantizedCount, SEED);
+		final long hash2 = MurmurHash.hashOneLong(hash1, quantizedCount) | 1L;
+		for (int i = 0; i < numHashFunctions; ++i) {
+			final long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+			if ((bits[(int) (bit >>> 6)] & (1L << (bit & 63))) == 0) return false;
+		}
+		return true;
+	}
+
+}
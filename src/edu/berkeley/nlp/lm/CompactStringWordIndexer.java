@@ -0,0 +1,445 @@
+package edu.berkeley.nlp.lm;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A {@link WordIndexer} for strings which stores the vocabulary compactly, for
+ * large (multi-million word) vocabularies.
+ * <p>
+ * Words are stored UTF-8 encoded and back to back in a single byte array, with
+ * an array of offsets into it, and are found with an open-addressing
+ * (linear-probing) hash table of word indices. Apart from these few arrays,
+ * no objects are kept per word (unlike {@link StringWordIndexer}, which keeps a
+ * <code>String</code> and a hash map entry for each word), and
+ * {@link #getWord(int)} decodes a new <code>String</code> each time it is
+ * called.
+ * <p>
+ * Besides the usual <code>String</code> methods, words can be looked up from
+ * slices of a <code>byte[]</code> holding UTF-8 text (see
+ * {@link #indexOf(byte[], int, int)}) or of a <code>CharSequence</code> (see
+ * {@link #indexOf(CharSequence, int, int)}), e.g. straight from an input
+ * buffer, without creating a <code>String</code> for each word. Unpaired
+ * surrogates in a <code>CharSequence</code> match a <code>'?'</code>, as they
+ * would if the sequence were converted to a <code>String</code> and encoded.
+ * <p>
+ * When serialized, only the words (and their lengths) are written, and the
+ * hash table is rebuilt when the indexer is read.
+ * <p>
+ * Like {@link StringWordIndexer}, lookups are safe to do from many threads,
+ * but adding words is not.
+ *
+ * @author adampauls
+ *
+ */
+public class CompactStringWordIndexer implements WordIndexer<String>
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int EMPTY = -1;
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+
+	private static final int HASH_SEED = 0x811c9dc5;
+
+	// bytes of all words
+	private transient byte[] arena;
+
+	private transient int arenaLength;
+
+	// word i is arena[offsets[i]..offsets[i+1])
+	private transient int[] offsets;
+
+	// cached so that the table can be rebuilt, and most mismatches rejected, without reading the arena
+	private transient int[] hashes;
+
+	// word indices, or EMPTY
+	private transient int[] table;
+
+	private transient int numWords;
+
+	private boolean locked = false;
+
+	private String startSymbol;
+
+	private String endSymbol;
+
+	private String unkSymbol;
+
+	private int unkIndex = -1;
+
+	public CompactStringWordIndexer() {
+		arena = new byte[INITIAL_CAPACITY * 8];
+		offsets = new int[INITIAL_CAPACITY + 1];
+		hashes = new int[INITIAL_CAPACITY];
+		table = newTable(INITIAL_CAPACITY * 2);
+	}
+
+	@Override
+	public int getOrAddIndex(final String word) {
+		return getOrAddIndexFromString(word);
+	}
+
+	@Override
+	public int getOrAddIndexFromString(final String word) {
+		final byte[] bytes = word.getBytes(UTF8);
+		return getOrAddIndex(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Gets the index of the word encoded (in UTF-8) by
+	 * <code>bytes[start..end)</code>, adding it if necessary.
+	 *
+	 * @param bytes
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public int getOrAddIndex(final byte[] bytes, final int start, final int end) {
+		final int hash = hashBytes(bytes, start, end);
+		final int slot = findBytes(bytes, start, end, hash);
+		if (table[slot] != EMPTY) return table[slot];
+		if (locked) throw new RuntimeException("Attempt to add to locked indexer");
+		final int index = add(bytes, start, end, hash);
+		table[slot] = index;
+		if (numWords * 2 > table.length) rehash(table.length * 2);
+		return index;
+	}
+
+	/**
+	 * Gets the index of a word, or -1 if it is not in the vocabulary.
+	 *
+	 * @param word
+	 * @return
+	 */
+	public int indexOf(final CharSequence word) {
+		return indexOf(word, 0, word.length());
+	}
+
+	/**
+	 * Gets the index of the word <code>word[start..end)</code>, or -1 if it is
+	 * not in the vocabulary.
+	 *
+	 * @param word
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public int indexOf(final CharSequence word, final int start, final int end) {
+		final int hash = hashChars(word, start, end);
+		final int mask = table.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			final int index = table[slot];
+			if (index == EMPTY) return -1;
+			if (hashes[index] == hash && equalsChars(index, word, start, end)) return index;
+		}
+	}
+
+	/**
+	 * Gets the index of the word encoded (in UTF-8) by
+	 * <code>bytes[start..end)</code>, or -1 if it is not in the vocabulary.
+	 *
+	 * @param bytes
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public int indexOf(final byte[] bytes, final int start, final int end) {
+		return table[findBytes(bytes, start, end, hashBytes(bytes, start, end))];
+	}
+
+	@Override
+	public int getIndexPossiblyUnk(final String word) {
+		return getIndexPossiblyUnk(word, 0, word.length());
+	}
+
+	/**
+	 * Like {@link #indexOf(CharSequence, int, int)}, but returns the index of
+	 * the unk symbol if the word is not in the vocabulary.
+	 *
+	 * @param word
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public int getIndexPossiblyUnk(final CharSequence word, final int start, final int end) {
+		final int id = indexOf(word, start, end);
+		return id < 0 ? unkIndex : id;
+	}
+
+	/**
+	 * Like {@link #indexOf(byte[], int, int)}, but returns the index of the
+	 * unk symbol if the word is not in the vocabulary.
+	 *
+	 * @param bytes
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public int getIndexPossiblyUnk(final byte[] bytes, final int start, final int end) {
+		final int id = indexOf(bytes, start, end);
+		return id < 0 ? unkIndex : id;
+	}
+
+	@Override
+	public String getWord(final int index) {
+		if (index < 0 || index >= numWords) throw new ArrayIndexOutOfBoundsException(index);
+		return new String(arena, offsets[index], offsets[index + 1] - offsets[index], UTF8);
+	}
+
+	@Override
+	public int numWords() {
+		return numWords;
+	}
+
+	/**
+	 * The number of bytes used by the UTF-8 encodings of all words.
+	 *
+	 * @return
+	 */
+	public int getNumBytes() {
+		return arenaLength;
+	}
+
+	@Override
+	public String getStartSymbol() {
+		return startSymbol;
+	}
+
+	@Override
+	public void setStartSymbol(final String sym) {
+		startSymbol = sym;
+		getOrAddIndexFromString(sym);
+	}
+
+	@Override
+	public String getEndSymbol() {
+		return endSymbol;
+	}
+
+	@Override
+	public void setEndSymbol(final String sym) {
+		endSymbol = sym;
+		getOrAddIndexFromString(sym);
+	}
+
+	@Override
+	public String getUnkSymbol() {
+		return unkSymbol;
+	}
+
+	@Override
+	public void setUnkSymbol(final String sym) {
+		unkSymbol = sym;
+		unkIndex = getOrAddIndexFromString(sym);
+	}
+
+	@Override
+	public void trimAndLock() {
+		arena = Arrays.copyOf(arena, arenaLength);
+		offsets = Arrays.copyOf(offsets, numWords + 1);
+		hashes = Arrays.copyOf(hashes, numWords);
+		locked = true;
+	}
+
+	private int add(final byte[] bytes, final int start, final int end, final int hash) {
+		final int length = end - start;
+		if (arenaLength + length < 0) throw new RuntimeException("Vocabulary is too large: more than " + Integer.MAX_VALUE + " bytes");
+		if (arenaLength + length > arena.length) arena = Arrays.copyOf(arena, Math.max(arenaLength + length, grow(arena.length)));
+		if (numWords + 1 >= offsets.length) {
+			offsets = Arrays.copyOf(offsets, grow(offsets.length));
+			hashes = Arrays.copyOf(hashes, offsets.length - 1);
+		}
+		System.arraycopy(bytes, start, arena, arenaLength, length);
+		arenaLength += length;
+		hashes[numWords] = hash;
+		offsets[++numWords] = arenaLength;
+		return numWords - 1;
+	}
+
+	private static int grow(final int length) {
+		final long newLength = length * 2L;
+		return newLength > Integer.MAX_VALUE - 8 ? Integer.MAX_VALUE - 8 : (int) newLength;
+	}
+
+	/**
+	 * Returns the slot holding the word, or the empty slot where it would be
+	 * added.
+	 */
+	private int findBytes(final byte[] bytes, final int start, final int end, final int hash) {
+		final int mask = table.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			final int index = table[slot];
+			if (index == EMPTY) return slot;
+			if (hashes[index] == hash && equalsBytes(index, bytes, start, end)) return slot;
+		}
+	}
+
+	private boolean equalsBytes(final int index, final byte[] bytes, final int start, final int end) {
+		final int offset = offsets[index];
+		if (offsets[index + 1] - offset != end - start) return false;
+		for (int i = start, j = offset; i < end; ++i, ++j)
+			if (bytes[i] != arena[j]) return false;
+		return true;
+	}
+
+	private boolean equalsChars(final int index, final CharSequence word, final int start, final int end) {
+		int j = offsets[index];
+		final int limit = offsets[index + 1];
+		for (int i = start; i < end; ++i) {
+			int codePoint = word.charAt(i);
+			if (isSurrogate(codePoint)) {
+				codePoint = surrogatesToCodePoint(word, i, end);
+				if (codePoint > Character.MAX_VALUE) ++i;
+			}
+			final int numBytes = utf8Length(codePoint);
+			if (limit - j < numBytes) return false;
+			for (int k = 0; k < numBytes; ++k)
+				if (arena[j++] != (byte) utf8Byte(codePoint, numBytes, k)) return false;
+		}
+		return j == limit;
+	}
+
+	private void rehash(final int newTableLength) {
+		table = newTable(newTableLength);
+		final int mask = newTableLength - 1;
+		for (int index = 0; index < numWords; ++index) {
+			int slot = hashes[index] & mask;
+			while (table[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			table[slot] = index;
+		}
+	}
+
+	private static int[] newTable(final int length) {
+		final int[] table = new int[length];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	private static int hashBytes(final byte[] bytes, final int start, final int end) {
+		int h = HASH_SEED;
+		for (int i = start; i < end; ++i)
+			h = mix(h, bytes[i] & 0xff);
+		return finish(h);
+	}
+
+	/**
+	 * Hashes the UTF-8 encoding of <code>word[start..end)</code> (the same
+	 * value {@link #hashBytes(byte[], int, int)} would compute from it).
+	 */
+	private static int hashChars(final CharSequence word, final int start, final int end) {
+		int h = HASH_SEED;
+		for (int i = start; i < end; ++i) {
+			int codePoint = word.charAt(i);
+			if (isSurrogate(codePoint)) {
+				codePoint = surrogatesToCodePoint(word, i, end);
+				if (codePoint > Character.MAX_VALUE) ++i;
+			}
+			final int numBytes = utf8Length(codePoint);
+			for (int k = 0; k < numBytes; ++k)
+				h = mix(h, utf8Byte(codePoint, numBytes, k));
+		}
+		return finish(h);
+	}
+
+	// FNV-1a
+	private static int mix(final int h, final int b) {
+		return (h ^ b) * 0x01000193;
+	}
+
+	// the final mix of MurmurHash3, since linear probing uses the low bits
+	private static int finish(final int h_) {
+		int h = h_;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static boolean isSurrogate(final int c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+
+	/**
+	 * Decodes the surrogate pair starting at <code>word[i]</code>, or returns
+	 * <code>'?'</code> if it is unpaired.
+	 */
+	private static int surrogatesToCodePoint(final CharSequence word, final int i, final int end) {
+		final char high = word.charAt(i);
+		if (Character.isHighSurrogate(high) && i + 1 < end) {
+			final char low = word.charAt(i + 1);
+			if (Character.isLowSurrogate(low)) return Character.toCodePoint(high, low);
+		}
+		return '?';
+	}
+
+	private static int utf8Length(final int codePoint) {
+		if (codePoint < 0x80) return 1;
+		if (codePoint < 0x800) return 2;
+		if (codePoint < 0x10000) return 3;
+		return 4;
+	}
+
+	/**
+	 * The <code>k</code>th byte of the <code>numBytes</code>-byte UTF-8
+	 * encoding of a code point.
+	 */
+	private static int utf8Byte(final int codePoint, final int numBytes, final int k) {
+		if (numBytes == 1) return codePoint;
+		final int shift = 6 * (numBytes - 1 - k);
+		if (k > 0) return 0x80 | ((codePoint >>> shift) & 0x3f);
+		// leading byte: 110xxxxx, 1110xxxx or 11110xxx
+		return ((0xf00 >>> numBytes) & 0xff) | (codePoint >>> shift);
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(numWords);
+		out.writeInt(arenaLength);
+		out.write(arena, 0, arenaLength);
+		// word lengths, as variable-length (7 bits per byte) ints
+		for (int index = 0; index < numWords; ++index) {
+			int length = offsets[index + 1] - offsets[index];
+			while (length >= 0x80) {
+				out.write((length & 0x7f) | 0x80);
+				length >>>= 7;
+			}
+			out.write(length);
+		}
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		numWords = in.readInt();
+		arenaLength = in.readInt();
+		arena = new byte[arenaLength];
+		in.readFully(arena);
+		offsets = new int[numWords + 1];
+		hashes = new int[numWords];
+		for (int index = 0; index < numWords; ++index) {
+			int length = 0;
+			for (int shift = 0;; shift += 7) {
+				final int b = in.readUnsignedByte();
+				length |= (b & 0x7f) << shift;
+				if (b < 0x80) break;
+			}
+			offsets[index + 1] = offsets[index] + length;
+			hashes[index] = hashBytes(arena, offsets[index], offsets[index + 1]);
+		}
+		if (offsets[numWords] != arenaLength) throw new IOException("Corrupt vocabulary: word lengths do not add up to " + arenaLength + " bytes");
+		int tableLength = INITIAL_CAPACITY * 2;
+		while (numWords * 2 > tableLength)
+			tableLength *= 2;
+		rehash(tableLength);
+	}
+
+}
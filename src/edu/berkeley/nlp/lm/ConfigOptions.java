@@ -37,6 +37,12 @@ public class ConfigOptions implements Serializable
 	@Option(gloss = "Backoff constant used for stupid backoff")
 	public double stupidBackoffAlpha = 0.4;
 
+	@Option(gloss = "False-positive rate of the Bloom filter used by randomized (Bloom filter) language models")
+	public double bloomFilterFalsePositiveRate = 0.01;
+
+	@Option(gloss = "Base of the logarithm used to quantize counts in randomized (Bloom filter) language models")
+	public double bloomFilterQuantizationBase = 2.0;
+
 	@Option(gloss = "Discounts used in estimating Kneser-Ney language models (one for each order). If null, they are calculated automatically using c1/(c1+2*c2), where cn is the number of ngrams with count n.")
 	public double[] kneserNeyDiscounts = null;//KneserNeyLmReaderCallback.defaultDiscounts();
 
@@ -46,6 +52,9 @@ public class ConfigOptions implements Serializable
 	@Option(gloss = "Number of bits allocated for a word in a context encoding (remaining bits of a long are used to encode an offset")
 	public int numWordBits = 26;
 
+	@Option(gloss = "If positive, hash-table (array-encoded) LMs store only fingerprints of this many bits instead of full keys. This saves memory, but looking up an n-gram which is not in the LM succeeds with a small probability (the measured rate is logged when the LM is built), and an n-gram whose fingerprint collides with one stored earlier replaces it (the number of such collisions is also logged). The n-grams of such LMs cannot be enumerated, so they cannot be pruned or wrapped as maps.")
+	public int numFingerprintBits = 0;
+
 	@Option(gloss = "Whether to lock indexers after language model creation. This prevents the vocabulary from growing.")
 	public boolean lockIndexer = true;
 
@@ -55,6 +64,21 @@ public class ConfigOptions implements Serializable
 	@Option(gloss = "For (uncompressed) models that store probabilities and backoffs, store by ranking")
 	public boolean storeRankedProbBackoffs = true;
 
+	@Option(gloss = "For context-encoded LMs, precompute the sum of the backoffs along the suffix chain of every context. This uses an extra 4 bytes per hash table entry (except for the highest order), but a query reads two sums instead of one backoff for each order it backs off.")
+	public boolean storeCumulativeBackoffs = false;
+
+	@Option(gloss = "For context-encoded LMs, return the shortest equivalent context from queries (dropping words from the left of an n-gram which cannot be extended to the right), so that decoders can recombine more hypotheses. This uses an extra 2 bits per hash table entry (except for the highest order).")
+	public boolean minimizeContextStates = false;
+
+	@Option(gloss = "For context-encoded LMs, index the successors of every context so that next-word distributions and samples can be computed from the n-grams which extend a context rather than from a query for every word in the vocabulary.")
+	public boolean indexSuccessors = false;
+
+	@Option(gloss = "When reading an ARPA file, look for n-grams whose prefixes or suffixes are missing (as in some pruned files) during the first pass, so that the n-gram map is built once at the right size. This keeps a hash of every n-gram below the highest order (about 16 bytes each). Otherwise, missing n-grams are found while building the map, which is then built again.")
+	public boolean detectMissingNgrams = false;
+
+	@Option(gloss = "When reading an ARPA file into an empty word indexer, first assign word indices in order of decreasing unigram probability, so that the hash tables, word ranges and unigram values of frequent words are close together in memory (and compressed word deltas are smaller). Google n-gram vocabularies (vocab_cs.gz) are already sorted by count.")
+	public boolean sortVocabularyByFrequency = false;
+
 
 	public ConfigOptions() {
 	}
@@ -1,12 +1,18 @@
 package edu.berkeley.nlp.lm;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
 
+import edu.berkeley.nlp.lm.array.CustomWidthArray;
+import edu.berkeley.nlp.lm.bits.BitUtils;
 import edu.berkeley.nlp.lm.map.ContextEncodedNgramMap;
 import edu.berkeley.nlp.lm.map.HashNgramMap;
 import edu.berkeley.nlp.lm.map.NgramMap;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.LookupStatistics;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.values.ProbBackoffPair;
 import edu.berkeley.nlp.lm.values.ProbBackoffValueContainer;
 import edu.berkeley.nlp.lm.values.UncompressedProbBackoffValueContainer;
@@ -33,13 +39,239 @@ public class ContextEncodedProbBackoffLm<W> extends AbstractContextEncodedNgramL
 
 	private final long numWords;
 
+	/**
+	 * For each context order and offset, the sum of the backoffs of the
+	 * context and all its suffixes (stored as float bits). Null unless
+	 * {@link #precomputeCumulativeBackoffs()} has been called.
+	 */
+	private CustomWidthArray[] cumulativeBackoffs = null;
+
+	private static final long HAS_RIGHT_EXTENSION = 1L;
+
+	private static final long HAS_LEFT_EXTENSION = 2L;
+
+	/**
+	 * For each order (except the highest) and offset, whether the n-gram is
+	 * the prefix ({@link #HAS_RIGHT_EXTENSION}) or suffix (
+	 * {@link #HAS_LEFT_EXTENSION}) of a longer n-gram. Null unless
+	 * {@link #precomputeExtensions()} has been called.
+	 */
+	private CustomWidthArray[] extensions = null;
+
+	private transient volatile AliasTableSampler<W> sampler = null;
+
 	public ContextEncodedProbBackoffLm(final int lmOrder, final WordIndexer<W> wordIndexer, final ContextEncodedNgramMap<ProbBackoffPair> map,
 		final ConfigOptions opts) {
 		super(lmOrder, wordIndexer, (float) opts.unknownWordLogProb);
 		this.map = (HashNgramMap<ProbBackoffPair>) map;
 		this.values = (ProbBackoffValueContainer) map.getValues();
 		numWords = map.getNumNgrams(0);
+		if (opts.storeCumulativeBackoffs) precomputeCumulativeBackoffs();
+		if (opts.minimizeContextStates) precomputeExtensions();
+		if (opts.indexSuccessors) precomputeSuccessors();
+
+	}
+
+	/**
+	 * Precomputes, for every n-gram which can be a context, the sum of its
+	 * backoff and the backoffs of all its suffixes. Afterwards, the backoff
+	 * accumulated by a query is the difference of two of these sums, rather
+	 * than a sum of one backoff for each order the query backs off. See
+	 * {@link ConfigOptions#storeCumulativeBackoffs}.
+	 */
+	public void precomputeCumulativeBackoffs() {
+		final int numContextOrders = Math.max(0, Math.min(lmOrder - 1, map.getMaxNgramOrder()));
+		final CustomWidthArray[] sums = new CustomWidthArray[numContextOrders];
+		for (int ngramOrder = 0; ngramOrder < numContextOrders; ++ngramOrder) {
+			final long capacity = map.getCapacity(ngramOrder);
+			sums[ngramOrder] = new CustomWidthArray(capacity, Float.SIZE);
+			if (capacity == 0) continue;
+			sums[ngramOrder].setAndGrowIfNeeded(capacity - 1, 0L);
+			for (final long offset : map.getNgramOffsetsForOrder(ngramOrder)) {
+				final float backoff = values.getBackoff(ngramOrder, offset);
+				float sum = Float.isNaN(backoff) ? 0.0f : backoff;
+				if (ngramOrder > 0) sum += getCumulativeBackoff(sums, ngramOrder - 1, values.getSuffixOffset(offset, ngramOrder));
+				sums[ngramOrder].set(offset, BitUtils.getLowLong(Float.floatToIntBits(sum)));
+			}
+		}
+		cumulativeBackoffs = sums;
+	}
+
+	/**
+	 * Records which n-grams can be extended to the left or right. Afterwards,
+	 * the contexts returned by {@link #getLogProb(long, int, int, LmContextInfo)}
+	 * are minimal: words are dropped from the left of the matched n-gram as
+	 * long as it cannot be extended to the right and has no backoff, since they
+	 * cannot affect the score of any later word. Two hypotheses of a decoder
+	 * whose states differ only in such words can therefore be recombined. It
+	 * also enables {@link #getLeftStateLength(int[], int, int)}. See
+	 * {@link ConfigOptions#minimizeContextStates}.
+	 */
+	public void precomputeExtensions() {
+		final int numContextOrders = Math.max(0, Math.min(lmOrder - 1, map.getMaxNgramOrder()));
+		final CustomWidthArray[] bits = new CustomWidthArray[numContextOrders];
+		for (int ngramOrder = 0; ngramOrder < numContextOrders; ++ngramOrder) {
+			final long capacity = map.getCapacity(ngramOrder);
+			bits[ngramOrder] = new CustomWidthArray(capacity, 2);
+			if (capacity > 0) bits[ngramOrder].setAndGrowIfNeeded(capacity - 1, 0L);
+		}
+		for (int ngramOrder = 1; ngramOrder <= numContextOrders; ++ngramOrder) {
+			final CustomWidthArray shorter = bits[ngramOrder - 1];
+			for (final long offset : map.getNgramOffsetsForOrder(ngramOrder)) {
+				final long prefixOffset = map.getNextContextOffset(offset, ngramOrder);
+				shorter.set(prefixOffset, shorter.get(prefixOffset) | HAS_RIGHT_EXTENSION);
+				final long suffixOffset = values.getSuffixOffset(offset, ngramOrder);
+				shorter.set(suffixOffset, shorter.get(suffixOffset) | HAS_LEFT_EXTENSION);
+			}
+		}
+		extensions = bits;
+	}
+
+	/**
+	 * Gets the number of leading words of a phrase whose probabilities could
+	 * still change if words were added to its left (the "left state" of the
+	 * phrase). Beyond these words, the only effect of a left context on the
+	 * score of the phrase is the backoff charged to n-grams ending in the
+	 * leading words, so a hypergraph decoder which scores a phrase before its
+	 * left context is known only needs to rescore this many words, and can
+	 * recombine hypotheses whose left states match.
+	 * <p>
+	 * If {@link #precomputeExtensions()} has not been called, this
+	 * conservatively returns the length of the phrase, up to the order of the
+	 * LM minus one.
+	 * 
+	 * @param phrase
+	 * @param startPos
+	 * @param endPos
+	 * @return
+	 */
+	public int getLeftStateLength(final int[] phrase, final int startPos, final int endPos) {
+		final int maxLength = Math.max(0, Math.min(endPos - startPos, lmOrder - 1));
+		if (extensions == null) return maxLength;
+		long offset = -1L;
+		for (int length = 0; length < maxLength; ++length) {
+			final int word = phrase[startPos + length];
+			if (word < 0 || word >= numWords) return length;
+			offset = length == 0 ? word : map.getOffset(offset, length - 1, word);
+			// no n-gram starting with a longer prefix of the phrase can be matched after adding words to the left
+			if (offset < 0 || (extensions[length].get(offset) & HAS_LEFT_EXTENSION) == 0) return length;
+		}
+		return maxLength;
+	}
+
+	/**
+	 * Indexes the successors of every context (see
+	 * {@link HashNgramMap#indexSuccessors()}), so that
+	 * {@link #getNextWordLogProbs(long, int, float[])} and
+	 * {@link #sampleNextWord(long, int, Random)} do not need to query every
+	 * word in the vocabulary. See {@link ConfigOptions#indexSuccessors}.
+	 */
+	public void precomputeSuccessors() {
+		map.indexSuccessors();
+	}
+
+	/**
+	 * Computes the log probability of every word in the vocabulary following
+	 * a context. With a successor index, this takes one pass over the
+	 * unigrams and one over the successors of the context and each of its
+	 * suffixes, rather than a query for each word.
+	 * 
+	 * @param contextOffset
+	 * @param contextOrder
+	 * @param logProbs
+	 *            Output array indexed by word, with at least as many entries
+	 *            as there are words in the LM. Any further entries are set to
+	 *            the OOV log probability.
+	 */
+	public void getNextWordLogProbs(final long contextOffset, final int contextOrder, @OutputParameter final float[] logProbs) {
+		if (logProbs.length < numWords) throw new RuntimeException("Output array has " + logProbs.length + " entries, but the LM has " + numWords + " words");
+		Arrays.fill(logProbs, (int) numWords, logProbs.length, oovWordLogProb);
+		if (!map.hasSuccessorIndex()) {
+			for (int word = 0; word < numWords; ++word)
+				logProbs[word] = getLogProb(contextOffset, contextOrder, word, null);
+			return;
+		}
+		final long[] contextOffsets = getSuffixOffsets(contextOffset, contextOrder);
+		// the backoff charged for reaching each order, summed in the same order as in getLogProb
+		final float[] backoffsAbove = new float[contextOrder + 2];
+		for (int currContextOrder = contextOrder; currContextOrder >= 0; --currContextOrder) {
+			final float backoff = values.getBackoff(currContextOrder, contextOffsets[currContextOrder]);
+			backoffsAbove[currContextOrder] = backoffsAbove[currContextOrder + 1] + (Float.isNaN(backoff) ? 0.0f : backoff);
+		}
+		for (int word = 0; word < numWords; ++word) {
+			final float prob = values.getProb(0, word);
+			logProbs[word] = Float.isNaN(prob) ? oovWordLogProb : backoffsAbove[0] + prob;
+		}
+		// longer n-grams override shorter ones
+		for (int currContextOrder = 0; currContextOrder <= contextOrder; ++currContextOrder) {
+			final long currContextOffset = contextOffsets[currContextOrder];
+			final long numSuccessors = map.getNumSuccessors(currContextOffset, currContextOrder);
+			for (long i = 0; i < numSuccessors; ++i) {
+				final long offset = map.getSuccessorOffset(currContextOffset, currContextOrder, i);
+				final float prob = values.getProb(currContextOrder + 1, offset);
+				if (!Float.isNaN(prob)) logProbs[map.getNextWord(offset, currContextOrder + 1)] = backoffsAbove[currContextOrder + 1] + prob;
+			}
+		}
+	}
+
+	/**
+	 * Samples a word from the distribution over words following a context.
+	 * Only words in the LM are sampled.
+	 * <p>
+	 * With a successor index, this uses an {@link AliasTableSampler} (created
+	 * on first use, with the default cache size), so each sample takes
+	 * expected constant time once the tables of its context have been built.
+	 * Without an index, every word is queried.
+	 * 
+	 * @param contextOffset
+	 * @param contextOrder
+	 * @param random
+	 * @return
+	 */
+	public int sampleNextWord(final long contextOffset, final int contextOrder, final Random random) {
+		if (!map.hasSuccessorIndex()) return sampleFromAllWords(contextOffset, contextOrder, random);
+		AliasTableSampler<W> localSampler = sampler;
+		if (localSampler == null) {
+			localSampler = new AliasTableSampler<W>(this);
+			sampler = localSampler;
+		}
+		return localSampler.sample(contextOffset, contextOrder, random);
+	}
+
+	int sampleFromAllWords(final long contextOffset, final int contextOrder, final Random random) {
+		final float[] logProbs = new float[(int) numWords];
+		getNextWordLogProbs(contextOffset, contextOrder, logProbs);
+		double total = 0.0;
+		for (int word = 0; word < numWords; ++word)
+			total += pow10(logProbs[word]);
+		final double target = random.nextDouble() * total;
+		double sum = 0.0;
+		for (int word = 0; word < numWords; ++word) {
+			sum += pow10(logProbs[word]);
+			if (target < sum) return word;
+		}
+		return (int) numWords - 1;
+	}
+
+	private static double pow10(final float logProb) {
+		return Math.exp(logProb * Math.log(10));
+	}
+
+	/**
+	 * @return The offsets of a context and all its suffixes, indexed by order.
+	 */
+	private long[] getSuffixOffsets(final long contextOffset, final int contextOrder) {
+		final long[] contextOffsets = new long[contextOrder + 1];
+		long currContextOffset = contextOffset;
+		for (int currContextOrder = contextOrder; currContextOrder >= 0; --currContextOrder) {
+			contextOffsets[currContextOrder] = currContextOffset;
+			if (currContextOrder > 0) currContextOffset = values.getSuffixOffset(currContextOffset, currContextOrder);
+		}
+		return contextOffsets;
+	}
 
+	private static float getCumulativeBackoff(final CustomWidthArray[] sums, final int contextOrder, final long contextOffset) {
+		return Float.intBitsToFloat((int) sums[contextOrder].get(contextOffset));
 	}
 
 	/*
@@ -53,6 +285,7 @@ public class ContextEncodedProbBackoffLm<W> extends AbstractContextEncodedNgramL
 	@Override
 	public float getLogProb(final long contextOffset, final int contextOrder, final int word, @OutputParameter final LmContextInfo outputContext) {
 		if (word < 0 || word >= numWords) { return oovReturn(outputContext); }
+		if (cumulativeBackoffs != null) return getLogProbWithCumulativeBackoffs(contextOffset, contextOrder, word, outputContext);
 
 		final HashNgramMap<ProbBackoffPair> localMap = map;
 		long longestOffset = -2;
@@ -70,9 +303,11 @@ public class ContextEncodedProbBackoffLm<W> extends AbstractContextEncodedNgramL
 				}
 				final float prob = values.getProb(ngramOrder, offset);
 				if (!Float.isNaN(prob)) {
+					if (LookupStatistics.ENABLED) LookupStatistics.recordQuery(contextOrder - currContextOrder);
 					setOutputContext(outputContext, longestOffset, longestOrder);
 					return backoffSum + prob;
 				}
+				if (LookupStatistics.ENABLED && longestOrder == ngramOrder) LookupStatistics.recordNanFallback();
 			}
 			final float backOff = values.getBackoff(currContextOrder, currContextOffset);
 			backoffSum += (Float.isNaN(backOff) ? 0.0f : backOff);
@@ -84,16 +319,131 @@ public class ContextEncodedProbBackoffLm<W> extends AbstractContextEncodedNgramL
 		final int ngramOrder = 0;
 		final float prob = values.getProb(ngramOrder, offset);
 		if (Float.isNaN(prob)) return oovReturn(outputContext);
+		if (LookupStatistics.ENABLED) LookupStatistics.recordQuery(contextOrder + 1);
 		setOutputContext(outputContext, longestOffset == -2 ? offset : longestOffset, longestOffset == -2 ? ngramOrder : longestOrder);
 		return backoffSum + prob;
 
 	}
 
+	/**
+	 * Scores many words following the same context. This is equivalent to
+	 * calling {@link #getLogProb(long, int, int, LmContextInfo)} for each word,
+	 * but the suffixes of the context and the backoff accumulated at each
+	 * order are computed once, so that each word only costs its hash table
+	 * probes.
+	 * 
+	 * @param contextOffset
+	 * @param contextOrder
+	 * @param words
+	 * @param logProbs
+	 *            Output array with at least as many entries as
+	 *            <code>words</code>.
+	 * @param outputContexts
+	 *            May be null. Otherwise, for each word whose entry is not null,
+	 *            the context after the word is written to it.
+	 */
+	public void getLogProbs(final long contextOffset, final int contextOrder, final int[] words, @OutputParameter final float[] logProbs,
+		@OutputParameter final LmContextInfo[] outputContexts) {
+		final HashNgramMap<ProbBackoffPair> localMap = map;
+		final long[] contextOffsets = getSuffixOffsets(contextOffset, contextOrder);
+		// the backoff charged for reaching each order, summed in the same order as in getLogProb
+		final float[] backoffsAbove = new float[contextOrder + 2];
+		for (int currContextOrder = contextOrder; currContextOrder >= 0; --currContextOrder) {
+			final float backoff = values.getBackoff(currContextOrder, contextOffsets[currContextOrder]);
+			backoffsAbove[currContextOrder] = backoffsAbove[currContextOrder + 1] + (Float.isNaN(backoff) ? 0.0f : backoff);
+		}
+		for (int i = 0; i < words.length; ++i) {
+			final int word = words[i];
+			final LmContextInfo outputContext = outputContexts == null ? null : outputContexts[i];
+			if (word < 0 || word >= numWords) {
+				logProbs[i] = oovReturn(outputContext);
+				continue;
+			}
+			long longestOffset = -2;
+			int longestOrder = -2;
+			float logProb = Float.NaN;
+			for (int currContextOrder = contextOrder; currContextOrder >= 0; --currContextOrder) {
+				final int ngramOrder = currContextOrder + 1;
+				final long offset = localMap.getOffset(contextOffsets[currContextOrder], currContextOrder, word);
+				if (offset < 0) continue;
+				if (longestOffset == -2) {
+					longestOffset = offset;
+					longestOrder = ngramOrder;
+				}
+				final float prob = values.getProb(ngramOrder, offset);
+				if (!Float.isNaN(prob)) {
+					if (LookupStatistics.ENABLED) LookupStatistics.recordQuery(contextOrder - currContextOrder);
+					logProb = backoffsAbove[ngramOrder] + prob;
+					break;
+				}
+				if (LookupStatistics.ENABLED && longestOrder == ngramOrder) LookupStatistics.recordNanFallback();
+			}
+			if (Float.isNaN(logProb)) {
+				final float prob = values.getProb(0, word);
+				if (Float.isNaN(prob)) {
+					logProbs[i] = oovReturn(outputContext);
+					continue;
+				}
+				if (LookupStatistics.ENABLED) LookupStatistics.recordQuery(contextOrder + 1);
+				logProb = backoffsAbove[0] + prob;
+				if (longestOffset == -2) {
+					longestOffset = word;
+					longestOrder = 0;
+				}
+			}
+			setOutputContext(outputContext, longestOffset, longestOrder);
+			logProbs[i] = logProb;
+		}
+	}
+
+	/**
+	 * Like {@link #getLogProb(long, int, int, LmContextInfo)}, but reads the
+	 * accumulated backoff from {@link #cumulativeBackoffs} instead of summing
+	 * the backoff of each context along the way.
+	 */
+	private float getLogProbWithCumulativeBackoffs(final long contextOffset, final int contextOrder, final int word,
+		@OutputParameter final LmContextInfo outputContext) {
+		final HashNgramMap<ProbBackoffPair> localMap = map;
+		final CustomWidthArray[] localSums = cumulativeBackoffs;
+		final float fullBackoffSum = contextOrder < 0 ? 0.0f : getCumulativeBackoff(localSums, contextOrder, contextOffset);
+		long longestOffset = -2;
+		int longestOrder = -2;
+
+		long currContextOffset = contextOffset;
+		for (int currContextOrder = contextOrder; currContextOrder >= 0; --currContextOrder) {
+			final int ngramOrder = currContextOrder + 1;
+			final long offset = localMap.getOffset(currContextOffset, currContextOrder, word);
+			if (offset >= 0) {
+				if (longestOffset == -2) {
+					longestOffset = offset;
+					longestOrder = ngramOrder;
+				}
+				final float prob = values.getProb(ngramOrder, offset);
+				if (!Float.isNaN(prob)) {
+					if (LookupStatistics.ENABLED) LookupStatistics.recordQuery(contextOrder - currContextOrder);
+					setOutputContext(outputContext, longestOffset, longestOrder);
+					return fullBackoffSum - getCumulativeBackoff(localSums, currContextOrder, currContextOffset) + prob;
+				}
+				if (LookupStatistics.ENABLED && longestOrder == ngramOrder) LookupStatistics.recordNanFallback();
+			}
+			if (currContextOrder > 0) currContextOffset = values.getSuffixOffset(currContextOffset, currContextOrder);
+		}
+
+		final long offset = word;
+		final int ngramOrder = 0;
+		final float prob = values.getProb(ngramOrder, offset);
+		if (Float.isNaN(prob)) return oovReturn(outputContext);
+		if (LookupStatistics.ENABLED) LookupStatistics.recordQuery(contextOrder + 1);
+		setOutputContext(outputContext, longestOffset == -2 ? offset : longestOffset, longestOffset == -2 ? ngramOrder : longestOrder);
+		return fullBackoffSum + prob;
+	}
+
 	/**
 	 * @param outputContext
 	 * @return
 	 */
 	private float oovReturn(final LmContextInfo outputContext) {
+		if (LookupStatistics.ENABLED) LookupStatistics.recordOovQuery();
 		if (outputContext != null) {
 			outputContext.offset = 0;
 			outputContext.order = -1;
@@ -127,8 +477,41 @@ public class ContextEncodedProbBackoffLm<W> extends AbstractContextEncodedNgramL
 		return map;
 	}
 
+	/**
+	 * An n-gram can be dropped from the left of a context if no longer n-gram
+	 * extends it, and it has no backoff to charge for backing off from it.
+	 */
+	private boolean canDropFirstWord(final long offset, final int ngramOrder) {
+		if ((extensions[ngramOrder].get(offset) & HAS_RIGHT_EXTENSION) != 0) return false;
+		final float backoff = values.getBackoff(ngramOrder, offset);
+		return backoff == 0.0f || Float.isNaN(backoff);
+	}
+
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		final MemoryUsage usage = map.getMemoryUsage();
+		if (cumulativeBackoffs != null) {
+			for (int ngramOrder = 0; ngramOrder < cumulativeBackoffs.length; ++ngramOrder)
+				usage.addBytes(ngramOrder, MemoryUsage.Component.VALUES, cumulativeBackoffs[ngramOrder].getAllocatedBytes());
+		}
+		if (extensions != null) {
+			for (int ngramOrder = 0; ngramOrder < extensions.length; ++ngramOrder)
+				usage.addBytes(ngramOrder, MemoryUsage.Component.OTHER, extensions[ngramOrder].getAllocatedBytes());
+		}
+		return usage;
+	}
+
 	private void setOutputContext(final LmContextInfo outputContext, final long offset, final int ngramOrder) {
-		if (outputContext != null) {
+		if (outputContext != null && extensions != null) {
+			long currOffset = offset;
+			int currOrder = ngramOrder;
+			while (currOrder >= 0 && (currOrder == lmOrder - 1 || canDropFirstWord(currOffset, currOrder))) {
+				currOffset = currOrder == 0 ? 0L : values.getSuffixOffset(currOffset, currOrder);
+				currOrder--;
+			}
+			outputContext.offset = currOffset;
+			outputContext.order = currOrder;
+		} else if (outputContext != null) {
 			if (ngramOrder == lmOrder - 1) {
 				final long suffixOffset = values.getSuffixOffset(offset, ngramOrder);
 				outputContext.offset = suffixOffset;
@@ -5,7 +5,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
+import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel.LmContextInfo;
 import edu.berkeley.nlp.lm.collections.Counter;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 
 /**
  * 
@@ -64,6 +66,16 @@ public interface NgramLanguageModel<W>
 	 */
 	public void setOovWordLogProb(float logProb);
 
+	/**
+	 * Computes how much memory is used by this language model, broken down by
+	 * n-gram order and component (keys, values, suffix offsets, etc.). This
+	 * is computed from the sizes of the allocated arrays and so is relatively
+	 * cheap.
+	 * 
+	 * @return
+	 */
+	public MemoryUsage getMemoryUsage();
+
 	public static class StaticMethods
 	{
 
@@ -87,7 +99,10 @@ public interface NgramLanguageModel<W>
 
 		/**
 		 * Samples from this language model. This is not meant to be
-		 * particularly efficient
+		 * particularly efficient, except for a
+		 * {@link ContextEncodedProbBackoffLm} and a temperature of 1, which
+		 * samples each word using
+		 * {@link ContextEncodedProbBackoffLm#sampleNextWord(long, int, Random)}.
 		 * 
 		 * @param random
 		 * @return
@@ -97,6 +112,7 @@ public interface NgramLanguageModel<W>
 		}
 
 		public static <W> List<W> sample(Random random, final NgramLanguageModel<W> lm, final double sampleTemperature) {
+			if (lm instanceof ContextEncodedProbBackoffLm && sampleTemperature == 1.0) return sample(random, (ContextEncodedProbBackoffLm<W>) lm);
 			List<W> ret = new ArrayList<W>();
 			ret.add(lm.getWordIndexer().getStartSymbol());
 			while (true) {
@@ -122,9 +138,31 @@ public interface NgramLanguageModel<W>
 			return ret.subList(1, ret.size() - 1);
 		}
 
+		private static <W> List<W> sample(final Random random, final ContextEncodedProbBackoffLm<W> lm) {
+			final WordIndexer<W> wordIndexer = lm.getWordIndexer();
+			final int startIndex = wordIndexer.getIndexPossiblyUnk(wordIndexer.getStartSymbol());
+			final int endIndex = wordIndexer.getIndexPossiblyUnk(wordIndexer.getEndSymbol());
+			final List<W> ret = new ArrayList<W>();
+			final LmContextInfo context = new LmContextInfo();
+			lm.getLogProb(context.offset, context.order, startIndex, context);
+			while (true) {
+				int sample;
+				// rejecting samples is the same as leaving these words out of the distribution
+				do {
+					sample = lm.sampleNextWord(context.offset, context.order, random);
+				} while (sample == startIndex || (ret.isEmpty() && sample == endIndex));
+				if (sample == endIndex) break;
+				ret.add(wordIndexer.getWord(sample));
+				lm.getLogProb(context.offset, context.order, sample, context);
+			}
+			return ret;
+		}
+
 		/**
 		 * Builds a distribution over next possible words given the context. Context can be of any length, but 
-		 * only at most <code>lm.getLmOrder() - 1</code> words are actually used.
+		 * only at most <code>lm.getLmOrder() - 1</code> words are actually used. For a
+		 * {@link ContextEncodedProbBackoffLm}, this uses
+		 * {@link ContextEncodedProbBackoffLm#getNextWordLogProbs(long, int, float[])}.
 		 * 
 		 * @param <W>
 		 * @param lm
@@ -138,6 +176,7 @@ public interface NgramLanguageModel<W>
 			}
 			if (ngram.size() < lm.getLmOrder() - 1) ngram.add(lm.getWordIndexer().getStartSymbol());
 			Collections.reverse(ngram);
+			if (lm instanceof ContextEncodedProbBackoffLm) return getDistributionOverNextWords((ContextEncodedProbBackoffLm<W>) lm, ngram);
 			ngram.add(null);
 			Counter<W> c = new Counter<W>();
 			for (int index = 0; index < lm.getWordIndexer().numWords(); ++index) {
@@ -149,6 +188,22 @@ public interface NgramLanguageModel<W>
 			return c;
 		}
 
+		private static <W> Counter<W> getDistributionOverNextWords(final ContextEncodedProbBackoffLm<W> lm, final List<W> context) {
+			final WordIndexer<W> wordIndexer = lm.getWordIndexer();
+			final LmContextInfo contextInfo = new LmContextInfo();
+			for (final W word : context)
+				lm.getLogProb(contextInfo.offset, contextInfo.order, wordIndexer.getIndexPossiblyUnk(word), contextInfo);
+			final float[] logProbs = new float[wordIndexer.numWords()];
+			lm.getNextWordLogProbs(contextInfo.offset, contextInfo.order, logProbs);
+			final Counter<W> c = new Counter<W>();
+			for (int index = 0; index < logProbs.length; ++index) {
+				W word = wordIndexer.getWord(index);
+				if (word.equals(wordIndexer.getStartSymbol())) continue;
+				c.setCount(word, Math.exp(logProbs[index] * Math.log(10)));
+			}
+			return c;
+		}
+
 	}
 
 }
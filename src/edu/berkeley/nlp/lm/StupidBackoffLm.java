@@ -5,6 +5,7 @@ import java.util.List;
 
 import edu.berkeley.nlp.lm.map.NgramMap;
 import edu.berkeley.nlp.lm.util.LongRef;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.values.CountValueContainer;
 
 /**
@@ -69,7 +70,7 @@ public class StupidBackoffLm<W> extends AbstractArrayEncodedNgramLanguageModel<W
 					backoffContext = localMap.getValueAndOffset(backoffContext, backoffContextOrder++, ngram[i], scratch);
 					backoffCount = scratch.value;
 				}
-				logProb = (float) Math.log(currCount / ((float) backoffCount) * pow(alpha, i - startPos));
+				logProb = scoreFromCounts(currCount, backoffCount, alpha, i - startPos);
 				probContextOrder++;
 			}
 
@@ -98,6 +99,78 @@ public class StupidBackoffLm<W> extends AbstractArrayEncodedNgramLanguageModel<W
 		return scratch.value;
 	}
 
+	/**
+	 * Gets the raw counts of the suffixes of an n-gram, shortest first, up to
+	 * the longest suffix in the map. These are the counts
+	 * {@link #getLogProb(int[], int, int)} needs from the n-gram itself; it
+	 * also needs those of the suffixes of the n-gram's context.
+	 * 
+	 * @param ngram
+	 * @param startPos
+	 * @param endPos
+	 * @param counts
+	 *            <code>counts[k]</code> is set to the count of the suffix of
+	 *            length <code>k + 1</code>. Must have room for
+	 *            <code>endPos - startPos</code> counts.
+	 * @return The number of suffixes in the map.
+	 */
+	public int getSuffixCounts(final int[] ngram, final int startPos, final int endPos, final long[] counts) {
+		final NgramMap<LongRef> localMap = map;
+		long context = 0L;
+		final LongRef scratch = new LongRef(-1L);
+		final int maxLength = Math.min(endPos - startPos, localMap.getMaxNgramOrder());
+		for (int contextOrder = -1; contextOrder < maxLength - 1; ++contextOrder) {
+			context = localMap.getValueAndOffset(context, contextOrder, ngram[endPos - contextOrder - 2], scratch);
+			if (context < 0) return contextOrder + 1;
+			counts[contextOrder + 1] = scratch.value;
+		}
+		return maxLength;
+	}
+
+	/**
+	 * The sum of the counts of all unigrams, which is the denominator of
+	 * unigram scores.
+	 * 
+	 * @return
+	 */
+	public long getUnigramSum() {
+		return ((CountValueContainer) map.getValues()).getUnigramSum();
+	}
+
+	public float getAlpha() {
+		return alpha;
+	}
+
+	/**
+	 * The stupid backoff score of an n-gram found after backing off
+	 * <code>numBackoffs</code> times.
+	 * 
+	 * @param count
+	 *            Count of the (backed-off) n-gram
+	 * @param contextCount
+	 *            Count of its context, or the unigram sum for unigrams
+	 * @param alpha
+	 * @param numBackoffs
+	 * @return
+	 */
+	public static float scoreFromCounts(final long count, final long contextCount, final float alpha, final int numBackoffs) {
+		return scoreFromCounts((double) count, (double) contextCount, alpha, numBackoffs);
+	}
+
+	/**
+	 * As {@link #scoreFromCounts(long, long, float, int)}, for approximate
+	 * counts (e.g. those of a {@link BloomFilterLm}).
+	 * 
+	 * @param count
+	 * @param contextCount
+	 * @param alpha
+	 * @param numBackoffs
+	 * @return
+	 */
+	public static float scoreFromCounts(final double count, final double contextCount, final float alpha, final int numBackoffs) {
+		return (float) Math.log(count / contextCount * pow(alpha, numBackoffs));
+	}
+
 	private static float pow(final float alpha, final int n) {
 		float ret = 1.0f;
 		for (int i = 0; i < n; ++i)
@@ -133,4 +206,9 @@ public class StupidBackoffLm<W> extends AbstractArrayEncodedNgramLanguageModel<W
 		return map;
 	}
 
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		return map.getMemoryUsage();
+	}
+
 }
@@ -3,6 +3,8 @@ package edu.berkeley.nlp.lm.array;
 import java.io.ObjectStreamException;
 import java.io.Serializable;
 
+import edu.berkeley.nlp.lm.util.LookupStatistics;
+
 /**
  * An array with a custom word "width" in bits. Borrows heavily from Sux4J
  * (http://sux.dsi.unimi.it/)
@@ -247,6 +249,7 @@ public final class CustomWidthArray implements Serializable
 
 	public long linearSearch(final long key, final long rangeStart, final long rangeEnd, final long startIndex, final long emptyKey,
 		final boolean returnFirstEmptyIndex) {
+		if (LookupStatistics.ENABLED && !returnFirstEmptyIndex) return linearSearchWithStatistics(key, rangeStart, rangeEnd, startIndex, emptyKey);
 		for (long i = startIndex; i < rangeEnd; ++i) {
 			final long searchKey = getHelp(i, 0, keyWidth);
 			if (searchKey == key) return i;
@@ -260,6 +263,28 @@ public final class CustomWidthArray implements Serializable
 		return -1L;
 	}
 
+	/**
+	 * Same as {@link #linearSearch(long, long, long, long, long, boolean)} for
+	 * lookups, but records the number of probes in {@link LookupStatistics}.
+	 */
+	private long linearSearchWithStatistics(final long key, final long rangeStart, final long rangeEnd, final long startIndex, final long emptyKey) {
+		final long rangeLength = rangeEnd - rangeStart;
+		long numProbes = 0;
+		long ret = -1L;
+		while (numProbes < rangeLength) {
+			final long i = startIndex + numProbes < rangeEnd ? startIndex + numProbes : startIndex + numProbes - rangeLength;
+			numProbes++;
+			final long searchKey = getHelp(i, 0, keyWidth);
+			if (searchKey == key) {
+				ret = i;
+				break;
+			}
+			if (searchKey == emptyKey) break;
+		}
+		LookupStatistics.recordProbeLength(numProbes);
+		return ret;
+	}
+
 	public void incrementCount(final long index, final long count) {
 		if (index >= size()) {
 			setAndGrowIfNeeded(index, count);
@@ -273,4 +298,11 @@ public final class CustomWidthArray implements Serializable
 		return fullWidth;
 	}
 
+	/**
+	 * @return The number of bytes allocated for the underlying storage.
+	 */
+	public long getAllocatedBytes() {
+		return data.getAllocatedBytes();
+	}
+
 }
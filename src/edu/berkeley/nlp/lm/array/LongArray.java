@@ -146,6 +146,14 @@ public final class LongArray implements Serializable
 		return getHelp(pos);
 	}
 
+	/**
+	 * @return The number of bytes allocated for the underlying storage (which
+	 *         may be larger than {@link #size()} longs).
+	 */
+	public long getAllocatedBytes() {
+		return sizeOf(data) * (Long.SIZE / Byte.SIZE);
+	}
+
 	private static long sizeOf(final long[][] a) {
 		long ret = 0;
 		for (int i = 0; i < a.length; ++i) {
@@ -3,6 +3,7 @@ package edu.berkeley.nlp.lm.cache;
 import edu.berkeley.nlp.lm.AbstractArrayEncodedNgramLanguageModel;
 import edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel;
 import edu.berkeley.nlp.lm.bits.BitUtils;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.util.MurmurHash;
 
 /**
@@ -61,6 +62,24 @@ public class ArrayEncodedCachingLmWrapper<W> extends AbstractArrayEncodedNgramLa
 		return new ArrayEncodedCachingLmWrapper<W>(lm, true, cacheBits);
 	}
 
+	/**
+	 * This type of caching is threadsafe and shares a fixed number of caches
+	 * between all threads which call it, so memory usage does not grow with
+	 * the number of threads. This is the right choice for many short-lived or
+	 * virtual threads; <code>numSharedCaches</code> should be about the number
+	 * of threads which query at the same time (e.g. the number of cores).
+	 * 
+	 * @param <W>
+	 * @param lm
+	 * @param cacheBits
+	 * @param numSharedCaches
+	 * @return
+	 */
+	public static <W> ArrayEncodedCachingLmWrapper<W> wrapWithCacheShared(final ArrayEncodedNgramLanguageModel<W> lm, final int cacheBits,
+		final int numSharedCaches) {
+		return new ArrayEncodedCachingLmWrapper<W>(lm, new ArrayEncodedDirectMappedLmCache(cacheBits, lm.getLmOrder(), numSharedCaches));
+	}
+
 	private ArrayEncodedCachingLmWrapper(final ArrayEncodedNgramLanguageModel<W> lm, final boolean threadSafe, int cacheBits) {
 		this(lm, new ArrayEncodedDirectMappedLmCache(cacheBits, lm.getLmOrder(), threadSafe));
 	}
@@ -84,6 +103,17 @@ public class ArrayEncodedCachingLmWrapper<W> extends AbstractArrayEncodedNgramLa
 		return f;
 	}
 
+	/**
+	 * Adds the cache (for one thread, if the cache is thread-safe with one
+	 * cache per thread) to the memory usage of the wrapped LM.
+	 */
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		final MemoryUsage usage = lm.getMemoryUsage();
+		usage.addBytes(MemoryUsage.ALL_ORDERS, MemoryUsage.Component.CACHE, cache.getAllocatedBytes());
+		return usage;
+	}
+
 	private static int hash(final int[] key, final int startPos, final int endPos) {
 		final int hash = MurmurHash.hash32(key, startPos, endPos);
 		return  BitUtils.abs(hash);
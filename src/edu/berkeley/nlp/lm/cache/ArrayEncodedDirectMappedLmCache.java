@@ -6,6 +6,11 @@ import java.util.Arrays;
  * A direct-mapped cache. This cache does not perform any collision resolution,
  * but rather retains only the most recent key which gets hashed to a particular
  * bucket.
+ * <p>
+ * The cache can be used by a single thread, by many threads with one array per
+ * thread, or by many threads sharing a fixed number of arrays (see
+ * {@link CachePool}). The last is meant for large numbers of (e.g. virtual)
+ * threads.
  * 
  * @author adampauls
  * 
@@ -34,6 +39,8 @@ public final class ArrayEncodedDirectMappedLmCache implements ArrayEncodedLmCach
 
 	private final ThreadLocal<int[]> threadSafeArray;
 
+	private final CachePool<int[]> pool;
+
 	private final int cacheSize;
 
 	private final int structLength;
@@ -43,11 +50,37 @@ public final class ArrayEncodedDirectMappedLmCache implements ArrayEncodedLmCach
 	private final int arrayLength;
 
 	public ArrayEncodedDirectMappedLmCache(final int cacheBits, final int maxNgramOrder, final boolean threadSafe) {
+		this(cacheBits, maxNgramOrder, threadSafe, 0);
+	}
+
+	/**
+	 * Creates a thread-safe cache with a fixed number of arrays shared by all
+	 * threads.
+	 * 
+	 * @param cacheBits
+	 * @param maxNgramOrder
+	 * @param numSharedCaches
+	 *            Should be about the number of threads which query at the same
+	 *            time (e.g. the number of cores).
+	 */
+	public ArrayEncodedDirectMappedLmCache(final int cacheBits, final int maxNgramOrder, final int numSharedCaches) {
+		this(cacheBits, maxNgramOrder, true, numSharedCaches);
+	}
+
+	private ArrayEncodedDirectMappedLmCache(final int cacheBits, final int maxNgramOrder, final boolean threadSafe, final int numSharedCaches) {
 		cacheSize = (1 << cacheBits) - 1;
 		this.threadSafe = threadSafe;
 		arrayLength = maxNgramOrder - 1;
 		this.structLength = (maxNgramOrder + 2);
-		if (threadSafe) {
+		if (numSharedCaches > 0) {
+			threadUnsafeArray = null;
+			threadSafeArray = null;
+			final Object[] caches = new Object[numSharedCaches];
+			for (int i = 0; i < numSharedCaches; ++i)
+				caches[i] = allocCache();
+			pool = new CachePool<int[]>(caches);
+		} else if (threadSafe) {
+			pool = null;
 			threadUnsafeArray = null;
 			threadSafeArray = new ThreadLocal<int[]>()
 			{
@@ -58,6 +91,7 @@ public final class ArrayEncodedDirectMappedLmCache implements ArrayEncodedLmCach
 
 			};
 		} else {
+			pool = null;
 			threadSafeArray = null;
 			threadUnsafeArray = allocCache();
 		}
@@ -80,7 +114,17 @@ public final class ArrayEncodedDirectMappedLmCache implements ArrayEncodedLmCach
 	 */
 	@Override
 	public float getCached(final int[] ngram, final int startPos, final int endPos, final int hash) {
-		final int[] arrayHere = !threadSafe ? threadUnsafeArray : threadSafeArray.get();
+		if (pool == null) return getCached(ngram, startPos, endPos, hash, !threadSafe ? threadUnsafeArray : threadSafeArray.get());
+		final int slot = pool.acquire();
+		if (slot < 0) return Float.NaN;
+		try {
+			return getCached(ngram, startPos, endPos, hash, pool.get(slot));
+		} finally {
+			pool.release(slot);
+		}
+	}
+
+	private float getCached(final int[] ngram, final int startPos, final int endPos, final int hash, final int[] arrayHere) {
 		if (ngram[endPos - 1] == getWord(hash, arrayHere) && equals(ngram, startPos, endPos, arrayHere, getKeyStart(hash))) //
 			return getVal(hash, arrayHere);
 		else
@@ -130,7 +174,12 @@ public final class ArrayEncodedDirectMappedLmCache implements ArrayEncodedLmCach
 	 */
 	@Override
 	public void clear() {
-		Arrays.fill(!threadSafe ? threadUnsafeArray : threadSafeArray.get(), Float.floatToIntBits(Float.NaN));
+		if (pool == null) {
+			Arrays.fill(!threadSafe ? threadUnsafeArray : threadSafeArray.get(), Float.floatToIntBits(Float.NaN));
+			return;
+		}
+		for (int slot = 0; slot < pool.size(); ++slot)
+			Arrays.fill(pool.get(slot), Float.floatToIntBits(Float.NaN));
 	}
 
 	/*
@@ -141,7 +190,20 @@ public final class ArrayEncodedDirectMappedLmCache implements ArrayEncodedLmCach
 	 */
 	@Override
 	public void putCached(final int[] ngram, final int startPos, final int endPos, final float f, final int hash) {
-		final int[] arrayHere = !threadSafe ? threadUnsafeArray : threadSafeArray.get();
+		if (pool == null) {
+			putCached(ngram, startPos, endPos, f, hash, !threadSafe ? threadUnsafeArray : threadSafeArray.get());
+			return;
+		}
+		final int slot = pool.acquire();
+		if (slot < 0) return;
+		try {
+			putCached(ngram, startPos, endPos, f, hash, pool.get(slot));
+		} finally {
+			pool.release(slot);
+		}
+	}
+
+	private void putCached(final int[] ngram, final int startPos, final int endPos, final float f, final int hash, final int[] arrayHere) {
 		setVal(hash, f, arrayHere);
 		setWord(hash, ngram[endPos - 1], arrayHere);
 		for (int i = startPos; i < endPos - 1; ++i) {
@@ -161,4 +223,9 @@ public final class ArrayEncodedDirectMappedLmCache implements ArrayEncodedLmCach
 	public int capacity() {
 		return cacheSize;
 	}
+
+	@Override
+	public long getAllocatedBytes() {
+		return (long) cacheSize * structLength * (Integer.SIZE / Byte.SIZE) * (pool == null ? 1 : pool.size());
+	}
 }
\ No newline at end of file
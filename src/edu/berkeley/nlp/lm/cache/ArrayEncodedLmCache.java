@@ -27,4 +27,12 @@ public interface ArrayEncodedLmCache extends Serializable
 	 */
 	public int capacity();
 
+	/**
+	 * Number of bytes allocated for the cache (for each thread, if the cache
+	 * is thread-safe with one array per thread).
+	 * 
+	 * @return
+	 */
+	public long getAllocatedBytes();
+
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+package edu.berkeley.nlp.lm.cache;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A fixed number of cache arrays shared by any number of threads. A thread
+ * claims an array for the duration of a single lookup or insertion, so the
+ * number of arrays only needs to match the number of threads which actually
+ * run at the same time (e.g. the carrier threads of virtual threads), rather
+ * than the number of threads which exist (as with a {@link ThreadLocal}).
+ * <p>
+ * Claims never block: a thread starts at the array its id hashes to (so it
+ * tends to see what it cached before) and tries the others in turn. If all of
+ * them are claimed, {@link #acquire()} fails and the caller should treat the
+ * lookup as a miss.
+ *
+ * @author adampauls
+ *
+ * @param <A>
+ */
+final class CachePool<A> implements Serializable
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private final Object[] caches;
+
+	private final AtomicIntegerArray claimed;
+
+	CachePool(final Object[] caches) {
+		this.caches = caches;
+		claimed = new AtomicIntegerArray(caches.length);
+	}
+
+	/**
+	 * @return The slot of a cache array which is now claimed by the current
+	 *         thread, or -1 if all are in use.
+	 */
+	int acquire() {
+		final int n = caches.length;
+		final int start = (int) (Thread.currentThread().getId() % n);
+		for (int i = 0; i < n; ++i) {
+			final int slot = start + i < n ? start + i : start + i - n;
+			if (claimed.get(slot) == 0 && claimed.compareAndSet(slot, 0, 1)) return slot;
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	A get(final int slot) {
+		return (A) caches[slot];
+	}
+
+	void release(final int slot) {
+		claimed.set(slot, 0);
+	}
+
+	int size() {
+		return caches.length;
+	}
+
+}
@@ -4,6 +4,7 @@ import edu.berkeley.nlp.lm.AbstractContextEncodedNgramLanguageModel;
 import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel;
 import edu.berkeley.nlp.lm.WordIndexer;
 import edu.berkeley.nlp.lm.bits.BitUtils;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.util.MurmurHash;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 
@@ -62,6 +63,24 @@ public class ContextEncodedCachingLmWrapper<T> extends AbstractContextEncodedNgr
 		return new ContextEncodedCachingLmWrapper<T>(lm, true, cacheBits);
 	}
 
+	/**
+	 * This type of caching is threadsafe and shares a fixed number of caches
+	 * between all threads which call it, so memory usage does not grow with
+	 * the number of threads. This is the right choice for many short-lived or
+	 * virtual threads; <code>numSharedCaches</code> should be about the number
+	 * of threads which query at the same time (e.g. the number of cores).
+	 * 
+	 * @param <T>
+	 * @param lm
+	 * @param cacheBits
+	 * @param numSharedCaches
+	 * @return
+	 */
+	public static <T> ContextEncodedCachingLmWrapper<T> wrapWithCacheShared(final ContextEncodedNgramLanguageModel<T> lm, final int cacheBits,
+		final int numSharedCaches) {
+		return new ContextEncodedCachingLmWrapper<T>(lm, new ContextEncodedDirectMappedLmCache(cacheBits, numSharedCaches));
+	}
+
 	private ContextEncodedCachingLmWrapper(final ContextEncodedNgramLanguageModel<T> lm, final boolean threadSafe, final int cacheBits) {
 		this(lm, new ContextEncodedDirectMappedLmCache(cacheBits, threadSafe));
 	}
@@ -100,6 +119,17 @@ public class ContextEncodedCachingLmWrapper<T> extends AbstractContextEncodedNgr
 		return f;
 	}
 
+	/**
+	 * Adds the cache (for one thread, if the cache is thread-safe with one
+	 * cache per thread) to the memory usage of the wrapped LM.
+	 */
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		final MemoryUsage usage = lm.getMemoryUsage();
+		usage.addBytes(MemoryUsage.ALL_ORDERS, MemoryUsage.Component.CACHE, contextCache.getAllocatedBytes());
+		return usage;
+	}
+
 	private static int hash(final long contextOffset, final int contextOrder, final int word) {
 		final int hash = (int) MurmurHash.hashThreeLongs(contextOffset, contextOrder, word);
 		return BitUtils.abs(hash);
@@ -6,6 +6,15 @@ import java.util.concurrent.atomic.AtomicIntegerArray;
 import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel.LmContextInfo;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 
+/**
+ * A direct-mapped cache for context-encoded queries. Like
+ * {@link ArrayEncodedDirectMappedLmCache}, it can be used by a single thread,
+ * with one array per thread, or with a fixed number of arrays shared by all
+ * threads.
+ * 
+ * @author adampauls
+ * 
+ */
 public final class ContextEncodedDirectMappedLmCache implements ContextEncodedLmCache
 {
 	/**
@@ -44,14 +53,41 @@ public final class ContextEncodedDirectMappedLmCache implements ContextEncodedLm
 
 	private final ThreadLocal<long[]> threadSafeArray;
 
+	private final CachePool<long[]> pool;
+
 	private final int cacheSize;
 
 	private final boolean threadSafe;
 
 	public ContextEncodedDirectMappedLmCache(final int cacheBits, final boolean threadSafe) {
+		this(cacheBits, threadSafe, 0);
+	}
+
+	/**
+	 * Creates a thread-safe cache with a fixed number of arrays shared by all
+	 * threads.
+	 * 
+	 * @param cacheBits
+	 * @param numSharedCaches
+	 *            Should be about the number of threads which query at the same
+	 *            time (e.g. the number of cores).
+	 */
+	public ContextEncodedDirectMappedLmCache(final int cacheBits, final int numSharedCaches) {
+		this(cacheBits, true, numSharedCaches);
+	}
+
+	private ContextEncodedDirectMappedLmCache(final int cacheBits, final boolean threadSafe, final int numSharedCaches) {
 		cacheSize = (1 << cacheBits) - 1;
 		this.threadSafe = threadSafe;
-		if (threadSafe) {
+		if (numSharedCaches > 0) {
+			threadUnsafeArray = null;
+			threadSafeArray = null;
+			final Object[] caches = new Object[numSharedCaches];
+			for (int i = 0; i < numSharedCaches; ++i)
+				caches[i] = allocCache();
+			pool = new CachePool<long[]>(caches);
+		} else if (threadSafe) {
+			pool = null;
 			threadUnsafeArray = null;
 			threadSafeArray = new ThreadLocal<long[]>()
 			{
@@ -62,6 +98,7 @@ public final class ContextEncodedDirectMappedLmCache implements ContextEncodedLm
 
 			};
 		} else {
+			pool = null;
 			threadSafeArray = null;
 			threadUnsafeArray = allocCache();
 		}
@@ -79,7 +116,18 @@ public final class ContextEncodedDirectMappedLmCache implements ContextEncodedLm
 
 	@Override
 	public float getCached(final long contextOffset, final int contextOrder, final int word, final int hash, @OutputParameter final LmContextInfo outputPrefix) {
-		final long[] array = !threadSafe ? threadUnsafeArray : threadSafeArray.get();
+		if (pool == null) return getCached(contextOffset, contextOrder, word, hash, outputPrefix, !threadSafe ? threadUnsafeArray : threadSafeArray.get());
+		final int slot = pool.acquire();
+		if (slot < 0) return Float.NaN;
+		try {
+			return getCached(contextOffset, contextOrder, word, hash, outputPrefix, pool.get(slot));
+		} finally {
+			pool.release(slot);
+		}
+	}
+
+	private float getCached(final long contextOffset, final int contextOrder, final int word, final int hash, @OutputParameter final LmContextInfo outputPrefix,
+		final long[] array) {
 		final int cachedWordHere = getWord(hash, array);
 
 		if (word >= 0 && word == cachedWordHere && getLong(hash, CONTEXT_OFFSET, array) == combine(contextOrder, contextOffset)) {
@@ -99,7 +147,21 @@ public final class ContextEncodedDirectMappedLmCache implements ContextEncodedLm
 	@Override
 	public void putCached(final long contextOffset, final int contextOrder, final int word, final float score, final int hash,
 		@OutputParameter final LmContextInfo outputPrefix) {
-		final long[] array = !threadSafe ? threadUnsafeArray : threadSafeArray.get();
+		if (pool == null) {
+			putCached(contextOffset, contextOrder, word, score, hash, outputPrefix, !threadSafe ? threadUnsafeArray : threadSafeArray.get());
+			return;
+		}
+		final int slot = pool.acquire();
+		if (slot < 0) return;
+		try {
+			putCached(contextOffset, contextOrder, word, score, hash, outputPrefix, pool.get(slot));
+		} finally {
+			pool.release(slot);
+		}
+	}
+
+	private void putCached(final long contextOffset, final int contextOrder, final int word, final float score, final int hash,
+		final LmContextInfo outputPrefix, final long[] array) {
 		setWordAndVal(hash, word, score, array);
 		setOutputContextOrderAndOffset(hash, outputPrefix == null ? -1 : outputPrefix.order, outputPrefix == null ? -1 : outputPrefix.offset, array);
 		setContextOrderAndOffset(hash, contextOrder, contextOffset, array);
@@ -175,4 +237,9 @@ public final class ContextEncodedDirectMappedLmCache implements ContextEncodedLm
 	public int capacity() {
 		return cacheSize;
 	}
+
+	@Override
+	public long getAllocatedBytes() {
+		return (long) cacheSize * STRUCT_LENGTH * (Long.SIZE / Byte.SIZE) * (pool == null ? 1 : pool.size());
+	}
 }
@@ -23,4 +23,12 @@ public interface ContextEncodedLmCache extends Serializable
 
 	public int capacity();
 
+	/**
+	 * Number of bytes allocated for the cache (for each thread, if the cache
+	 * is thread-safe with one array per thread).
+	 * 
+	 * @return
+	 */
+	public long getAllocatedBytes();
+
 }
@@ -185,6 +185,10 @@ public final class LongHashSet implements Serializable
 		return size;
 	}
 
+	public long getAllocatedBytes() {
+		return (long) keys.length * (Long.SIZE / Byte.SIZE);
+	}
+
 	public void clear() {
 		Arrays.fill(keys, EMPTY_KEY);
 		size = 0;
@@ -3,9 +3,14 @@ package edu.berkeley.nlp.lm.io;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
+import edu.berkeley.nlp.lm.ConfigOptions;
 import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.collections.Iterators;
 import edu.berkeley.nlp.lm.util.Logger;
 import edu.berkeley.nlp.lm.values.ProbBackoffPair;
 
@@ -41,6 +46,10 @@ public class ArpaLmReader<W> implements LmReader<ProbBackoffPair, ArpaLmReaderCa
 
 	private final String file;
 
+	private final Set<String> vocabFilter;
+
+	private final boolean sortVocabularyByFrequency;
+
 	/**
 	 * 
 	 * @return
@@ -56,9 +65,44 @@ public class ArpaLmReader<W> implements LmReader<ProbBackoffPair, ArpaLmReaderCa
 	 * @param reader
 	 */
 	public ArpaLmReader(final String file, final WordIndexer<W> wordIndexer, final int maxNgramOrder) {
+		this(file, wordIndexer, maxNgramOrder, null);
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @param wordIndexer
+	 * @param maxNgramOrder
+	 * @param vocabFilter
+	 *            If not null, n-grams containing words outside this set are
+	 *            skipped (and those words are never added to the
+	 *            <code>wordIndexer</code>). The start, end and unk symbols are
+	 *            always kept.
+	 */
+	public ArpaLmReader(final String file, final WordIndexer<W> wordIndexer, final int maxNgramOrder, final Set<String> vocabFilter) {
+		this(file, wordIndexer, maxNgramOrder, vocabFilter, new ConfigOptions());
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @param wordIndexer
+	 * @param maxNgramOrder
+	 * @param vocabFilter
+	 *            If not null, n-grams containing words outside this set are
+	 *            skipped.
+	 * @param opts
+	 *            If {@link ConfigOptions#sortVocabularyByFrequency} is set and
+	 *            <code>wordIndexer</code> is empty, the unigrams are read (and
+	 *            indexed by frequency) before the first parse.
+	 */
+	public ArpaLmReader(final String file, final WordIndexer<W> wordIndexer, final int maxNgramOrder, final Set<String> vocabFilter,
+		final ConfigOptions opts) {
 		this.file = file;
 		this.wordIndexer = wordIndexer;
 		this.maxOrder = maxNgramOrder;
+		this.vocabFilter = vocabFilter;
+		this.sortVocabularyByFrequency = opts.sortVocabularyByFrequency;
 	}
 
 	/**
@@ -68,6 +112,7 @@ public class ArpaLmReader<W> implements LmReader<ProbBackoffPair, ArpaLmReaderCa
 	 */
 	@Override
 	public void parse(final ArpaLmReaderCallback<ProbBackoffPair> callback) {
+		if (sortVocabularyByFrequency && wordIndexer.numWords() == 0) addToIndexerByFrequency(file, wordIndexer, vocabFilter);
 		currentNGramLength = 1;
 		currentNGramCount = 0;
 		lineNumber = 1;
@@ -169,7 +214,7 @@ public class ArpaLmReader<W> implements LmReader<ProbBackoffPair, ArpaLmReaderCa
 		final boolean hasBackOff = (secondTab >= 0);
 
 		final int length = line.length();
-		parseNGram(line, firstTab + 1, secondTab < 0 ? length : secondTab, ngram);
+		if (!parseNGram(line, firstTab + 1, secondTab < 0 ? length : secondTab, ngram)) return;
 
 		// the first column contains the log pr
 		final String logProbString = line.substring(0, firstTab);
@@ -190,18 +235,81 @@ public class ArpaLmReader<W> implements LmReader<ProbBackoffPair, ArpaLmReaderCa
 	/**
 	 * 
 	 * @param string
-	 * @return
+	 * @return false if the n-gram contains a word which is filtered out
 	 */
-	private void parseNGram(final String string, int start, int stringLength, final int[] retVal) {
+	private boolean parseNGram(final String string, int start, int stringLength, final int[] retVal) {
 		int k = 0;
 		int spaceIndex = start;
 		while (true) {
 			final int nextIndex = string.indexOf(' ', spaceIndex);
 			final String currWord = string.substring(spaceIndex, nextIndex < 0 ? stringLength : nextIndex);
+			if (!isInVocab(currWord)) return false;
 			retVal[k++] = wordIndexer.getOrAddIndexFromString(currWord);
 			if (nextIndex < 0) break;
 			spaceIndex = nextIndex + 1;
 		}
+		return true;
+	}
+
+	private boolean isInVocab(final String word) {
+		return isInVocab(word, vocabFilter);
+	}
+
+	private static boolean isInVocab(final String word, final Set<String> vocabFilter) {
+		return vocabFilter == null || vocabFilter.contains(word) || word.equals(START_SYMBOL) || word.equals(END_SYMBOL) || word.equals(UNK_SYMBOL);
+	}
+
+	/**
+	 * Adds the words of the unigram section of an ARPA file to an indexer in
+	 * order of decreasing probability (words with equal probabilities keep the
+	 * order of the file). Only the header and unigrams of the file are read.
+	 * 
+	 * @param file
+	 * @param wordIndexer
+	 * @param vocabFilter
+	 *            If not null, only words in this set (and the start, end and unk
+	 *            symbols) are added.
+	 */
+	public static <W> void addToIndexerByFrequency(final String file, final WordIndexer<W> wordIndexer, final Set<String> vocabFilter) {
+		Logger.startTrack("Sorting vocabulary of " + file + " by unigram probability");
+		final List<String> words = new ArrayList<String>();
+		final List<Float> logProbs = new ArrayList<Float>();
+		try {
+			boolean inUnigrams = false;
+			for (final String line : Iterators.able(IOUtils.lineIterator(file))) {
+				if (!inUnigrams) {
+					inUnigrams = line.contains("\\1-grams:");
+					continue;
+				}
+				if (line.length() == 0) continue;
+				if (line.charAt(0) == '\\') break;
+				final int firstTab = line.indexOf('\t');
+				final int secondTab = line.indexOf('\t', firstTab + 1);
+				final String word = line.substring(firstTab + 1, secondTab < 0 ? line.length() : secondTab);
+				if (!isInVocab(word, vocabFilter)) continue;
+				words.add(word);
+				logProbs.add(Float.parseFloat(line.substring(0, firstTab)));
+			}
+		} catch (final NumberFormatException e) {
+			throw new RuntimeException(e);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		final List<Integer> order = new ArrayList<Integer>(words.size());
+		for (int i = 0; i < words.size(); ++i)
+			order.add(i);
+		// stable, so ties keep the order of the file
+		Collections.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(final Integer o1, final Integer o2) {
+				return Float.compare(logProbs.get(o2), logProbs.get(o1));
+			}
+		});
+		for (final int i : order)
+			wordIndexer.getOrAddIndexFromString(words.get(i));
+		Logger.logss("Indexed " + words.size() + " words");
+		Logger.endTrack();
 	}
 
 }
\ No newline at end of file
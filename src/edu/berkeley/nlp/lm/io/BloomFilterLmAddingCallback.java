@@ -0,0 +1,38 @@
+package edu.berkeley.nlp.lm.io;
+
+import edu.berkeley.nlp.lm.BloomFilterLm;
+import edu.berkeley.nlp.lm.util.LongRef;
+
+/**
+ * Reader callback which adds n-gram counts to a {@link BloomFilterLm}.
+ * 
+ * @author adampauls
+ * 
+ */
+public final class BloomFilterLmAddingCallback implements NgramOrderedLmReaderCallback<LongRef>
+{
+
+	private final BloomFilterLm<?> lm;
+
+	public BloomFilterLmAddingCallback(final BloomFilterLm<?> lm) {
+		this.lm = lm;
+	}
+
+	@Override
+	public void call(final int[] ngram, final int startPos, final int endPos, final LongRef value, final String words) {
+		lm.add(ngram, startPos, endPos, value.value);
+	}
+
+	@Override
+	public void cleanup() {
+	}
+
+	@Override
+	public void handleNgramOrderFinished(final int order) {
+	}
+
+	@Override
+	public void handleNgramOrderStarted(final int order) {
+	}
+
+}
@@ -0,0 +1,597 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import edu.berkeley.nlp.lm.array.CustomWidthArray;
+import edu.berkeley.nlp.lm.array.LongArray;
+import edu.berkeley.nlp.lm.util.Logger;
+
+/**
+ * A binary container for serializable objects (in particular, language
+ * models) whose large primitive arrays -- the storage of
+ * {@link edu.berkeley.nlp.lm.array.LongArray} and
+ * {@link edu.berkeley.nlp.lm.array.CustomWidthArray}, the hash tables of the
+ * n-gram maps, etc. -- are stored outside of the Java serialization stream,
+ * in independent blocks which are written and read in parallel.
+ * <p>
+ * Each block holds at most {@link #BLOCK_LENGTH} elements of one array, has a
+ * CRC32 checksum of its contents, and is optionally deflated (blocks which do
+ * not shrink are stored raw). The rest of the object graph is small and is
+ * written with ordinary serialization, with each extracted array replaced by
+ * a placeholder. The layout of a file is:
+ *
+ * <pre>
+ * magic, version
+ * block*
+ * serialized object graph
+ * array table, block index
+ * offset of the object graph, its length, offset of the array table, magic
+ * </pre>
+ *
+ * Writing and reading are streaming: only the blocks being compressed or
+ * decompressed (a few per thread) are copied, and arrays are filled in place.
+ * <p>
+ * Arrays can be assigned to numbered sections when written (e.g. the n-gram
+ * order whose keys or values they store). A reader can then load only the
+ * sections up to some number; the arrays of later sections are replaced by
+ * empty arrays and their blocks are never read.
+ *
+ * @author adampauls
+ *
+ */
+public final class ChunkedBinary
+{
+
+	/**
+	 * Number of elements of an array in one block (8MB of <code>long</code>s).
+	 */
+	public static final int BLOCK_LENGTH = 1 << 20;
+
+	/**
+	 * Arrays with fewer elements than this are left in the serialization
+	 * stream.
+	 */
+	static final int MIN_EXTRACTED_LENGTH = 1 << 10;
+
+	private static final int MAGIC = 0x424c4d43;
+
+	private static final int VERSION = 2;
+
+	/**
+	 * The section of arrays which are always loaded.
+	 */
+	public static final int SHARED_SECTION = -1;
+
+	private static final byte LONG_ARRAY = 0;
+
+	private static final byte INT_ARRAY = 1;
+
+	private static final int TRAILER_BYTES = 8 + 8 + 8 + 4;
+
+	/**
+	 * Stands in for an extracted array in the serialization stream.
+	 *
+	 * @author adampauls
+	 *
+	 */
+	private static final class ArrayRef implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int index;
+
+		ArrayRef(final int index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * The location of one block in the file.
+	 *
+	 * @author adampauls
+	 *
+	 */
+	private static final class Block
+	{
+		int array;
+
+		int start;
+
+		int length;
+
+		long fileOffset;
+
+		int storedLength;
+
+		int checksum;
+
+		boolean compressed;
+
+		byte[] bytes;
+	}
+
+	private static final class ExtractingOutputStream extends ObjectOutputStream
+	{
+		private final List<Object> arrays = new ArrayList<Object>();
+
+		private final List<Integer> sections = new ArrayList<Integer>();
+
+		private final Map<Object, Integer> sectionOfArray;
+
+		private final IdentityHashMap<Object, ArrayRef> refs = new IdentityHashMap<Object, ArrayRef>();
+
+		ExtractingOutputStream(final OutputStream out, final Map<Object, Integer> sectionOfArray) throws IOException {
+			super(out);
+			this.sectionOfArray = sectionOfArray;
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(final Object obj) {
+			final int length;
+			if (obj instanceof long[])
+				length = ((long[]) obj).length;
+			else if (obj instanceof int[])
+				length = ((int[]) obj).length;
+			else
+				return obj;
+			if (length < MIN_EXTRACTED_LENGTH) return obj;
+			ArrayRef ref = refs.get(obj);
+			if (ref == null) {
+				ref = new ArrayRef(arrays.size());
+				refs.put(obj, ref);
+				arrays.add(obj);
+				final Integer section = sectionOfArray.get(obj);
+				sections.add(section == null ? SHARED_SECTION : section);
+			}
+			return ref;
+		}
+	}
+
+	private static final class ResolvingInputStream extends ObjectInputStream
+	{
+		private final Object[] arrays;
+
+		ResolvingInputStream(final InputStream in, final Object[] arrays) throws IOException {
+			super(in);
+			this.arrays = arrays;
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected Object resolveObject(final Object obj) {
+			if (obj instanceof ArrayRef) return arrays[((ArrayRef) obj).index];
+			return obj;
+		}
+	}
+
+	private ChunkedBinary() {
+	}
+
+	/**
+	 * @param file
+	 * @return Whether the file was written by
+	 *         {@link #write(Object, File, boolean, int)}.
+	 */
+	public static boolean isChunkedBinary(final File file) {
+		if (!file.isFile() || file.length() < 8 + TRAILER_BYTES) return false;
+		try {
+			final DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return in.readInt() == MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Writes an object, using one thread per available processor.
+	 *
+	 * @param obj
+	 * @param file
+	 * @param compress
+	 *            Whether to deflate blocks.
+	 */
+	public static void write(final Object obj, final File file, final boolean compress) {
+		write(obj, file, compress, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static void write(final Object obj, final File file, final boolean compress, final int numThreads) {
+		write(obj, file, compress, numThreads, new IdentityHashMap<Object, Integer>());
+	}
+
+	/**
+	 * Assigns the arrays stored by some objects to a section (see
+	 * {@link #read(File, int, int, List)}), unless they have already been
+	 * assigned one. Only the fields of the given objects which are
+	 * <code>long[]</code>, <code>int[]</code>, arrays of arrays,
+	 * {@link LongArray}s or {@link CustomWidthArray}s are followed, so
+	 * references from the storage of a section back to the object which owns
+	 * it are not.
+	 *
+	 * @param storage
+	 * @param section
+	 * @param sectionOfArray
+	 *            An identity map.
+	 */
+	public static void assignSection(final List<Object> storage, final int section, final Map<Object, Integer> sectionOfArray) {
+		for (final Object obj : storage)
+			assignSection(obj, section, sectionOfArray, true);
+	}
+
+	private static void assignSection(final Object obj, final int section, final Map<Object, Integer> sectionOfArray, final boolean followAllFields) {
+		if (obj == null) return;
+		if (obj instanceof long[] || obj instanceof int[]) {
+			if (!sectionOfArray.containsKey(obj)) sectionOfArray.put(obj, section);
+		} else if (obj instanceof Object[]) {
+			for (final Object o : (Object[]) obj)
+				assignSection(o, section, sectionOfArray, false);
+		} else if (followAllFields || obj instanceof LongArray || obj instanceof CustomWidthArray) {
+			for (Class<?> c = obj.getClass(); c != null; c = c.getSuperclass()) {
+				for (final Field field : c.getDeclaredFields()) {
+					if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) continue;
+					final Class<?> type = field.getType();
+					if (!type.isArray() && type != LongArray.class && type != CustomWidthArray.class) continue;
+					try {
+						field.setAccessible(true);
+						assignSection(field.get(obj), section, sectionOfArray, false);
+					} catch (final IllegalAccessException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes an object, with its arrays assigned to sections.
+	 *
+	 * @param obj
+	 * @param file
+	 * @param compress
+	 * @param numThreads
+	 * @param sectionOfArray
+	 *            An identity map from arrays to their sections (see
+	 *            {@link #assignSection(List, int, Map)}). Arrays not in the
+	 *            map are in the {@link #SHARED_SECTION}.
+	 */
+	public static void write(final Object obj, final File file, final boolean compress, final int numThreads, final Map<Object, Integer> sectionOfArray) {
+		final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			final ByteArrayOutputStream graph = new ByteArrayOutputStream();
+			final ExtractingOutputStream objOut = new ExtractingOutputStream(graph, sectionOfArray);
+			objOut.writeObject(obj);
+			objOut.close();
+			final List<Object> arrays = objOut.arrays;
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(0);
+				final FileChannel channel = raf.getChannel();
+				writeFully(channel, header());
+				final List<Block> blocks = new ArrayList<Block>();
+				// blocks are compressed in parallel, but written in order, with a bounded number in flight
+				final LinkedList<Future<Block>> inFlight = new LinkedList<Future<Block>>();
+				long numBytes = 0;
+				for (int array = 0; array < arrays.size(); ++array) {
+					final Object arr = arrays.get(array);
+					final int length = arrayLength(arr);
+					for (int start = 0; start < length; start += BLOCK_LENGTH) {
+						final Block block = new Block();
+						block.array = array;
+						block.start = start;
+						block.length = Math.min(BLOCK_LENGTH, length - start);
+						inFlight.add(executor.submit(new Callable<Block>()
+						{
+							@Override
+							public Block call() {
+								encode(arr, block, compress);
+								return block;
+							}
+						}));
+						if (inFlight.size() >= 2 * numThreads) numBytes += writeBlock(channel, inFlight.removeFirst(), blocks);
+					}
+				}
+				while (!inFlight.isEmpty())
+					numBytes += writeBlock(channel, inFlight.removeFirst(), blocks);
+				final long graphOffset = channel.position();
+				writeFully(channel, ByteBuffer.wrap(graph.toByteArray()));
+				final long indexOffset = channel.position();
+				writeFully(channel, ByteBuffer.wrap(index(arrays, objOut.sections, blocks)));
+				final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+				trailer.putLong(graphOffset).putLong(indexOffset - graphOffset).putLong(indexOffset).putInt(MAGIC);
+				trailer.flip();
+				writeFully(channel, trailer);
+				Logger.logss("Wrote " + arrays.size() + " arrays in " + blocks.size() + " blocks (" + numBytes + " bytes) and " + graph.size()
+					+ " bytes of other objects");
+			} finally {
+				raf.close();
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads an object, using one thread per available processor.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static Object read(final File file) {
+		return read(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static Object read(final File file, final int numThreads) {
+		return read(file, numThreads, Integer.MAX_VALUE, null);
+	}
+
+	/**
+	 * Reads an object, loading only some sections of its arrays. The arrays of
+	 * later sections are empty, so the object must not use them.
+	 *
+	 * @param file
+	 * @param numThreads
+	 * @param maxSection
+	 *            The last section to load.
+	 * @param loadedArrays
+	 *            If not null, the arrays which are already loaded (by earlier
+	 *            calls for the same file), by their position in the file,
+	 *            which are reused rather than read again. Arrays loaded by
+	 *            this call are added.
+	 * @return
+	 */
+	public static Object read(final File file, final int numThreads, final int maxSection, final List<Object> loadedArrays) {
+		final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				final FileChannel channel = raf.getChannel();
+				final ByteBuffer header = readFully(channel, 0, 8);
+				if (header.getInt() != MAGIC) throw new RuntimeException(file + " is not a chunked binary");
+				final int version = header.getInt();
+				if (version != VERSION) throw new RuntimeException("Unsupported chunked binary version " + version);
+				final ByteBuffer trailer = readFully(channel, channel.size() - TRAILER_BYTES, TRAILER_BYTES);
+				final long graphOffset = trailer.getLong();
+				final int graphLength = (int) trailer.getLong();
+				final long indexOffset = trailer.getLong();
+				if (trailer.getInt() != MAGIC) throw new RuntimeException(file + " is truncated");
+				final DataInputStream index = new DataInputStream(new ByteArrayInputStream(readFully(channel, indexOffset,
+					(int) (channel.size() - TRAILER_BYTES - indexOffset)).array()));
+				final Object[] arrays = new Object[index.readInt()];
+				if (loadedArrays != null) {
+					while (loadedArrays.size() < arrays.length)
+						loadedArrays.add(null);
+				}
+				// blocks are read only for arrays which are loaded here for the first time
+				final boolean[] readArray = new boolean[arrays.length];
+				for (int i = 0; i < arrays.length; ++i) {
+					final byte type = index.readByte();
+					final int length = index.readInt();
+					final int section = index.readInt();
+					if (loadedArrays != null && loadedArrays.get(i) != null) {
+						arrays[i] = loadedArrays.get(i);
+						continue;
+					}
+					final boolean load = section <= maxSection;
+					arrays[i] = type == LONG_ARRAY ? new long[load ? length : 0] : new int[load ? length : 0];
+					readArray[i] = load;
+					if (load && loadedArrays != null) loadedArrays.set(i, arrays[i]);
+				}
+				final List<Future<?>> futures = new ArrayList<Future<?>>();
+				final int numBlocks = index.readInt();
+				for (int i = 0; i < numBlocks; ++i) {
+					final Block block = new Block();
+					block.array = index.readInt();
+					block.start = index.readInt();
+					block.length = index.readInt();
+					block.fileOffset = index.readLong();
+					block.storedLength = index.readInt();
+					block.checksum = index.readInt();
+					block.compressed = index.readBoolean();
+					if (!readArray[block.array]) continue;
+					futures.add(executor.submit(new Callable<Object>()
+					{
+						@Override
+						public Object call() throws IOException {
+							decode(channel, arrays[block.array], block);
+							return null;
+						}
+					}));
+				}
+				for (final Future<?> future : futures)
+					getResult(future);
+				final ObjectInputStream objIn = new ResolvingInputStream(new ByteArrayInputStream(readFully(channel, graphOffset, graphLength).array()),
+					arrays);
+				try {
+					return objIn.readObject();
+				} finally {
+					objIn.close();
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		} catch (final ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static ByteBuffer header() {
+		final ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(MAGIC).putInt(VERSION);
+		header.flip();
+		return header;
+	}
+
+	private static byte[] index(final List<Object> arrays, final List<Integer> sections, final List<Block> blocks) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(arrays.size());
+		for (int i = 0; i < arrays.size(); ++i) {
+			final Object arr = arrays.get(i);
+			out.writeByte(arr instanceof long[] ? LONG_ARRAY : INT_ARRAY);
+			out.writeInt(arrayLength(arr));
+			out.writeInt(sections.get(i));
+		}
+		out.writeInt(blocks.size());
+		for (final Block block : blocks) {
+			out.writeInt(block.array);
+			out.writeInt(block.start);
+			out.writeInt(block.length);
+			out.writeLong(block.fileOffset);
+			out.writeInt(block.storedLength);
+			out.writeInt(block.checksum);
+			out.writeBoolean(block.compressed);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static int writeBlock(final FileChannel channel, final Future<Block> future, final List<Block> blocks) throws IOException {
+		final Block block = getResult(future);
+		block.fileOffset = channel.position();
+		writeFully(channel, ByteBuffer.wrap(block.bytes, 0, block.storedLength));
+		block.bytes = null;
+		blocks.add(block);
+		return block.storedLength;
+	}
+
+	private static void encode(final Object arr, final Block block, final boolean compress) {
+		final byte[] raw = toBytes(arr, block.start, block.length);
+		final CRC32 crc = new CRC32();
+		crc.update(raw, 0, raw.length);
+		block.checksum = (int) crc.getValue();
+		block.bytes = raw;
+		block.storedLength = raw.length;
+		block.compressed = false;
+		if (!compress) return;
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			final byte[] deflated = new byte[raw.length];
+			int n = 0;
+			while (!deflater.finished() && n < deflated.length)
+				n += deflater.deflate(deflated, n, deflated.length - n);
+			// blocks which do not shrink are stored raw
+			if (!deflater.finished()) return;
+			block.bytes = deflated;
+			block.storedLength = n;
+			block.compressed = true;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void decode(final FileChannel channel, final Object arr, final Block block) throws IOException {
+		final ByteBuffer stored = readFully(channel, block.fileOffset, block.storedLength);
+		final int rawLength = block.length * (arr instanceof long[] ? 8 : 4);
+		byte[] raw = stored.array();
+		if (block.compressed) {
+			raw = new byte[rawLength];
+			final Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(stored.array(), 0, block.storedLength);
+				int n = 0;
+				while (n < rawLength && !inflater.finished()) {
+					final int inflated = inflater.inflate(raw, n, rawLength - n);
+					if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+					n += inflated;
+				}
+				if (n != rawLength || !inflater.finished()) throw new IOException("Corrupt block at offset " + block.fileOffset);
+			} catch (final DataFormatException e) {
+				throw new IOException("Corrupt block at offset " + block.fileOffset + ": " + e.getMessage());
+			} finally {
+				inflater.end();
+			}
+		} else if (block.storedLength != rawLength) throw new IOException("Corrupt block at offset " + block.fileOffset);
+		final CRC32 crc = new CRC32();
+		crc.update(raw, 0, rawLength);
+		if ((int) crc.getValue() != block.checksum) throw new IOException("Checksum mismatch in block at offset " + block.fileOffset);
+		final ByteBuffer buffer = ByteBuffer.wrap(raw, 0, rawLength);
+		if (arr instanceof long[])
+			buffer.asLongBuffer().get((long[]) arr, block.start, block.length);
+		else
+			buffer.asIntBuffer().get((int[]) arr, block.start, block.length);
+	}
+
+	private static byte[] toBytes(final Object arr, final int start, final int length) {
+		if (arr instanceof long[]) {
+			final ByteBuffer buffer = ByteBuffer.allocate(length * 8);
+			buffer.asLongBuffer().put((long[]) arr, start, length);
+			return buffer.array();
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(length * 4);
+		buffer.asIntBuffer().put((int[]) arr, start, length);
+		return buffer.array();
+	}
+
+	private static int arrayLength(final Object arr) {
+		return arr instanceof long[] ? ((long[]) arr).length : ((int[]) arr).length;
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static ByteBuffer readFully(final FileChannel channel, final long offset, final int length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > channel.size()) throw new IOException("Truncated or corrupt file");
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) throw new IOException("Unexpected end of file");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static <T> T getResult(final Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+}
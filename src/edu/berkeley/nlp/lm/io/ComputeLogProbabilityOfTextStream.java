@@ -17,6 +17,7 @@ import java.util.zip.GZIPInputStream;
 import edu.berkeley.nlp.lm.NgramLanguageModel;
 import edu.berkeley.nlp.lm.collections.Iterators;
 import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.LookupStatistics;
 
 /**
  * Computes the log probability of a list of files. With the <code>-g</code>
@@ -64,6 +65,7 @@ public class ComputeLogProbabilityOfTextStream
 		double prob = computeProb(files, lm);
 		System.err.print("Log probability of text is: ");
 		System.out.println(prob);
+		if (LookupStatistics.ENABLED) Logger.logss(LookupStatistics.format());
 	}
 
 	/**
@@ -94,7 +96,7 @@ public class ComputeLogProbabilityOfTextStream
 	 * @param binaryFile
 	 * @return
 	 */
-	private static NgramLanguageModel<String> readBinary(boolean isGoogleBinary, String vocabFile, String binaryFile) {
+	static NgramLanguageModel<String> readBinary(boolean isGoogleBinary, String vocabFile, String binaryFile) {
 		NgramLanguageModel<String> lm = null;
 		if (isGoogleBinary) {
 			Logger.startTrack("Reading Google Binary " + binaryFile + " with vocab " + vocabFile);
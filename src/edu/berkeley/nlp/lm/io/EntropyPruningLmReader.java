@@ -0,0 +1,319 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.collections.LongHashSet;
+import edu.berkeley.nlp.lm.collections.LongToIntHashMap;
+import edu.berkeley.nlp.lm.map.HashNgramMap;
+import edu.berkeley.nlp.lm.map.NgramMap;
+import edu.berkeley.nlp.lm.map.NgramMap.Entry;
+import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+
+/**
+ * Relative-entropy ("Stolcke") pruning of an already built backoff language
+ * model. An n-gram is pruned if removing it (and backing off to its lower
+ * order instead) increases the perplexity of the model by a relative amount
+ * smaller than a threshold. Backoff weights of the affected contexts are then
+ * renormalized against the pruned model.
+ * <p>
+ * As in SRILM, unigrams are never pruned, and neither are n-grams which are
+ * contexts of other n-grams that survive pruning. Pruning decisions for n-grams
+ * sharing a context are made independently against the unpruned model.
+ * <p>
+ * Like {@link KneserNeyLmReaderCallback}, this class is a {@link LmReader}, so
+ * the pruned model can be built in memory with
+ * {@link LmReaders#readArrayEncodedLmFromArpa(LmReader, boolean, WordIndexer, edu.berkeley.nlp.lm.ConfigOptions)}
+ * or
+ * {@link LmReaders#readContextEncodedLmFromArpa(LmReader, WordIndexer, edu.berkeley.nlp.lm.ConfigOptions)}
+ * , or written out in ARPA format with a
+ * {@link KneserNeyFileWritingLmReaderCallback}.
+ *
+ * @author adampauls
+ *
+ * @param <W>
+ */
+public class EntropyPruningLmReader<W> implements LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>>
+{
+
+	private final NgramMap<ProbBackoffPair> map;
+
+	private final double threshold;
+
+	private final boolean reversed;
+
+	private final int maxNgramOrder;
+
+	private final int startSymbol;
+
+	/**
+	 * Offsets of pruned n-grams, indexed by order.
+	 */
+	private final LongHashSet[] pruned;
+
+	/**
+	 * Probability sums of the surviving extensions of each context, from
+	 * which renormalized backoffs are computed, indexed by order.
+	 */
+	private final ContextStats[] renormalizedContexts;
+
+	private final long[] numKept;
+
+	/**
+	 *
+	 * @param map
+	 *            n-gram map of the model to be pruned, with values in log10.
+	 * @param wordIndexer
+	 *            word indexer used to build the model
+	 * @param threshold
+	 *            n-grams whose removal increases perplexity by a relative
+	 *            amount less than this are pruned (e.g. 1e-8).
+	 */
+	public EntropyPruningLmReader(final NgramMap<ProbBackoffPair> map, final WordIndexer<W> wordIndexer, final double threshold) {
+		this.map = map;
+		this.threshold = threshold;
+		// compressed maps always store their tries reversed
+		this.reversed = !(map instanceof HashNgramMap) || ((HashNgramMap<ProbBackoffPair>) map).isReversed();
+		this.maxNgramOrder = map.getMaxNgramOrder();
+		this.startSymbol = wordIndexer.getIndexPossiblyUnk(wordIndexer.getStartSymbol());
+		this.pruned = new LongHashSet[maxNgramOrder];
+		this.renormalizedContexts = new ContextStats[maxNgramOrder];
+		this.numKept = new long[maxNgramOrder];
+		prune();
+		renormalizeBackoffs();
+	}
+
+	/**
+	 * Number of n-grams of the given order which survived pruning.
+	 *
+	 * @param ngramOrder
+	 *            0-based order
+	 * @return
+	 */
+	public long getNumKept(final int ngramOrder) {
+		return numKept[ngramOrder];
+	}
+
+	@Override
+	public void parse(final ArpaLmReaderCallback<ProbBackoffPair> callback) {
+		final List<Long> lengths = new ArrayList<Long>();
+		for (int ngramOrder = 0; ngramOrder < maxNgramOrder; ++ngramOrder)
+			lengths.add(numKept[ngramOrder]);
+		callback.initWithLengths(lengths);
+		final ProbBackoffPair scratch = new ProbBackoffPair(Float.NaN, Float.NaN);
+		for (int ngramOrder = 0; ngramOrder < maxNgramOrder; ++ngramOrder) {
+			callback.handleNgramOrderStarted(ngramOrder + 1);
+			for (final Entry<ProbBackoffPair> entry : map.getNgramsForOrder(ngramOrder)) {
+				if (entry.value.isFake()) continue;
+				final int[] ngram = entry.key;
+				final long offset = getOffset(ngram, 0, ngram.length, scratch);
+				if (pruned[ngramOrder] != null && pruned[ngramOrder].containsKey(offset)) continue;
+				final float backoff = renormalizedContexts[ngramOrder] == null ? 0.0f : renormalizedContexts[ngramOrder].getBackoff(offset,
+					getOriginalBackoff(entry.value));
+				callback.call(ngram, 0, ngram.length, new ProbBackoffPair(entry.value.prob, backoff), "");
+			}
+			callback.handleNgramOrderFinished(ngramOrder + 1);
+		}
+		callback.cleanup();
+	}
+
+	private void prune() {
+		Logger.startTrack("Pruning with threshold " + threshold);
+		numKept[0] = countNonFake(0);
+		final ProbBackoffPair scratch = new ProbBackoffPair(Float.NaN, Float.NaN);
+		final LongHashSet[] keptContexts = new LongHashSet[maxNgramOrder];
+		for (int ngramOrder = maxNgramOrder - 1; ngramOrder >= 1; --ngramOrder) {
+			pruned[ngramOrder] = new LongHashSet();
+			keptContexts[ngramOrder - 1] = new LongHashSet();
+			final ContextStats stats = new ContextStats();
+			for (final Entry<ProbBackoffPair> entry : map.getNgramsForOrder(ngramOrder)) {
+				if (entry.value.isFake()) continue;
+				final int[] ngram = entry.key;
+				final int index = stats.getIndex(getOffset(ngram, 0, ngram.length - 1, scratch));
+				if (Double.isNaN(stats.contextLogProbs[index])) stats.contextLogProbs[index] = getContextLogProb(ngram, 0, ngram.length - 1);
+				stats.sumProbs[index] += Math.pow(10.0, entry.value.prob);
+				stats.sumLowerProbs[index] += Math.pow(10.0, getLogProb(ngram, 1, ngram.length, false));
+			}
+			long kept = 0;
+			for (final Entry<ProbBackoffPair> entry : map.getNgramsForOrder(ngramOrder)) {
+				if (entry.value.isFake()) continue;
+				final int[] ngram = entry.key;
+				final long contextOffset = getOffset(ngram, 0, ngram.length - 1, scratch);
+				final boolean fakeContext = scratch.isFake();
+				final long offset = getOffset(ngram, 0, ngram.length, scratch);
+				final boolean isContext = keptContexts[ngramOrder] != null && keptContexts[ngramOrder].containsKey(offset);
+				if (!isContext && !fakeContext && shouldPrune(ngram, entry.value.prob, stats, stats.getIndex(contextOffset))) {
+					pruned[ngramOrder].put(offset);
+				} else {
+					keptContexts[ngramOrder - 1].put(contextOffset);
+					kept++;
+				}
+			}
+			numKept[ngramOrder] = kept;
+			Logger.logss("Kept " + kept + " of " + (kept + pruned[ngramOrder].size()) + " n-grams of order " + (ngramOrder + 1));
+		}
+		Logger.endTrack();
+	}
+
+	/**
+	 * Computes the relative change in perplexity caused by removing an n-gram
+	 * (see Stolcke, "Entropy-based Pruning of Backoff Language Models", 1998).
+	 */
+	private boolean shouldPrune(final int[] ngram, final float logProb, final ContextStats stats, final int contextIndex) {
+		final double numerator = 1.0 - stats.sumProbs[contextIndex];
+		final double denominator = 1.0 - stats.sumLowerProbs[contextIndex];
+		if (numerator <= 0.0 || denominator <= 0.0) return false;
+		final double prob = Math.pow(10.0, logProb);
+		final double lowerLogProb = getLogProb(ngram, 1, ngram.length, false);
+		final double lowerProb = Math.pow(10.0, lowerLogProb);
+		final double logBackoff = Math.log10(numerator / denominator);
+		final double newLogBackoff = Math.log10((numerator + prob) / (denominator + lowerProb));
+		final double contextProb = Math.pow(10.0, stats.contextLogProbs[contextIndex]);
+		final double deltaEntropy = contextProb * (prob * (logProb - lowerLogProb - newLogBackoff) + numerator * (logBackoff - newLogBackoff));
+		final double perplexityChange = Math.pow(10.0, deltaEntropy) - 1.0;
+		return perplexityChange < threshold;
+	}
+
+	/**
+	 * Recomputes backoffs for contexts of all orders, from lowest to highest,
+	 * so that probabilities of the pruned model (which depend on lower-order
+	 * backoffs) are available when computing each order.
+	 */
+	private void renormalizeBackoffs() {
+		final ProbBackoffPair scratch = new ProbBackoffPair(Float.NaN, Float.NaN);
+		for (int ngramOrder = 1; ngramOrder < maxNgramOrder; ++ngramOrder) {
+			final ContextStats stats = new ContextStats();
+			for (final Entry<ProbBackoffPair> entry : map.getNgramsForOrder(ngramOrder)) {
+				if (entry.value.isFake()) continue;
+				final int[] ngram = entry.key;
+				final long offset = getOffset(ngram, 0, ngram.length, scratch);
+				final int index = stats.getIndex(getOffset(ngram, 0, ngram.length - 1, scratch));
+				if (pruned[ngramOrder].containsKey(offset)) continue;
+				stats.sumProbs[index] += Math.pow(10.0, entry.value.prob);
+				stats.sumLowerProbs[index] += Math.pow(10.0, getLogProb(ngram, 1, ngram.length, true));
+			}
+			renormalizedContexts[ngramOrder - 1] = stats;
+		}
+	}
+
+	/**
+	 * Log probability of the last word of an n-gram given the others, under
+	 * either the original or the pruned model.
+	 */
+	private float getLogProb(final int[] ngram, final int startPos, final int endPos, final boolean usePruned) {
+		final ProbBackoffPair scratch = new ProbBackoffPair(Float.NaN, Float.NaN);
+		float backoffSum = 0.0f;
+		for (int start = startPos; start < endPos - 1; ++start) {
+			final int ngramOrder = endPos - start - 1;
+			final long offset = getOffset(ngram, start, endPos, scratch);
+			if (offset >= 0 && !scratch.isFake() && !(usePruned && pruned[ngramOrder].containsKey(offset))) return backoffSum + scratch.prob;
+			final long contextOffset = getOffset(ngram, start, endPos - 1, scratch);
+			if (contextOffset < 0) continue;
+			final float originalBackoff = getOriginalBackoff(scratch);
+			if (usePruned) {
+				assert renormalizedContexts[ngramOrder - 1] != null;
+				backoffSum += renormalizedContexts[ngramOrder - 1].getBackoff(contextOffset, originalBackoff);
+			} else {
+				backoffSum += originalBackoff;
+			}
+		}
+		getOffset(ngram, endPos - 1, endPos, scratch);
+		return backoffSum + scratch.prob;
+	}
+
+	/**
+	 * Log probability of a context, skipping a leading start symbol.
+	 */
+	private double getContextLogProb(final int[] ngram, final int startPos, final int endPos) {
+		double logProb = 0.0;
+		for (int i = startPos; i < endPos; ++i) {
+			if (i == startPos && ngram[i] == startSymbol) continue;
+			logProb += getLogProb(ngram, startPos, i + 1, false);
+		}
+		return logProb;
+	}
+
+	private static float getOriginalBackoff(final ProbBackoffPair value) {
+		return Float.isNaN(value.backoff) ? 0.0f : value.backoff;
+	}
+
+	/**
+	 * Walks the trie to find the offset of an n-gram, filling in its value.
+	 *
+	 * @return the offset, or -1 if the n-gram is not in the map
+	 */
+	private long getOffset(final int[] ngram, final int startPos, final int endPos, final ProbBackoffPair outputVal) {
+		long offset = 0;
+		final int len = endPos - startPos;
+		for (int i = 0; i < len; ++i) {
+			final int word = reversed ? ngram[endPos - i - 1] : ngram[startPos + i];
+			offset = map.getValueAndOffset(offset, i - 1, word, i == len - 1 ? outputVal : null);
+			if (offset < 0) return -1;
+		}
+		return offset;
+	}
+
+	private long countNonFake(final int ngramOrder) {
+		long count = 0;
+		for (final Entry<ProbBackoffPair> entry : map.getNgramsForOrder(ngramOrder))
+			if (!entry.value.isFake()) count++;
+		return count;
+	}
+
+	/**
+	 * Accumulates sums of explicit probabilities per context offset.
+	 *
+	 * @author adampauls
+	 *
+	 */
+	private static final class ContextStats
+	{
+		final LongToIntHashMap indexes = new LongToIntHashMap();
+
+		double[] sumProbs = new double[16];
+
+		double[] sumLowerProbs = new double[16];
+
+		double[] contextLogProbs = newNaNArray(16);
+
+		int getIndex(final long contextOffset) {
+			int index = indexes.get(contextOffset, -1);
+			if (index < 0) {
+				index = indexes.size();
+				indexes.put(contextOffset, index);
+				if (index >= sumProbs.length) {
+					final int newLength = sumProbs.length * 3 / 2 + 1;
+					sumProbs = Arrays.copyOf(sumProbs, newLength);
+					sumLowerProbs = Arrays.copyOf(sumLowerProbs, newLength);
+					final int oldLength = contextLogProbs.length;
+					contextLogProbs = Arrays.copyOf(contextLogProbs, newLength);
+					Arrays.fill(contextLogProbs, oldLength, newLength, Double.NaN);
+				}
+			}
+			return index;
+		}
+
+		/**
+		 * Backoff which makes the probabilities of a context sum to one.
+		 */
+		float getBackoff(final long contextOffset, final float originalBackoff) {
+			final int index = indexes.get(contextOffset, -1);
+			if (index < 0) return originalBackoff;
+			final double numerator = 1.0 - sumProbs[index];
+			final double denominator = 1.0 - sumLowerProbs[index];
+			// leave the original backoff alone if rounding has eaten all the mass
+			if (numerator <= 0.0 || denominator <= 0.0) return originalBackoff;
+			return (float) Math.log10(numerator / denominator);
+		}
+
+		private static double[] newNaNArray(final int length) {
+			final double[] ret = new double[length];
+			Arrays.fill(ret, Double.NaN);
+			return ret;
+		}
+	}
+
+}
@@ -9,12 +9,18 @@ import java.util.Map.Entry;
 import edu.berkeley.nlp.lm.array.LongArray;
 import edu.berkeley.nlp.lm.collections.Counter;
 import edu.berkeley.nlp.lm.collections.Indexer;
+import edu.berkeley.nlp.lm.collections.LongHashSet;
 import edu.berkeley.nlp.lm.collections.LongToIntHashMap;
 import edu.berkeley.nlp.lm.collections.LongRepresentable;
 import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.MurmurHash;
 
 /**
- * Reader callback which adds n-grams to an NgramMap
+ * Reader callback which collects statistics (value counts and number of
+ * n-grams for each word and order) used to size an NgramMap. Optionally, it
+ * also detects n-grams whose prefixes or suffixes are missing from the
+ * collection (as happens with some pruned ARPA files), so that the missing
+ * entries can be accounted for before the map is allocated.
  * 
  * @author adampauls
  * 
@@ -34,29 +40,91 @@ public final class FirstPassCallback<V extends LongRepresentable<V>> implements
 
 	private int maxNgramOrder = 0;
 
+	private final boolean detectMissingNgrams;
+
+	/**
+	 * Hashes of the n-grams seen so far (only for orders which can be the
+	 * prefix or suffix of another n-gram). A hash collision can hide a missing
+	 * n-gram, in which case the map-building code falls back to another pass.
+	 */
+	private LongHashSet seenNgrams;
+
+	private final List<int[]> missingNgrams = new ArrayList<int[]>();
+
+	private int maxNgramOrderFromHeader = Integer.MAX_VALUE;
+
 	public FirstPassCallback(final boolean reverse) {
+		this(reverse, false);
+	}
+
+	/**
+	 * 
+	 * @param reverse
+	 * @param detectMissingNgrams
+	 *            If true, record n-grams whose prefixes or suffixes do not
+	 *            appear in the collection. These must be added (with a dummy
+	 *            value) in the same order as the n-grams of their order, and
+	 *            are available from {@link #getMissingNgrams()}. This requires
+	 *            that n-grams are passed in order of increasing length.
+	 */
+	public FirstPassCallback(final boolean reverse, final boolean detectMissingNgrams) {
 		this.reverse = reverse;
+		this.detectMissingNgrams = detectMissingNgrams;
 		this.valueCounter = new LongToIntHashMap();
+		this.seenNgrams = detectMissingNgrams ? new LongHashSet() : null;
 	}
 
 	@Override
 	public void call(final int[] ngram, final int startPos, final int endPos, final V v, final String words) {
+		valueCounter.incrementCount(v.asLong(), 1);
+		countNgram(ngram, startPos, endPos);
+		if (detectMissingNgrams) {
+			addMissingSubNgrams(ngram, startPos, endPos);
+			if (endPos - startPos < maxNgramOrderFromHeader) seenNgrams.put(hash(ngram, startPos, endPos));
+		}
+	}
+
+	/**
+	 * @param ngram
+	 * @param startPos
+	 * @param endPos
+	 */
+	private void countNgram(final int[] ngram, final int startPos, final int endPos) {
 		maxNgramOrder = Math.max(endPos - startPos, maxNgramOrder);
 		final int ngramOrder = endPos - startPos - 1;
 		allocatedNumNgramArrayIfNecessary(ngramOrder);
 		allocatedNumNgramForOrderArrayIfNecessary(ngramOrder);
-		valueCounter.incrementCount(v.asLong(), 1);
 		final LongArray ngramOrderCounts = numNgramsForEachWord[ngramOrder];
-		final int word = reverse ? ngram[startPos] : ngram[ngramOrder];
+		final int word = reverse ? ngram[startPos] : ngram[endPos - 1];
 		ngramOrderCounts.incrementCount(word, 1);
 		numNgramsForOrder[ngramOrder]++;
-		//		if (word >= ngramOrderCounts.size()) {
-		//
-		//			ngramOrderCounts.setAndGrowIfNeeded(word, 1);
-		//		} else {
-		//			ngramOrderCounts.set(word, ngramOrderCounts.get(word) + 1);
-		//		}
+	}
+
+	/**
+	 * Checks that the longest proper prefix and suffix of an n-gram have been
+	 * seen, and recursively records any that have not.
+	 * 
+	 * @param ngram
+	 * @param startPos
+	 * @param endPos
+	 */
+	private void addMissingSubNgrams(final int[] ngram, final int startPos, final int endPos) {
+		if (endPos - startPos <= 1) return;
+		recordIfMissing(ngram, startPos, endPos - 1);
+		recordIfMissing(ngram, startPos + 1, endPos);
+	}
 
+	private void recordIfMissing(final int[] ngram, final int startPos, final int endPos) {
+		final boolean isNew = seenNgrams.put(hash(ngram, startPos, endPos));
+		if (!isNew) return;
+		missingNgrams.add(Arrays.copyOfRange(ngram, startPos, endPos));
+		countNgram(ngram, startPos, endPos);
+		addMissingSubNgrams(ngram, startPos, endPos);
+	}
+
+	private static long hash(final int[] ngram, final int startPos, final int endPos) {
+		// LongHashSet reserves negative keys
+		return MurmurHash.hash64(ngram, startPos, endPos) & Long.MAX_VALUE;
 	}
 
 	@Override
@@ -68,6 +136,10 @@ public final class FirstPassCallback<V extends LongRepresentable<V>> implements
 		Logger.startTrack("Cleaning up values");
 
 		Logger.logss("Found " + valueCounter.size() + " unique counts");
+		if (detectMissingNgrams) {
+			if (!missingNgrams.isEmpty()) Logger.logss("Found " + missingNgrams.size() + " missing suffixes or prefixes");
+			seenNgrams = null;
+		}
 
 		Logger.endTrack();
 
@@ -78,9 +150,22 @@ public final class FirstPassCallback<V extends LongRepresentable<V>> implements
 
 	}
 
+	/**
+	 * N-grams (in the order they were passed to this callback) which are the
+	 * prefix or suffix of some n-gram, but were not themselves found. Empty
+	 * unless missing n-grams detection was requested, although n-grams found to
+	 * be missing while building a map are added here later.
+	 * 
+	 * @return
+	 */
+	public List<int[]> getMissingNgrams() {
+		return missingNgrams;
+	}
+
 	@Override
 	public void initWithLengths(final List<Long> numNGrams) {
 		maxNgramOrder = numNGrams.size();
+		maxNgramOrderFromHeader = numNGrams.size();
 		final long numWords = numNGrams.get(0);
 		numNgramsForEachWord = new LongArray[numNGrams.size()];
 		for (int ngramOrder = 0; ngramOrder < numNgramsForEachWord.length; ++ngramOrder) {
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Set;
 
 import edu.berkeley.nlp.lm.ConfigOptions;
 import edu.berkeley.nlp.lm.WordIndexer;
@@ -25,11 +26,11 @@ public class GoogleLmReader<W> implements LmReader<LongRef, NgramOrderedLmReader
 		return lmOrder;
 	}
 
-	private static final String START_SYMBOL = "<S>";
+	public static final String START_SYMBOL = "<S>";
 
-	private static final String END_SYMBOL = "</S>";
+	public static final String END_SYMBOL = "</S>";
 
-	private static final String UNK_SYMBOL = "<UNK>";
+	public static final String UNK_SYMBOL = "<UNK>";
 
 	private static final String sortedVocabFile = "vocab_cs.gz";
 
@@ -39,8 +40,27 @@ public class GoogleLmReader<W> implements LmReader<LongRef, NgramOrderedLmReader
 
 	private final WordIndexer<W> wordIndexer;
 
-	public GoogleLmReader(final String rootDir, final WordIndexer<W> wordIndexer, @SuppressWarnings("unused") final ConfigOptions opts) {
+	private final Set<String> vocabFilter;
+
+	public GoogleLmReader(final String rootDir, final WordIndexer<W> wordIndexer, final ConfigOptions opts) {
+		this(rootDir, wordIndexer, opts, null);
+	}
+
+	/**
+	 * 
+	 * @param rootDir
+	 * @param wordIndexer
+	 * @param opts
+	 * @param vocabFilter
+	 *            If not null, n-grams containing words outside this set are
+	 *            skipped (and those words are never added to the
+	 *            <code>wordIndexer</code>). The start, end and unk symbols are
+	 *            always kept.
+	 */
+	public GoogleLmReader(final String rootDir, final WordIndexer<W> wordIndexer, @SuppressWarnings("unused") final ConfigOptions opts,
+		final Set<String> vocabFilter) {
 		this.wordIndexer = wordIndexer;
+		this.vocabFilter = vocabFilter;
 		ngramDirectories = new File(rootDir).listFiles(new FilenameFilter()
 		{
 
@@ -70,7 +90,7 @@ public class GoogleLmReader<W> implements LmReader<LongRef, NgramOrderedLmReader
 			if (ngramOrder == 0) {
 				if (ngramFiles.length != 1) throw new RuntimeException("Could not find expected vocab file " + sortedVocabFile);
 				final String sortedVocabPath = ngramFiles[0].getPath();
-				addToIndexer(wordIndexer, sortedVocabPath);
+				addToIndexer(wordIndexer, sortedVocabPath, vocabFilter);
 			} else if (ngramFiles.length == 0) {
 				Logger.warn("Did not find any files matching expected regex " + regex);
 			}
@@ -122,6 +142,7 @@ public class GoogleLmReader<W> implements LmReader<LongRef, NgramOrderedLmReader
 			int nextIndex = line.indexOf(' ', spaceIndex);
 			if (nextIndex < 0) nextIndex = words.length();
 			final String word = words.substring(spaceIndex, nextIndex);
+			if (!isInVocab(word, vocabFilter)) return;
 			ngram[i] = wordIndexer.getOrAddIndexFromString(word);
 
 			if (nextIndex == words.length()) break;
@@ -131,10 +152,24 @@ public class GoogleLmReader<W> implements LmReader<LongRef, NgramOrderedLmReader
 		callback.call(ngram, 0, ngram.length, new LongRef(count), words);
 	}
 
+	private static boolean isInVocab(final String word, final Set<String> vocabFilter) {
+		return vocabFilter == null || vocabFilter.contains(word) || word.equals(START_SYMBOL) || word.equals(END_SYMBOL) || word.equals(UNK_SYMBOL);
+	}
+
 	/**
 	 * @param sortedVocabPath
 	 */
 	public static <W> void addToIndexer(final WordIndexer<W> wordIndexer, final String sortedVocabPath) {
+		addToIndexer(wordIndexer, sortedVocabPath, null);
+	}
+
+	/**
+	 * Like {@link #addToIndexer(WordIndexer, String)}, but only adds words in
+	 * <code>vocabFilter</code> (if it is not null).
+	 * 
+	 * @param sortedVocabPath
+	 */
+	public static <W> void addToIndexer(final WordIndexer<W> wordIndexer, final String sortedVocabPath, final Set<String> vocabFilter) {
 		if (!(new File(sortedVocabPath).getName().equals(sortedVocabFile))) {
 			Logger.warn("You have specified that " + sortedVocabPath + " is the count-sorted vocab file for Google n-grams, but it is usually named "
 				+ sortedVocabFile);
@@ -143,7 +178,7 @@ public class GoogleLmReader<W> implements LmReader<LongRef, NgramOrderedLmReader
 			for (final String line : Iterators.able(IOUtils.lineIterator(sortedVocabPath))) {
 				final String[] parts = line.split("\t");
 				final String word = parts[0];
-				wordIndexer.getOrAddIndexFromString(word);
+				if (isInVocab(word, vocabFilter)) wordIndexer.getOrAddIndexFromString(word);
 			}
 		} catch (final NumberFormatException e) {
 			throw new RuntimeException(e);
@@ -16,7 +16,9 @@ import edu.berkeley.nlp.lm.collections.Counter;
 import edu.berkeley.nlp.lm.map.HashNgramMap;
 import edu.berkeley.nlp.lm.map.NgramMap.Entry;
 import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.LoadEvents;
 import edu.berkeley.nlp.lm.util.LongRef;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.util.StrUtils;
 import edu.berkeley.nlp.lm.values.KneserNeyCountValueContainer;
 import edu.berkeley.nlp.lm.values.KneserNeyCountValueContainer.KneserNeyCounts;
@@ -273,10 +275,12 @@ public class KneserNeyLmReaderCallback<W> implements NgramOrderedLmReaderCallbac
 	@Override
 	public void parse(ArpaLmReaderCallback<ProbBackoffPair> callback) {
 		Logger.startTrack("Writing Kneser-Ney probabilities");
+		final LoadEvents.Phase phase = LoadEvents.start("Writing Kneser-Ney probabilities");
 
 		List<Long> lengths = new ArrayList<Long>();
 		for (int ngramOrder = 0; ngramOrder < lmOrder; ++ngramOrder) {
 			Logger.startTrack("Counting counts for order " + ngramOrder);
+			final LoadEvents.Phase countingPhase = LoadEvents.start("Counting Kneser-Ney counts", ngramOrder);
 			long numNgrams = 0; //ngrams.getNumNgrams(ngramOrder);
 			for (final Entry<KneserNeyCounts> entry : ngrams.getNgramsForOrder(ngramOrder)) {
 				final long relevantCount = entry.value.tokenCounts;
@@ -284,6 +288,8 @@ public class KneserNeyLmReaderCallback<W> implements NgramOrderedLmReaderCallbac
 				numNgrams++;
 			}
 			lengths.add(numNgrams);
+			countingPhase.addNgrams(numNgrams);
+			LoadEvents.end(countingPhase);
 			Logger.endTrack();
 		}
 		callback.initWithLengths(lengths);
@@ -302,6 +308,7 @@ public class KneserNeyLmReaderCallback<W> implements NgramOrderedLmReaderCallbac
 				final int startPos = 0;
 				ProbBackoffPair value = getProbBackoff(ngram, startPos, endPos);
 				callback.call(ngram, startPos, endPos, value, "");
+				phase.addNgrams(1);
 
 			}
 			callback.handleNgramOrderFinished(ngramOrder + 1);
@@ -309,6 +316,8 @@ public class KneserNeyLmReaderCallback<W> implements NgramOrderedLmReaderCallbac
 		}
 		callback.cleanup();
 
+		phase.addBytes(ngrams.getMemoryUsage().getTotalBytes());
+		LoadEvents.end(phase);
 		Logger.endTrack();
 	}
 
@@ -388,4 +397,12 @@ public class KneserNeyLmReaderCallback<W> implements NgramOrderedLmReaderCallbac
 		throw new UnsupportedOperationException("Method not yet implemented");
 	}
 
+	/**
+	 * Memory used by the counts collected so far.
+	 */
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		return ngrams.getMemoryUsage();
+	}
+
 }
@@ -0,0 +1,133 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.nlp.lm.AbstractArrayEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
+
+/**
+ * An array-encoded LM (e.g. an
+ * {@link edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm} or
+ * {@link edu.berkeley.nlp.lm.StupidBackoffLm}) which is read from a binary
+ * written by
+ * {@link LmReaders#writeChunkedLmBinary(edu.berkeley.nlp.lm.NgramLanguageModel, String, boolean)}
+ * one n-gram order at a time, as they are needed.
+ * <p>
+ * Such binaries store the keys and values of each order in their own blocks,
+ * located by the binary's index (see {@link ChunkedBinary}). Opening the LM
+ * only reads the unigrams; the first query of an n-gram of a higher order
+ * reads the blocks of all orders up to it, reusing those already read, so a
+ * tool which only scores bigrams never reads (or allocates) the higher orders.
+ * Since scoring an n-gram only needs the n-grams of its order and lower,
+ * scores are the same as those of the fully loaded LM.
+ * <p>
+ * Each load deserializes the (small) rest of the model again, including the
+ * word indexer, whose indices do not change. Loading is synchronized; queries
+ * of orders which are already loaded are not.
+ *
+ * @author adampauls
+ *
+ * @param <W>
+ */
+public class LazyArrayEncodedLm<W> extends AbstractArrayEncodedNgramLanguageModel<W>
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient File file;
+
+	private final transient List<Object> loadedArrays;
+
+	private transient volatile AbstractArrayEncodedNgramLanguageModel<W> lm;
+
+	private transient volatile int numLoadedOrders;
+
+	private LazyArrayEncodedLm(final File file, final List<Object> loadedArrays, final AbstractArrayEncodedNgramLanguageModel<W> lm) {
+		super(lm.getLmOrder(), lm.getWordIndexer(), lm.getOovWordLogProb());
+		this.file = file;
+		this.loadedArrays = loadedArrays;
+		this.lm = lm;
+		this.numLoadedOrders = 1;
+	}
+
+	/**
+	 * Opens a binary, reading only its unigrams.
+	 *
+	 * @param <W>
+	 * @param file
+	 * @return
+	 */
+	public static <W> LazyArrayEncodedLm<W> open(final String file) {
+		final File f = new File(file);
+		if (!ChunkedBinary.isChunkedBinary(f)) throw new RuntimeException(file + " was not written by LmReaders.writeChunkedLmBinary");
+		final List<Object> loadedArrays = new ArrayList<Object>();
+		return new LazyArrayEncodedLm<W>(f, loadedArrays, LazyArrayEncodedLm.<W> read(f, 1, loadedArrays));
+	}
+
+	/**
+	 * The number of orders (starting from unigrams) which have been read.
+	 *
+	 * @return
+	 */
+	public int getNumLoadedOrders() {
+		return numLoadedOrders;
+	}
+
+	/**
+	 * Gets the underlying LM, first reading all orders up to
+	 * <code>numOrders</code> if necessary. The returned LM must not be used for
+	 * n-grams (or iteration over orders) longer than <code>numOrders</code>.
+	 *
+	 * @param numOrders
+	 * @return
+	 */
+	public AbstractArrayEncodedNgramLanguageModel<W> getLm(final int numOrders) {
+		if (numOrders > numLoadedOrders) load(Math.min(numOrders, lmOrder));
+		return lm;
+	}
+
+	@Override
+	public float getLogProb(final int[] ngram, final int startPos, final int endPos) {
+		return getLm(endPos - startPos).getLogProb(ngram, startPos, endPos);
+	}
+
+	@Override
+	public void setOovWordLogProb(final float oovWordLogProb) {
+		synchronized (this) {
+			super.setOovWordLogProb(oovWordLogProb);
+			lm.setOovWordLogProb(oovWordLogProb);
+		}
+	}
+
+	/**
+	 * Reads all orders first, since the memory usage of the underlying LM is
+	 * computed from all of them.
+	 */
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		return getLm(lmOrder).getMemoryUsage();
+	}
+
+	private synchronized void load(final int numOrders) {
+		if (numOrders <= numLoadedOrders) return;
+		Logger.startTrack("Reading orders " + (numLoadedOrders + 1) + " to " + numOrders + " of " + file);
+		final AbstractArrayEncodedNgramLanguageModel<W> newLm = read(file, numOrders, loadedArrays);
+		newLm.setOovWordLogProb(oovWordLogProb);
+		Logger.endTrack();
+		// published before the number of orders, which readers check first
+		lm = newLm;
+		numLoadedOrders = numOrders;
+	}
+
+	private static <W> AbstractArrayEncodedNgramLanguageModel<W> read(final File file, final int numOrders, final List<Object> loadedArrays) {
+		final Object obj = ChunkedBinary.read(file, Runtime.getRuntime().availableProcessors(), numOrders - 1, loadedArrays);
+		if (!(obj instanceof AbstractArrayEncodedNgramLanguageModel)) throw new RuntimeException(file + " does not contain an array-encoded LM");
+		@SuppressWarnings("unchecked")
+		final AbstractArrayEncodedNgramLanguageModel<W> lm = (AbstractArrayEncodedNgramLanguageModel<W>) obj;
+		return lm;
+	}
+
+}
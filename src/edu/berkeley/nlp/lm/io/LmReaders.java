@@ -2,11 +2,17 @@ package edu.berkeley.nlp.lm.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel;
 import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.BloomFilterLm;
 import edu.berkeley.nlp.lm.ConfigOptions;
 import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel;
 import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
@@ -17,18 +23,23 @@ import edu.berkeley.nlp.lm.WordIndexer;
 import edu.berkeley.nlp.lm.array.LongArray;
 import edu.berkeley.nlp.lm.cache.ArrayEncodedCachingLmWrapper;
 import edu.berkeley.nlp.lm.cache.ContextEncodedCachingLmWrapper;
+import edu.berkeley.nlp.lm.collections.Iterators;
 import edu.berkeley.nlp.lm.collections.LongRepresentable;
+import edu.berkeley.nlp.lm.collections.LongToIntHashMap;
 import edu.berkeley.nlp.lm.map.AbstractNgramMap;
 import edu.berkeley.nlp.lm.map.CompressedNgramMap;
 import edu.berkeley.nlp.lm.map.ContextEncodedNgramMap;
 import edu.berkeley.nlp.lm.map.HashNgramMap;
 import edu.berkeley.nlp.lm.map.NgramMap;
 import edu.berkeley.nlp.lm.map.NgramMapWrapper;
+import edu.berkeley.nlp.lm.map.PerOrderStorage;
 import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.LoadEvents;
 import edu.berkeley.nlp.lm.util.LongRef;
 import edu.berkeley.nlp.lm.values.CompressibleValueContainer;
 import edu.berkeley.nlp.lm.values.CompressibleProbBackoffValueContainer;
 import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+import edu.berkeley.nlp.lm.values.ProbBackoffValueContainer;
 import edu.berkeley.nlp.lm.values.UncompressedProbBackoffValueContainer;
 import edu.berkeley.nlp.lm.values.CountValueContainer;
 import edu.berkeley.nlp.lm.values.UnrankedUncompressedProbBackoffValueContainer;
@@ -90,6 +101,23 @@ import edu.berkeley.nlp.lm.values.ValueContainer;
  * 4.1 of Pauls and Klein (2011). You should more or less always use these
  * caches, since they are faster and have modest memory requirements. 
  * <p>
+ * If only n-grams over a known vocabulary will ever be queried, the ARPA and
+ * Google readers can skip all n-grams containing other words (see
+ * {@link #readArrayEncodedLmFromArpa(String, boolean, String)},
+ * {@link #readContextEncodedLmFromArpa(String, String)} and
+ * {@link #readLmFromGoogleNgramDir(String, boolean, boolean, String)}).
+ * Because every sub-n-gram of a kept n-gram is also kept, the resulting model
+ * assigns the same scores as the full model to n-grams over that vocabulary.
+ * <p>
+ * When even a compressed map of counts is too large, a randomized stupid
+ * backoff model which stores quantized counts in a Bloom filter can be read
+ * with {@link #readBloomFilterLmFromGoogleNgramDir(String, WordIndexer, ConfigOptions)}.
+ * <p>
+ * Built models can be shrunk with relative-entropy pruning (Stolcke 1998) using
+ * {@link #pruneArrayEncodedLm(NgramMap, WordIndexer, double, boolean, ConfigOptions)}
+ * and {@link #pruneContextEncodedLm(NgramMap, WordIndexer, double, ConfigOptions)},
+ * or from the command line with {@link PruneLmBinary}.
+ * <p>
  * This software also support a java Map wrapper around an n-gram collection.
  * You can read a map wrapper using
  * {@link #readNgramMapFromGoogleNgramDir(String, boolean, WordIndexer)}.
@@ -128,12 +156,34 @@ public class LmReaders
 	 */
 	public static <W> ContextEncodedProbBackoffLm<W> readContextEncodedLmFromArpa(final String lmFile, final WordIndexer<W> wordIndexer,
 		final ConfigOptions opts, final int lmOrder) {
-		return readContextEncodedLmFromArpa(new ArpaLmReader<W>(lmFile, wordIndexer, lmOrder), wordIndexer, opts);
+		return readContextEncodedLmFromArpa(lmFile, wordIndexer, opts, lmOrder, null);
+	}
+
+	public static ContextEncodedProbBackoffLm<String> readContextEncodedLmFromArpa(final String lmFile, final String vocabFile) {
+		return readContextEncodedLmFromArpa(lmFile, new StringWordIndexer(), new ConfigOptions(), Integer.MAX_VALUE, readVocabulary(vocabFile));
+	}
+
+	/**
+	 * Reads a context-encoded language model from an ARPA lm file, keeping
+	 * only n-grams whose words are all in <code>vocab</code>.
+	 * 
+	 * @param <W>
+	 * @param lmFile
+	 * @param wordIndexer
+	 * @param opts
+	 * @param lmOrder
+	 * @param vocab
+	 *            If null, no n-grams are skipped.
+	 * @return
+	 */
+	public static <W> ContextEncodedProbBackoffLm<W> readContextEncodedLmFromArpa(final String lmFile, final WordIndexer<W> wordIndexer,
+		final ConfigOptions opts, final int lmOrder, final Set<String> vocab) {
+		return readContextEncodedLmFromArpa(new ArpaLmReader<W>(lmFile, wordIndexer, lmOrder, vocab, opts), wordIndexer, opts);
 	}
 
 	public static <W> ContextEncodedProbBackoffLm<W> readContextEncodedLmFromArpa(
 		final LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>> lmFile, final WordIndexer<W> wordIndexer, final ConfigOptions opts) {
-		final FirstPassCallback<ProbBackoffPair> valueAddingCallback = firstPassArpa(lmFile, false);
+		final FirstPassCallback<ProbBackoffPair> valueAddingCallback = firstPassArpa(lmFile, false, opts);
 		final LongArray[] numNgramsForEachWord = valueAddingCallback.getNumNgramsForEachWord();
 		return secondPassContextEncoded(opts, lmFile, wordIndexer, valueAddingCallback, numNgramsForEachWord);
 	}
@@ -148,7 +198,30 @@ public class LmReaders
 
 	public static <W> ArrayEncodedProbBackoffLm<W> readArrayEncodedLmFromArpa(final String lmFile, final boolean compress, final WordIndexer<W> wordIndexer,
 		final ConfigOptions opts, final int lmOrder) {
-		return readArrayEncodedLmFromArpa(new ArpaLmReader<W>(lmFile, wordIndexer, lmOrder), compress, wordIndexer, opts);
+		return readArrayEncodedLmFromArpa(lmFile, compress, wordIndexer, opts, lmOrder, null);
+	}
+
+	public static ArrayEncodedProbBackoffLm<String> readArrayEncodedLmFromArpa(final String lmFile, final boolean compress, final String vocabFile) {
+		return readArrayEncodedLmFromArpa(lmFile, compress, new StringWordIndexer(), new ConfigOptions(), Integer.MAX_VALUE, readVocabulary(vocabFile));
+	}
+
+	/**
+	 * Reads an array-encoded language model from an ARPA lm file, keeping only
+	 * n-grams whose words are all in <code>vocab</code>.
+	 * 
+	 * @param <W>
+	 * @param lmFile
+	 * @param compress
+	 * @param wordIndexer
+	 * @param opts
+	 * @param lmOrder
+	 * @param vocab
+	 *            If null, no n-grams are skipped.
+	 * @return
+	 */
+	public static <W> ArrayEncodedProbBackoffLm<W> readArrayEncodedLmFromArpa(final String lmFile, final boolean compress, final WordIndexer<W> wordIndexer,
+		final ConfigOptions opts, final int lmOrder, final Set<String> vocab) {
+		return readArrayEncodedLmFromArpa(new ArpaLmReader<W>(lmFile, wordIndexer, lmOrder, vocab, opts), compress, wordIndexer, opts);
 	}
 
 	/**
@@ -168,7 +241,7 @@ public class LmReaders
 		final boolean compress, final WordIndexer<W> wordIndexer, final ConfigOptions opts) {
 
 		final boolean reverse = true;
-		final FirstPassCallback<ProbBackoffPair> valueAddingCallback = firstPassArpa(lmFile, reverse);
+		final FirstPassCallback<ProbBackoffPair> valueAddingCallback = firstPassArpa(lmFile, reverse, opts);
 		final LongArray[] numNgramsForEachWord = valueAddingCallback.getNumNgramsForEachWord();
 		return secondPassArrayEncoded(opts, lmFile, wordIndexer, valueAddingCallback, numNgramsForEachWord, reverse, compress);
 	}
@@ -217,19 +290,65 @@ public class LmReaders
 	 */
 	public static <W> ArrayEncodedNgramLanguageModel<W> readLmFromGoogleNgramDir(final String dir, final boolean compress, final boolean kneserNey,
 		final WordIndexer<W> wordIndexer, final ConfigOptions opts) {
-		final GoogleLmReader<W> googleLmReader = new GoogleLmReader<W>(dir, wordIndexer, opts);
+		return readLmFromGoogleNgramDir(dir, compress, kneserNey, wordIndexer, opts, null);
+	}
+
+	public static ArrayEncodedNgramLanguageModel<String> readLmFromGoogleNgramDir(final String dir, final boolean compress, final boolean kneserNey,
+		final String vocabFile) {
+		return readLmFromGoogleNgramDir(dir, compress, kneserNey, new StringWordIndexer(), new ConfigOptions(), readVocabulary(vocabFile));
+	}
+
+	/**
+	 * Reads a stupid backoff lm from a directory with n-gram counts in the
+	 * format used by Google n-grams, keeping only n-grams whose words are all
+	 * in <code>vocab</code>. Note that the unigram sum used by stupid backoff
+	 * is computed over the kept unigrams only.
+	 * 
+	 * @param <W>
+	 * @param dir
+	 * @param compress
+	 * @param kneserNey
+	 * @param wordIndexer
+	 * @param opts
+	 * @param vocab
+	 *            If null, no n-grams are skipped.
+	 * @return
+	 */
+	public static <W> ArrayEncodedNgramLanguageModel<W> readLmFromGoogleNgramDir(final String dir, final boolean compress, final boolean kneserNey,
+		final WordIndexer<W> wordIndexer, final ConfigOptions opts, final Set<String> vocab) {
+		final GoogleLmReader<W> googleLmReader = new GoogleLmReader<W>(dir, wordIndexer, opts, vocab);
 		if (kneserNey) {
 			GoogleLmReader.addSpecialSymbols(wordIndexer);
 			KneserNeyLmReaderCallback<W> kneserNeyReader = new KneserNeyLmReaderCallback<W>(wordIndexer, googleLmReader.getLmOrder(), opts);
 			googleLmReader.parse(kneserNeyReader);
 			return readArrayEncodedLmFromArpa(kneserNeyReader, compress, wordIndexer, opts);
 		} else {
-			final FirstPassCallback<LongRef> valueAddingCallback = firstPassGoogle(dir, wordIndexer, opts);
+			final FirstPassCallback<LongRef> valueAddingCallback = firstPassGoogle(dir, wordIndexer, opts, vocab);
 			final LongArray[] numNgramsForEachWord = valueAddingCallback.getNumNgramsForEachWord();
 			return secondPassGoogle(opts, googleLmReader, wordIndexer, valueAddingCallback, numNgramsForEachWord, compress);
 		}
 	}
 
+	/**
+	 * Builds a stupid backoff LM from counts given by any reader in the same
+	 * format as {@link GoogleLmReader} (every suffix of an n-gram must also be
+	 * read), e.g. one shard of another LM (see {@link MakeShardedLmBinaries}).
+	 * 
+	 * @param <W>
+	 * @param lmReader
+	 * @param wordIndexer
+	 * @param opts
+	 * @param compress
+	 * @return
+	 */
+	public static <W> StupidBackoffLm<W> readStupidBackoffLm(final LmReader<LongRef, NgramOrderedLmReaderCallback<LongRef>> lmReader,
+		final WordIndexer<W> wordIndexer, final ConfigOptions opts, final boolean compress) {
+		final boolean reverse = true;
+		final boolean detectMissingNgrams = false;
+		final FirstPassCallback<LongRef> valueAddingCallback = firstPassCommon(lmReader, reverse, detectMissingNgrams);
+		return secondPassGoogle(opts, lmReader, wordIndexer, valueAddingCallback, valueAddingCallback.getNumNgramsForEachWord(), compress);
+	}
+
 	/**
 	 * Builds a context-encoded LM from raw text. This call first builds and
 	 * writes a (temporary) ARPA file by calling
@@ -303,6 +422,103 @@ public class LmReaders
 		kneserNeyReader.parse(new KneserNeyFileWritingLmReaderCallback<W>(arpaOutputFile, wordIndexer));
 	}
 
+	/**
+	 * Builds an array-encoded language model from an existing model after
+	 * relative-entropy pruning (see {@link EntropyPruningLmReader}).
+	 * 
+	 * @param <W>
+	 * @param map
+	 *            The n-gram map of the model to prune (e.g.
+	 *            {@link ArrayEncodedProbBackoffLm#getNgramMap()}).
+	 * @param wordIndexer
+	 *            The word indexer of the model to prune.
+	 * @param threshold
+	 *            Maximum relative increase in perplexity allowed for each
+	 *            pruned n-gram.
+	 * @param compress
+	 * @param opts
+	 * @return
+	 */
+	public static <W> ArrayEncodedProbBackoffLm<W> pruneArrayEncodedLm(final NgramMap<ProbBackoffPair> map, final WordIndexer<W> wordIndexer,
+		final double threshold, final boolean compress, final ConfigOptions opts) {
+		return readArrayEncodedLmFromArpa(new EntropyPruningLmReader<W>(map, wordIndexer, threshold), compress, wordIndexer, opts);
+	}
+
+	public static BloomFilterLm<String> readBloomFilterLmFromGoogleNgramDir(final String dir) {
+		return readBloomFilterLmFromGoogleNgramDir(dir, new StringWordIndexer(), new ConfigOptions());
+	}
+
+	/**
+	 * Reads a randomized stupid backoff language model (see
+	 * {@link BloomFilterLm}) from a directory with n-gram counts in the format
+	 * used by Google n-grams. The size of the filter is chosen to achieve
+	 * {@link ConfigOptions#bloomFilterFalsePositiveRate}.
+	 * 
+	 * @param <W>
+	 * @param dir
+	 * @param wordIndexer
+	 * @param opts
+	 * @return
+	 */
+	public static <W> BloomFilterLm<W> readBloomFilterLmFromGoogleNgramDir(final String dir, final WordIndexer<W> wordIndexer, final ConfigOptions opts) {
+		final GoogleLmReader<W> googleLmReader = new GoogleLmReader<W>(dir, wordIndexer, opts, null);
+		final FirstPassCallback<LongRef> valueAddingCallback = firstPassGoogle(dir, wordIndexer, opts, null);
+		final LongToIntHashMap valueCounter = valueAddingCallback.getValueCounter();
+		long minCount = Long.MAX_VALUE;
+		long maxCount = 1L;
+		for (final LongToIntHashMap.Entry entry : valueCounter.primitiveEntries()) {
+			minCount = Math.min(minCount, entry.key);
+			maxCount = Math.max(maxCount, entry.key);
+		}
+		long numInsertions = 0L;
+		for (final LongToIntHashMap.Entry entry : valueCounter.primitiveEntries()) {
+			numInsertions += (long) entry.value * BloomFilterLm.getQuantizedCount(entry.key, minCount, opts.bloomFilterQuantizationBase);
+		}
+		final BloomFilterLm<W> lm = new BloomFilterLm<W>(valueAddingCallback.getNumNgramsForEachOrder().length, wordIndexer, numInsertions, minCount,
+			maxCount, opts);
+		Logger.startTrack("Adding " + numInsertions + " quantized counts to a Bloom filter with " + lm.getNumBits() + " bits and "
+			+ lm.getNumHashFunctions() + " hash functions");
+		final LoadEvents.Phase phase = LoadEvents.start("Adding counts to Bloom filter");
+		googleLmReader.parse(new BloomFilterLmAddingCallback(lm));
+		phase.addNgrams(numInsertions);
+		phase.addBytes(lm.getMemoryUsage().getTotalBytes());
+		LoadEvents.end(phase);
+		Logger.endTrack();
+		if (opts.lockIndexer) wordIndexer.trimAndLock();
+		return lm;
+	}
+
+	/**
+	 * Builds a context-encoded language model from an existing model after
+	 * relative-entropy pruning (see {@link EntropyPruningLmReader}).
+	 * 
+	 * @param <W>
+	 * @param map
+	 * @param wordIndexer
+	 * @param threshold
+	 * @param opts
+	 * @return
+	 */
+	public static <W> ContextEncodedProbBackoffLm<W> pruneContextEncodedLm(final NgramMap<ProbBackoffPair> map, final WordIndexer<W> wordIndexer,
+		final double threshold, final ConfigOptions opts) {
+		return readContextEncodedLmFromArpa(new EntropyPruningLmReader<W>(map, wordIndexer, threshold), wordIndexer, opts);
+	}
+
+	/**
+	 * Writes a relative-entropy pruned version of an existing model to an ARPA
+	 * file.
+	 * 
+	 * @param <W>
+	 * @param map
+	 * @param wordIndexer
+	 * @param threshold
+	 * @param arpaOutputFile
+	 */
+	public static <W> void writePrunedArpa(final NgramMap<ProbBackoffPair> map, final WordIndexer<W> wordIndexer, final double threshold,
+		final File arpaOutputFile) {
+		new EntropyPruningLmReader<W>(map, wordIndexer, threshold).parse(new KneserNeyFileWritingLmReaderCallback<W>(arpaOutputFile, wordIndexer));
+	}
+
 	public static StupidBackoffLm<String> readGoogleLmBinary(final String file, final String sortedVocabFile) {
 		return readGoogleLmBinary(file, new StringWordIndexer(), sortedVocabFile);
 	}
@@ -331,11 +547,14 @@ public class LmReaders
 	/**
 	 * Reads a binary file representing an LM. These will need to be cast down
 	 * to either {@link ContextEncodedNgramLanguageModel} or
-	 * {@link ArrayEncodedNgramLanguageModel} to be useful.
+	 * {@link ArrayEncodedNgramLanguageModel} to be useful. Binaries written by
+	 * {@link #writeChunkedLmBinary(NgramLanguageModel, String, boolean)} are
+	 * detected and read in parallel.
 	 */
 	public static <W> NgramLanguageModel<W> readLmBinary(final String file) {
+		final File f = new File(file);
 		@SuppressWarnings("unchecked")
-		final NgramLanguageModel<W> lm = (NgramLanguageModel<W>) IOUtils.readObjFileHard(file);
+		final NgramLanguageModel<W> lm = (NgramLanguageModel<W>) (ChunkedBinary.isChunkedBinary(f) ? ChunkedBinary.read(f) : IOUtils.readObjFileHard(f));
 		return lm;
 	}
 
@@ -351,6 +570,68 @@ public class LmReaders
 		IOUtils.writeObjFileHard(file, lm);
 	}
 
+	/**
+	 * Writes a binary file representing the LM in the {@link ChunkedBinary}
+	 * format, whose large arrays are written (and later read) in parallel as
+	 * independent checksummed blocks. These binaries can be read with
+	 * {@link #readLmBinary(String)}.
+	 * 
+	 * @param <W>
+	 * @param lm
+	 * @param file
+	 * @param compress
+	 *            Whether to deflate the blocks.
+	 */
+	public static <W> void writeChunkedLmBinary(final NgramLanguageModel<W> lm, final String file, final boolean compress) {
+		// each order's storage is a section, so that orders can be loaded separately (see LazyArrayEncodedLm)
+		final Map<Object, Integer> sectionOfArray = new IdentityHashMap<Object, Integer>();
+		final NgramMap<?> map = getNgramMap(lm);
+		if (map instanceof PerOrderStorage) {
+			for (int ngramOrder = 0; ngramOrder < map.getMaxNgramOrder(); ++ngramOrder) {
+				final List<Object> storage = new ArrayList<Object>();
+				((PerOrderStorage) map).addStorageForOrder(ngramOrder, storage);
+				ChunkedBinary.assignSection(storage, ngramOrder, sectionOfArray);
+			}
+		}
+		ChunkedBinary.write(lm, new File(file), compress, Runtime.getRuntime().availableProcessors(), sectionOfArray);
+	}
+
+	/**
+	 * @param lm
+	 * @return The n-gram map of an LM, or null if it is not one of the LM
+	 *         classes backed by an {@link NgramMap}.
+	 */
+	static NgramMap<?> getNgramMap(final NgramLanguageModel<?> lm) {
+		if (lm instanceof ArrayEncodedProbBackoffLm) return ((ArrayEncodedProbBackoffLm<?>) lm).getNgramMap();
+		if (lm instanceof ContextEncodedProbBackoffLm) return ((ContextEncodedProbBackoffLm<?>) lm).getNgramMap();
+		if (lm instanceof StupidBackoffLm) return ((StupidBackoffLm<?>) lm).getNgramMap();
+		return null;
+	}
+
+	/**
+	 * Reads a vocabulary for use with the vocabulary-filtered readers. The
+	 * file should have one word per line; anything after the first whitespace
+	 * on a line (e.g. a count) is ignored, so the <code>vocab_cs.gz</code>
+	 * file from the Google n-gram corpus can be used directly.
+	 * 
+	 * @param vocabFile
+	 * @return
+	 */
+	public static Set<String> readVocabulary(final String vocabFile) {
+		final Set<String> vocab = new HashSet<String>();
+		try {
+			for (final String line : Iterators.able(IOUtils.lineIterator(vocabFile))) {
+				final String trimmed = line.trim();
+				if (trimmed.length() == 0) continue;
+				final String[] parts = trimmed.split("\\s+");
+				vocab.add(parts[0]);
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		return vocab;
+	}
+
 	/**
 	 * @return
 	 */
@@ -406,6 +687,7 @@ public class LmReaders
 		final boolean contextEncoded = false;
 		final NgramMap<ProbBackoffPair> map = buildMapArpa(opts, lmReader, wordIndexer, valueAddingCallback, numNgramsForEachWord, contextEncoded, reversed,
 			compress);
+		if (!compress) fillInFakeNgramProbs((HashNgramMap<ProbBackoffPair>) map, valueAddingCallback.getMissingNgrams());
 		return new ArrayEncodedProbBackoffLm<W>(map.getMaxNgramOrder(), wordIndexer, map, opts);
 	}
 
@@ -416,7 +698,7 @@ public class LmReaders
 		final CountValueContainer values = new CountValueContainer(valueAddingCallback.getValueCounter(), opts.valueRadix, contextEncoded,
 			new long[numNgramsForEachWord.length]);
 		final NgramMap<LongRef> map = buildMapCommon(opts, wordIndexer, numNgramsForEachWord, valueAddingCallback.getNumNgramsForEachOrder(), reversed,
-			lmReader, values, compress);
+			lmReader, values, compress, valueAddingCallback.getMissingNgrams());
 		return new StupidBackoffLm<W>(numNgramsForEachWord.length, wordIndexer, map, opts);
 	}
 
@@ -439,13 +721,52 @@ public class LmReaders
 		final ValueContainer<ProbBackoffPair> values = compress ? new CompressibleProbBackoffValueContainer(valueAddingCallback.getValueCounter(),
 			opts.valueRadix, contextEncoded, valueAddingCallback.getNumNgramsForEachOrder())
 			: opts.storeRankedProbBackoffs ? new UncompressedProbBackoffValueContainer(valueAddingCallback.getValueCounter(), opts.valueRadix, contextEncoded,
-				valueAddingCallback.getNumNgramsForEachOrder()) : new UnrankedUncompressedProbBackoffValueContainer(contextEncoded, valueAddingCallback.getNumNgramsForEachOrder());
+				valueAddingCallback.getNumNgramsForEachOrder(), contextEncoded ? 0 : valueAddingCallback.getMissingNgrams().size()) : new UnrankedUncompressedProbBackoffValueContainer(contextEncoded, valueAddingCallback.getNumNgramsForEachOrder());
 		if (contextEncoded && compress) throw new RuntimeException("Compression is not supported by context-encoded LMs");
 		final NgramMap<ProbBackoffPair> map = buildMapCommon(opts, wordIndexer, numNgramsForEachWord, valueAddingCallback.getNumNgramsForEachOrder(), reversed,
-			lmReader, values, compress);
+			lmReader, values, compress, valueAddingCallback.getMissingNgrams());
 		return map;
 	}
 
+	/**
+	 * Replaces the NaN probability of each "fake" n-gram (one which was not in
+	 * the LM file, but was added because a longer n-gram needs it) with its
+	 * backed-off probability, so that
+	 * {@link ArrayEncodedProbBackoffLm#getLogProb(int[], int, int)} can use the
+	 * longest matching n-gram without falling back to shorter ones. Orders are
+	 * filled in increasing order, so the suffix of a fake n-gram already has a
+	 * probability even if it was fake itself. The fake n-grams are looked up
+	 * by key, since a map storing fingerprints cannot recover the n-gram at
+	 * an offset.
+	 * 
+	 * @param map
+	 * @param missingNgrams
+	 *            all n-grams added to the map because they were missing
+	 */
+	private static void fillInFakeNgramProbs(final HashNgramMap<ProbBackoffPair> map, final List<int[]> missingNgrams) {
+		final ProbBackoffValueContainer values = (ProbBackoffValueContainer) map.getValues();
+		long numFilled = 0;
+		long numNotFilled = 0;
+		for (int ngramOrder = 1; ngramOrder < map.getMaxNgramOrder(); ++ngramOrder) {
+			for (final int[] ngram : missingNgrams) {
+				if (ngram.length != ngramOrder + 1) continue;
+				final long offset = map.getOffsetForNgramInModel(ngram, 0, ngram.length);
+				if (offset < 0 || !Float.isNaN(values.getProb(ngramOrder, offset))) continue;
+				final long suffixOffset = map.getOffsetForNgramInModel(ngram, 1, ngram.length);
+				final long contextOffset = map.getOffsetForNgramInModel(ngram, 0, ngram.length - 1);
+				final float suffixProb = suffixOffset < 0 ? Float.NaN : values.getProb(ngramOrder - 1, suffixOffset);
+				final float contextBackoff = contextOffset < 0 ? Float.NaN : values.getBackoff(ngramOrder - 1, contextOffset);
+				final float prob = suffixProb + (Float.isNaN(contextBackoff) ? 0.0f : contextBackoff);
+				if (!Float.isNaN(prob) && values.setProb(ngramOrder, offset, prob))
+					numFilled++;
+				else
+					numNotFilled++;
+			}
+		}
+		if (numFilled > 0) Logger.logss("Filled in backed-off probabilities for " + numFilled + " n-grams missing from the LM file");
+		if (numNotFilled > 0) Logger.warn(numNotFilled + " n-grams missing from the LM file have no probability, lookups will be slower");
+	}
+
 	/**
 	 * @param <W>
 	 * @param opts
@@ -455,18 +776,27 @@ public class LmReaders
 	 * @param contextEncoded
 	 * @param reversed
 	 * @param lmReader
+	 * @param missingNgrams
+	 *            N-grams found to be missing during the first pass. These are
+	 *            already included in the n-gram counts. Missing n-grams found
+	 *            while building the map are added to this list.
 	 * @return
 	 */
 	private static <W, V extends Comparable<V>> NgramMap<V> buildMapCommon(final ConfigOptions opts, final WordIndexer<W> wordIndexer,
 		final LongArray[] numNgramsForEachWord, final long[] numNgramsForEachOrder, final boolean reversed,
-		final LmReader<V, ? super NgramMapAddingCallback<V>> lmReader, final ValueContainer<V> values, final boolean compress) {
+		final LmReader<V, ? super NgramMapAddingCallback<V>> lmReader, final ValueContainer<V> values, final boolean compress,
+		final List<int[]> missingNgrams) {
 		Logger.startTrack("Adding n-grams");
+		final LoadEvents.Phase phase = LoadEvents.start("Adding n-grams");
 		NgramMap<V> map = createNgramMap(opts, numNgramsForEachWord, numNgramsForEachOrder, reversed, values, compress);
 
-		final List<int[]> failures = tryBuildingNgramMap(opts, wordIndexer, lmReader, map);
+		final List<int[]> failures = tryBuildingNgramMap(opts, wordIndexer, lmReader, map, missingNgrams);
+		endBuildPhase(phase, map, numNgramsForEachOrder);
 		Logger.endTrack();
 		if (!failures.isEmpty()) {
+			// should only happen if the first pass did not look for missing n-grams, or a hash collision hid one
 			Logger.startTrack(failures.size() + " missing suffixes or prefixes were found, doing another pass to add n-grams");
+			final LoadEvents.Phase reparsePhase = LoadEvents.start("Re-adding n-grams after missing suffixes or prefixes");
 			for (final int[] failure : failures) {
 				final int ngramOrder = failure.length - 1;
 				final int headWord = failure[reversed ? 0 : ngramOrder];
@@ -481,12 +811,21 @@ public class LmReaders
 			final ValueContainer<V> newValues = values.createFreshValues(numNgramsForEachOrder);
 			map.clearStorage();
 			map = createNgramMap(opts, numNgramsForEachWord, numNgramsForEachOrder, reversed, newValues, compress);
-			lmReader.parse(new NgramMapAddingCallback<V>(map, failures));
+			missingNgrams.addAll(failures);
+			lmReader.parse(new NgramMapAddingCallback<V>(map, missingNgrams));
+			endBuildPhase(reparsePhase, map, numNgramsForEachOrder);
 			Logger.endTrack();
 		}
 		return map;
 	}
 
+	private static <V> void endBuildPhase(final LoadEvents.Phase phase, final NgramMap<V> map, final long[] numNgramsForEachOrder) {
+		for (final long numNgrams : numNgramsForEachOrder)
+			phase.addNgrams(numNgrams);
+		phase.addBytes(map.getMemoryUsage().getTotalBytes());
+		LoadEvents.end(phase);
+	}
+
 	/**
 	 * @param <V>
 	 * @param <W>
@@ -494,11 +833,13 @@ public class LmReaders
 	 * @param wordIndexer
 	 * @param lmReader
 	 * @param map
+	 * @param missingNgrams
 	 * @return
 	 */
 	private static <V, W> List<int[]> tryBuildingNgramMap(final ConfigOptions opts, final WordIndexer<W> wordIndexer,
-		final LmReader<V, ? super NgramMapAddingCallback<V>> lmReader, NgramMap<V> map) {
-		final NgramMapAddingCallback<V> ngramMapAddingCallback = new NgramMapAddingCallback<V>(map, null);
+		final LmReader<V, ? super NgramMapAddingCallback<V>> lmReader, NgramMap<V> map, final List<int[]> missingNgrams) {
+		final boolean canFail = true;
+		final NgramMapAddingCallback<V> ngramMapAddingCallback = new NgramMapAddingCallback<V>(map, missingNgrams, canFail);
 		lmReader.parse(ngramMapAddingCallback);
 		if (opts.lockIndexer) wordIndexer.trimAndLock();
 		final List<int[]> failures = ngramMapAddingCallback.getFailures();
@@ -522,16 +863,20 @@ public class LmReaders
 	}
 
 	private static <W> FirstPassCallback<ProbBackoffPair> firstPassArpa(final LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>> arpaLmReader, //final int lmOrder, final WordIndexer<W> wordIndexer,
-		final boolean reverse) {
+		final boolean reverse, final ConfigOptions opts) {
 		//		final ArpaLmReader<W> arpaLmReader = new ArpaLmReader<W>(lmFile, wordIndexer, lmOrder);
-		final FirstPassCallback<ProbBackoffPair> valueAddingCallback = firstPassCommon(arpaLmReader, reverse);
+		// pruned ARPA files may be missing prefixes/suffixes, which can be found now rather than by rebuilding the map later
+		final FirstPassCallback<ProbBackoffPair> valueAddingCallback = firstPassCommon(arpaLmReader, reverse, opts.detectMissingNgrams);
 		return valueAddingCallback;
 	}
 
-	private static <W> FirstPassCallback<LongRef> firstPassGoogle(final String rootDir, final WordIndexer<W> wordIndexer, final ConfigOptions opts) {
-		final GoogleLmReader<W> arpaLmReader = new GoogleLmReader<W>(rootDir, wordIndexer, opts);
+	private static <W> FirstPassCallback<LongRef> firstPassGoogle(final String rootDir, final WordIndexer<W> wordIndexer, final ConfigOptions opts,
+		final Set<String> vocab) {
+		final GoogleLmReader<W> arpaLmReader = new GoogleLmReader<W>(rootDir, wordIndexer, opts, vocab);
 		final boolean reverse = true;
-		final FirstPassCallback<LongRef> valueAddingCallback = firstPassCommon(arpaLmReader, reverse);
+		// count cutoffs in Google n-gram collections keep prefixes and suffixes of every n-gram
+		final boolean detectMissingNgrams = false;
+		final FirstPassCallback<LongRef> valueAddingCallback = firstPassCommon(arpaLmReader, reverse, detectMissingNgrams);
 		return valueAddingCallback;
 	}
 
@@ -544,10 +889,14 @@ public class LmReaders
 	 * @return
 	 */
 	private static <V extends LongRepresentable<V>> FirstPassCallback<V> firstPassCommon(final LmReader<V, ? super FirstPassCallback<V>> arpaLmReader,
-		final boolean reverse) {
+		final boolean reverse, final boolean detectMissingNgrams) {
 		Logger.startTrack("Counting values");
-		final FirstPassCallback<V> valueAddingCallback = new FirstPassCallback<V>(reverse);
+		final LoadEvents.Phase phase = LoadEvents.start("Counting values");
+		final FirstPassCallback<V> valueAddingCallback = new FirstPassCallback<V>(reverse, detectMissingNgrams);
 		arpaLmReader.parse(valueAddingCallback);
+		for (final long numNgrams : valueAddingCallback.getNumNgramsForEachOrder())
+			phase.addNgrams(numNgrams);
+		LoadEvents.end(phase);
 		Logger.endTrack();
 		return valueAddingCallback;
 	}
@@ -0,0 +1,296 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+
+import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel.LmContextInfo;
+
+/**
+ * Client for {@link LmScoringServer}. Methods which take several queries send
+ * all of them before reading any response, so the server can batch them. A
+ * client is a single connection and its methods are synchronized; use one
+ * client per thread to keep several requests in flight.
+ * <p>
+ * Errors reported by the server are thrown as {@link RuntimeException}s.
+ *
+ * @author adampauls
+ *
+ */
+public class LmScoringClient implements Closeable
+{
+
+	private final Socket socket;
+
+	private final DataInputStream in;
+
+	private final DataOutputStream out;
+
+	public LmScoringClient(final int port) throws IOException {
+		this("127.0.0.1", port);
+	}
+
+	public LmScoringClient(final String host, final int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * See {@link edu.berkeley.nlp.lm.NgramLanguageModel#scoreSentence(List)}
+	 *
+	 * @param sentence
+	 * @return
+	 */
+	public synchronized float scoreSentence(final List<String> sentence) {
+		try {
+			out.writeByte(LmScoringProtocol.SCORE_SENTENCE);
+			LmScoringProtocol.writeWords(out, sentence);
+			out.flush();
+			readStatus();
+			return in.readFloat();
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Scores several sentences with one round trip.
+	 *
+	 * @param sentences
+	 * @return
+	 */
+	public synchronized float[] scoreSentences(final List<List<String>> sentences) {
+		try {
+			for (final List<String> sentence : sentences) {
+				out.writeByte(LmScoringProtocol.SCORE_SENTENCE);
+				LmScoringProtocol.writeWords(out, sentence);
+			}
+			out.flush();
+			final float[] ret = new float[sentences.size()];
+			String error = null;
+			for (int i = 0; i < ret.length; ++i) {
+				// read every response even after an error so the connection stays usable
+				final String message = readStatusOrError();
+				if (message == null)
+					ret[i] = in.readFloat();
+				else if (error == null) error = message;
+			}
+			if (error != null) throw new RuntimeException(error);
+			return ret;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * See {@link edu.berkeley.nlp.lm.NgramLanguageModel#getLogProb(List)}
+	 *
+	 * @param ngram
+	 * @return
+	 */
+	public synchronized float getLogProb(final List<String> ngram) {
+		try {
+			out.writeByte(LmScoringProtocol.SCORE_NGRAM);
+			LmScoringProtocol.writeWords(out, ngram);
+			out.flush();
+			readStatus();
+			return in.readFloat();
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Looks up the indices of words in the server's {@link edu.berkeley.nlp.lm.WordIndexer}
+	 * , for use with
+	 * {@link #getLogProb(long, int, int, LmContextInfo)}.
+	 *
+	 * @param words
+	 * @return
+	 */
+	public synchronized int[] getWordIndices(final List<String> words) {
+		try {
+			out.writeByte(LmScoringProtocol.GET_WORD_INDICES);
+			LmScoringProtocol.writeWords(out, words);
+			out.flush();
+			readStatus();
+			final int[] ret = new int[words.size()];
+			for (int i = 0; i < ret.length; ++i)
+				ret[i] = in.readInt();
+			return ret;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * See
+	 * {@link edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel#getLogProb(long, int, int, LmContextInfo)}
+	 * . The server must serve a context-encoded LM.
+	 *
+	 * @param contextOffset
+	 * @param contextOrder
+	 * @param word
+	 * @param outputContext
+	 *            May be null.
+	 * @return
+	 */
+	public synchronized float getLogProb(final long contextOffset, final int contextOrder, final int word, final LmContextInfo outputContext) {
+		try {
+			writeScoreInContext(contextOffset, contextOrder, word);
+			out.flush();
+			readStatus();
+			return readScoreInContext(outputContext);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Scores several words following the same context with one round trip.
+	 * See
+	 * {@link edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm#getLogProbs(long, int, int[], float[], LmContextInfo[])}
+	 * .
+	 *
+	 * @param contextOffset
+	 * @param contextOrder
+	 * @param words
+	 * @param logProbs
+	 * @param outputContexts
+	 *            May be null.
+	 */
+	public synchronized void getLogProbs(final long contextOffset, final int contextOrder, final int[] words, final float[] logProbs,
+		final LmContextInfo[] outputContexts) {
+		try {
+			for (final int word : words)
+				writeScoreInContext(contextOffset, contextOrder, word);
+			out.flush();
+			String error = null;
+			for (int i = 0; i < words.length; ++i) {
+				final String message = readStatusOrError();
+				if (message == null)
+					logProbs[i] = readScoreInContext(outputContexts == null ? null : outputContexts[i]);
+				else if (error == null) error = message;
+			}
+			if (error != null) throw new RuntimeException(error);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * See
+	 * {@link edu.berkeley.nlp.lm.StupidBackoffLm#getSuffixCounts(int[], int, int, long[])}
+	 * . The server must serve a stupid backoff LM.
+	 * 
+	 * @param ngram
+	 * @param startPos
+	 * @param endPos
+	 * @param counts
+	 * @return
+	 */
+	public synchronized int getSuffixCounts(final int[] ngram, final int startPos, final int endPos, final long[] counts) {
+		try {
+			writeSuffixCounts(ngram, startPos, endPos);
+			out.flush();
+			return readSuffixCounts(counts);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Gets the parameters of a served stupid backoff LM, see
+	 * {@link LmScoringProtocol#STUPID_BACKOFF_INFO}.
+	 * 
+	 * @return The LM order, the unigram sum, alpha and the OOV log
+	 *         probability (in that order).
+	 */
+	synchronized Number[] getStupidBackoffInfo() {
+		try {
+			out.writeByte(LmScoringProtocol.STUPID_BACKOFF_INFO);
+			out.flush();
+			readStatus();
+			return new Number[] { in.readInt(), in.readLong(), in.readFloat(), in.readFloat() };
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Sends a {@link LmScoringProtocol#SUFFIX_COUNTS} request without
+	 * flushing or waiting for the response, so that requests to several
+	 * servers can be in flight at once. The caller must have exclusive use of
+	 * this client until it has read the response with
+	 * {@link #readSuffixCounts(long[])} (or with {@link #readStatusOrError()}
+	 * followed by {@link #readCounts(long[])} if the request succeeded).
+	 */
+	void writeSuffixCounts(final int[] ngram, final int startPos, final int endPos) throws IOException {
+		out.writeByte(LmScoringProtocol.SUFFIX_COUNTS);
+		out.writeInt(endPos - startPos);
+		for (int i = startPos; i < endPos; ++i)
+			out.writeInt(ngram[i]);
+	}
+
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	int readSuffixCounts(final long[] counts) throws IOException {
+		readStatus();
+		return readCounts(counts);
+	}
+
+	int readCounts(final long[] counts) throws IOException {
+		final int n = in.readInt();
+		for (int i = 0; i < n; ++i)
+			counts[i] = in.readLong();
+		return n;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		socket.close();
+	}
+
+	private void writeScoreInContext(final long contextOffset, final int contextOrder, final int word) throws IOException {
+		out.writeByte(LmScoringProtocol.SCORE_IN_CONTEXT);
+		out.writeLong(contextOffset);
+		out.writeInt(contextOrder);
+		out.writeInt(word);
+	}
+
+	private float readScoreInContext(final LmContextInfo outputContext) throws IOException {
+		final float logProb = in.readFloat();
+		final long offset = in.readLong();
+		final int order = in.readInt();
+		if (outputContext != null) {
+			outputContext.offset = offset;
+			outputContext.order = order;
+		}
+		return logProb;
+	}
+
+	private void readStatus() throws IOException {
+		final String error = readStatusOrError();
+		if (error != null) throw new RuntimeException(error);
+	}
+
+	/**
+	 * @return The error message, or null if the request succeeded.
+	 */
+	String readStatusOrError() throws IOException {
+		final byte status = in.readByte();
+		if (status == LmScoringProtocol.STATUS_OK) return null;
+		if (status == LmScoringProtocol.STATUS_ERROR) return in.readUTF();
+		throw new IOException("Unknown status " + status);
+	}
+
+}
@@ -0,0 +1,80 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format shared by {@link LmScoringServer} and {@link LmScoringClient}.
+ * All numbers are big-endian and words are modified UTF-8 (as written by
+ * {@link DataOutputStream#writeUTF(String)}).
+ * <p>
+ * Each request is an opcode byte followed by its arguments:
+ * <ul>
+ * <li>{@link #SCORE_SENTENCE}: <code>int n</code>, <code>n</code> words
+ * <li>{@link #SCORE_NGRAM}: <code>int n</code>, <code>n</code> words
+ * <li>{@link #GET_WORD_INDICES}: <code>int n</code>, <code>n</code> words
+ * <li>{@link #SCORE_IN_CONTEXT}: <code>long contextOffset</code>,
+ * <code>int contextOrder</code>, <code>int word</code>
+ * <li>{@link #SUFFIX_COUNTS}: <code>int n</code>, <code>n</code>
+ * <code>int</code> word indices
+ * <li>{@link #STUPID_BACKOFF_INFO}: nothing
+ * </ul>
+ * Each response is a status byte. After {@link #STATUS_ERROR} comes a
+ * message; after {@link #STATUS_OK} comes a <code>float</code> log
+ * probability (for scoring requests), <code>n</code> <code>int</code>s (for
+ * {@link #GET_WORD_INDICES}), or a <code>float</code> log probability, a
+ * <code>long</code> output context offset and an <code>int</code> output
+ * context order (for {@link #SCORE_IN_CONTEXT}), an <code>int m</code>
+ * followed by <code>m</code> <code>long</code> counts (for
+ * {@link #SUFFIX_COUNTS}, see
+ * {@link edu.berkeley.nlp.lm.StupidBackoffLm#getSuffixCounts(int[], int, int, long[])}
+ * ), or the <code>int</code> LM order, <code>long</code> unigram sum,
+ * <code>float</code> alpha and <code>float</code> OOV log probability (for
+ * {@link #STUPID_BACKOFF_INFO}). The last two are only served for
+ * {@link edu.berkeley.nlp.lm.StupidBackoffLm}s. Responses on a connection are
+ * sent in the order of its requests, so clients may pipeline requests.
+ *
+ * @author adampauls
+ *
+ */
+final class LmScoringProtocol
+{
+
+	static final byte SCORE_SENTENCE = 1;
+
+	static final byte SCORE_NGRAM = 2;
+
+	static final byte GET_WORD_INDICES = 3;
+
+	static final byte SCORE_IN_CONTEXT = 4;
+
+	static final byte SUFFIX_COUNTS = 5;
+
+	static final byte STUPID_BACKOFF_INFO = 6;
+
+	static final byte STATUS_OK = 0;
+
+	static final byte STATUS_ERROR = 1;
+
+	private LmScoringProtocol() {
+	}
+
+	static void writeWords(final DataOutputStream out, final List<String> words) throws IOException {
+		out.writeInt(words.size());
+		for (final String word : words)
+			out.writeUTF(word);
+	}
+
+	static List<String> readWords(final DataInputStream in) throws IOException {
+		final int n = in.readInt();
+		if (n < 0) throw new IOException("Negative number of words " + n);
+		final List<String> words = new ArrayList<String>(n);
+		for (int i = 0; i < n; ++i)
+			words.add(in.readUTF());
+		return words;
+	}
+
+}
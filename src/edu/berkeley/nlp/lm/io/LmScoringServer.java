@@ -0,0 +1,566 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel.LmContextInfo;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.StupidBackoffLm;
+import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.cache.ArrayEncodedCachingLmWrapper;
+import edu.berkeley.nlp.lm.cache.ContextEncodedCachingLmWrapper;
+import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.VirtualThreads;
+
+/**
+ * Serves a single language model to other processes over a loopback socket,
+ * so that several processes on a machine can share one copy of the model. See
+ * {@link LmScoringProtocol} for the wire format and {@link LmScoringClient}
+ * for a client.
+ * <p>
+ * Each connection has a thread which parses its requests and queues them for
+ * one of a fixed number of scoring threads (connections are assigned to
+ * scoring threads round-robin, so responses stay in order). A scoring thread
+ * takes all requests queued for it (up to a maximum batch size) at once.
+ * Within a batch, context-encoded queries with the same context are scored
+ * with a single call to
+ * {@link ContextEncodedProbBackoffLm#getLogProbs(long, int, int[], float[], LmContextInfo[])}
+ * , and each connection's responses are flushed once, so throughput rises
+ * with the number of requests in flight. With <code>-virtual</code> (Java 21
+ * and later), each connection is instead read and scored by its own pair of
+ * virtual threads.
+ * <p>
+ * With <code>-cacheBits</code>, the LM is wrapped in a cache: one per scoring
+ * thread, or (with virtual threads) one per core shared by all threads.
+ * <p>
+ * With <code>-warmUpSeconds</code>, the server spends up to that long warming
+ * up the LM (see {@link LmWarmUp}) before it starts listening, replaying the
+ * sentences of the <code>-warmUp</code> file if one is given.
+ * <p>
+ * A server can also serve one shard of a stupid backoff LM (see
+ * {@link MakeShardedLmBinaries} and {@link ShardedStupidBackoffLm}).
+ * <p>
+ * Usage:
+ * <code>LmScoringServer [-g &lt;vocab_cs file&gt;] &lt;LM binary&gt; [-port p] [-threads n] [-batch n] [-virtual] [-cacheBits n] [-warmUp &lt;query file&gt;] [-warmUpSeconds n]</code>
+ *
+ * @author adampauls
+ *
+ */
+public class LmScoringServer
+{
+
+	public static final int DEFAULT_PORT = 6688;
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+	private static final class Request
+	{
+		final Connection connection;
+
+		final byte op;
+
+		List<String> words;
+
+		long contextOffset;
+
+		int contextOrder;
+
+		int word;
+
+		float logProb;
+
+		int[] indices;
+
+		long[] counts;
+
+		int numCounts;
+
+		final LmContextInfo outputContext = new LmContextInfo();
+
+		String error;
+
+		Request(final Connection connection, final byte op) {
+			this.connection = connection;
+			this.op = op;
+		}
+	}
+
+	private final class Connection implements Runnable
+	{
+		private final Socket socket;
+
+		private final DataOutputStream out;
+
+		private final BlockingQueue<Request> queue;
+
+		/**
+		 * The thread which scores this connection's requests, if it has its
+		 * own.
+		 */
+		private Thread scoringThread;
+
+		Connection(final Socket socket, final BlockingQueue<Request> queue) throws IOException {
+			this.socket = socket;
+			this.queue = queue;
+			socket.setTcpNoDelay(true);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		@Override
+		public void run() {
+			try {
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				while (true) {
+					final int op = in.read();
+					if (op < 0) break;
+					final Request request = new Request(this, (byte) op);
+					switch (request.op) {
+						case LmScoringProtocol.SCORE_SENTENCE:
+						case LmScoringProtocol.SCORE_NGRAM:
+						case LmScoringProtocol.GET_WORD_INDICES:
+							request.words = LmScoringProtocol.readWords(in);
+							break;
+						case LmScoringProtocol.SCORE_IN_CONTEXT:
+							request.contextOffset = in.readLong();
+							request.contextOrder = in.readInt();
+							request.word = in.readInt();
+							break;
+						case LmScoringProtocol.SUFFIX_COUNTS:
+							final int n = in.readInt();
+							if (n < 0) throw new IOException("Negative n-gram length " + n);
+							request.indices = new int[n];
+							for (int i = 0; i < n; ++i)
+								request.indices[i] = in.readInt();
+							break;
+						case LmScoringProtocol.STUPID_BACKOFF_INFO:
+							break;
+						default:
+							// we cannot find the start of the next request
+							throw new IOException("Unknown opcode " + op);
+					}
+					queue.add(request);
+				}
+			} catch (final EOFException e) {
+				// client went away in the middle of a request
+			} catch (final IOException e) {
+				if (!closed) Logger.warn("Closing connection: " + e);
+			} finally {
+				connections.remove(this);
+				closeQuietly(socket);
+				if (scoringThread != null) scoringThread.interrupt();
+			}
+		}
+	}
+
+	private final class Scorer implements Runnable
+	{
+		private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+		@Override
+		public void run() {
+			final List<Request> batch = new ArrayList<Request>();
+			while (!closed) {
+				try {
+					batch.add(queue.take());
+				} catch (final InterruptedException e) {
+					break;
+				}
+				queue.drainTo(batch, maxBatchSize - 1);
+				processBatch(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private final NgramLanguageModel<String> lm;
+
+	private final int maxBatchSize;
+
+	private final boolean virtualThreads;
+
+	private final Scorer[] scorers;
+
+	private final Thread[] scoringThreads;
+
+	private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+
+	private ServerSocket serverSocket;
+
+	private volatile boolean closed = false;
+
+	private int numConnections = 0;
+
+	public LmScoringServer(final NgramLanguageModel<String> lm, final int numThreads, final int maxBatchSize) {
+		this(lm, numThreads, maxBatchSize, false);
+	}
+
+	/**
+	 * 
+	 * @param lm
+	 * @param numThreads
+	 *            Number of scoring threads. Ignored with virtual threads.
+	 * @param maxBatchSize
+	 * @param virtualThreads
+	 *            If true, each connection is read by a virtual thread and
+	 *            scored by another (batching the requests in flight on that
+	 *            connection), instead of sharing a fixed pool of scoring
+	 *            threads. Any cache in front of the LM should then be shared
+	 *            rather than per-thread (see
+	 *            {@link ContextEncodedCachingLmWrapper#wrapWithCacheShared(ContextEncodedNgramLanguageModel, int, int)}
+	 *            ). Requires Java 21.
+	 */
+	public LmScoringServer(final NgramLanguageModel<String> lm, final int numThreads, final int maxBatchSize, final boolean virtualThreads) {
+		if (virtualThreads && !VirtualThreads.isAvailable()) throw new RuntimeException("Virtual threads require Java 21 or later");
+		this.lm = lm;
+		this.maxBatchSize = maxBatchSize;
+		this.virtualThreads = virtualThreads;
+		final int numScorers = virtualThreads ? 0 : numThreads;
+		scorers = new Scorer[numScorers];
+		scoringThreads = new Thread[numScorers];
+		for (int i = 0; i < numScorers; ++i) {
+			scorers[i] = new Scorer();
+			scoringThreads[i] = newThread("LmScoringServer-" + i, scorers[i]);
+		}
+	}
+
+	/**
+	 * Binds to a port on the loopback interface and starts accepting
+	 * connections in a background thread.
+	 *
+	 * @param port
+	 *            The port to listen on, or 0 for any free port.
+	 * @return The port the server is listening on.
+	 * @throws IOException
+	 */
+	public int start(final int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		for (final Thread thread : scoringThreads)
+			thread.start();
+		final Thread acceptThread = new Thread("LmScoringServer-accept")
+		{
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		return serverSocket.getLocalPort();
+	}
+
+	private void acceptConnections() {
+		while (!closed) {
+			try {
+				final Socket socket = serverSocket.accept();
+				final int index = numConnections++;
+				final Connection connection;
+				if (virtualThreads) {
+					final Scorer scorer = new Scorer();
+					connection = new Connection(socket, scorer.queue);
+					connection.scoringThread = newThread("LmScoringServer-scorer-" + index, scorer);
+					connection.scoringThread.start();
+				} else {
+					connection = new Connection(socket, scorers[index % scorers.length].queue);
+				}
+				connections.add(connection);
+				newThread("LmScoringServer-connection-" + index, connection).start();
+			} catch (final SocketException e) {
+				// closed
+				break;
+			} catch (final IOException e) {
+				if (!closed) Logger.warn("Failed to accept connection: " + e);
+			}
+		}
+	}
+
+	private Thread newThread(final String name, final Runnable runnable) {
+		if (virtualThreads) return VirtualThreads.newThread(name, runnable);
+		final Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Stops accepting connections and closes all open ones.
+	 */
+	public void close() {
+		closed = true;
+		if (serverSocket != null) closeQuietly(serverSocket);
+		for (final Connection connection : connections)
+			closeQuietly(connection.socket);
+		for (final Thread thread : scoringThreads)
+			thread.interrupt();
+	}
+
+	private void processBatch(final List<Request> batch) {
+		final List<Request> contextRequests = new ArrayList<Request>();
+		for (final Request request : batch) {
+			try {
+				switch (request.op) {
+					case LmScoringProtocol.SCORE_SENTENCE:
+						request.logProb = lm.scoreSentence(request.words);
+						break;
+					case LmScoringProtocol.SCORE_NGRAM:
+						request.logProb = lm.getLogProb(request.words);
+						break;
+					case LmScoringProtocol.GET_WORD_INDICES:
+						final WordIndexer<String> wordIndexer = lm.getWordIndexer();
+						request.indices = new int[request.words.size()];
+						for (int i = 0; i < request.indices.length; ++i)
+							request.indices[i] = wordIndexer.getIndexPossiblyUnk(request.words.get(i));
+						break;
+					case LmScoringProtocol.SCORE_IN_CONTEXT:
+						if (!(lm instanceof ContextEncodedNgramLanguageModel)) throw new RuntimeException("The served LM is not context-encoded");
+						contextRequests.add(request);
+						break;
+					case LmScoringProtocol.SUFFIX_COUNTS:
+						request.counts = new long[request.indices.length];
+						request.numCounts = getStupidBackoffLm().getSuffixCounts(request.indices, 0, request.indices.length, request.counts);
+						break;
+					case LmScoringProtocol.STUPID_BACKOFF_INFO:
+						getStupidBackoffLm();
+						break;
+					default:
+						throw new RuntimeException("Unknown opcode " + request.op);
+				}
+			} catch (final RuntimeException e) {
+				request.error = String.valueOf(e.getMessage());
+			}
+		}
+		if (!contextRequests.isEmpty()) scoreInContext(contextRequests);
+		final Map<Connection, Boolean> toFlush = new IdentityHashMap<Connection, Boolean>();
+		for (final Request request : batch) {
+			try {
+				writeResponse(request);
+				toFlush.put(request.connection, Boolean.TRUE);
+			} catch (final IOException e) {
+				closeQuietly(request.connection.socket);
+			}
+		}
+		for (final Connection connection : toFlush.keySet()) {
+			try {
+				connection.out.flush();
+			} catch (final IOException e) {
+				closeQuietly(connection.socket);
+			}
+		}
+	}
+
+	/**
+	 * Groups requests by context, and scores each group with one call if the
+	 * LM supports it.
+	 */
+	private void scoreInContext(final List<Request> requests) {
+		final ContextEncodedNgramLanguageModel<String> contextLm = (ContextEncodedNgramLanguageModel<String>) lm;
+		if (!(lm instanceof ContextEncodedProbBackoffLm)) {
+			for (final Request request : requests)
+				request.logProb = contextLm.getLogProb(request.contextOffset, request.contextOrder, request.word, request.outputContext);
+			return;
+		}
+		final ContextEncodedProbBackoffLm<String> probBackoffLm = (ContextEncodedProbBackoffLm<String>) lm;
+		Collections.sort(requests, new Comparator<Request>()
+		{
+			@Override
+			public int compare(final Request o1, final Request o2) {
+				if (o1.contextOrder != o2.contextOrder) return o1.contextOrder < o2.contextOrder ? -1 : 1;
+				return o1.contextOffset < o2.contextOffset ? -1 : (o1.contextOffset == o2.contextOffset ? 0 : 1);
+			}
+		});
+		int start = 0;
+		while (start < requests.size()) {
+			final Request first = requests.get(start);
+			int end = start + 1;
+			while (end < requests.size() && requests.get(end).contextOrder == first.contextOrder && requests.get(end).contextOffset == first.contextOffset)
+				end++;
+			final int n = end - start;
+			final int[] words = new int[n];
+			final float[] logProbs = new float[n];
+			final LmContextInfo[] outputContexts = new LmContextInfo[n];
+			for (int i = 0; i < n; ++i) {
+				words[i] = requests.get(start + i).word;
+				outputContexts[i] = requests.get(start + i).outputContext;
+			}
+			try {
+				probBackoffLm.getLogProbs(first.contextOffset, first.contextOrder, words, logProbs, outputContexts);
+				for (int i = 0; i < n; ++i)
+					requests.get(start + i).logProb = logProbs[i];
+			} catch (final RuntimeException e) {
+				// most likely an invalid context from a confused client
+				for (int i = start; i < end; ++i)
+					requests.get(i).error = String.valueOf(e);
+			}
+			start = end;
+		}
+	}
+
+	private StupidBackoffLm<String> getStupidBackoffLm() {
+		if (!(lm instanceof StupidBackoffLm)) throw new RuntimeException("The served LM is not a stupid backoff LM");
+		return (StupidBackoffLm<String>) lm;
+	}
+
+	private void writeResponse(final Request request) throws IOException {
+		final DataOutputStream out = request.connection.out;
+		if (request.error != null) {
+			out.writeByte(LmScoringProtocol.STATUS_ERROR);
+			out.writeUTF(request.error);
+			return;
+		}
+		out.writeByte(LmScoringProtocol.STATUS_OK);
+		switch (request.op) {
+			case LmScoringProtocol.SCORE_SENTENCE:
+			case LmScoringProtocol.SCORE_NGRAM:
+				out.writeFloat(request.logProb);
+				break;
+			case LmScoringProtocol.GET_WORD_INDICES:
+				for (final int index : request.indices)
+					out.writeInt(index);
+				break;
+			case LmScoringProtocol.SCORE_IN_CONTEXT:
+				out.writeFloat(request.logProb);
+				out.writeLong(request.outputContext.offset);
+				out.writeInt(request.outputContext.order);
+				break;
+			case LmScoringProtocol.SUFFIX_COUNTS:
+				out.writeInt(request.numCounts);
+				for (int i = 0; i < request.numCounts; ++i)
+					out.writeLong(request.counts[i]);
+				break;
+			case LmScoringProtocol.STUPID_BACKOFF_INFO:
+				final StupidBackoffLm<String> stupidBackoffLm = getStupidBackoffLm();
+				out.writeInt(stupidBackoffLm.getLmOrder());
+				out.writeLong(stupidBackoffLm.getUnigramSum());
+				out.writeFloat(stupidBackoffLm.getAlpha());
+				out.writeFloat(stupidBackoffLm.getOovWordLogProb());
+				break;
+		}
+	}
+
+	private static void closeQuietly(final Socket socket) {
+		try {
+			socket.close();
+		} catch (final IOException e) {
+			// nothing to do
+		}
+	}
+
+	private static void closeQuietly(final ServerSocket socket) {
+		try {
+			socket.close();
+		} catch (final IOException e) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Wraps an LM with a cache which is safe for the server's threads. Note
+	 * that context-encoded queries to a wrapped LM are not grouped by context.
+	 * 
+	 * @param lm
+	 * @param cacheBits
+	 * @param virtualThreads
+	 * @return
+	 */
+	static NgramLanguageModel<String> wrapWithCache(final NgramLanguageModel<String> lm, final int cacheBits, final boolean virtualThreads) {
+		final int numSharedCaches = Runtime.getRuntime().availableProcessors();
+		if (lm instanceof ContextEncodedNgramLanguageModel) {
+			final ContextEncodedNgramLanguageModel<String> contextLm = (ContextEncodedNgramLanguageModel<String>) lm;
+			return virtualThreads ? ContextEncodedCachingLmWrapper.wrapWithCacheShared(contextLm, cacheBits, numSharedCaches) : ContextEncodedCachingLmWrapper
+				.wrapWithCacheThreadSafe(contextLm, cacheBits);
+		}
+		if (lm instanceof ArrayEncodedNgramLanguageModel) {
+			final ArrayEncodedNgramLanguageModel<String> arrayLm = (ArrayEncodedNgramLanguageModel<String>) lm;
+			return virtualThreads ? ArrayEncodedCachingLmWrapper.wrapWithCacheShared(arrayLm, cacheBits, numSharedCaches) : ArrayEncodedCachingLmWrapper
+				.wrapWithCacheThreadSafe(arrayLm, cacheBits);
+		}
+		Logger.warn("Not caching LM of type " + lm.getClass().getSimpleName());
+		return lm;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: [-g <vocab_cs file>] <Berkeley LM binary file> [-port p (default " + DEFAULT_PORT
+			+ ")] [-threads n (default 1)] [-batch n (default " + DEFAULT_MAX_BATCH_SIZE + ")] [-virtual] [-cacheBits n (default no cache)]"
+			+ " [-warmUp <query file>] [-warmUpSeconds n (default no warm-up)]");
+		System.exit(1);
+	}
+
+	public static void main(final String[] argv) throws IOException {
+		int i = 0;
+		if (i >= argv.length) usage();
+		String vocabFile = null;
+		if (argv[i].equals("-g")) {
+			if (i + 1 >= argv.length) usage();
+			vocabFile = argv[i + 1];
+			i += 2;
+		}
+		if (i >= argv.length) usage();
+		final String binaryFile = argv[i++];
+		int port = DEFAULT_PORT;
+		int numThreads = 1;
+		int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+		boolean virtualThreads = false;
+		int cacheBits = 0;
+		String warmUpFile = null;
+		long warmUpSeconds = 0;
+		for (; i < argv.length; i += 2) {
+			if (argv[i].equals("-virtual")) {
+				virtualThreads = true;
+				i--;
+				continue;
+			}
+			if (i + 1 >= argv.length) usage();
+			if (argv[i].equals("-port"))
+				port = Integer.parseInt(argv[i + 1]);
+			else if (argv[i].equals("-threads"))
+				numThreads = Integer.parseInt(argv[i + 1]);
+			else if (argv[i].equals("-batch"))
+				maxBatchSize = Integer.parseInt(argv[i + 1]);
+			else if (argv[i].equals("-cacheBits"))
+				cacheBits = Integer.parseInt(argv[i + 1]);
+			else if (argv[i].equals("-warmUp"))
+				warmUpFile = argv[i + 1];
+			else if (argv[i].equals("-warmUpSeconds"))
+				warmUpSeconds = Long.parseLong(argv[i + 1]);
+			else
+				usage();
+		}
+		Logger.setGlobalLogger(new Logger.SystemLogger(System.err, System.err));
+		NgramLanguageModel<String> lm = ComputeLogProbabilityOfTextStream.readBinary(vocabFile != null, vocabFile, binaryFile);
+		final long warmUpDeadline = System.nanoTime() + warmUpSeconds * 1000000000L;
+		if (warmUpSeconds > 0) LmWarmUp.touchLowOrders(lm, LmWarmUp.DEFAULT_TOUCH_ORDER, warmUpDeadline);
+		if (cacheBits > 0) lm = wrapWithCache(lm, cacheBits, virtualThreads);
+		// replaying after wrapping also fills the cache
+		if (warmUpSeconds > 0 && warmUpFile != null) LmWarmUp.replayQueries(lm, warmUpFile, warmUpDeadline);
+		final LmScoringServer server = new LmScoringServer(lm, numThreads, maxBatchSize, virtualThreads);
+		final int boundPort = server.start(port);
+		Logger.logss("Serving " + binaryFile + " on 127.0.0.1:" + boundPort);
+		while (true) {
+			try {
+				Thread.sleep(Long.MAX_VALUE);
+			} catch (final InterruptedException e) {
+				break;
+			}
+		}
+		server.close();
+	}
+
+}
@@ -0,0 +1,166 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.StupidBackoffLm;
+import edu.berkeley.nlp.lm.collections.Iterators;
+import edu.berkeley.nlp.lm.map.HashNgramMap;
+import edu.berkeley.nlp.lm.map.NgramMap;
+import edu.berkeley.nlp.lm.map.NgramMap.Entry;
+import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.values.ValueContainer;
+
+/**
+ * Warms up a freshly loaded LM before it takes traffic, so that the first
+ * queries do not pay for cold memory and unoptimized code.
+ * <p>
+ * {@link #touchLowOrders(NgramLanguageModel, int, long)} makes a sequential
+ * pass over the lowest orders of the model (which nearly every query uses).
+ * For hash maps, it scans the key arrays and reads the value of each n-gram
+ * by offset, which works even if only fingerprints of the keys are stored.
+ * For other maps, it looks up each n-gram, which touches the word ranges and
+ * the value rank tables that lookups go through.
+ * {@link #replayQueries(NgramLanguageModel, String, long)} scores logged
+ * sentences, which also fills any cache the LM is wrapped in and gets the
+ * scoring code compiled. Both stop when their deadline passes, and report
+ * their progress to the {@link Logger}.
+ *
+ * @author adampauls
+ *
+ */
+public class LmWarmUp
+{
+
+	/**
+	 * The highest order touched by
+	 * {@link #warmUp(NgramLanguageModel, String, long)}.
+	 */
+	public static final int DEFAULT_TOUCH_ORDER = 2;
+
+	private static final int PROGRESS_INTERVAL = 1 << 20;
+
+	// the clock is only read this often
+	private static final int DEADLINE_CHECK_INTERVAL = 1 << 10;
+
+	private LmWarmUp() {
+	}
+
+	/**
+	 * Touches the model, then replays queries, within a total time budget.
+	 *
+	 * @param lm
+	 * @param queryFile
+	 *            One sentence per line (possibly gzipped). May be null.
+	 * @param budgetMillis
+	 */
+	public static void warmUp(final NgramLanguageModel<String> lm, final String queryFile, final long budgetMillis) {
+		final long deadline = System.nanoTime() + budgetMillis * 1000000L;
+		Logger.startTrack("Warming up LM");
+		touchLowOrders(lm, DEFAULT_TOUCH_ORDER, deadline);
+		if (queryFile != null) replayQueries(lm, queryFile, deadline);
+		Logger.endTrack();
+	}
+
+	/**
+	 * Touches all n-grams of the given order or lower.
+	 *
+	 * @param lm
+	 *            Must be an {@link ArrayEncodedProbBackoffLm},
+	 *            {@link ContextEncodedProbBackoffLm} or {@link StupidBackoffLm}
+	 *            ; other models (such as caching wrappers) are skipped.
+	 * @param maxOrder
+	 * @param deadlineNanos
+	 *            In terms of {@link System#nanoTime()}.
+	 * @return The number of n-grams touched.
+	 */
+	public static long touchLowOrders(final NgramLanguageModel<?> lm, final int maxOrder, final long deadlineNanos) {
+		final NgramMap<?> map = LmReaders.getNgramMap(lm);
+		if (map == null) {
+			Logger.logss("Cannot touch the n-grams of a " + lm.getClass().getSimpleName());
+			return 0L;
+		}
+		return touchLowOrders(map, maxOrder, deadlineNanos);
+	}
+
+	private static <V> long touchLowOrders(final NgramMap<V> map, final int maxOrder, final long deadlineNanos) {
+		long numTouched = 0L;
+		long numFound = 0L;
+		final int numOrders = Math.min(maxOrder, map.getMaxNgramOrder());
+		for (int ngramOrder = 0; ngramOrder < numOrders; ++ngramOrder) {
+			final long numNgrams = map.getNumNgrams(ngramOrder);
+			Logger.startTrack("Touching " + numNgrams + " n-grams of order " + (ngramOrder + 1));
+			long k = 0;
+			if (map instanceof HashNgramMap) {
+				final ValueContainer<V> values = map.getValues();
+				final V scratch = values.getScratchValue();
+				for (final long offset : ((HashNgramMap<V>) map).getNgramOffsetsForOrder(ngramOrder)) {
+					values.getFromOffset(offset, ngramOrder, scratch);
+					numFound++;
+					numTouched++;
+					if (pastDeadline(++k, numNgrams, deadlineNanos)) return numTouched;
+				}
+			} else {
+				for (final Entry<V> entry : map.getNgramsForOrder(ngramOrder)) {
+					if (map.get(entry.key, 0, entry.key.length) != null) numFound++;
+					numTouched++;
+					if (pastDeadline(++k, numNgrams, deadlineNanos)) return numTouched;
+				}
+			}
+			Logger.endTrack();
+		}
+		if (numFound != numTouched) Logger.warn("Only found " + numFound + " of " + numTouched + " touched n-grams");
+		return numTouched;
+	}
+
+	/**
+	 * Logs progress, and ends the current track if the deadline has passed.
+	 */
+	private static boolean pastDeadline(final long k, final long numNgrams, final long deadlineNanos) {
+		if (k % PROGRESS_INTERVAL == 0) Logger.logs("Touched " + k + " of " + numNgrams);
+		if (k % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() > deadlineNanos) {
+			Logger.logss("Time budget exhausted after " + k + " n-grams");
+			Logger.endTrack();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Scores the sentences of a file (one per line, possibly gzipped).
+	 *
+	 * @param lm
+	 * @param queryFile
+	 * @param deadlineNanos
+	 *            In terms of {@link System#nanoTime()}.
+	 * @return The number of sentences scored.
+	 */
+	public static long replayQueries(final NgramLanguageModel<String> lm, final String queryFile, final long deadlineNanos) {
+		Logger.startTrack("Replaying queries from " + queryFile);
+		long numSentences = 0;
+		float logProb = 0.0f;
+		try {
+			for (final String line : Iterators.able(IOUtils.lineIterator(queryFile))) {
+				if (System.nanoTime() > deadlineNanos) {
+					Logger.logss("Time budget exhausted");
+					break;
+				}
+				final String trimmed = line.trim();
+				if (trimmed.length() == 0) continue;
+				final List<String> words = Arrays.asList(trimmed.split("\\s+"));
+				logProb += lm.scoreSentence(words);
+				if (++numSentences % 10000 == 0) Logger.logs("Scored " + numSentences + " sentences");
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		Logger.logss("Scored " + numSentences + " sentences with total log probability " + logProb);
+		Logger.endTrack();
+		return numSentences;
+	}
+
+}
@@ -3,7 +3,9 @@ package edu.berkeley.nlp.lm.io;
 import java.util.ArrayList;
 import java.util.List;
 
+import edu.berkeley.nlp.lm.ConfigOptions;
 import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.StringWordIndexer;
 import edu.berkeley.nlp.lm.util.Logger;
 
 /**
@@ -12,7 +14,11 @@ import edu.berkeley.nlp.lm.util.Logger;
  * significantly smaller and faster to load than ARPA files.
  * <p>
  * Note that if the input/output files have a <code>.gz</code> suffix, they will
- * be unzipped/zipped as necessary.
+ * be unzipped/zipped as necessary. With <code>-k</code>, the binary is
+ * instead written in the {@link ChunkedBinary} format, which is written and
+ * read in parallel. With <code>-f</code>, word indices are assigned in order of
+ * decreasing unigram probability (see
+ * {@link ConfigOptions#sortVocabularyByFrequency}).
  * 
  * @author adampauls
  * 
@@ -35,8 +41,8 @@ public class MakeLmBinaryFromArpa
 			}
 
 			@Override
-			public NgramLanguageModel<String> makeLm(final String file) {
-				return LmReaders.readArrayEncodedLmFromArpa(file, false);
+			public NgramLanguageModel<String> makeLm(final String file, final ConfigOptions opts) {
+				return LmReaders.readArrayEncodedLmFromArpa(file, false, new StringWordIndexer(), opts, Integer.MAX_VALUE);
 			}
 		},
 		CONTEXT_OPT
@@ -52,8 +58,8 @@ public class MakeLmBinaryFromArpa
 			}
 
 			@Override
-			public NgramLanguageModel<String> makeLm(final String file) {
-				return LmReaders.readContextEncodedLmFromArpa(file);
+			public NgramLanguageModel<String> makeLm(final String file, final ConfigOptions opts) {
+				return LmReaders.readContextEncodedLmFromArpa(file, new StringWordIndexer(), opts, Integer.MAX_VALUE);
 			}
 		},
 		COMPRESS_OPT
@@ -69,17 +75,21 @@ public class MakeLmBinaryFromArpa
 			}
 
 			@Override
-			public NgramLanguageModel<String> makeLm(final String file) {
-				return LmReaders.readArrayEncodedLmFromArpa(file, true);
+			public NgramLanguageModel<String> makeLm(final String file, final ConfigOptions opts) {
+				return LmReaders.readArrayEncodedLmFromArpa(file, true, new StringWordIndexer(), opts, Integer.MAX_VALUE);
 			}
 		};
 
 		public abstract String docString();
 
-		public abstract NgramLanguageModel<String> makeLm(String file);
+		public abstract NgramLanguageModel<String> makeLm(String file, ConfigOptions opts);
 
 	}
 
+	private static final String CHUNKED_OPT = "-k";
+
+	private static final String SORT_VOCAB_OPT = "-f";
+
 	/**
 	 * 
 	 */
@@ -88,13 +98,25 @@ public class MakeLmBinaryFromArpa
 		for (final Opts opts : Opts.values()) {
 			System.err.println("\t" + opts.toString() + ": " + opts.docString());
 		}
+		System.err.println("\t" + CHUNKED_OPT + ": write a chunked binary, with deflated blocks");
+		System.err.println("\t" + SORT_VOCAB_OPT + ": assign word indices in order of decreasing unigram probability");
 		System.exit(1);
 	}
 
 	public static void main(final String[] argv) {
 		final List<String> fileArgs = new ArrayList<String>();
 		Opts finalOpt = Opts.HASH_OPT;
+		boolean chunked = false;
+		final ConfigOptions configOptions = new ConfigOptions();
 		OUTER: for (final String arg : argv) {
+			if (arg.equals(CHUNKED_OPT)) {
+				chunked = true;
+				continue;
+			}
+			if (arg.equals(SORT_VOCAB_OPT)) {
+				configOptions.sortVocabularyByFrequency = true;
+				continue;
+			}
 			if (arg.startsWith("-")) {
 				for (final Opts opts : Opts.values()) {
 					if (opts.toString().equals(arg)) {
@@ -114,11 +136,14 @@ public class MakeLmBinaryFromArpa
 		Logger.setGlobalLogger(new Logger.SystemLogger(System.out, System.err));
 		final String lmFile = fileArgs.get(0);
 		Logger.startTrack("Reading Lm File " + lmFile + " . . . ");
-		final NgramLanguageModel<String> lm = finalOpt.makeLm(lmFile);
+		final NgramLanguageModel<String> lm = finalOpt.makeLm(lmFile, configOptions);
 		Logger.endTrack();
 		final String outFile = fileArgs.get(1);
 		Logger.startTrack("Writing to file " + outFile + " . . . ");
-		LmReaders.writeLmBinary(lm, outFile);
+		if (chunked)
+			LmReaders.writeChunkedLmBinary(lm, outFile, true);
+		else
+			LmReaders.writeLmBinary(lm, outFile);
 		Logger.endTrack();
 
 	}
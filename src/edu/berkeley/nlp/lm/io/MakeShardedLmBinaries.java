@@ -0,0 +1,119 @@
+package edu.berkeley.nlp.lm.io;
+
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.StupidBackoffLm;
+import edu.berkeley.nlp.lm.map.NgramMap;
+import edu.berkeley.nlp.lm.map.NgramMap.Entry;
+import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.LongRef;
+
+/**
+ * Splits a stupid backoff LM binary into shards which can be served by
+ * separate {@link LmScoringServer}s and queried with a
+ * {@link ShardedStupidBackoffLm}. Shard <code>k</code> is written to
+ * <code>&lt;output prefix&gt;.k</code>, and the word indexer (which the client
+ * needs) to <code>&lt;output prefix&gt;.vocab</code>. With <code>-g</code>,
+ * the input is read as a Google LM binary, as in
+ * {@link ComputeLogProbabilityOfTextStream}.
+ * <p>
+ * Every shard has all unigrams and the n-grams assigned to it by
+ * {@link ShardedStupidBackoffLm#getShard(int[], int, int, int)} (which are
+ * closed under taking suffixes), so the highest orders, which dominate the
+ * size of large models, are split evenly, while lower orders are partly
+ * duplicated.
+ *
+ * @author adampauls
+ *
+ */
+public class MakeShardedLmBinaries
+{
+
+	/**
+	 * Reads the n-grams of one shard from the map of an LM.
+	 *
+	 * @author adampauls
+	 *
+	 */
+	private static final class ShardReader implements LmReader<LongRef, NgramOrderedLmReaderCallback<LongRef>>
+	{
+		private final NgramMap<LongRef> map;
+
+		private final int shard;
+
+		private final int numShards;
+
+		ShardReader(final NgramMap<LongRef> map, final int shard, final int numShards) {
+			this.map = map;
+			this.shard = shard;
+			this.numShards = numShards;
+		}
+
+		@Override
+		public void parse(final NgramOrderedLmReaderCallback<LongRef> callback) {
+			for (int ngramOrder = 0; ngramOrder < map.getMaxNgramOrder(); ++ngramOrder) {
+				boolean foundNgram = false;
+				for (final Entry<LongRef> entry : map.getNgramsForOrder(ngramOrder)) {
+					if (ngramOrder > 0 && ShardedStupidBackoffLm.getShard(entry.key, 0, entry.key.length, numShards) != shard) continue;
+					callback.call(entry.key, 0, entry.key.length, new LongRef(entry.value.value), null);
+					foundNgram = true;
+				}
+				// shards are suffix-closed, so no higher order has n-grams either
+				if (!foundNgram) break;
+				callback.handleNgramOrderFinished(ngramOrder + 1);
+			}
+			callback.cleanup();
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: [-g <vocab_cs file>] <stupid backoff LM binary> <number of shards> <output prefix>");
+		System.exit(1);
+	}
+
+	/**
+	 * Builds one shard of an LM.
+	 *
+	 * @param <W>
+	 * @param lm
+	 * @param shard
+	 * @param numShards
+	 * @param compress
+	 * @return
+	 */
+	public static <W> StupidBackoffLm<W> makeShard(final StupidBackoffLm<W> lm, final int shard, final int numShards, final boolean compress) {
+		final ConfigOptions opts = new ConfigOptions();
+		opts.stupidBackoffAlpha = lm.getAlpha();
+		opts.unknownWordLogProb = lm.getOovWordLogProb();
+		return LmReaders.readStupidBackoffLm(new ShardReader(lm.getNgramMap(), shard, numShards), lm.getWordIndexer(), opts, compress);
+	}
+
+	public static void main(final String[] argv) {
+		int i = 0;
+		String vocabFile = null;
+		if (i < argv.length && argv[i].equals("-g")) {
+			if (i + 1 >= argv.length) usage();
+			vocabFile = argv[i + 1];
+			i += 2;
+		}
+		if (argv.length - i != 3) usage();
+		final String binaryFile = argv[i];
+		final int numShards = Integer.parseInt(argv[i + 1]);
+		final String outputPrefix = argv[i + 2];
+		Logger.setGlobalLogger(new Logger.SystemLogger(System.out, System.err));
+		final NgramLanguageModel<String> lm = ComputeLogProbabilityOfTextStream.readBinary(vocabFile != null, vocabFile, binaryFile);
+		if (!(lm instanceof StupidBackoffLm)) throw new RuntimeException("Only stupid backoff LMs can be sharded, but " + binaryFile + " has a "
+			+ lm.getClass().getSimpleName());
+		final StupidBackoffLm<String> stupidBackoffLm = (StupidBackoffLm<String>) lm;
+		IOUtils.writeObjFileHard(outputPrefix + ".vocab", lm.getWordIndexer());
+		for (int shard = 0; shard < numShards; ++shard) {
+			Logger.startTrack("Building shard " + shard + " of " + numShards);
+			final StupidBackoffLm<String> shardLm = makeShard(stupidBackoffLm, shard, numShards, true);
+			final String outFile = outputPrefix + "." + shard;
+			Logger.logss("Writing to file " + outFile);
+			LmReaders.writeLmBinary(shardLm, outFile);
+			Logger.endTrack();
+		}
+	}
+
+}
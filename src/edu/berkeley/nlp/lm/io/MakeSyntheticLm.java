@@ -0,0 +1,77 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.util.Logger;
+
+/**
+ * Writes a synthetic language model (see {@link SyntheticLmReader}) of a given
+ * order and vocabulary size, either as an ARPA file or as a directory in
+ * Google n-grams format. The output is fully determined by the options and
+ * the seed, so it can be used for reproducible load and scale testing without
+ * shipping large models around.
+ * <p>
+ * Note that if the output file has a <code>.gz</code> suffix, it will be zipped.
+ *
+ * @author adampauls
+ *
+ */
+public class MakeSyntheticLm
+{
+
+	/**
+	 *
+	 */
+	private static void usage() {
+		System.err.println("Usage: [opts] <lmOrder> <vocab size> <outputfile or directory>");
+		System.err.println("\t-zipf <s>: exponent of the Zipf distribution over words (default 1.0)");
+		System.err.println("\t-heaps <b>: a context with count c has about c^b continuations, which controls growth with n-gram order (default 0.6)");
+		System.err.println("\t-seed <n>: random seed (default 0)");
+		System.err.println("\t-google: write a directory in Google n-grams format instead of an ARPA file");
+		System.exit(1);
+	}
+
+	public static void main(final String[] argv) {
+		final List<String> fileArgs = new ArrayList<String>();
+		double zipfExponent = 1.0;
+		double heapsExponent = 0.6;
+		int seed = 0;
+		boolean google = false;
+		for (int i = 0; i < argv.length; ++i) {
+			final String arg = argv[i];
+			if (arg.equals("-google")) {
+				google = true;
+			} else if (arg.startsWith("-")) {
+				if (i + 1 >= argv.length) usage();
+				final String val = argv[++i];
+				if (arg.equals("-zipf"))
+					zipfExponent = Double.parseDouble(val);
+				else if (arg.equals("-heaps"))
+					heapsExponent = Double.parseDouble(val);
+				else if (arg.equals("-seed"))
+					seed = Integer.parseInt(val);
+				else {
+					System.err.println("Unrecognized opts: " + arg);
+					usage();
+				}
+			} else
+				fileArgs.add(arg);
+		}
+		if (fileArgs.size() != 3) usage();
+		final int lmOrder = Integer.parseInt(fileArgs.get(0));
+		final int vocabSize = Integer.parseInt(fileArgs.get(1));
+		final String outFile = fileArgs.get(2);
+		Logger.setGlobalLogger(new Logger.SystemLogger(System.out, System.err));
+		final StringWordIndexer wordIndexer = new StringWordIndexer();
+		final SyntheticLmReader<String> reader = new SyntheticLmReader<String>(lmOrder, vocabSize, zipfExponent, heapsExponent, seed, wordIndexer);
+		Logger.startTrack("Writing to " + outFile + " . . . ");
+		if (google)
+			reader.writeGoogleNgramDir(outFile);
+		else
+			reader.parse(new KneserNeyFileWritingLmReaderCallback<String>(new File(outFile), wordIndexer));
+		Logger.endTrack();
+	}
+}
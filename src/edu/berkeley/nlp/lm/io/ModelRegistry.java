@@ -0,0 +1,263 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.util.Logger;
+
+/**
+ * Holds the language model currently used for scoring, and replaces it with a
+ * newly loaded one without stopping the scorers.
+ * <p>
+ * Scorers {@link #acquire()} a {@link Lease} for each query (or batch of
+ * queries), and close it when they are done. {@link #reload(String)} reads a
+ * new binary (see {@link LmReaders#readLmBinary(String)}) on a background
+ * thread and then atomically swaps it in: leases acquired after the swap see
+ * the new model, while those already open keep the old one. Models are
+ * reference counted, and once the last lease on a replaced model is closed,
+ * the registry drops its reference (so the model can be garbage collected)
+ * and closes it if it is {@link Closeable} (e.g. a
+ * {@link ShardedStupidBackoffLm}).
+ * <p>
+ * Reloads run one at a time, and a reload does not start reading until every
+ * model it replaced earlier has been released. At most two models are
+ * therefore alive at once: the one being served and the one being loaded.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author adampauls
+ *
+ * @param <W>
+ */
+public class ModelRegistry<W> implements Closeable
+{
+
+	/**
+	 * A reference to a model which keeps it alive until closed.
+	 *
+	 * @author adampauls
+	 *
+	 * @param <W>
+	 */
+	public static final class Lease<W> implements Closeable
+	{
+		private ModelRegistry.Model<W> model;
+
+		private Lease(final ModelRegistry.Model<W> model) {
+			this.model = model;
+		}
+
+		public NgramLanguageModel<W> get() {
+			if (model == null) throw new RuntimeException("Lease is closed");
+			return model.lm;
+		}
+
+		/**
+		 * The number of the reload which produced this model (0 for the
+		 * model the registry was created with).
+		 *
+		 * @return
+		 */
+		public int getGeneration() {
+			if (model == null) throw new RuntimeException("Lease is closed");
+			return model.generation;
+		}
+
+		@Override
+		public void close() {
+			if (model == null) return;
+			model.release();
+			model = null;
+		}
+	}
+
+	private static final class Model<W>
+	{
+		private NgramLanguageModel<W> lm;
+
+		private final int generation;
+
+		private final ModelRegistry<W> registry;
+
+		// one for the registry, plus one for each open lease
+		private final AtomicInteger refCount = new AtomicInteger(1);
+
+		Model(final NgramLanguageModel<W> lm, final int generation, final ModelRegistry<W> registry) {
+			this.lm = lm;
+			this.generation = generation;
+			this.registry = registry;
+		}
+
+		boolean tryRetain() {
+			while (true) {
+				final int count = refCount.get();
+				if (count == 0) return false;
+				if (refCount.compareAndSet(count, count + 1)) return true;
+			}
+		}
+
+		void release() {
+			if (refCount.decrementAndGet() > 0) return;
+			final NgramLanguageModel<W> released = lm;
+			lm = null;
+			registry.modelReleased(released, generation);
+		}
+	}
+
+	private final AtomicReference<Model<W>> current;
+
+	private final ExecutorService loader;
+
+	private int numGenerations = 1;
+
+	// models which were replaced but still have open leases
+	private int numRetired = 0;
+
+	private boolean closed = false;
+
+	public ModelRegistry(final NgramLanguageModel<W> lm) {
+		current = new AtomicReference<Model<W>>(new Model<W>(lm, 0, this));
+		loader = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "ModelRegistry loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Creates a registry serving an LM binary.
+	 *
+	 * @param <W>
+	 * @param file
+	 * @return
+	 */
+	public static <W> ModelRegistry<W> fromBinary(final String file) {
+		return new ModelRegistry<W>(LmReaders.<W> readLmBinary(file));
+	}
+
+	/**
+	 * Gets the current model. The lease must be closed (in a
+	 * <code>finally</code> block) once the caller is done with the model.
+	 *
+	 * @return
+	 */
+	public Lease<W> acquire() {
+		while (true) {
+			final Model<W> model = current.get();
+			if (model == null) throw new RuntimeException("Registry is closed");
+			// fails only if the model was replaced and released in the meantime
+			if (model.tryRetain()) return new Lease<W>(model);
+		}
+	}
+
+	/**
+	 * Reads an LM binary in the background and swaps it in once it is
+	 * loaded.
+	 *
+	 * @param file
+	 * @return A future whose value is the generation of the new model. If
+	 *         loading fails, the current model is kept and the future
+	 *         throws.
+	 */
+	public Future<Integer> reload(final String file) {
+		return loader.submit(new Callable<Integer>()
+		{
+			@Override
+			public Integer call() throws InterruptedException {
+				awaitRetiredReleased();
+				Logger.startTrack("Reloading LM from " + file);
+				try {
+					return swap(LmReaders.<W> readLmBinary(file));
+				} finally {
+					Logger.endTrack();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Replaces the current model.
+	 *
+	 * @param lm
+	 * @return The generation of the new model.
+	 */
+	public int swap(final NgramLanguageModel<W> lm) {
+		final Model<W> newModel;
+		final Model<W> oldModel;
+		synchronized (this) {
+			if (closed) throw new RuntimeException("Registry is closed");
+			newModel = new Model<W>(lm, numGenerations++, this);
+			numRetired++;
+			// under the lock, so that close() cannot take the old model in between
+			oldModel = current.getAndSet(newModel);
+		}
+		// releasing may close the LM, which is done outside the lock
+		oldModel.release();
+		return newModel.generation;
+	}
+
+	/**
+	 * The number of models which were replaced but are still in use by open
+	 * leases.
+	 *
+	 * @return
+	 */
+	public synchronized int getNumRetired() {
+		return numRetired;
+	}
+
+	/**
+	 * Waits until every replaced model has been released.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitRetiredReleased() throws InterruptedException {
+		while (numRetired > 0)
+			wait();
+	}
+
+	/**
+	 * Stops accepting new leases and reloads. The current model is released
+	 * once its open leases are closed.
+	 */
+	@Override
+	public void close() {
+		final Model<W> model;
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			numRetired++;
+			model = current.getAndSet(null);
+		}
+		loader.shutdownNow();
+		model.release();
+	}
+
+	private void modelReleased(final NgramLanguageModel<W> lm, final int generation) {
+		Logger.logss("Released LM generation " + generation);
+		if (lm instanceof Closeable) {
+			try {
+				((Closeable) lm).close();
+			} catch (final IOException e) {
+				Logger.warn("Could not close LM generation " + generation + ": " + e);
+			}
+		}
+		synchronized (this) {
+			numRetired--;
+			notifyAll();
+		}
+	}
+
+}
@@ -2,7 +2,10 @@ package edu.berkeley.nlp.lm.io;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import edu.berkeley.nlp.lm.map.NgramMap;
 
@@ -23,12 +26,48 @@ public final class NgramMapAddingCallback<V> implements ArpaLmReaderCallback<V>
 
 	private final List<int[]> failures;
 
+	/**
+	 * N-grams from the collection which could not be added (because one of
+	 * their own prefixes or suffixes is missing).
+	 */
+	private final Set<List<Integer>> failedNgrams;
+
+	private final List<int[]> missingNgrams;
+
 	private final boolean canFail;
 
+	/**
+	 * 
+	 * @param map
+	 * @param failures
+	 *            If null, n-grams which cannot be added are recorded and
+	 *            available from {@link #getFailures()}. Otherwise, these
+	 *            n-grams are added to the map (with a dummy value) when their
+	 *            order is finished, and a failure to add is an error.
+	 */
 	public NgramMapAddingCallback(final NgramMap<V> map, final List<int[]> failures) {
+		this(map, failures == null ? Collections.<int[]> emptyList() : failures, failures == null);
+	}
+
+	/**
+	 * 
+	 * @param map
+	 * @param missingNgrams
+	 *            N-grams which are known to be missing from the collection
+	 *            (see {@link FirstPassCallback#getMissingNgrams()}). They are
+	 *            added to the map (with a dummy value) when their order is
+	 *            finished.
+	 * @param canFail
+	 *            If true, n-grams which cannot be added are recorded and
+	 *            available from {@link #getFailures()}. Otherwise, a failure to
+	 *            add is an error.
+	 */
+	public NgramMapAddingCallback(final NgramMap<V> map, final List<int[]> missingNgrams, final boolean canFail) {
 		this.map = map;
-		this.canFail = failures == null;
-		this.failures = canFail ? new ArrayList<int[]>() : failures;
+		this.canFail = canFail;
+		this.missingNgrams = missingNgrams;
+		this.failures = new ArrayList<int[]>();
+		this.failedNgrams = new HashSet<List<Integer>>();
 	}
 
 	@Override
@@ -37,6 +76,7 @@ public final class NgramMapAddingCallback<V> implements ArpaLmReaderCallback<V>
 
 		if (add < 0) {
 			if (canFail) {
+				failedNgrams.add(toList(ngram, startPos, endPos));
 				for (int endPos_ = endPos - 1; (endPos_ > startPos); endPos_--) {
 					if (!map.contains(ngram, startPos, endPos_)) {
 						failures.add(Arrays.copyOfRange(ngram, startPos, endPos_));
@@ -55,7 +95,7 @@ public final class NgramMapAddingCallback<V> implements ArpaLmReaderCallback<V>
 
 	@Override
 	public void handleNgramOrderFinished(final int order) {
-		for (final int[] ngram : failures) {
+		for (final int[] ngram : missingNgrams) {
 			if (ngram.length == order) {// && !map.contains(ngram, 0, ngram.length)) {
 				map.put(ngram, 0, ngram.length, null);
 			}
@@ -73,8 +113,27 @@ public final class NgramMapAddingCallback<V> implements ArpaLmReaderCallback<V>
 		map.initWithLengths(numNGrams);
 	}
 
+	/**
+	 * The missing prefixes and suffixes of n-grams which could not be added,
+	 * without duplicates. N-grams which are in the collection, but could not
+	 * be added themselves, are not included.
+	 * 
+	 * @return
+	 */
 	public List<int[]> getFailures() {
-		return failures;
+		final Set<List<Integer>> seen = new HashSet<List<Integer>>(failedNgrams);
+		final List<int[]> uniqueFailures = new ArrayList<int[]>();
+		for (final int[] failure : failures) {
+			if (seen.add(toList(failure, 0, failure.length))) uniqueFailures.add(failure);
+		}
+		return uniqueFailures;
+	}
+
+	private static List<Integer> toList(final int[] ngram, final int startPos, final int endPos) {
+		final List<Integer> list = new ArrayList<Integer>(endPos - startPos);
+		for (int i = startPos; i < endPos; ++i)
+			list.add(ngram[i]);
+		return list;
 	}
 
 	@Override
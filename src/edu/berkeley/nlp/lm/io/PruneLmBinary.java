@@ -0,0 +1,158 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.map.NgramMap;
+import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+
+/**
+ * Given a language model binary built from an ARPA file, prunes it using
+ * relative-entropy pruning (see {@link EntropyPruningLmReader}) and writes the
+ * smaller model to disk, either as a binary or in ARPA format.
+ * <p>
+ * Note that if the input/output files have a <code>.gz</code> suffix, they will
+ * be unzipped/zipped as necessary.
+ *
+ * @author adampauls
+ *
+ */
+public class PruneLmBinary
+{
+
+	private enum Opts
+	{
+		HASH_OPT
+		{
+			@Override
+			public String toString() {
+				return "-h";
+			}
+
+			@Override
+			public String docString() {
+				return "write an array-encoded hash-table LM binary (the default)";
+			}
+
+			@Override
+			public void prune(final NgramMap<ProbBackoffPair> map, final WordIndexer<String> wordIndexer, final double threshold, final String outFile) {
+				LmReaders.writeLmBinary(LmReaders.pruneArrayEncodedLm(map, wordIndexer, threshold, false, new ConfigOptions()), outFile);
+			}
+		},
+		CONTEXT_OPT
+		{
+			@Override
+			public String toString() {
+				return "-e";
+			}
+
+			@Override
+			public String docString() {
+				return "write a context-encoded LM binary instead of the default hash table";
+			}
+
+			@Override
+			public void prune(final NgramMap<ProbBackoffPair> map, final WordIndexer<String> wordIndexer, final double threshold, final String outFile) {
+				LmReaders.writeLmBinary(LmReaders.pruneContextEncodedLm(map, wordIndexer, threshold, new ConfigOptions()), outFile);
+			}
+		},
+		COMPRESS_OPT
+		{
+			@Override
+			public String toString() {
+				return "-c";
+			}
+
+			@Override
+			public String docString() {
+				return "write a compressed hash-table LM binary instead of the array encoding";
+			}
+
+			@Override
+			public void prune(final NgramMap<ProbBackoffPair> map, final WordIndexer<String> wordIndexer, final double threshold, final String outFile) {
+				LmReaders.writeLmBinary(LmReaders.pruneArrayEncodedLm(map, wordIndexer, threshold, true, new ConfigOptions()), outFile);
+			}
+		},
+		ARPA_OPT
+		{
+			@Override
+			public String toString() {
+				return "-a";
+			}
+
+			@Override
+			public String docString() {
+				return "write the pruned LM in ARPA format instead of as a binary";
+			}
+
+			@Override
+			public void prune(final NgramMap<ProbBackoffPair> map, final WordIndexer<String> wordIndexer, final double threshold, final String outFile) {
+				LmReaders.writePrunedArpa(map, wordIndexer, threshold, new File(outFile));
+			}
+		};
+
+		public abstract String docString();
+
+		public abstract void prune(NgramMap<ProbBackoffPair> map, WordIndexer<String> wordIndexer, double threshold, String outFile);
+
+	}
+
+	/**
+	 *
+	 */
+	private static void usage() {
+		System.err.println("Usage: [opts] <threshold> <lm binary> <outputfile>");
+		for (final Opts opts : Opts.values()) {
+			System.err.println("\t" + opts.toString() + ": " + opts.docString());
+		}
+		System.exit(1);
+	}
+
+	public static void main(final String[] argv) {
+		final List<String> fileArgs = new ArrayList<String>();
+		Opts finalOpt = Opts.HASH_OPT;
+		OUTER: for (final String arg : argv) {
+			if (arg.startsWith("-")) {
+				for (final Opts opts : Opts.values()) {
+					if (opts.toString().equals(arg)) {
+						finalOpt = opts;
+						continue OUTER;
+					}
+				}
+				System.err.println("Unrecognized opts: " + arg);
+				usage();
+			} else
+				fileArgs.add(arg);
+		}
+		if (fileArgs.size() != 3) {
+			usage();
+		}
+
+		Logger.setGlobalLogger(new Logger.SystemLogger(System.out, System.err));
+		final double threshold = Double.parseDouble(fileArgs.get(0));
+		final String lmFile = fileArgs.get(1);
+		Logger.startTrack("Reading Lm File " + lmFile + " . . . ");
+		final NgramLanguageModel<String> lm = LmReaders.readLmBinary(lmFile);
+		Logger.endTrack();
+		final NgramMap<ProbBackoffPair> map;
+		if (lm instanceof ArrayEncodedProbBackoffLm) {
+			map = ((ArrayEncodedProbBackoffLm<String>) lm).getNgramMap();
+		} else if (lm instanceof ContextEncodedProbBackoffLm) {
+			map = ((ContextEncodedProbBackoffLm<String>) lm).getNgramMap();
+		} else {
+			throw new RuntimeException("Only binaries of backoff language models read from ARPA files can be pruned");
+		}
+		final String outFile = fileArgs.get(2);
+		Logger.startTrack("Writing to file " + outFile + " . . . ");
+		finalOpt.prune(map, lm.getWordIndexer(), threshold, outFile);
+		Logger.endTrack();
+
+	}
+}
@@ -0,0 +1,241 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import edu.berkeley.nlp.lm.AbstractArrayEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.StupidBackoffLm;
+import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
+import edu.berkeley.nlp.lm.util.MurmurHash;
+
+/**
+ * A {@link StupidBackoffLm} which is split into shards (see
+ * {@link MakeShardedLmBinaries}), each served by an {@link LmScoringServer},
+ * so that models which do not fit in one JVM can be served by several
+ * processes.
+ * <p>
+ * N-grams of order two or more are assigned to shards by the last word of
+ * their context (see {@link #getShard(int[], int, int, int)}), and unigrams
+ * are in every shard. Since all suffixes of an n-gram (down to the bigram)
+ * share that word, one shard has the counts of all suffixes of an n-gram, and
+ * one shard has the counts of all suffixes of its context, which is all that
+ * stupid backoff needs. Each lookup therefore sends at most two requests, to
+ * (at most) two shards, which are answered in parallel. Batched calls
+ * ({@link #scoreSentence(List)} and {@link #getLogProbs(List)}) send all
+ * their requests before reading any response, so the cost of a round trip is
+ * paid once per batch.
+ * <p>
+ * Scores are identical to those of the unsharded model. The methods of this
+ * class are synchronized, so an instance can be shared between threads, but
+ * their requests are then sent one call at a time; to score from several
+ * threads concurrently, use one instance (each with its own connections) per
+ * thread.
+ *
+ * @author adampauls
+ *
+ * @param <W>
+ */
+public class ShardedStupidBackoffLm<W> extends AbstractArrayEncodedNgramLanguageModel<W> implements Closeable
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient LmScoringClient[] shards;
+
+	private final long unigramSum;
+
+	private final float alpha;
+
+	/**
+	 * Connects to shards served on the loopback interface.
+	 *
+	 * @param wordIndexer
+	 *            The word indexer of the unsharded model (e.g. as written by
+	 *            {@link MakeShardedLmBinaries}).
+	 * @param ports
+	 *            The ports of the shard servers, in shard order.
+	 * @throws IOException
+	 */
+	public ShardedStupidBackoffLm(final WordIndexer<W> wordIndexer, final int... ports) throws IOException {
+		this(wordIndexer, connect(ports));
+	}
+
+	private ShardedStupidBackoffLm(final WordIndexer<W> wordIndexer, final LmScoringClient[] shards) {
+		this(wordIndexer, shards, getInfo(shards));
+	}
+
+	private ShardedStupidBackoffLm(final WordIndexer<W> wordIndexer, final LmScoringClient[] shards, final Number[] info) {
+		super(info[0].intValue(), wordIndexer, info[3].floatValue());
+		this.shards = shards;
+		this.unigramSum = info[1].longValue();
+		this.alpha = info[2].floatValue();
+	}
+
+	/**
+	 * Checks that all shards are from the same model. The order of the model
+	 * is the largest order of any shard, since a shard of a small model may
+	 * have no n-grams of the highest order.
+	 */
+	private static Number[] getInfo(final LmScoringClient[] shards) {
+		final Number[] info = shards[0].getStupidBackoffInfo();
+		for (int shard = 1; shard < shards.length; ++shard) {
+			final Number[] shardInfo = shards[shard].getStupidBackoffInfo();
+			for (int i = 1; i < info.length; ++i)
+				if (!info[i].equals(shardInfo[i])) throw new RuntimeException("Shard " + shard + " is not from the same model as shard 0");
+			info[0] = Math.max(info[0].intValue(), shardInfo[0].intValue());
+		}
+		return info;
+	}
+
+	private static LmScoringClient[] connect(final int[] ports) throws IOException {
+		if (ports.length == 0) throw new RuntimeException("No shards given");
+		final LmScoringClient[] shards = new LmScoringClient[ports.length];
+		for (int i = 0; i < ports.length; ++i)
+			shards[i] = new LmScoringClient(ports[i]);
+		return shards;
+	}
+
+	/**
+	 * The shard which has the counts of an n-gram of order two or more (and
+	 * those of its suffixes). Unigrams are in every shard.
+	 *
+	 * @param ngram
+	 * @param startPos
+	 * @param endPos
+	 * @param numShards
+	 * @return
+	 */
+	public static int getShard(final int[] ngram, final int startPos, final int endPos, final int numShards) {
+		if (endPos - startPos < 2) return 0;
+		return (MurmurHash.hash32(ngram, endPos - 2, endPos - 1) & Integer.MAX_VALUE) % numShards;
+	}
+
+	public int getNumShards() {
+		return shards.length;
+	}
+
+	@Override
+	public synchronized float getLogProb(final int[] ngram, final int startPos, final int endPos) {
+		final float[] logProbs = new float[1];
+		getLogProbs(new int[][] { ngram }, new int[] { startPos }, new int[] { endPos }, logProbs);
+		return logProbs[0];
+	}
+
+	/**
+	 * Scores several n-grams with one round trip to each shard.
+	 *
+	 * @param ngrams
+	 * @return
+	 */
+	public synchronized float[] getLogProbs(final List<int[]> ngrams) {
+		final int[][] arrays = new int[ngrams.size()][];
+		final int[] startPos = new int[arrays.length];
+		final int[] endPos = new int[arrays.length];
+		for (int i = 0; i < arrays.length; ++i) {
+			arrays[i] = ngrams.get(i);
+			endPos[i] = arrays[i].length;
+		}
+		final float[] logProbs = new float[arrays.length];
+		getLogProbs(arrays, startPos, endPos, logProbs);
+		return logProbs;
+	}
+
+	/**
+	 * Scores all n-grams of a sentence with one round trip to each shard.
+	 * Equivalent to
+	 * {@link edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel.DefaultImplementations#scoreSentence(List, edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel)}
+	 * .
+	 */
+	@Override
+	public synchronized float scoreSentence(final List<W> sentence) {
+		final WordIndexer<W> wordIndexer = getWordIndexer();
+		final int[] sent = new int[sentence.size() + 2];
+		sent[0] = wordIndexer.getIndexPossiblyUnk(wordIndexer.getStartSymbol());
+		for (int i = 0; i < sentence.size(); ++i)
+			sent[i + 1] = wordIndexer.getIndexPossiblyUnk(sentence.get(i));
+		sent[sent.length - 1] = wordIndexer.getIndexPossiblyUnk(wordIndexer.getEndSymbol());
+		// the start symbol is not scored
+		final int numNgrams = sent.length - 1;
+		final int[][] arrays = new int[numNgrams][];
+		final int[] startPos = new int[numNgrams];
+		final int[] endPos = new int[numNgrams];
+		for (int i = 0; i < numNgrams; ++i) {
+			arrays[i] = sent;
+			endPos[i] = i + 2;
+			startPos[i] = Math.max(0, endPos[i] - lmOrder);
+		}
+		final float[] logProbs = new float[numNgrams];
+		getLogProbs(arrays, startPos, endPos, logProbs);
+		float sentenceScore = 0.0f;
+		for (final float logProb : logProbs)
+			sentenceScore += logProb;
+		return sentenceScore;
+	}
+
+	private void getLogProbs(final int[][] ngrams, final int[] startPos, final int[] endPos, final float[] logProbs) {
+		final int numShards = shards.length;
+		final int[] ngramShards = new int[ngrams.length];
+		final int[] contextShards = new int[ngrams.length];
+		int maxLength = 0;
+		try {
+			for (int i = 0; i < ngrams.length; ++i) {
+				ngramShards[i] = getShard(ngrams[i], startPos[i], endPos[i], numShards);
+				shards[ngramShards[i]].writeSuffixCounts(ngrams[i], startPos[i], endPos[i]);
+				// the unigram sum is the context count of unigrams
+				contextShards[i] = endPos[i] - startPos[i] < 2 ? -1 : getShard(ngrams[i], startPos[i], endPos[i] - 1, numShards);
+				if (contextShards[i] >= 0) shards[contextShards[i]].writeSuffixCounts(ngrams[i], startPos[i], endPos[i] - 1);
+				maxLength = Math.max(maxLength, endPos[i] - startPos[i]);
+			}
+			for (final LmScoringClient shard : shards)
+				shard.flush();
+			final long[] counts = new long[maxLength];
+			final long[] contextCounts = new long[maxLength];
+			String error = null;
+			for (int i = 0; i < ngrams.length; ++i) {
+				// read every response even after an error so the connections stay usable
+				final LmScoringClient ngramShard = shards[ngramShards[i]];
+				final String message = ngramShard.readStatusOrError();
+				final int numCounts = message == null ? ngramShard.readCounts(counts) : 0;
+				final LmScoringClient contextShard = contextShards[i] < 0 ? null : shards[contextShards[i]];
+				final String contextMessage = contextShard == null ? null : contextShard.readStatusOrError();
+				final int numContextCounts = contextShard == null || contextMessage != null ? 0 : contextShard.readCounts(contextCounts);
+				if (message == null && contextMessage == null)
+					logProbs[i] = score(counts, numCounts, contextCounts, numContextCounts, endPos[i] - startPos[i]);
+				else if (error == null) error = message == null ? contextMessage : message;
+			}
+			if (error != null) throw new RuntimeException(error);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Mirrors {@link StupidBackoffLm#getLogProb(int[], int, int)}.
+	 */
+	private float score(final long[] counts, final int numCounts, final long[] contextCounts, final int numContextCounts, final int ngramLength) {
+		float logProb = oovWordLogProb;
+		for (int length = 1; length <= ngramLength; ++length) {
+			if (length > numCounts || length - 1 > numContextCounts) return logProb;
+			final long contextCount = length == 1 ? unigramSum : contextCounts[length - 2];
+			logProb = StupidBackoffLm.scoreFromCounts(counts[length - 1], contextCount, alpha, ngramLength - length);
+		}
+		return logProb;
+	}
+
+	/**
+	 * The model is stored by the shard servers, so this is empty.
+	 */
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		return new MemoryUsage();
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (final LmScoringClient shard : shards)
+			shard.close();
+	}
+
+}
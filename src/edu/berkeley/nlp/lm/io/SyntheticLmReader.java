@@ -0,0 +1,477 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.MurmurHash;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+
+/**
+ * Generates a synthetic backoff language model of arbitrary size, for load and
+ * scale testing. The model is produced directly as a stream of n-grams (no text
+ * or counts are materialized), so it can be fed to the usual building code
+ * (e.g.
+ * {@link LmReaders#readArrayEncodedLmFromArpa(LmReader, boolean, WordIndexer, edu.berkeley.nlp.lm.ConfigOptions)}
+ * ), written as an ARPA file with a
+ * {@link KneserNeyFileWritingLmReaderCallback}, or written as a Google n-gram
+ * directory with {@link #writeGoogleNgramDir(String)}.
+ * <p>
+ * Word <code>r</code> (for <code>r = 1..vocabSize</code>, where word 1 is the
+ * end-of-sentence symbol) has a count proportional to
+ * <code>r^-zipfExponent</code>, and the least frequent word has a count of
+ * 100. Following Heaps' law, a context with count <code>c</code> has about
+ * <code>c^heapsExponent</code> distinct continuations. Continuations of
+ * unigrams are drawn from the same Zipf distribution; continuations of longer
+ * contexts are a random subset of the continuations of their suffix, so every
+ * prefix and suffix of an n-gram is also an n-gram. The count of an n-gram
+ * <code>c w</code> is drawn around <code>count(c) * count(c' w) / count(c')</code>,
+ * where <code>c'</code> is the suffix of <code>c</code>, and never exceeds the
+ * count of its prefix or suffix. Probabilities are estimated from these
+ * counts with interpolated absolute discounting, so every context is properly
+ * normalized and backoff weights are realistic.
+ * <p>
+ * Every choice is a function of the seed and the n-gram, so the output is
+ * deterministic and identical between passes over the same generator.
+ *
+ * @author adampauls
+ *
+ * @param <W>
+ */
+public class SyntheticLmReader<W> implements LmReader<ProbBackoffPair, ArpaLmReaderCallback<ProbBackoffPair>>
+{
+
+	private static final double DISCOUNT = 0.75;
+
+	private static final int START = 0;
+
+	private static final int END = 1;
+
+	private static final int NODE_CACHE_SIZE = 1 << 22;
+
+	private static final int GOOGLE_LINES_PER_FILE = 10 * 1000 * 1000;
+
+	private final int lmOrder;
+
+	private final int vocabSize;
+
+	private final double zipfExponent;
+
+	private final double heapsExponent;
+
+	private final int seed;
+
+	private final WordIndexer<W> wordIndexer;
+
+	/**
+	 * Cumulative Zipf weights for words <code>1..vocabSize</code>
+	 */
+	private final double[] cumulativeWeights;
+
+	private final double countScale;
+
+	private final long unigramCountSum;
+
+	/**
+	 * Continuations of unigrams are kept for the lifetime of the generator;
+	 * continuations of longer contexts are regenerated as needed.
+	 */
+	private final Node[] unigramNodes;
+
+	private int[] wordBuffer = new int[0];
+
+	private long[] countBuffer = new long[0];
+
+	/**
+	 * Direct-mapped cache of the continuations of longer contexts, which are
+	 * regenerated on a miss.
+	 */
+	private final Node[] nodeCache = new Node[NODE_CACHE_SIZE];
+
+	private final long[] nodeCacheKeys = new long[NODE_CACHE_SIZE];
+
+	/**
+	 *
+	 * @param lmOrder
+	 * @param vocabSize
+	 *            Number of words, including the end-of-sentence symbol (the
+	 *            start-of-sentence and unknown word symbols are added on top).
+	 * @param zipfExponent
+	 *            Skew of the word distribution (1.0 is typical of natural
+	 *            language)
+	 * @param heapsExponent
+	 *            A context with count <code>c</code> has about
+	 *            <code>c^heapsExponent</code> distinct continuations. This
+	 *            controls the growth of the model with n-gram order (0.6 is
+	 *            a reasonable value).
+	 * @param seed
+	 * @param wordIndexer
+	 */
+	public SyntheticLmReader(final int lmOrder, final int vocabSize, final double zipfExponent, final double heapsExponent, final int seed,
+		final WordIndexer<W> wordIndexer) {
+		if (lmOrder < 1) throw new IllegalArgumentException("LM order must be positive");
+		if (vocabSize < 2) throw new IllegalArgumentException("Vocabulary must contain at least two words");
+		if (zipfExponent <= 0.0) throw new IllegalArgumentException("Zipf exponent must be positive");
+		if (heapsExponent <= 0.0 || heapsExponent > 1.0) throw new IllegalArgumentException("Heaps exponent must be in (0,1]");
+		this.lmOrder = lmOrder;
+		this.vocabSize = vocabSize;
+		this.zipfExponent = zipfExponent;
+		this.heapsExponent = heapsExponent;
+		this.seed = seed;
+		this.wordIndexer = wordIndexer;
+		unigramNodes = new Node[vocabSize + 1];
+		cumulativeWeights = new double[vocabSize];
+		double sum = 0.0;
+		for (int r = 1; r <= vocabSize; ++r) {
+			sum += Math.pow(r, -zipfExponent);
+			cumulativeWeights[r - 1] = sum;
+		}
+		// rarest word gets a count of 100, but keep sums of counts well away from overflow
+		countScale = Math.min(100.0 * Math.pow(vocabSize, zipfExponent), 1e15);
+		long unigramCountSum_ = 0L;
+		for (int r = 1; r <= vocabSize; ++r)
+			unigramCountSum_ += getUnigramCount(r);
+		unigramCountSum = unigramCountSum_;
+	}
+
+	@Override
+	public void parse(final ArpaLmReaderCallback<ProbBackoffPair> callback) {
+		final int[] indices = addToIndexer(ArpaLmReader.START_SYMBOL, ArpaLmReader.END_SYMBOL, ArpaLmReader.UNK_SYMBOL);
+		Logger.startTrack("Generating synthetic language model");
+		final List<Long> numNGrams = new ArrayList<Long>();
+		for (final long numNgrams : countNgrams())
+			numNGrams.add(numNgrams);
+		callback.initWithLengths(numNGrams);
+		for (int ngramOrder = 0; ngramOrder < lmOrder; ++ngramOrder) {
+			final int[] scratch = new int[ngramOrder + 1];
+			Logger.logss("Generating " + numNGrams.get(ngramOrder) + " " + (ngramOrder + 1) + "-grams");
+			callback.handleNgramOrderStarted(ngramOrder + 1);
+			final int order = ngramOrder;
+			visitNgrams(order, new NgramVisitor()
+			{
+
+				@Override
+				public void visit(final int[] ngram, final int length, final long count) {
+					for (int i = 0; i < length; ++i)
+						scratch[i] = indices[ngram[i]];
+					final float prob = ngram[length - 1] == START ? -99 : (float) Math.log10(getProb(ngram, 0, length));
+					final float backoff = length == lmOrder ? 0.0f : (float) Math.log10(getNode(ngram, 0, length).backoff);
+					callback.call(scratch, 0, length, new ProbBackoffPair(prob, backoff), null);
+				}
+			});
+			if (order == 0) {
+				scratch[0] = indices[vocabSize + 1];
+				final float unkProb = (float) Math.log10(DISCOUNT * vocabSize / unigramCountSum / (vocabSize + 1));
+				callback.call(scratch, 0, 1, new ProbBackoffPair(unkProb, 0.0f), null);
+			}
+			callback.handleNgramOrderFinished(ngramOrder + 1);
+		}
+		Logger.endTrack();
+		callback.cleanup();
+	}
+
+	/**
+	 * Writes the counts of the generated n-grams in the layout of the Google
+	 * Web1T corpus, which can be read with {@link GoogleLmReader}.
+	 *
+	 * @param rootDir
+	 */
+	public void writeGoogleNgramDir(final String rootDir) {
+		final String[] words = getWords(GoogleLmReader.START_SYMBOL, GoogleLmReader.END_SYMBOL, GoogleLmReader.UNK_SYMBOL);
+		Logger.startTrack("Writing synthetic Google n-grams to " + rootDir);
+		for (int ngramOrder = 0; ngramOrder < lmOrder; ++ngramOrder) {
+			final File dir = new File(rootDir, (ngramOrder + 1) + "gms");
+			if (!dir.isDirectory() && !dir.mkdirs()) throw new RuntimeException("Could not create directory " + dir);
+			if (ngramOrder == 0) {
+				// counts decrease with word rank, so this is already sorted
+				final PrintWriter out = IOUtils.openOutHard(new File(dir, "vocab_cs.gz"));
+				out.println(words[END] + "\t" + getUnigramCount(END));
+				out.println(words[START] + "\t" + getUnigramCount(END));
+				for (int r = 2; r <= vocabSize; ++r)
+					out.println(words[r] + "\t" + getUnigramCount(r));
+				out.println(words[vocabSize + 1] + "\t" + getUnigramCount(vocabSize));
+				out.close();
+			} else {
+				final String prefix = (ngramOrder + 1) + "gm-";
+				visitNgrams(ngramOrder, new NgramVisitor()
+				{
+					private long numLines = 0;
+
+					private PrintWriter out = null;
+
+					@Override
+					public void visit(final int[] ngram, final int length, final long count) {
+						if (numLines % GOOGLE_LINES_PER_FILE == 0) {
+							if (out != null) out.close();
+							out = IOUtils.openOutHard(new File(dir, String.format("%s%04d.gz", prefix, numLines / GOOGLE_LINES_PER_FILE)));
+						}
+						numLines++;
+						final StringBuilder sb = new StringBuilder();
+						for (int i = 0; i < length; ++i) {
+							if (i > 0) sb.append(' ');
+							sb.append(words[ngram[i]]);
+						}
+						sb.append('\t').append(count);
+						out.println(sb);
+					}
+
+					@Override
+					public void finish() {
+						if (out != null) out.close();
+					}
+				});
+			}
+		}
+		Logger.endTrack();
+	}
+
+	/**
+	 * Number of n-grams of each order which will be generated.
+	 *
+	 * @return
+	 */
+	public long[] countNgrams() {
+		final long[] numNgrams = new long[lmOrder];
+		numNgrams[0] = vocabSize + 2;
+		if (lmOrder > 1) {
+			final int[] context = new int[lmOrder - 1];
+			for (int r = 0; r <= vocabSize; ++r) {
+				context[0] = r;
+				countNgrams(context, 1, numNgrams);
+			}
+		}
+		return numNgrams;
+	}
+
+	private void countNgrams(final int[] context, final int contextLength, final long[] numNgrams) {
+		final Node node = getNode(context, 0, contextLength);
+		numNgrams[contextLength] += node.words.length;
+		if (contextLength == context.length) return;
+		for (int j = 0; j < node.words.length; ++j) {
+			context[contextLength] = node.words[j];
+			countNgrams(context, contextLength + 1, numNgrams);
+		}
+	}
+
+	private int[] addToIndexer(final String startSymbol, final String endSymbol, final String unkSymbol) {
+		final String[] words = getWords(startSymbol, endSymbol, unkSymbol);
+		final int[] indices = new int[words.length];
+		for (int i = 0; i < words.length; ++i)
+			indices[i] = wordIndexer.getOrAddIndexFromString(words[i]);
+		wordIndexer.setStartSymbol(wordIndexer.getWord(indices[START]));
+		wordIndexer.setEndSymbol(wordIndexer.getWord(indices[END]));
+		wordIndexer.setUnkSymbol(wordIndexer.getWord(indices[vocabSize + 1]));
+		return indices;
+	}
+
+	private String[] getWords(final String startSymbol, final String endSymbol, final String unkSymbol) {
+		final String[] words = new String[vocabSize + 2];
+		words[START] = startSymbol;
+		words[END] = endSymbol;
+		for (int r = 2; r <= vocabSize; ++r)
+			words[r] = "w" + r;
+		words[vocabSize + 1] = unkSymbol;
+		return words;
+	}
+
+	private static abstract class NgramVisitor
+	{
+		public abstract void visit(int[] ngram, int length, long count);
+
+		public void finish() {
+		}
+	}
+
+	/**
+	 * Visits all n-grams of a given order (excluding the unknown word) in
+	 * depth-first order.
+	 */
+	private void visitNgrams(final int ngramOrder, final NgramVisitor visitor) {
+		final int[] ngram = new int[ngramOrder + 1];
+		for (int r = 0; r <= vocabSize; ++r) {
+			ngram[0] = r;
+			if (ngramOrder == 0)
+				visitor.visit(ngram, 1, getUnigramCount(r == START ? END : r));
+			else
+				visitNgrams(ngram, 1, visitor);
+		}
+		visitor.finish();
+	}
+
+	private void visitNgrams(final int[] ngram, final int contextLength, final NgramVisitor visitor) {
+		final Node node = getNode(ngram, 0, contextLength);
+		for (int j = 0; j < node.words.length; ++j) {
+			ngram[contextLength] = node.words[j];
+			if (contextLength + 1 == ngram.length)
+				visitor.visit(ngram, ngram.length, node.counts[j]);
+			else
+				visitNgrams(ngram, contextLength + 1, visitor);
+		}
+	}
+
+	private long getUnigramCount(final int r) {
+		return Math.max(1L, Math.round(countScale * Math.pow(r, -zipfExponent)));
+	}
+
+	/**
+	 * Linear probability of the last word of an n-gram given the others.
+	 */
+	private double getProb(final int[] ngram, final int startPos, final int endPos) {
+		if (endPos - startPos == 1) {
+			final int w = ngram[startPos];
+			return (getUnigramCount(w) - DISCOUNT + DISCOUNT * vocabSize / (vocabSize + 1.0)) / unigramCountSum;
+		}
+		final Node node = getNode(ngram, startPos, endPos - 1);
+		final long count = node.getCount(ngram[endPos - 1]);
+		return (count - DISCOUNT) / node.countSum + node.backoff * getProb(ngram, startPos + 1, endPos);
+	}
+
+	/**
+	 * Gets (or builds) the continuations of a context.
+	 */
+	private Node getNode(final int[] ngram, final int startPos, final int endPos) {
+		if (endPos - startPos == 1) {
+			final int r = ngram[startPos];
+			if (unigramNodes[r] == null) unigramNodes[r] = buildNode(ngram, startPos, endPos);
+			return unigramNodes[r];
+		}
+		final long hash = MurmurHash.hash64(ngram, startPos, endPos);
+		final int index = (int) (hash & (NODE_CACHE_SIZE - 1));
+		Node node = nodeCacheKeys[index] == hash ? nodeCache[index] : null;
+		if (node == null || !node.isContext(ngram, startPos, endPos)) {
+			node = buildNode(ngram, startPos, endPos);
+			node.context = Arrays.copyOfRange(ngram, startPos, endPos);
+			nodeCache[index] = node;
+			nodeCacheKeys[index] = hash;
+		}
+		return node;
+	}
+
+	private Node buildNode(final int[] ngram, final int startPos, final int endPos) {
+		final int length = endPos - startPos;
+		if (length >= lmOrder || ngram[endPos - 1] == END) return new Node(new int[0], new long[0], 0L);
+		if (length == 1) {
+			final int r = ngram[startPos];
+			final int rank = r == START ? 1 : r;
+			final int numDraws = (int) Math.max(1L, Math.min(vocabSize, Math.round(getNumContinuations(getUnigramCount(rank)))));
+			final Random random = new Random(MurmurHash.hashOneLong(r, seed));
+			final int[] draws = new int[numDraws];
+			for (int i = 0; i < numDraws; ++i)
+				draws[i] = sampleWord(random);
+			Arrays.sort(draws);
+			int numWords = 0;
+			for (int i = 0; i < numDraws; ++i) {
+				if (i == 0 || draws[i] != draws[i - 1]) draws[numWords++] = draws[i];
+			}
+			final int[] words = Arrays.copyOf(draws, numWords);
+			final long[] counts = new long[numWords];
+			final long contextCount = getUnigramCount(rank);
+			final int[] bigram = new int[] { r, 0 };
+			for (int j = 0; j < numWords; ++j) {
+				bigram[1] = words[j];
+				counts[j] = getCount(bigram, 0, 2, contextCount, unigramCountSum, getUnigramCount(words[j]));
+			}
+			return new Node(words, counts, contextCount);
+		}
+		final Node suffixNode = getNode(ngram, startPos + 1, endPos);
+		final long contextCount = getNode(ngram, startPos, endPos - 1).getCount(ngram[endPos - 1]);
+		final double keepProbability = getNumContinuations(contextCount) / suffixNode.words.length;
+		final int[] scratch = Arrays.copyOfRange(ngram, startPos, endPos + 1);
+		if (wordBuffer.length < suffixNode.words.length) {
+			wordBuffer = new int[suffixNode.words.length];
+			countBuffer = new long[suffixNode.words.length];
+		}
+		// skip geometrically through the continuations of the suffix rather than flipping a coin for each
+		final Random random = new Random(MurmurHash.hash64(ngram, startPos, endPos, seed + 1));
+		final double logSkipProbability = keepProbability >= 1.0 ? Double.NEGATIVE_INFINITY : Math.log(1.0 - keepProbability);
+		int numWords = 0;
+		for (int j = nextKept(random, logSkipProbability, -1); j < suffixNode.words.length; j = nextKept(random, logSkipProbability, j)) {
+			scratch[length] = suffixNode.words[j];
+			wordBuffer[numWords] = suffixNode.words[j];
+			countBuffer[numWords] = getCount(scratch, 0, length + 1, contextCount, suffixNode.contextCount, suffixNode.counts[j]);
+			numWords++;
+		}
+		return new Node(Arrays.copyOf(wordBuffer, numWords), Arrays.copyOf(countBuffer, numWords), contextCount);
+	}
+
+	private static int nextKept(final Random random, final double logSkipProbability, final int j) {
+		final double skip = Math.floor(Math.log(1.0 - random.nextDouble()) / logSkipProbability);
+		return (int) Math.min(Integer.MAX_VALUE, j + 1 + skip);
+	}
+
+	/**
+	 * Heaps' law
+	 */
+	private double getNumContinuations(final long contextCount) {
+		return Math.pow(contextCount, heapsExponent);
+	}
+
+	private long getCount(final int[] ngram, final int startPos, final int endPos, final long contextCount, final long suffixContextCount,
+		final long suffixCount) {
+		final double expected = contextCount * (double) suffixCount / suffixContextCount;
+		final double noise = 2.0 * getUniform(ngram, startPos, endPos, 2);
+		return Math.max(1L, Math.min(Math.min(contextCount, suffixCount), (long) (expected * noise)));
+	}
+
+	private double getUniform(final int[] ngram, final int startPos, final int endPos, final int salt) {
+		return (MurmurHash.hash64(ngram, startPos, endPos, seed + salt) >>> 11) * 0x1.0p-53;
+	}
+
+	private int sampleWord(final Random random) {
+		final double u = random.nextDouble() * cumulativeWeights[vocabSize - 1];
+		int index = Arrays.binarySearch(cumulativeWeights, u);
+		if (index < 0) index = -index - 1;
+		return Math.min(index, vocabSize - 1) + 1;
+	}
+
+	private static final class Node
+	{
+		final int[] words;
+
+		final long[] counts;
+
+		/**
+		 * Count of the context itself
+		 */
+		final long contextCount;
+
+		final double countSum;
+
+		/**
+		 * Linear (not log) backoff weight
+		 */
+		final double backoff;
+
+		int[] context;
+
+		public Node(final int[] words, final long[] counts, final long contextCount) {
+			this.words = words;
+			this.counts = counts;
+			this.contextCount = contextCount;
+			long sum = 0L;
+			for (final long count : counts)
+				sum += count;
+			countSum = sum;
+			backoff = words.length == 0 ? 1.0 : DISCOUNT * words.length / countSum;
+		}
+
+		boolean isContext(final int[] ngram, final int startPos, final int endPos) {
+			if (context.length != endPos - startPos) return false;
+			for (int i = 0; i < context.length; ++i)
+				if (context[i] != ngram[startPos + i]) return false;
+			return true;
+		}
+
+		long getCount(final int word) {
+			final int index = Arrays.binarySearch(words, word);
+			if (index < 0) throw new RuntimeException("Generated n-gram is missing a prefix");
+			return counts[index];
+		}
+	}
+
+}
@@ -4,6 +4,7 @@ import java.io.Serializable;
 
 import edu.berkeley.nlp.lm.array.LongArray;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 
 class CompressedMap implements Serializable
 {
@@ -21,6 +22,13 @@ class CompressedMap implements Serializable
 
 	private long numKeys;
 
+	/**
+	 * Bits used by compressed key and value deltas (excluding block headers)
+	 */
+	long numKeyBits;
+
+	long numValueBits;
+
 	public long add(final long key) {
 		uncompressedKeys.addWithFixedCapacity(key);
 		return uncompressedKeys.size();
@@ -47,4 +55,13 @@ class CompressedMap implements Serializable
 		return uncompressedKeys;
 	}
 
+	public void addMemoryUsage(final MemoryUsage usage, final int ngramOrder) {
+		if (uncompressedKeys != null) usage.addBytes(ngramOrder, MemoryUsage.Component.KEYS, uncompressedKeys.getAllocatedBytes());
+		if (compressedKeys != null) {
+			usage.addBits(ngramOrder, MemoryUsage.Component.KEYS, numKeyBits);
+			usage.addBits(ngramOrder, MemoryUsage.Component.VALUES, numValueBits);
+			usage.addBits(ngramOrder, MemoryUsage.Component.OTHER, compressedKeys.getAllocatedBytes() * Byte.SIZE - numKeyBits - numValueBits);
+		}
+	}
+
 }
\ No newline at end of file
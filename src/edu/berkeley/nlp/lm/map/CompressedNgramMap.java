@@ -12,9 +12,11 @@ import edu.berkeley.nlp.lm.bits.BitStream;
 import edu.berkeley.nlp.lm.bits.VariableLengthBitCompressor;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.LoadEvents;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.values.CompressibleValueContainer;
 
-public class CompressedNgramMap<T> extends AbstractNgramMap<T> implements Serializable
+public class CompressedNgramMap<T> extends AbstractNgramMap<T> implements Serializable, PerOrderStorage
 {
 
 	/**
@@ -153,14 +155,15 @@ public class CompressedNgramMap<T> extends AbstractNgramMap<T> implements Serial
 
 	private void compress(final int ngramOrder) {
 		if (ngramOrder > 0) {
-			(maps[ngramOrder]).compressedKeys = compress(maps[ngramOrder].getUncompressedKeys(), maps[ngramOrder].size(), ngramOrder);
+			(maps[ngramOrder]).compressedKeys = compress(maps[ngramOrder].getUncompressedKeys(), maps[ngramOrder].size(), ngramOrder, maps[ngramOrder]);
 			((CompressibleValueContainer<T>) values).clearStorageAfterCompression(ngramOrder);
 			maps[ngramOrder].clearUncompressedKeys();
 		}
 	}
 
-	private LongArray compress(final LongArray uncompressed, final long uncompressedSize, final int ngramOrder) {
+	private LongArray compress(final LongArray uncompressed, final long uncompressedSize, final int ngramOrder, final CompressedMap map) {
 		Logger.startTrack("Compressing");
+		final LoadEvents.Phase phase = LoadEvents.start("Compressing", ngramOrder);
 		final LongArray compressedLongArray = LongArray.StaticMethods.newLongArray(Long.MAX_VALUE, uncompressedSize >>> 2);
 
 		long uncompressedPos = 0;
@@ -250,9 +253,14 @@ public class CompressedNgramMap<T> extends AbstractNgramMap<T> implements Serial
 			writeBlockToArray(currBlockBits, compressedLongArray);
 		}
 		compressedLongArray.trim();
+		map.numKeyBits = totalNumKeyBits;
+		map.numValueBits = totalNumValueBits;
 
 		logCompressionInfo(uncompressedSize, compressedLongArray, totalNumKeyBits, totalNumValueBits);
 
+		phase.addNgrams(uncompressedSize);
+		phase.addBytes(compressedLongArray.getAllocatedBytes());
+		LoadEvents.end(phase);
 		Logger.endTrack();
 		return compressedLongArray;
 	}
@@ -527,6 +535,12 @@ public class CompressedNgramMap<T> extends AbstractNgramMap<T> implements Serial
 	public void initWithLengths(final List<Long> numNGrams) {
 	}
 
+	@Override
+	public void addStorageForOrder(final int ngramOrder, final List<Object> storage) {
+		if (maps[ngramOrder] != null) storage.add(maps[ngramOrder]);
+		if (values instanceof PerOrderStorage) ((PerOrderStorage) values).addStorageForOrder(ngramOrder, storage);
+	}
+
 	@Override
 	public int getMaxNgramOrder() {
 		return maps.length;
@@ -600,6 +614,21 @@ public class CompressedNgramMap<T> extends AbstractNgramMap<T> implements Serial
 		return null;
 	}
 
+	/**
+	 * Compressed blocks are split into the bits used for key and value deltas;
+	 * block headers (which include the first key and value of each block) and
+	 * padding are counted as {@link MemoryUsage.Component#OTHER}.
+	 */
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		final MemoryUsage usage = new MemoryUsage();
+		for (int ngramOrder = 0; ngramOrder < maps.length; ++ngramOrder) {
+			if (maps[ngramOrder] != null) maps[ngramOrder].addMemoryUsage(usage, ngramOrder);
+		}
+		values.addMemoryUsage(usage);
+		return usage;
+	}
+
 	@Override
 	public void clearStorage() {
 		for (int i = 0; i < maps.length; ++i)
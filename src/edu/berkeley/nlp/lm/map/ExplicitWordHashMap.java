@@ -6,6 +6,7 @@ import java.util.Iterator;
 import edu.berkeley.nlp.lm.array.CustomWidthArray;
 import edu.berkeley.nlp.lm.array.LongArray;
 import edu.berkeley.nlp.lm.collections.Iterators;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
 import edu.berkeley.nlp.lm.util.MurmurHash;
 
@@ -168,4 +169,11 @@ final class ExplicitWordHashMap implements Serializable, HashMap
 		return true;
 	}
 
+	@Override
+	public void addMemoryUsage(final MemoryUsage usage, final int ngramOrder) {
+		final long keyBits = numFilled * Long.SIZE;
+		usage.addBits(ngramOrder, MemoryUsage.Component.KEYS, keyBits);
+		usage.addBits(ngramOrder, MemoryUsage.Component.EMPTY_SLOTS, keys.getAllocatedBytes() * Byte.SIZE - keyBits);
+	}
+
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import java.util.Iterator;
 
 import edu.berkeley.nlp.lm.array.CustomWidthArray;
 import edu.berkeley.nlp.lm.array.LongArray;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 
 interface HashMap
 {
@@ -29,4 +30,14 @@ interface HashMap
 
 	public boolean hasContexts(int word);
 
+	/**
+	 * Adds the memory used by keys (and any other storage owned by this map)
+	 * to a breakdown. Values stored inline in the key array are added by the
+	 * value container.
+	 * 
+	 * @param usage
+	 * @param ngramOrder
+	 */
+	public void addMemoryUsage(MemoryUsage usage, int ngramOrder);
+
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package edu.berkeley.nlp.lm.map;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import edu.berkeley.nlp.lm.ConfigOptions;
 import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel.LmContextInfo;
@@ -12,7 +13,9 @@ import edu.berkeley.nlp.lm.collections.Iterators;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
 import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.LoadEvents;
 import edu.berkeley.nlp.lm.util.LongRef;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.values.ValueContainer;
 
 /**
@@ -21,7 +24,7 @@ import edu.berkeley.nlp.lm.values.ValueContainer;
  * 
  * @param <T>
  */
-public final class HashNgramMap<T> extends AbstractNgramMap<T> implements ContextEncodedNgramMap<T>
+public final class HashNgramMap<T> extends AbstractNgramMap<T> implements ContextEncodedNgramMap<T>, PerOrderStorage
 {
 
 	/**
@@ -48,6 +51,17 @@ public final class HashNgramMap<T> extends AbstractNgramMap<T> implements Contex
 
 	private final boolean storeSuffixOffsets;
 
+	private static final int NUM_FALSE_POSITIVE_SAMPLES = 100000;
+
+	/**
+	 * Built by {@link #indexSuccessors()}. For each order, the offsets of all
+	 * n-grams of that order grouped by the offset of their context, and for
+	 * each context offset, the position of its first n-gram in that list.
+	 */
+	private CustomWidthArray[] successorOffsets = null;
+
+	private CustomWidthArray[] successorStarts = null;
+
 	public static <T> HashNgramMap<T> createImplicitWordHashNgramMap(final ValueContainer<T> values, final ConfigOptions opts,
 		final LongArray[] numNgramsForEachWord, final boolean reversed) {
 		return new HashNgramMap<T>(values, opts, numNgramsForEachWord, reversed);
@@ -59,6 +73,9 @@ public final class HashNgramMap<T> extends AbstractNgramMap<T> implements Contex
 		this.maxLoadFactor = opts.hashTableLoadFactor;
 		this.storeSuffixOffsets = values.storeSuffixoffsets();
 		final int maxNgramOrder = numNgramsForEachWord.length;
+		if (opts.numFingerprintBits > 0 && (!reversed || storeSuffixOffsets))
+			throw new RuntimeException("Fingerprinted hash maps only support reversed tries without suffix offsets (i.e. array-encoded LMs)");
+		if (opts.numFingerprintBits >= Long.SIZE) throw new RuntimeException("Fingerprints must be shorter than " + Long.SIZE + " bits");
 		explicitMaps = null;
 		isExplicit = false;
 		implicitMaps = new ImplicitWordHashMap[maxNgramOrder - 1];
@@ -77,7 +94,7 @@ public final class HashNgramMap<T> extends AbstractNgramMap<T> implements Contex
 		for (int ngramOrder = 1; ngramOrder < maxNgramOrder; ++ngramOrder) {
 			final long numNgramsForPreviousOrder = ngramOrder == 1 ? numWords : implicitMaps[ngramOrder - 2].getCapacity();
 			implicitMaps[ngramOrder - 1] = new ImplicitWordHashMap(numNgramsForEachWord[ngramOrder], wordRanges, ngramOrder, maxNgramOrder - 1,
-				numNgramsForPreviousOrder, (int) numWords, this, fitsInInt, !opts.storeRankedProbBackoffs);
+				numNgramsForPreviousOrder, (int) numWords, this, fitsInInt, !opts.storeRankedProbBackoffs, opts.numFingerprintBits);
 			values.setSizeAtLeast(implicitMaps[ngramOrder - 1].getCapacity(), ngramOrder);
 		}
 	}
@@ -408,6 +425,7 @@ public final class HashNgramMap<T> extends AbstractNgramMap<T> implements Contex
 
 	private void rehash(final int changedNgramOrder, final long newCapacity, final int numAdding) {
 		assert isExplicit;
+		final LoadEvents.Phase phase = LoadEvents.start("Rehashing", changedNgramOrder);
 		final long[] newCapacities = new long[explicitMaps.length];
 		Arrays.fill(newCapacities, -1L);
 
@@ -464,6 +482,10 @@ public final class HashNgramMap<T> extends AbstractNgramMap<T> implements Contex
 		System.arraycopy(newMap.explicitMaps, 0, explicitMaps, 0, newMap.explicitMaps.length);
 		values.setFromOtherValues(newValues);
 		values.setMap(this);
+		for (int ngramOrder = 0; ngramOrder < explicitMaps.length && explicitMaps[ngramOrder] != null; ++ngramOrder)
+			phase.addNgrams(explicitMaps[ngramOrder].size());
+		phase.addBytes(getMemoryUsage().getTotalBytes());
+		LoadEvents.end(phase);
 
 	}
 
@@ -521,13 +543,40 @@ public final class HashNgramMap<T> extends AbstractNgramMap<T> implements Contex
 
 	@Override
 	public void trim() {
+		final LoadEvents.Phase phase = LoadEvents.start("Trimming");
 		for (int ngramOrder = 0; ngramOrder < getMaxNgramOrder(); ++ngramOrder) {
 			final HashMap currMap = getMap(ngramOrder);
 			if (currMap == null) break;
 			values.trimAfterNgram(ngramOrder, currMap.getCapacity());
 			Logger.logss("Load factor for " + (ngramOrder + 1) + ": " + currMap.getLoadFactor());
+			if (ngramOrder > 0 && opts.numFingerprintBits > 0) {
+				final ImplicitWordHashMap implicitMap = implicitMaps[ngramOrder - 1];
+				Logger.logss("Measured false positive rate for " + (ngramOrder + 1) + ": " + getFalsePositiveRate(ngramOrder));
+				final long numCollisions = implicitMap.getNumFingerprintCollisions();
+				if (numCollisions > 0)
+					Logger.warn(numCollisions + " n-grams of order " + (ngramOrder + 1)
+						+ " replaced an n-gram with the same fingerprint while building (more fingerprint bits make this less likely)");
+			}
 		}
 		values.trim();
+		for (int ngramOrder = 0; ngramOrder < getMaxNgramOrder(); ++ngramOrder)
+			phase.addNgrams(getNumNgrams(ngramOrder));
+		phase.addBytes(getMemoryUsage().getTotalBytes());
+		LoadEvents.end(phase);
+	}
+
+	/**
+	 * Measures the probability that looking up an n-gram of the given order
+	 * which is not in the map succeeds anyway. This is 0 unless
+	 * {@link ConfigOptions#numFingerprintBits} was positive when the map was
+	 * built.
+	 * 
+	 * @param ngramOrder
+	 * @return
+	 */
+	public double getFalsePositiveRate(final int ngramOrder) {
+		if (isExplicit || ngramOrder == 0) return 0.0;
+		return implicitMaps[ngramOrder - 1].estimateFalsePositiveRate(NUM_FALSE_POSITIVE_SAMPLES, new Random(ngramOrder));
 	}
 
 	/**
@@ -572,13 +621,30 @@ public final class HashNgramMap<T> extends AbstractNgramMap<T> implements Contex
 		return explicitMaps == null ? (implicitMaps.length + 1) : explicitMaps.length;
 	}
 
+	/**
+	 * @param ngramOrder
+	 * @return One more than the largest offset of an n-gram of this order, or
+	 *         0 if there are no n-grams of this order.
+	 */
+	public long getCapacity(final int ngramOrder) {
+		final HashMap map = getMap(ngramOrder);
+		return map == null ? 0L : map.getCapacity();
+	}
+
 	@Override
 	public long getNumNgrams(final int ngramOrder) {
-		return getMap(ngramOrder).size();
+		final HashMap map = getMap(ngramOrder);
+		return map == null ? 0L : map.size();
 	}
 
+	/**
+	 * Not supported if {@link ConfigOptions#numFingerprintBits} was positive
+	 * when the map was built, since keys cannot be recovered from
+	 * fingerprints.
+	 */
 	@Override
 	public Iterable<Entry<T>> getNgramsForOrder(final int ngramOrder) {
+		if (opts.numFingerprintBits > 0) throw new RuntimeException("Cannot enumerate the n-grams of a fingerprinted map (e.g. to prune or wrap it)");
 		final HashMap map = getMap(ngramOrder);
 		if (map == null)
 			return Collections.emptyList();
@@ -604,6 +670,102 @@ public final class HashNgramMap<T> extends AbstractNgramMap<T> implements Contex
 			return map.keys();
 	}
 
+	/**
+	 * Builds an index which allows enumerating the n-grams which extend a
+	 * given context by one word (to the right if the map is not reversed, or
+	 * to the left if it is) in time proportional to their number, using
+	 * {@link #getNumSuccessors(long, int)} and
+	 * {@link #getSuccessorOffset(long, int, long)}. The index uses roughly
+	 * <code>log(n)</code> bits per n-gram and per context, and must be rebuilt
+	 * if n-grams are added afterwards.
+	 */
+	public void indexSuccessors() {
+		if (opts.numFingerprintBits > 0) throw new RuntimeException("Cannot enumerate successors in a fingerprinted map");
+		int numOrders = 0;
+		while (numOrders < getMaxNgramOrder() && getMap(numOrders) != null)
+			numOrders++;
+		final CustomWidthArray[] offsets = new CustomWidthArray[numOrders];
+		final CustomWidthArray[] starts = new CustomWidthArray[numOrders];
+		for (int ngramOrder = 0; ngramOrder < numOrders; ++ngramOrder) {
+			final long numContexts = ngramOrder == 0 ? 1 : getCapacity(ngramOrder - 1);
+			final long numNgrams = getNumNgrams(ngramOrder);
+			final CustomWidthArray currStarts = new CustomWidthArray(numContexts + 1, CustomWidthArray.numBitsNeeded(numNgrams));
+			currStarts.fill(0L, numContexts + 1);
+			for (final long offset : getNgramOffsetsForOrder(ngramOrder))
+				currStarts.incrementCount(contextOfSuccessor(offset, ngramOrder) + 1, 1L);
+			for (long context = 1; context <= numContexts; ++context)
+				currStarts.set(context, currStarts.get(context) + currStarts.get(context - 1));
+			final CustomWidthArray currOffsets = new CustomWidthArray(numNgrams, CustomWidthArray.numBitsNeeded(getCapacity(ngramOrder)));
+			if (numNgrams > 0) currOffsets.setAndGrowIfNeeded(numNgrams - 1, 0L);
+			// use the start of each context as a cursor, which leaves it at the start of the next context
+			for (final long offset : getNgramOffsetsForOrder(ngramOrder)) {
+				final long context = contextOfSuccessor(offset, ngramOrder);
+				final long pos = currStarts.get(context);
+				currOffsets.set(pos, offset);
+				currStarts.set(context, pos + 1);
+			}
+			for (long context = numContexts; context > 0; --context)
+				currStarts.set(context, currStarts.get(context - 1));
+			currStarts.set(0, 0L);
+			offsets[ngramOrder] = currOffsets;
+			starts[ngramOrder] = currStarts;
+		}
+		successorOffsets = offsets;
+		successorStarts = starts;
+	}
+
+	private long contextOfSuccessor(final long offset, final int ngramOrder) {
+		return ngramOrder == 0 ? 0L : getNextContextOffset(offset, ngramOrder);
+	}
+
+	public boolean hasSuccessorIndex() {
+		return successorOffsets != null;
+	}
+
+	/**
+	 * The number of n-grams which extend a context by one word (see
+	 * {@link #indexSuccessors()}). The empty context (order -1) is extended by
+	 * every unigram.
+	 * 
+	 * @param contextOffset
+	 * @param contextOrder
+	 * @return
+	 */
+	public long getNumSuccessors(final long contextOffset, final int contextOrder) {
+		final int ngramOrder = contextOrder + 1;
+		if (ngramOrder >= successorStarts.length) return 0L;
+		final long context = ngramOrder == 0 ? 0L : contextOffset;
+		final CustomWidthArray starts = successorStarts[ngramOrder];
+		return starts.get(context + 1) - starts.get(context);
+	}
+
+	/**
+	 * The offset (of order <code>contextOrder + 1</code>) of the
+	 * <code>i</code>th n-gram extending a context. Its word is
+	 * {@link #getNextWord(long, int)}.
+	 * 
+	 * @param contextOffset
+	 * @param contextOrder
+	 * @param i
+	 * @return
+	 */
+	public long getSuccessorOffset(final long contextOffset, final int contextOrder, final long i) {
+		final int ngramOrder = contextOrder + 1;
+		final long context = ngramOrder == 0 ? 0L : contextOffset;
+		return successorOffsets[ngramOrder].get(successorStarts[ngramOrder].get(context) + i);
+	}
+
+	@Override
+	public void addStorageForOrder(final int ngramOrder, final List<Object> storage) {
+		final HashMap map = getMap(ngramOrder);
+		if (map != null) storage.add(map);
+		if (successorOffsets != null && ngramOrder < successorOffsets.length) {
+			storage.add(successorOffsets[ngramOrder]);
+			storage.add(successorStarts[ngramOrder]);
+		}
+		if (values instanceof PerOrderStorage) ((PerOrderStorage) values).addStorageForOrder(ngramOrder, storage);
+	}
+
 	private HashMap getMap(int ngramOrder) {
 		if (explicitMaps == null) { return ngramOrder == 0 ? implicitUnigramMap : implicitMaps[ngramOrder - 1]; }
 		if (ngramOrder >= explicitMaps.length) {
@@ -657,6 +819,24 @@ public final class HashNgramMap<T> extends AbstractNgramMap<T> implements Contex
 		return (ngramOrder == 0 || isExplicit) ? null : implicitMaps[ngramOrder - 1].keys;
 	}
 
+	@Override
+	public MemoryUsage getMemoryUsage() {
+		final MemoryUsage usage = new MemoryUsage();
+		for (int ngramOrder = 0; ngramOrder < getMaxNgramOrder(); ++ngramOrder) {
+			final HashMap currMap = getMap(ngramOrder);
+			if (currMap == null) break;
+			currMap.addMemoryUsage(usage, ngramOrder);
+		}
+		if (successorOffsets != null) {
+			for (int ngramOrder = 0; ngramOrder < successorOffsets.length; ++ngramOrder) {
+				usage.addBytes(ngramOrder, MemoryUsage.Component.OTHER, successorOffsets[ngramOrder].getAllocatedBytes());
+				usage.addBytes(ngramOrder, MemoryUsage.Component.OTHER, successorStarts[ngramOrder].getAllocatedBytes());
+			}
+		}
+		values.addMemoryUsage(usage);
+		return usage;
+	}
+
 	@Override
 	public void clearStorage() {
 		if (implicitMaps != null) {
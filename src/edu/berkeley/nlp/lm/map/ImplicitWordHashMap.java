@@ -2,6 +2,7 @@ package edu.berkeley.nlp.lm.map;
 
 import java.io.Serializable;
 import java.util.Iterator;
+import java.util.Random;
 
 import edu.berkeley.nlp.lm.array.CustomWidthArray;
 import edu.berkeley.nlp.lm.array.LongArray;
@@ -9,10 +10,19 @@ import edu.berkeley.nlp.lm.bits.BitUtils;
 import edu.berkeley.nlp.lm.collections.Iterators;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
 import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.util.MurmurHash;
 
 /**
  * Low-level hash map which stored context-encoded parent pointers in a trie.
+ * <p>
+ * If <code>numFingerprintBits</code> is positive, only a hash fingerprint of
+ * each key is stored. Lookups of keys not in the map then succeed with a small
+ * probability (roughly the average probe length divided by
+ * <code>2^numFingerprintBits</code>), and keys cannot be recovered from
+ * offsets. Collisions also lose n-grams: a key whose fingerprint is found
+ * while probing for its slot takes over that slot, replacing the value of the
+ * n-gram already there. Their number is logged when the map is trimmed.
  * 
  * @author adampauls
  * 
@@ -50,8 +60,13 @@ final class ImplicitWordHashMap implements Serializable, HashMap
 
 	private final int numSuffixBits;
 
+	private final int numFingerprintBits;
+
+	private long numFingerprintCollisions = 0;
+
 	public ImplicitWordHashMap(final LongArray numNgramsForEachWord, final long[] wordRanges, final int ngramOrder, final int maxNgramOrder,
-		final long numNgramsForPreviousOrder, final int totalNumWords, final HashNgramMap<?> ngramMap, final boolean fitsInInt, final boolean storeWords) {
+		final long numNgramsForPreviousOrder, final int totalNumWords, final HashNgramMap<?> ngramMap, final boolean fitsInInt, final boolean storeWords,
+		final int numFingerprintBits) {
 		this.ngramOrder = ngramOrder;
 		this.ngramMap = ngramMap;
 		assert ngramOrder >= 1;
@@ -59,11 +74,12 @@ final class ImplicitWordHashMap implements Serializable, HashMap
 		this.totalNumWords = totalNumWords;
 		this.numWords = (int) numNgramsForEachWord.size();
 		this.fitsInInt = fitsInInt;
+		this.numFingerprintBits = numFingerprintBits;
 
 		this.wordRanges = storeWords ? null : wordRanges;
 		final long totalNumNgrams = setWordRanges(numNgramsForEachWord, numWords);
 		numSuffixBits = CustomWidthArray.numBitsNeeded(numNgramsForPreviousOrder + 1);
-		final int numBitsHere = numSuffixBits + (storeWords ? CustomWidthArray.numBitsNeeded(totalNumWords) : 0);
+		final int numBitsHere = numFingerprintBits > 0 ? numFingerprintBits : (numSuffixBits + (storeWords ? CustomWidthArray.numBitsNeeded(totalNumWords) : 0));
 		keys = new CustomWidthArray(totalNumNgrams, numBitsHere, numBitsHere + ngramMap.getValues().numValueBits(ngramOrder));
 		keys.fill(EMPTY_KEY, totalNumNgrams);
 		numFilled = 0;
@@ -77,7 +93,9 @@ final class ImplicitWordHashMap implements Serializable, HashMap
 	@Override
 	public long put(final long key) {
 		final long i = linearSearch(key, true);
-		if (keys.get(i) == EMPTY_KEY) numFilled++;
+		if (keys.get(i) == EMPTY_KEY)
+			numFilled++;
+		else if (numFingerprintBits > 0) numFingerprintCollisions++;
 		setKey(i, key);
 
 		return i;
@@ -103,10 +121,25 @@ final class ImplicitWordHashMap implements Serializable, HashMap
 	}
 
 	private void setKey(final long index, final long putKey) {
-		final long contextOffset = wordRanges == null ? shrinkKey(putKey) : ngramMap.contextOffsetOf(putKey);
+		keys.set(index, storedKey(putKey));
+
+	}
+
+	/**
+	 * The value stored in the key array for a key (never
+	 * <code>EMPTY_KEY</code>).
+	 */
+	private long storedKey(final long key) {
+		if (numFingerprintBits > 0) return fingerprint(key);
+		final long contextOffset = wordRanges == null ? shrinkKey(key) : ngramMap.contextOffsetOf(key);
 		assert contextOffset >= 0;
-		keys.set(index, contextOffset + 1);
+		return contextOffset + 1;
+	}
 
+	private long fingerprint(final long key) {
+		// use a different seed than for the position of the key, so that fingerprints are independent of positions
+		final long hash = BitUtils.abs(MurmurHash.hashOneLong(key, 0x5bd1e995));
+		return 1 + hash % ((1L << numFingerprintBits) - 1);
 	}
 
 	/**
@@ -145,13 +178,12 @@ final class ImplicitWordHashMap implements Serializable, HashMap
 		final long numHashPositions = rangeEnd - rangeStart;
 		if (numHashPositions == 0) return -1L;
 		final long startIndex = hash(key, numHashPositions, rangeStart);
-		final long contextOffsetOf = wordRanges == null ? shrinkKey(key) : ngramMap.contextOffsetOf(key);
-		assert contextOffsetOf >= 0;
+		final long storedKey = storedKey(key);
 		assert word >= 0;
 		assert startIndex >= rangeStart;
 		assert startIndex < rangeEnd;
 
-		final long index = keys.linearSearch(contextOffsetOf + 1, rangeStart, rangeEnd, startIndex, EMPTY_KEY, returnFirstEmptyIndex);
+		final long index = keys.linearSearch(storedKey, rangeStart, rangeEnd, startIndex, EMPTY_KEY, returnFirstEmptyIndex);
 		return index;
 	}
 
@@ -178,6 +210,7 @@ final class ImplicitWordHashMap implements Serializable, HashMap
 	 * @see edu.berkeley.nlp.lm.map.HashMap#getNextOffset(long)
 	 */
 	long getNextOffset(final long offset) {
+		if (numFingerprintBits > 0) throw new UnsupportedOperationException("Keys are not stored in fingerprinted hash maps");
 		return keys.get(offset) - 1;
 	}
 
@@ -272,6 +305,40 @@ final class ImplicitWordHashMap implements Serializable, HashMap
 		private final long end;
 	}
 
+	/**
+	 * Estimates the probability that a key which is not in the map is found,
+	 * by searching for random fingerprints from random positions. Always 0 if
+	 * keys are stored exactly.
+	 * 
+	 * @param numSamples
+	 * @param random
+	 * @return
+	 */
+	double estimateFalsePositiveRate(final int numSamples, final Random random) {
+		if (numFingerprintBits == 0 || getCapacity() == 0) return 0.0;
+		long numFound = 0;
+		for (int i = 0; i < numSamples; ++i) {
+			final long startIndex = (long) (random.nextDouble() * getCapacity());
+			final int word = wordRanges == null ? 0 : getWordForContext(startIndex);
+			final long rangeStart = wordRangeStart(word);
+			final long rangeEnd = wordRangeEnd(word);
+			if (startIndex < rangeStart || startIndex >= rangeEnd) continue;
+			final long randomFingerprint = 1 + (long) (random.nextDouble() * ((1L << numFingerprintBits) - 1));
+			if (keys.linearSearch(randomFingerprint, rangeStart, rangeEnd, startIndex, EMPTY_KEY, false) >= 0) numFound++;
+		}
+		return (double) numFound / numSamples;
+	}
+
+	/**
+	 * Number of keys which were stored in a slot already holding the same
+	 * fingerprint.
+	 * 
+	 * @return
+	 */
+	long getNumFingerprintCollisions() {
+		return numFingerprintCollisions;
+	}
+
 	@Override
 	public boolean hasContexts(final int word) {
 		if (word >= numWords) return false;
@@ -280,6 +347,15 @@ final class ImplicitWordHashMap implements Serializable, HashMap
 		return (rangeEnd - rangeStart > 0);
 	}
 
+	@Override
+	public void addMemoryUsage(final MemoryUsage usage, final int ngramOrder_) {
+		final long keyBits = numFilled * keys.getKeyWidth();
+		usage.addBits(ngramOrder_, MemoryUsage.Component.KEYS, keyBits);
+		usage.addBits(ngramOrder_, MemoryUsage.Component.EMPTY_SLOTS, keys.getAllocatedBytes() * Byte.SIZE - numFilled * keys.getFullWidth());
+		// the word ranges of all orders are interleaved in one shared array, so we only count the entries for this order
+		if (wordRanges != null) usage.addBits(ngramOrder_, MemoryUsage.Component.WORD_RANGES, (long) numWords * (fitsInInt ? Integer.SIZE : Long.SIZE));
+	}
+
 	private final long wordRangeStart(final int w) {
 		return wordRanges == null ? 0 : wordRangeAt(w * maxNgramOrder + ngramOrder - 1);
 	}
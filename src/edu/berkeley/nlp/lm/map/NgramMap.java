@@ -4,6 +4,7 @@ import java.util.List;
 
 import edu.berkeley.nlp.lm.array.CustomWidthArray;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.values.ValueContainer;
 
 public interface NgramMap<V>
@@ -53,4 +54,12 @@ public interface NgramMap<V>
 
 	public void clearStorage();
 
+	/**
+	 * Computes how much memory is used by the keys and values of each n-gram
+	 * order.
+	 * 
+	 * @return
+	 */
+	public MemoryUsage getMemoryUsage();
+
 }
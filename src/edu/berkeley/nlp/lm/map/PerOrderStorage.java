@@ -0,0 +1,26 @@
+package edu.berkeley.nlp.lm.map;
+
+import java.util.List;
+
+/**
+ * Implemented by n-gram maps and value containers which keep the keys or
+ * values of each n-gram order in separate objects, so that binaries can
+ * locate (and loaders skip) the storage of orders which are not needed. See
+ * {@link edu.berkeley.nlp.lm.io.LazyArrayEncodedLm}.
+ * 
+ * @author adampauls
+ * 
+ */
+public interface PerOrderStorage
+{
+
+	/**
+	 * Adds the objects which store the n-grams of exactly this order (and
+	 * nothing needed by lower orders) to <code>storage</code>.
+	 * 
+	 * @param ngramOrder
+	 * @param storage
+	 */
+	public void addStorageForOrder(int ngramOrder, List<Object> storage);
+
+}
@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.util.Iterator;
 
 import edu.berkeley.nlp.lm.collections.Iterators;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 
 /**
  * Low-level hash map implementation which is actually just an array (used for
@@ -111,4 +112,9 @@ final class UnigramHashMap implements Serializable, HashMap
 		return (word >= 0 || word < numWords);
 	}
 
+	@Override
+	public void addMemoryUsage(final MemoryUsage usage, final int ngramOrder) {
+		// unigrams are implicitly keyed by word
+	}
+
 }
\ No newline at end of file
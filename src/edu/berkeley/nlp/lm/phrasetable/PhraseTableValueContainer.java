@@ -10,6 +10,7 @@ import edu.berkeley.nlp.lm.map.HashNgramMap;
 import edu.berkeley.nlp.lm.map.NgramMap;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.values.ValueContainer;
 
 /**
@@ -284,4 +285,19 @@ public final class PhraseTableValueContainer implements ValueContainer<PhraseTab
 		return 0;
 	}
 
+	@Override
+	public void addMemoryUsage(final MemoryUsage usage) {
+		for (int ngramOrder = 0; ngramOrder < features.length; ++ngramOrder) {
+			if (features[ngramOrder] != null) usage.addBytes(ngramOrder, MemoryUsage.Component.VALUES, features[ngramOrder].getAllocatedBytes());
+		}
+		for (int ngramOrder = 0; ngramOrder < valueIndexes.length; ++ngramOrder) {
+			if (valueIndexes[ngramOrder] != null) usage.addBytes(ngramOrder, MemoryUsage.Component.VALUES, valueIndexes[ngramOrder].getAllocatedBytes());
+		}
+		for (int ngramOrder = 0; ngramOrder < targetTranslations.length; ++ngramOrder) {
+			if (targetTranslations[ngramOrder] == null) continue;
+			for (final CustomWidthArray pointers : targetTranslations[ngramOrder])
+				usage.addBytes(ngramOrder, MemoryUsage.Component.OTHER, pointers.getAllocatedBytes());
+		}
+	}
+
 }
\ No newline at end of file
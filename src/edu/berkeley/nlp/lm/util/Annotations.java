@@ -31,10 +31,9 @@ public class Annotations
 	}
 
 	/**
-	 * Fields annotated with this annotation will have their memory usage added
-	 * to the memory usage map returned by countApproximateMemoryUsage. Fields
-	 * without this annotation will be counted towards total memory usage but
-	 * not printed specifically.
+	 * Marks fields which account for most of the memory used by a model. Their
+	 * sizes are broken down by
+	 * {@link edu.berkeley.nlp.lm.NgramLanguageModel#getMemoryUsage()}.
 	 * 
 	 * @author adampauls
 	 * 
@@ -0,0 +1,122 @@
+package edu.berkeley.nlp.lm.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.berkeley.nlp.lm.util.LoadEvents.Phase;
+
+/**
+ * Emits each {@link LoadEvents.Phase} as a JDK Flight Recorder event named
+ * <code>edu.berkeley.nlp.lm.LoadPhase</code>, with fields <code>phase</code>,
+ * <code>ngramOrder</code>, <code>ngrams</code> and <code>bytes</code> (the
+ * duration is recorded by JFR itself).
+ * <p>
+ * This library is compiled for JVMs which do not have JFR, so the event type is
+ * defined at runtime through <code>jdk.jfr.EventFactory</code> using
+ * reflection. When JFR is present but no recording is running, each phase
+ * costs a couple of reflective calls.
+ *
+ * @author adampauls
+ *
+ */
+public final class JfrLoadEventListener implements LoadEvents.Listener
+{
+
+	public static final String EVENT_NAME = "edu.berkeley.nlp.lm.LoadPhase";
+
+	private final Object eventFactory;
+
+	private final Method newEvent;
+
+	private final Method begin;
+
+	private final Method end;
+
+	private final Method shouldCommit;
+
+	private final Method set;
+
+	private final Method commit;
+
+	private final Map<Phase, Object> openEvents = new ConcurrentHashMap<Phase, Object>();
+
+	private JfrLoadEventListener() throws Exception {
+		final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+		final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+		final Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+		final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+		final Constructor<?> annotation = annotationElementClass.getConstructor(Class.class, Object.class);
+		final Constructor<?> field = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+
+		final List<Object> eventAnnotations = new ArrayList<Object>();
+		eventAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), EVENT_NAME));
+		eventAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "LM Load Phase"));
+		eventAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "BerkeleyLM" }));
+		eventAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Description"), "A phase of language model construction"));
+		// stack traces would only show the reflective calls below
+		eventAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+
+		final List<Object> fields = new ArrayList<Object>();
+		fields.add(field.newInstance(String.class, "phase", Arrays.asList(annotation.newInstance(Class.forName("jdk.jfr.Label"), "Phase"))));
+		fields.add(field.newInstance(int.class, "ngramOrder", Arrays.asList(annotation.newInstance(Class.forName("jdk.jfr.Label"), "N-gram Order"))));
+		fields.add(field.newInstance(long.class, "ngrams", Arrays.asList(annotation.newInstance(Class.forName("jdk.jfr.Label"), "N-grams"))));
+		fields.add(field.newInstance(long.class, "bytes", Arrays.asList(annotation.newInstance(Class.forName("jdk.jfr.Label"), "Bytes"),
+			annotation.newInstance(Class.forName("jdk.jfr.DataAmount"), "BYTES"))));
+
+		eventFactory = eventFactoryClass.getMethod("create", List.class, List.class).invoke(null, eventAnnotations, fields);
+		newEvent = eventFactoryClass.getMethod("newEvent");
+		begin = eventClass.getMethod("begin");
+		end = eventClass.getMethod("end");
+		shouldCommit = eventClass.getMethod("shouldCommit");
+		set = eventClass.getMethod("set", int.class, Object.class);
+		commit = eventClass.getMethod("commit");
+	}
+
+	/**
+	 * @return A listener, or <code>null</code> if this JVM does not support
+	 *         JFR.
+	 */
+	public static JfrLoadEventListener createIfAvailable() {
+		try {
+			return new JfrLoadEventListener();
+		} catch (final Exception e) {
+			return null;
+		} catch (final LinkageError e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void phaseStarted(final Phase phase) {
+		try {
+			final Object event = newEvent.invoke(eventFactory);
+			begin.invoke(event);
+			openEvents.put(phase, event);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void phaseEnded(final Phase phase) {
+		final Object event = openEvents.remove(phase);
+		if (event == null) return;
+		try {
+			end.invoke(event);
+			if (!((Boolean) shouldCommit.invoke(event))) return;
+			set.invoke(event, 0, phase.getName());
+			set.invoke(event, 1, phase.getNgramOrder());
+			set.invoke(event, 2, phase.getNumNgrams());
+			set.invoke(event, 3, phase.getNumBytes());
+			commit.invoke(event);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+package edu.berkeley.nlp.lm.util;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Structured events for the phases of language model construction (counting
+ * values, adding n-grams, rehashing, compressing, trimming, etc.). Unlike the
+ * tracks written by {@link Logger}, each phase carries its duration and the
+ * number of n-grams and bytes it processed, and is passed to every registered
+ * {@link Listener}.
+ * <p>
+ * If the JVM supports JDK Flight Recorder, a {@link JfrLoadEventListener} is
+ * registered automatically, so that phases show up in recordings as
+ * <code>edu.berkeley.nlp.lm.LoadPhase</code> events. This can be turned off with
+ * <code>-Dedu.berkeley.nlp.lm.jfr=false</code>.
+ *
+ * @author adampauls
+ *
+ */
+public final class LoadEvents
+{
+
+	/**
+	 * Receives phases as they start and end. Phases may be nested, and may
+	 * start and end on different threads.
+	 *
+	 * @author adampauls
+	 *
+	 */
+	public static interface Listener
+	{
+		public void phaseStarted(Phase phase);
+
+		public void phaseEnded(Phase phase);
+	}
+
+	/**
+	 * A single phase of construction.
+	 *
+	 * @author adampauls
+	 *
+	 */
+	public static final class Phase
+	{
+		private final String name;
+
+		private final int ngramOrder;
+
+		private final long startNanos;
+
+		private long durationNanos = -1L;
+
+		private long numNgrams;
+
+		private long numBytes;
+
+		private Phase(final String name, final int ngramOrder) {
+			this.name = name;
+			this.ngramOrder = ngramOrder;
+			this.startNanos = System.nanoTime();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The (0-based) n-gram order this phase worked on, or
+		 *         {@link MemoryUsage#ALL_ORDERS} if it worked on all of them.
+		 */
+		public int getNgramOrder() {
+			return ngramOrder;
+		}
+
+		/**
+		 * @return Duration in nanoseconds, or -1 if the phase has not ended
+		 */
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		public long getNumNgrams() {
+			return numNgrams;
+		}
+
+		/**
+		 * @return The number of bytes read or built by this phase.
+		 */
+		public long getNumBytes() {
+			return numBytes;
+		}
+
+		public void addNgrams(final long n) {
+			numNgrams += n;
+		}
+
+		public void addBytes(final long n) {
+			numBytes += n;
+		}
+
+		@Override
+		public String toString() {
+			return name + (ngramOrder == MemoryUsage.ALL_ORDERS ? "" : " (order " + (ngramOrder + 1) + ")") + ": " + numNgrams + " n-grams, " + numBytes
+				+ " bytes, " + (durationNanos / 1000000) + "ms";
+		}
+	}
+
+	private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	static {
+		if (!"false".equals(System.getProperty("edu.berkeley.nlp.lm.jfr"))) {
+			final Listener jfr = JfrLoadEventListener.createIfAvailable();
+			if (jfr != null) listeners.add(jfr);
+		}
+	}
+
+	private LoadEvents() {
+	}
+
+	public static void addListener(final Listener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeListener(final Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Starts a phase which works on all n-gram orders.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static Phase start(final String name) {
+		return start(name, MemoryUsage.ALL_ORDERS);
+	}
+
+	public static Phase start(final String name, final int ngramOrder) {
+		final Phase phase = new Phase(name, ngramOrder);
+		for (final Listener listener : listeners)
+			listener.phaseStarted(phase);
+		return phase;
+	}
+
+	public static void end(final Phase phase) {
+		assert phase.durationNanos < 0 : "Phase " + phase.name + " ended twice";
+		phase.durationNanos = System.nanoTime() - phase.startNanos;
+		for (final Listener listener : listeners)
+			listener.phaseEnded(phase);
+	}
+
+}
@@ -0,0 +1,182 @@
+package edu.berkeley.nlp.lm.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide statistics about the lookup path of language model queries:
+ * how many slots hash tables probe per lookup, how many orders each query backs
+ * off, how often a query hits a "fake" entry (an n-gram with a NaN probability
+ * which exists only because it is the context of a longer n-gram), and how
+ * often the queried word is not in the vocabulary.
+ * <p>
+ * Statistics are only collected if the JVM is started with
+ * <code>-Dedu.berkeley.nlp.lm.lookupStatistics=true</code>. Otherwise,
+ * {@link #ENABLED} is a constant <code>false</code> and the JIT removes all
+ * instrumentation from the lookup path, so it costs nothing.
+ * <p>
+ * Counters are shared by all threads and all language models, so
+ * {@link #reset()} should be called once models are loaded (building some
+ * models performs lookups too). Histograms have one bucket for each value up
+ * to {@link #MAX_BUCKET}, which also counts all larger values.
+ *
+ * @author adampauls
+ *
+ */
+public final class LookupStatistics
+{
+
+	public static final boolean ENABLED = Boolean.getBoolean("edu.berkeley.nlp.lm.lookupStatistics");
+
+	public static final int MAX_BUCKET = 64;
+
+	private static final AtomicLongArray probeLengths = new AtomicLongArray(MAX_BUCKET + 1);
+
+	private static final AtomicLongArray backoffDepths = new AtomicLongArray(MAX_BUCKET + 1);
+
+	private static final AtomicLong numQueries = new AtomicLong();
+
+	private static final AtomicLong numOovQueries = new AtomicLong();
+
+	private static final AtomicLong numNanFallbacks = new AtomicLong();
+
+	private LookupStatistics() {
+	}
+
+	/**
+	 * Records the number of slots inspected by a single hash table lookup
+	 * (including the final empty slot for unsuccessful lookups).
+	 *
+	 * @param numProbes
+	 */
+	public static void recordProbeLength(final long numProbes) {
+		probeLengths.incrementAndGet(bucket(numProbes));
+	}
+
+	/**
+	 * Records a query whose word was in the vocabulary.
+	 *
+	 * @param backoffDepth
+	 *            Number of orders dropped before an n-gram with a probability
+	 *            was found (0 if the queried n-gram itself was found).
+	 */
+	public static void recordQuery(final int backoffDepth) {
+		numQueries.incrementAndGet();
+		backoffDepths.incrementAndGet(bucket(backoffDepth));
+	}
+
+	/**
+	 * Records a query whose word was not in the vocabulary.
+	 */
+	public static void recordOovQuery() {
+		numQueries.incrementAndGet();
+		numOovQueries.incrementAndGet();
+	}
+
+	/**
+	 * Records that the longest n-gram matched by a query was a fake entry, so
+	 * that the lookup had to fall back to shorter n-grams.
+	 */
+	public static void recordNanFallback() {
+		numNanFallbacks.incrementAndGet();
+	}
+
+	private static int bucket(final long value) {
+		return (int) Math.min(Math.max(value, 0), MAX_BUCKET);
+	}
+
+	/**
+	 * @return Number of lookups which probed <code>i</code> slots, for each
+	 *         <code>i</code>
+	 */
+	public static long[] getProbeLengthHistogram() {
+		return toArray(probeLengths);
+	}
+
+	/**
+	 * @return Number of in-vocabulary queries which backed off
+	 *         <code>i</code> orders, for each <code>i</code>
+	 */
+	public static long[] getBackoffDepthHistogram() {
+		return toArray(backoffDepths);
+	}
+
+	public static long getNumQueries() {
+		return numQueries.get();
+	}
+
+	public static long getNumOovQueries() {
+		return numOovQueries.get();
+	}
+
+	public static long getNumNanFallbacks() {
+		return numNanFallbacks.get();
+	}
+
+	public static double getOovRate() {
+		final long n = numQueries.get();
+		return n == 0 ? 0.0 : (double) numOovQueries.get() / n;
+	}
+
+	public static double getMeanProbeLength() {
+		return mean(probeLengths);
+	}
+
+	public static double getMeanBackoffDepth() {
+		return mean(backoffDepths);
+	}
+
+	public static void reset() {
+		for (int i = 0; i <= MAX_BUCKET; ++i) {
+			probeLengths.set(i, 0L);
+			backoffDepths.set(i, 0L);
+		}
+		numQueries.set(0L);
+		numOovQueries.set(0L);
+		numNanFallbacks.set(0L);
+	}
+
+	/**
+	 * A human-readable summary of all statistics.
+	 *
+	 * @return
+	 */
+	public static String format() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("Queries: ").append(getNumQueries());
+		sb.append(String.format(", OOV rate: %.4f", getOovRate()));
+		sb.append(", NaN fallbacks: ").append(getNumNanFallbacks()).append("\n");
+		sb.append(String.format("Backoff depth (mean %.3f): ", getMeanBackoffDepth())).append(formatHistogram(backoffDepths)).append("\n");
+		sb.append(String.format("Probe length (mean %.3f): ", getMeanProbeLength())).append(formatHistogram(probeLengths));
+		return sb.toString();
+	}
+
+	private static String formatHistogram(final AtomicLongArray histogram) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i <= MAX_BUCKET; ++i) {
+			final long count = histogram.get(i);
+			if (count == 0) continue;
+			if (sb.length() > 0) sb.append(" ");
+			sb.append(i).append(i == MAX_BUCKET ? "+" : "").append(":").append(count);
+		}
+		return sb.toString();
+	}
+
+	private static long[] toArray(final AtomicLongArray histogram) {
+		final long[] ret = new long[histogram.length()];
+		for (int i = 0; i < ret.length; ++i)
+			ret[i] = histogram.get(i);
+		return ret;
+	}
+
+	private static double mean(final AtomicLongArray histogram) {
+		long sum = 0L;
+		long count = 0L;
+		for (int i = 0; i < histogram.length(); ++i) {
+			sum += i * histogram.get(i);
+			count += histogram.get(i);
+		}
+		return count == 0 ? 0.0 : (double) sum / count;
+	}
+
+}
@@ -0,0 +1,172 @@
+package edu.berkeley.nlp.lm.util;
+
+import java.util.Arrays;
+
+/**
+ * A breakdown of the memory used by a language model (or n-gram map) by n-gram
+ * order and by component. Sizes are computed from the arrays actually
+ * allocated, so they do not include object headers or the word indexer.
+ * <p>
+ * Memory which is shared by all n-gram orders (for example, rank tables or
+ * caches) is recorded under order {@link #ALL_ORDERS}.
+ *
+ * @author adampauls
+ *
+ */
+public final class MemoryUsage
+{
+
+	public static enum Component
+	{
+		/**
+		 * Keys of hash tables or compressed tries (words and context offsets,
+		 * or fingerprints)
+		 */
+		KEYS,
+
+		/**
+		 * Values (or their ranks)
+		 */
+		VALUES,
+
+		/**
+		 * Offsets of the suffix of each n-gram, stored for context-encoded LMs
+		 */
+		SUFFIX_OFFSETS,
+
+		/**
+		 * Start of the range of each word in hash tables which do not store
+		 * words explicitly
+		 */
+		WORD_RANGES,
+
+		/**
+		 * Unused slots of hash tables and slack in arrays
+		 */
+		EMPTY_SLOTS,
+
+		/**
+		 * Caches of n-gram probabilities
+		 */
+		CACHE,
+
+		/**
+		 * Anything else (e.g. block headers in compressed tries)
+		 */
+		OTHER
+	}
+
+	public static final int ALL_ORDERS = -1;
+
+	private static final int NUM_COMPONENTS = Component.values().length;
+
+	// indexed by ngramOrder + 1, stored in bits so that sub-byte entries do not suffer from rounding
+	private long[][] bits = new long[0][];
+
+	public void addBytes(final int ngramOrder, final Component component, final long numBytes) {
+		addBits(ngramOrder, component, numBytes * Byte.SIZE);
+	}
+
+	public void addBits(final int ngramOrder, final Component component, final long numBits) {
+		assert ngramOrder >= ALL_ORDERS;
+		assert numBits >= 0 : "Negative memory usage " + numBits + " for " + component;
+		if (ngramOrder + 1 >= bits.length) {
+			final int oldLength = bits.length;
+			bits = Arrays.copyOf(bits, ngramOrder + 2);
+			for (int i = oldLength; i < bits.length; ++i)
+				bits[i] = new long[NUM_COMPONENTS];
+		}
+		bits[ngramOrder + 1][component.ordinal()] += numBits;
+	}
+
+	/**
+	 * Adds all entries of another breakdown to this one.
+	 *
+	 * @param other
+	 */
+	public void addAll(final MemoryUsage other) {
+		for (int i = 0; i < other.bits.length; ++i) {
+			for (final Component component : Component.values())
+				addBits(i - 1, component, other.bits[i][component.ordinal()]);
+		}
+	}
+
+	public long getBytes(final int ngramOrder, final Component component) {
+		return ngramOrder + 1 >= bits.length ? 0L : toBytes(bits[ngramOrder + 1][component.ordinal()]);
+	}
+
+	/**
+	 * Total bytes used by an n-gram order (or by {@link #ALL_ORDERS}).
+	 *
+	 * @param ngramOrder
+	 * @return
+	 */
+	public long getBytes(final int ngramOrder) {
+		long ret = 0L;
+		if (ngramOrder + 1 < bits.length) {
+			for (final long b : bits[ngramOrder + 1])
+				ret += b;
+		}
+		return toBytes(ret);
+	}
+
+	/**
+	 * Total bytes used by a component, summed over all orders.
+	 *
+	 * @param component
+	 * @return
+	 */
+	public long getBytes(final Component component) {
+		long ret = 0L;
+		for (int i = 0; i < bits.length; ++i)
+			ret += bits[i][component.ordinal()];
+		return toBytes(ret);
+	}
+
+	public long getTotalBytes() {
+		long ret = 0L;
+		for (int i = 0; i < bits.length; ++i) {
+			for (final long b : bits[i])
+				ret += b;
+		}
+		return toBytes(ret);
+	}
+
+	/**
+	 * @return One more than the largest n-gram order with any memory
+	 *         recorded.
+	 */
+	public int getNumNgramOrders() {
+		return Math.max(0, bits.length - 1);
+	}
+
+	private static long toBytes(final long numBits) {
+		return (numBits + Byte.SIZE - 1) / Byte.SIZE;
+	}
+
+	/**
+	 * Formats the breakdown as a table with one row for each order and one
+	 * column for each component.
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-8s", "order"));
+		for (final Component component : Component.values())
+			sb.append(String.format("%16s", component.name().toLowerCase()));
+		sb.append(String.format("%16s%n", "total"));
+		for (int ngramOrder = ALL_ORDERS; ngramOrder < getNumNgramOrders(); ++ngramOrder) {
+			if (getBytes(ngramOrder) == 0L) continue;
+			sb.append(String.format("%-8s", ngramOrder == ALL_ORDERS ? "shared" : String.valueOf(ngramOrder + 1)));
+			for (final Component component : Component.values())
+				sb.append(String.format("%16d", getBytes(ngramOrder, component)));
+			sb.append(String.format("%16d%n", getBytes(ngramOrder)));
+		}
+		sb.append(String.format("%-8s", "total"));
+		for (final Component component : Component.values())
+			sb.append(String.format("%16d", getBytes(component)));
+		sb.append(String.format("%16d%n", getTotalBytes()));
+		return sb.toString();
+	}
+
+}
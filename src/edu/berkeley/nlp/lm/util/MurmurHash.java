@@ -106,4 +106,38 @@ public final class MurmurHash
 		return h;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * 64-bit hash of a range of an int array (MurmurHash64A over ints).
+	 * 
+	 * @param data
+	 * @param startPos
+	 * @param endPos
+	 * @param seed
+	 * @return
+	 */
+	public static long hash64(final int[] data, final int startPos, final int endPos, final int seed) {
+		final long m = 0xc6a4a7935bd1e995L;
+		final int r = 47;
+
+		long h = (seed & 0xffffffffl) ^ ((endPos - startPos) * m);
+		for (int i = startPos; i < endPos; ++i) {
+			long k = data[i];
+			k *= m;
+			k ^= k >>> r;
+			k *= m;
+
+			h ^= k;
+			h *= m;
+		}
+
+		h ^= h >>> r;
+		h *= m;
+		h ^= h >>> r;
+
+		return h;
+	}
+
+	public static long hash64(final int[] data, final int startPos, final int endPos) {
+		return hash64(data, startPos, endPos, 0x9747b28c);
+	}
+}
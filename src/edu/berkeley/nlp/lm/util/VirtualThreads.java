@@ -0,0 +1,96 @@
+package edu.berkeley.nlp.lm.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates virtual threads on JVMs which have them (Java 21 and later).
+ * <p>
+ * This library is compiled for JVMs which do not, so the API is called through
+ * reflection, like {@link JfrLoadEventListener}. Note that virtual threads
+ * should not be given per-thread caches (such as those of
+ * {@link edu.berkeley.nlp.lm.cache.ContextEncodedCachingLmWrapper#wrapWithCacheThreadSafe(edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel)}
+ * ), since there may be one per request; use the <code>wrapWithCacheShared</code>
+ * caches instead.
+ *
+ * @author adampauls
+ *
+ */
+public final class VirtualThreads
+{
+
+	private static final Method OF_VIRTUAL;
+
+	private static final Method NAME;
+
+	private static final Method UNSTARTED;
+
+	private static final Method NEW_EXECUTOR;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		Method newExecutor = null;
+		try {
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builderClass.getMethod("name", String.class);
+			unstarted = builderClass.getMethod("unstarted", Runnable.class);
+			newExecutor = Class.forName("java.util.concurrent.Executors").getMethod("newVirtualThreadPerTaskExecutor");
+			// fails if virtual threads are a preview feature which is not enabled
+			ofVirtual.invoke(null);
+		} catch (final Exception e) {
+			ofVirtual = null;
+		} catch (final LinkageError e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+		NEW_EXECUTOR = newExecutor;
+	}
+
+	private VirtualThreads() {
+	}
+
+	public static boolean isAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Creates an (unstarted) virtual thread.
+	 *
+	 * @param name
+	 * @param runnable
+	 * @return
+	 */
+	public static Thread newThread(final String name, final Runnable runnable) {
+		checkAvailable();
+		try {
+			final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+			return (Thread) UNSTARTED.invoke(builder, runnable);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * See <code>Executors.newVirtualThreadPerTaskExecutor()</code>.
+	 *
+	 * @return
+	 */
+	public static ExecutorService newThreadPerTaskExecutor() {
+		checkAvailable();
+		try {
+			return (ExecutorService) NEW_EXECUTOR.invoke(null);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void checkAvailable() {
+		if (!isAvailable()) throw new RuntimeException("Virtual threads require Java 21 or later");
+	}
+
+}
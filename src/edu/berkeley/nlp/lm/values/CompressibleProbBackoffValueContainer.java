@@ -13,6 +13,7 @@ import edu.berkeley.nlp.lm.util.Logger;
 import edu.berkeley.nlp.lm.util.LongRef;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 
 public final class CompressibleProbBackoffValueContainer extends RankedValueContainer<ProbBackoffPair> implements ProbBackoffValueContainer
 {
@@ -131,6 +132,11 @@ public final class CompressibleProbBackoffValueContainer extends RankedValueCont
 		return getCount(ngramOrder, index, false);
 	}
 
+	@Override
+	public boolean setProb(final int ngramOrder, final long index, final float prob) {
+		return false;
+	}
+
 	public final long getInternalVal(final int ngramOrder, final long index) {
 		return valueRanks[ngramOrder].get(index);
 	}
@@ -227,4 +233,10 @@ public final class CompressibleProbBackoffValueContainer extends RankedValueCont
 		}
 	}
 
-}
\ No newline at end of file
+	@Override
+	public void addMemoryUsage(final MemoryUsage usage) {
+		super.addMemoryUsage(usage);
+		usage.addBits(MemoryUsage.ALL_ORDERS, MemoryUsage.Component.VALUES, (long) (probsForRank.length + backoffsForRank.length) * Float.SIZE);
+	}
+
+}
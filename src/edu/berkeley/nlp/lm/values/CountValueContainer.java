@@ -8,6 +8,7 @@ import edu.berkeley.nlp.lm.collections.LongToIntHashMap;
 import edu.berkeley.nlp.lm.collections.LongToIntHashMap.Entry;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.util.LongRef;
 
 public final class CountValueContainer extends RankedValueContainer<LongRef>
@@ -134,4 +135,10 @@ public final class CountValueContainer extends RankedValueContainer<LongRef>
 		return countIndexer.get(val, -1);
 	}
 
-}
\ No newline at end of file
+	@Override
+	public void addMemoryUsage(final MemoryUsage usage) {
+		super.addMemoryUsage(usage);
+		usage.addBits(MemoryUsage.ALL_ORDERS, MemoryUsage.Component.VALUES, (long) countsForRank.length * Long.SIZE);
+	}
+
+}
@@ -6,6 +6,7 @@ import edu.berkeley.nlp.lm.map.HashNgramMap;
 import edu.berkeley.nlp.lm.map.NgramMap;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 
 /**
  * Stored type and token counts necessary for estimating a Kneser-Ney language
@@ -319,4 +320,33 @@ public final class KneserNeyCountValueContainer implements ValueContainer<Kneser
 		return 0;
 	}
 
+	@Override
+	public void addMemoryUsage(final MemoryUsage usage) {
+		for (int ngramOrder = 0; ngramOrder < oneCountOffsets.length; ++ngramOrder) {
+			if (isHighestOrder(ngramOrder)) {
+				addMemoryUsage(usage, ngramOrder, tokenCounts);
+			} else {
+				if (isSecondHighestOrder(ngramOrder)) addMemoryUsage(usage, ngramOrder, prefixTokenCounts);
+				addMemoryUsage(usage, ngramOrder, leftDotTypeCounts[ngramOrder]);
+				addMemoryUsage(usage, ngramOrder, rightDotTypeCounts[ngramOrder]);
+				if (ngramOrder < dotdotTypeCounts.length) addMemoryUsage(usage, ngramOrder, dotdotTypeCounts[ngramOrder]);
+			}
+			usage.addBytes(ngramOrder, MemoryUsage.Component.OTHER, oneCountOffsets[ngramOrder].getAllocatedBytes());
+			usage.addBytes(ngramOrder, MemoryUsage.Component.OTHER, twoCountOffsets[ngramOrder].getAllocatedBytes());
+		}
+	}
+
+	/**
+	 * Counts are indexed by the offset in the (explicit) hash map, so the
+	 * slots of the arrays which correspond to empty slots of the map are
+	 * wasted.
+	 */
+	private void addMemoryUsage(final MemoryUsage usage, final int ngramOrder, final LongArray counts) {
+		if (counts == null) return;
+		final long allocatedBits = counts.getAllocatedBytes() * Byte.SIZE;
+		final long usedBits = map == null ? allocatedBits : Math.min(allocatedBits, map.getNumNgrams(ngramOrder) * Long.SIZE);
+		usage.addBits(ngramOrder, MemoryUsage.Component.VALUES, usedBits);
+		usage.addBits(ngramOrder, MemoryUsage.Component.EMPTY_SLOTS, allocatedBits - usedBits);
+	}
+
 }
\ No newline at end of file
@@ -67,6 +67,18 @@ public class ProbBackoffPair implements Comparable<ProbBackoffPair>, LongReprese
 
 	public float backoff;
 
+	/**
+	 * Whether this is the value of a "fake" n-gram, one which was not in the
+	 * LM file but was added because a longer n-gram needs it. Fake n-grams
+	 * never have a backoff, and only have a probability if a backed-off one was
+	 * filled in after loading.
+	 * 
+	 * @return
+	 */
+	public boolean isFake() {
+		return Float.isNaN(prob) || Float.isNaN(backoff);
+	}
+
 	@Override
 	public int compareTo(final ProbBackoffPair arg0) {
 		final int c = Float.compare(prob, arg0.prob);
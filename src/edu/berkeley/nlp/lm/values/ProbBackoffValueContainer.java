@@ -11,4 +11,18 @@ public interface ProbBackoffValueContainer extends ValueContainer<ProbBackoffPai
 
 	public abstract long getSuffixOffset(final long index, final int ngramOrder);
 
+	/**
+	 * Replaces the probability stored for an n-gram, keeping its backoff (so
+	 * that a fake n-gram stays recognizable, see
+	 * {@link ProbBackoffPair#isFake()}).
+	 * 
+	 * @param ngramOrder
+	 * @param index
+	 * @param prob
+	 * @return <code>false</code> if this container cannot store the new value
+	 *         (e.g. because its values have been compressed, or because it has
+	 *         no room left in its table of distinct values)
+	 */
+	public abstract boolean setProb(final int ngramOrder, final long index, final float prob);
+
 }
\ No newline at end of file
@@ -14,11 +14,13 @@ import edu.berkeley.nlp.lm.collections.LongToIntHashMap;
 import edu.berkeley.nlp.lm.collections.LongToIntHashMap.Entry;
 import edu.berkeley.nlp.lm.collections.LongRepresentable;
 import edu.berkeley.nlp.lm.map.NgramMap;
+import edu.berkeley.nlp.lm.map.PerOrderStorage;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
 import edu.berkeley.nlp.lm.util.Logger;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 
-abstract class RankedValueContainer<V extends LongRepresentable<V>> implements CompressibleValueContainer<V>, Serializable
+abstract class RankedValueContainer<V extends LongRepresentable<V>> implements CompressibleValueContainer<V>, Serializable, PerOrderStorage
 {
 
 	/**
@@ -58,6 +60,11 @@ abstract class RankedValueContainer<V extends LongRepresentable<V>> implements C
 
 	}
 
+	@Override
+	public void addStorageForOrder(final int ngramOrder, final List<Object> storage) {
+		if (valueRanks[ngramOrder] != null) storage.add(valueRanks[ngramOrder]);
+	}
+
 	@Override
 	public void setMap(final NgramMap<V> map) {
 		this.ngramMap = map;
@@ -180,6 +187,12 @@ abstract class RankedValueContainer<V extends LongRepresentable<V>> implements C
 		return valueRanksHere.get(offset, widthOffset, valueWidth);
 	}
 
+	protected void setRank(final int ngramOrder, final long offset, final long rank) {
+		final CustomWidthArray valueRanksHere = valueRanks[ngramOrder];
+		final int widthOffset = ngramOrder == 0 || !useMapValueArray ? 0 : valueRanksHere.getKeyWidth();
+		valueRanksHere.set(offset, rank, widthOffset, valueWidth);
+	}
+
 	@Override
 	public void clearStorageAfterCompression(final int ngramOrder) {
 		if (ngramOrder > 0) valueRanks[ngramOrder] = null;
@@ -210,4 +223,33 @@ abstract class RankedValueContainer<V extends LongRepresentable<V>> implements C
 		return valueWidth + suffixBitsForOrder[ngramOrder];
 	}
 
+	@Override
+	public void addMemoryUsage(final MemoryUsage usage) {
+		for (int ngramOrder = 0; ngramOrder < valueRanks.length; ++ngramOrder) {
+			if (valueRanks[ngramOrder] == null) continue;
+			addMemoryUsage(usage, ngramOrder, valueRanks[ngramOrder], ngramMap, valueWidth, ngramOrder == 0 ? 0 : suffixBitsForOrder[ngramOrder]);
+		}
+	}
+
+	/**
+	 * Adds the memory used by the array storing values for an n-gram order.
+	 * 
+	 * @param usage
+	 * @param ngramOrder
+	 * @param array
+	 * @param map
+	 * @param numValueBits
+	 * @param numSuffixBits
+	 */
+	static void addMemoryUsage(final MemoryUsage usage, final int ngramOrder, final CustomWidthArray array, final NgramMap<?> map, final int numValueBits,
+		final int numSuffixBits) {
+		final long numNgrams = map.getNumNgrams(ngramOrder);
+		usage.addBits(ngramOrder, MemoryUsage.Component.VALUES, numNgrams * numValueBits);
+		usage.addBits(ngramOrder, MemoryUsage.Component.SUFFIX_OFFSETS, numNgrams * numSuffixBits);
+		if (array != map.getValueStoringArray(ngramOrder)) {
+			final long usedBits = numNgrams * (numValueBits + numSuffixBits);
+			usage.addBits(ngramOrder, MemoryUsage.Component.EMPTY_SLOTS, Math.max(0L, array.getAllocatedBytes() * Byte.SIZE - usedBits));
+		}
+	}
+
 }
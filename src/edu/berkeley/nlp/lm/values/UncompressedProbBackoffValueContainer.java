@@ -1,5 +1,6 @@
 package edu.berkeley.nlp.lm.values;
 
+import java.util.Arrays;
 import java.util.List;
 
 import edu.berkeley.nlp.lm.array.CustomWidthArray;
@@ -13,6 +14,7 @@ import edu.berkeley.nlp.lm.util.Logger;
 import edu.berkeley.nlp.lm.util.LongRef;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 
 public final class UncompressedProbBackoffValueContainer extends RankedValueContainer<ProbBackoffPair> implements ProbBackoffValueContainer
 {
@@ -24,13 +26,34 @@ public final class UncompressedProbBackoffValueContainer extends RankedValueCont
 
 	transient LongToIntHashMap countIndexer;
 
+	/**
+	 * Number of unused entries at the end of probsAndBackoffsForRank, which
+	 * are filled by {@link #setProb(int, long, float)}.
+	 */
+	private int numReservedRanks;
+
 	public UncompressedProbBackoffValueContainer(final LongToIntHashMap countCounter, final int valueRadix, final boolean storePrefixes,
 		long[] numNgramsForEachOrder) {
+		this(countCounter, valueRadix, storePrefixes, numNgramsForEachOrder, 0);
+	}
+
+	/**
+	 * @param countCounter
+	 * @param valueRadix
+	 * @param storePrefixes
+	 * @param numNgramsForEachOrder
+	 * @param numReservedRanks
+	 *            Number of values which can be added with
+	 *            {@link #setProb(int, long, float)} after construction.
+	 */
+	public UncompressedProbBackoffValueContainer(final LongToIntHashMap countCounter, final int valueRadix, final boolean storePrefixes,
+		long[] numNgramsForEachOrder, final int numReservedRanks) {
 		super(valueRadix, storePrefixes, numNgramsForEachOrder);
 		Logger.startTrack("Storing values");
 		final long defaultVal = getDefaultVal().asLong();
 		final boolean hasDefaultVal = countCounter.get(defaultVal, -1) >= 0;
-		probsAndBackoffsForRank = new long[(countCounter.size() + (hasDefaultVal ? 0 : 1))];
+		this.numReservedRanks = numReservedRanks;
+		probsAndBackoffsForRank = new long[(countCounter.size() + (hasDefaultVal ? 0 : 1)) + numReservedRanks];
 		countIndexer = new LongToIntHashMap();
 		int k = 0;
 		for (final Entry pair : countCounter.getObjectsSortedByValue(true)) {
@@ -47,7 +70,7 @@ public final class UncompressedProbBackoffValueContainer extends RankedValueCont
 			countIndexer.put(defaultVal, countIndexer.size());
 			probsAndBackoffsForRank[k++] = defaultVal;
 		}
-		valueWidth = CustomWidthArray.numBitsNeeded(countIndexer.size());
+		valueWidth = CustomWidthArray.numBitsNeeded(countIndexer.size() + numReservedRanks);
 		Logger.logss("Storing count indices using " + valueWidth + " bits.");
 		Logger.endTrack();
 	}
@@ -63,17 +86,29 @@ public final class UncompressedProbBackoffValueContainer extends RankedValueCont
 	 * @param hasBackoffValIndexer
 	 */
 	public UncompressedProbBackoffValueContainer(int valueRadix, boolean storePrefixIndexes, long[] numNgramsForEachOrder, long[] probsAndBackoffsForRank,
-		LongToIntHashMap countIndexer, int wordWidth) {
+		LongToIntHashMap countIndexer, int wordWidth, int numReservedRanks) {
 		super(valueRadix, storePrefixIndexes, numNgramsForEachOrder);
 		this.countIndexer = countIndexer;
 		this.probsAndBackoffsForRank = probsAndBackoffsForRank;
 		super.valueWidth = wordWidth;
+		this.numReservedRanks = numReservedRanks;
 	}
 
+	/**
+	 * N-grams added since this container was created (which can only be
+	 * missing n-grams found while building the map) each get a reserved rank.
+	 */
 	@Override
 	public UncompressedProbBackoffValueContainer createFreshValues(long[] numNgramsForEachOrder_) {
-		return new UncompressedProbBackoffValueContainer(valueRadix, storeSuffixIndexes, numNgramsForEachOrder_, probsAndBackoffsForRank, countIndexer,
-			valueWidth);
+		long numAdded = 0;
+		for (int ngramOrder = 0; ngramOrder < numNgramsForEachOrder_.length; ++ngramOrder)
+			numAdded += numNgramsForEachOrder_[ngramOrder] - (ngramOrder < numNgramsForEachOrder.length ? numNgramsForEachOrder[ngramOrder] : 0);
+		if (numAdded <= 0)
+			return new UncompressedProbBackoffValueContainer(valueRadix, storeSuffixIndexes, numNgramsForEachOrder_, probsAndBackoffsForRank, countIndexer,
+				valueWidth, numReservedRanks);
+		final long[] newProbsAndBackoffsForRank = Arrays.copyOf(probsAndBackoffsForRank, (int) (probsAndBackoffsForRank.length + numAdded));
+		return new UncompressedProbBackoffValueContainer(valueRadix, storeSuffixIndexes, numNgramsForEachOrder_, newProbsAndBackoffsForRank, countIndexer,
+			CustomWidthArray.numBitsNeeded(newProbsAndBackoffsForRank.length), (int) (numReservedRanks + numAdded));
 	}
 
 	@Override
@@ -81,6 +116,15 @@ public final class UncompressedProbBackoffValueContainer extends RankedValueCont
 		return getCount(ngramOrder, index, false);
 	}
 
+	@Override
+	public boolean setProb(final int ngramOrder, final long index, final float prob) {
+		if (numReservedRanks == 0) return false;
+		final int rank = probsAndBackoffsForRank.length - numReservedRanks--;
+		probsAndBackoffsForRank[rank] = ProbBackoffPair.floatsToLong(prob, getBackoff(ngramOrder, index));
+		setRank(ngramOrder, index, rank);
+		return true;
+	}
+
 	public final long getInternalVal(final int ngramOrder, final long index) {
 		return valueRanks[ngramOrder].get(index);
 	}
@@ -155,6 +199,7 @@ public final class UncompressedProbBackoffValueContainer extends RankedValueCont
 	public void setFromOtherValues(final ValueContainer<ProbBackoffPair> o) {
 		super.setFromOtherValues(o);
 		this.countIndexer = ((UncompressedProbBackoffValueContainer) o).countIndexer;
+		this.numReservedRanks = ((UncompressedProbBackoffValueContainer) o).numReservedRanks;
 	}
 
 	@Override
@@ -173,4 +218,10 @@ public final class UncompressedProbBackoffValueContainer extends RankedValueCont
 		return true;
 	}
 
-}
\ No newline at end of file
+	@Override
+	public void addMemoryUsage(final MemoryUsage usage) {
+		super.addMemoryUsage(usage);
+		usage.addBits(MemoryUsage.ALL_ORDERS, MemoryUsage.Component.VALUES, (long) probsAndBackoffsForRank.length * Long.SIZE);
+	}
+
+}
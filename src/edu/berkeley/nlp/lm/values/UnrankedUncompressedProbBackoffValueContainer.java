@@ -12,12 +12,14 @@ import edu.berkeley.nlp.lm.collections.Indexer;
 import edu.berkeley.nlp.lm.collections.LongToIntHashMap;
 import edu.berkeley.nlp.lm.collections.LongToIntHashMap.Entry;
 import edu.berkeley.nlp.lm.map.NgramMap;
+import edu.berkeley.nlp.lm.map.PerOrderStorage;
 import edu.berkeley.nlp.lm.util.Logger;
 import edu.berkeley.nlp.lm.util.LongRef;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
 import edu.berkeley.nlp.lm.util.Annotations.PrintMemoryCount;
 
-public final class UnrankedUncompressedProbBackoffValueContainer implements ProbBackoffValueContainer
+public final class UnrankedUncompressedProbBackoffValueContainer implements ProbBackoffValueContainer, PerOrderStorage
 {
 
 	private static final long serialVersionUID = 964277160049236607L;
@@ -39,6 +41,11 @@ public final class UnrankedUncompressedProbBackoffValueContainer implements Prob
 		suffixBitsForOrder = new int[numNgramsForEachOrder.length];
 	}
 
+	@Override
+	public void addStorageForOrder(final int ngramOrder, final List<Object> storage) {
+		if (valueRanks[ngramOrder] != null) storage.add(valueRanks[ngramOrder]);
+	}
+
 	@Override
 	public UnrankedUncompressedProbBackoffValueContainer createFreshValues(long[] numNgramsForEachOrder_) {
 		return new UnrankedUncompressedProbBackoffValueContainer(storeSuffixIndexes, numNgramsForEachOrder_);
@@ -58,6 +65,14 @@ public final class UnrankedUncompressedProbBackoffValueContainer implements Prob
 		return valueRanks[ngramOrder].get(index, ngramOrder == 0 ? 0 : valueRanks[ngramOrder].getKeyWidth(), numProbBackoffBits(ngramOrder));
 	}
 
+	@Override
+	public boolean setProb(final int ngramOrder, final long index, final float prob) {
+		// probabilities are stored in the low bits
+		valueRanks[ngramOrder].set(index, BitUtils.getLowLong(Float.floatToIntBits(prob)), ngramOrder == 0 ? 0 : valueRanks[ngramOrder].getKeyWidth(),
+			Float.SIZE);
+		return true;
+	}
+
 	@Override
 	public void getFromOffset(final long index, final int ngramOrder, @OutputParameter final ProbBackoffPair outputVal) {
 		long l = getProbBackoff(ngramOrder, index);
@@ -107,6 +122,15 @@ public final class UnrankedUncompressedProbBackoffValueContainer implements Prob
 		return numProbBackoffBits(ngramOrder) + suffixBitsForOrder[ngramOrder];
 	}
 
+	@Override
+	public void addMemoryUsage(final MemoryUsage usage) {
+		for (int ngramOrder = 0; ngramOrder < valueRanks.length; ++ngramOrder) {
+			if (valueRanks[ngramOrder] == null) continue;
+			RankedValueContainer.addMemoryUsage(usage, ngramOrder, valueRanks[ngramOrder], ngramMap, numProbBackoffBits(ngramOrder),
+				ngramOrder == 0 ? 0 : suffixBitsForOrder[ngramOrder]);
+		}
+	}
+
 	/**
 	 * @param ngramOrder
 	 * @return
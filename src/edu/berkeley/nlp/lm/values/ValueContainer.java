@@ -4,6 +4,7 @@ import java.io.Serializable;
 
 import edu.berkeley.nlp.lm.map.NgramMap;
 import edu.berkeley.nlp.lm.util.Annotations.OutputParameter;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
 
 /**
  * Manages storage of arbitrary values in an NgramMap
@@ -93,4 +94,14 @@ public interface ValueContainer<V> extends Serializable
 	
 	public int numValueBits(int ngramOrder);
 
+	/**
+	 * Adds the memory used for values (and suffix offsets) to a breakdown.
+	 * Values which are stored inline in the key arrays of the map only
+	 * account for their own bits; the map accounts for the empty slots of
+	 * those arrays.
+	 * 
+	 * @param usage
+	 */
+	public void addMemoryUsage(MemoryUsage usage);
+
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+
+public class ChunkedBinaryTest
+{
+
+	@Test
+	public void testArrayEncoded() throws IOException {
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		for (final boolean compress : new boolean[] { false, true }) {
+			final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(),
+				compress, new StringWordIndexer(), configOptions, Integer.MAX_VALUE);
+			for (final boolean deflate : new boolean[] { false, true }) {
+				final ArrayEncodedProbBackoffLm<String> readLm = (ArrayEncodedProbBackoffLm<String>) writeAndRead(lm, deflate);
+				PerplexityTest.testArrayEncodedLogProb(readLm, FileUtils.getFile(PerplexityTest.TEST_PERPLEX_TXT), PerplexityTest.TEST_PERPLEX_GOLD_PROB);
+			}
+		}
+	}
+
+	@Test
+	public void testContextEncoded() throws IOException {
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		final ContextEncodedProbBackoffLm<String> lm = LmReaders.readContextEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(),
+			new StringWordIndexer(), configOptions, Integer.MAX_VALUE);
+		final ContextEncodedProbBackoffLm<String> readLm = (ContextEncodedProbBackoffLm<String>) writeAndRead(lm, true);
+		PerplexityTest.testContextEncodedLogProb(readLm, FileUtils.getFile(PerplexityTest.TEST_PERPLEX_TXT), PerplexityTest.TEST_PERPLEX_GOLD_PROB);
+	}
+
+	@Test
+	public void testSmallBlocks() {
+		final long[] longs = new long[3 * ChunkedBinary.BLOCK_LENGTH + 17];
+		for (int i = 0; i < longs.length; ++i)
+			longs[i] = i * 0x9E3779B97F4A7C15L;
+		final int[] ints = new int[ChunkedBinary.MIN_EXTRACTED_LENGTH];
+		for (int i = 0; i < ints.length; ++i)
+			ints[i] = i % 7;
+		final Object[] obj = new Object[] { longs, ints, longs, new int[] { 1, 2 } };
+		final File file = tmpFile();
+		ChunkedBinary.write(obj, file, true, 3);
+		final Object[] read = (Object[]) ChunkedBinary.read(file, 2);
+		Assert.assertArrayEquals(longs, (long[]) read[0]);
+		Assert.assertArrayEquals(ints, (int[]) read[1]);
+		// shared references are preserved
+		Assert.assertSame(read[0], read[2]);
+		Assert.assertArrayEquals(new int[] { 1, 2 }, (int[]) read[3]);
+		file.delete();
+	}
+
+	@Test
+	public void testCorruption() throws IOException {
+		final long[] longs = new long[ChunkedBinary.MIN_EXTRACTED_LENGTH];
+		for (int i = 0; i < longs.length; ++i)
+			longs[i] = i;
+		final File file = tmpFile();
+		ChunkedBinary.write(longs, file, false, 1);
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		// the first block starts right after the header
+		raf.seek(8 + 100);
+		raf.writeByte(raf.readByte() ^ 1);
+		raf.close();
+		try {
+			ChunkedBinary.read(file, 1);
+			Assert.fail();
+		} catch (final RuntimeException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("Checksum"));
+		}
+		file.delete();
+	}
+
+	private static NgramLanguageModel<String> writeAndRead(final NgramLanguageModel<String> lm, final boolean compress) {
+		final File file = tmpFile();
+		LmReaders.writeChunkedLmBinary(lm, file.getPath(), compress);
+		Assert.assertTrue(ChunkedBinary.isChunkedBinary(file));
+		final NgramLanguageModel<String> readLm = LmReaders.readLmBinary(file.getPath());
+		file.delete();
+		return readLm;
+	}
+
+	private static File tmpFile() {
+		try {
+			final File file = File.createTempFile("berkeleylmtest", "chunked");
+			file.deleteOnExit();
+			return file;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.CompactStringWordIndexer;
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+
+public class CompactStringWordIndexerTest
+{
+
+	private static final String[] WORDS = { "the", "", "caf\u00e9", "\u4e2d\u6587", "\ud83d\ude00", "?", "<unk>" };
+
+	@Test
+	public void testPerplexity() throws IOException {
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		final File file = FileUtils.getFile(PerplexityTest.TEST_PERPLEX_TXT);
+		final String lmFile = FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath();
+		for (final boolean compress : new boolean[] { true, false }) {
+			final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(lmFile, compress, new CompactStringWordIndexer(),
+				configOptions, Integer.MAX_VALUE);
+			PerplexityTest.testArrayEncodedLogProb(lm, file, PerplexityTest.TEST_PERPLEX_GOLD_PROB);
+			final File tmpFile = File.createTempFile("berkeleylmtest", "binary");
+			tmpFile.deleteOnExit();
+			IOUtils.writeObjFileHard(tmpFile, lm);
+			@SuppressWarnings("unchecked")
+			final ArrayEncodedProbBackoffLm<String> readLm = (ArrayEncodedProbBackoffLm<String>) IOUtils.readObjFileHard(tmpFile);
+			PerplexityTest.testArrayEncodedLogProb(readLm, file, PerplexityTest.TEST_PERPLEX_GOLD_PROB);
+			tmpFile.delete();
+		}
+		final ContextEncodedProbBackoffLm<String> lm = LmReaders.readContextEncodedLmFromArpa(lmFile, new CompactStringWordIndexer(), configOptions,
+			Integer.MAX_VALUE);
+		PerplexityTest.testContextEncodedLogProb(lm, file, PerplexityTest.TEST_PERPLEX_GOLD_PROB);
+	}
+
+	@Test
+	public void testSlices() throws IOException {
+		final CompactStringWordIndexer indexer = new CompactStringWordIndexer();
+		for (int i = 0; i < WORDS.length; ++i)
+			Assert.assertEquals(i, indexer.getOrAddIndexFromString(WORDS[i]));
+		final StringBuilder text = new StringBuilder();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (final String word : WORDS) {
+			text.append("  ").append(word);
+			bytes.write("  ".getBytes("UTF-8"));
+			bytes.write(word.getBytes("UTF-8"));
+		}
+		final byte[] byteText = bytes.toByteArray();
+		int charPos = 0;
+		int bytePos = 0;
+		for (int i = 0; i < WORDS.length; ++i) {
+			charPos += 2;
+			bytePos += 2;
+			final int numBytes = WORDS[i].getBytes("UTF-8").length;
+			Assert.assertEquals(i, indexer.indexOf(text, charPos, charPos + WORDS[i].length()));
+			Assert.assertEquals(i, indexer.indexOf(byteText, bytePos, bytePos + numBytes));
+			Assert.assertEquals(WORDS[i], indexer.getWord(i));
+			charPos += WORDS[i].length();
+			bytePos += numBytes;
+		}
+		Assert.assertEquals(-1, indexer.indexOf("th"));
+		Assert.assertEquals(-1, indexer.indexOf("then"));
+		Assert.assertEquals(-1, indexer.indexOf("caf"));
+		// an unpaired surrogate encodes as '?'
+		Assert.assertEquals(5, indexer.indexOf("\ud83d"));
+		Assert.assertEquals(4, indexer.indexOf("x\ud83d\ude00x", 1, 3));
+		indexer.setUnkSymbol("<unk>");
+		Assert.assertEquals(6, indexer.getIndexPossiblyUnk("unseen"));
+		indexer.trimAndLock();
+		Assert.assertEquals(0, indexer.getOrAddIndexFromString("the"));
+		try {
+			indexer.getOrAddIndexFromString("unseen");
+			Assert.fail();
+		} catch (final RuntimeException e) {
+		}
+	}
+
+	@Test
+	public void testManyWords() throws IOException, ClassNotFoundException {
+		final CompactStringWordIndexer indexer = new CompactStringWordIndexer();
+		final List<String> words = new ArrayList<String>();
+		for (int i = 0; i < 100000; ++i) {
+			final String word = "w" + Integer.toString(i, 36) + (i % 7 == 0 ? "\u00e9" : "");
+			words.add(word);
+			Assert.assertEquals(i, indexer.getOrAddIndexFromString(word));
+		}
+		indexer.setStartSymbol("<s>");
+		indexer.setEndSymbol("</s>");
+		indexer.setUnkSymbol("<unk>");
+		indexer.trimAndLock();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(indexer);
+		out.close();
+		final CompactStringWordIndexer readIndexer = (CompactStringWordIndexer) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))
+			.readObject();
+		// the words, a byte for each length, and the headers of the stream's blocks
+		Assert.assertTrue(bytes.size() < indexer.getNumBytes() + indexer.numWords() + (indexer.getNumBytes() + indexer.numWords()) / 100 + 1024);
+		Assert.assertEquals(indexer.numWords(), readIndexer.numWords());
+		for (int i = 0; i < words.size(); ++i) {
+			Assert.assertEquals(i, readIndexer.indexOf(words.get(i)));
+			Assert.assertEquals(words.get(i), readIndexer.getWord(i));
+		}
+		Assert.assertEquals("<s>", readIndexer.getStartSymbol());
+		Assert.assertEquals(readIndexer.indexOf("<unk>"), readIndexer.getIndexPossiblyUnk("unseen"));
+	}
+
+}
@@ -1,11 +1,13 @@
 package edu.berkeley.nlp.lm.io;
 
 import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.BloomFilterLm;
 import edu.berkeley.nlp.lm.ConfigOptions;
 import edu.berkeley.nlp.lm.StringWordIndexer;
 import edu.berkeley.nlp.lm.StupidBackoffLm;
@@ -47,6 +49,22 @@ public class GoogleReaderTest
 		checkScoresKneserNey(lm);
 	}
 
+	@Test
+	public void testBloomFilter() {
+		final ConfigOptions opts = new ConfigOptions();
+		opts.bloomFilterFalsePositiveRate = 1e-4;
+		opts.bloomFilterQuantizationBase = 1.1;
+		final String dir = FileUtils.getFile("googledir").getPath();
+		final BloomFilterLm<String> lm = LmReaders.readBloomFilterLmFromGoogleNgramDir(dir, new StringWordIndexer(), opts);
+		final StupidBackoffLm<String> exactLm = (StupidBackoffLm<String>) LmReaders.readLmFromGoogleNgramDir(dir, false, false);
+		// numerator and denominator counts are each within one quantization bucket
+		final double maxError = 2 * Math.log(opts.bloomFilterQuantizationBase);
+		for (final String ngram : new String[] { "the (", "of the (", "a the (", "a ) (", "the of a" }) {
+			final List<String> words = Arrays.asList(ngram.split(" "));
+			Assert.assertEquals(exactLm.getLogProb(words), lm.getLogProb(words), maxError);
+		}
+	}
+
 	/**
 	 * @param lm
 	 */
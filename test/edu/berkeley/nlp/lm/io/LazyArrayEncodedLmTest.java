@@ -0,0 +1,70 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.WordIndexer;
+
+public class LazyArrayEncodedLmTest
+{
+
+	@Test
+	public void testArrayEncoded() throws IOException {
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		for (final boolean compress : new boolean[] { false, true }) {
+			final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(),
+				compress, new StringWordIndexer(), configOptions, Integer.MAX_VALUE);
+			final File file = writeChunked(lm);
+			final LazyArrayEncodedLm<String> lazyLm = LazyArrayEncodedLm.open(file.getPath());
+			checkOrders(lm, lazyLm, Arrays.asList("This", "is", "a", "test"));
+			PerplexityTest.testArrayEncodedLogProb(lazyLm, FileUtils.getFile(PerplexityTest.TEST_PERPLEX_TXT), PerplexityTest.TEST_PERPLEX_GOLD_PROB);
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testStupidBackoff() throws IOException {
+		for (final boolean compress : new boolean[] { false, true }) {
+			final ArrayEncodedNgramLanguageModel<String> lm = LmReaders.readLmFromGoogleNgramDir(FileUtils.getFile("googledir").getPath(), compress, false);
+			final File file = writeChunked(lm);
+			final LazyArrayEncodedLm<String> lazyLm = LazyArrayEncodedLm.open(file.getPath());
+			checkOrders(lm, lazyLm, Arrays.asList("a", "the", "("));
+			final List<String> sentence = Arrays.asList("of", "the", "(", "a");
+			Assert.assertEquals(lm.scoreSentence(sentence), lazyLm.scoreSentence(sentence), 0.0f);
+			file.delete();
+		}
+	}
+
+	/**
+	 * Scores ever longer suffixes of an n-gram, checking that only the orders
+	 * they need are read.
+	 */
+	private static void checkOrders(final ArrayEncodedNgramLanguageModel<String> lm, final LazyArrayEncodedLm<String> lazyLm, final List<String> words) {
+		Assert.assertEquals(1, lazyLm.getNumLoadedOrders());
+		final WordIndexer<String> wordIndexer = lm.getWordIndexer();
+		final int[] ngram = WordIndexer.StaticMethods.toArray(wordIndexer, words);
+		for (int length = 1; length <= Math.min(ngram.length, lm.getLmOrder()); ++length) {
+			Assert.assertEquals(lm.getLogProb(ngram, ngram.length - length, ngram.length), lazyLm.getLogProb(ngram, ngram.length - length, ngram.length),
+				0.0f);
+			Assert.assertEquals(length, lazyLm.getNumLoadedOrders());
+		}
+	}
+
+	private static File writeChunked(final ArrayEncodedNgramLanguageModel<String> lm) throws IOException {
+		final File file = File.createTempFile("berkeleylmtest", "chunked");
+		file.deleteOnExit();
+		LmReaders.writeChunkedLmBinary(lm, file.getPath(), true);
+		return file;
+	}
+
+}
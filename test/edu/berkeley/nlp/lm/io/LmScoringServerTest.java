@@ -0,0 +1,184 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel.LmContextInfo;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.collections.Iterators;
+import edu.berkeley.nlp.lm.util.VirtualThreads;
+
+public class LmScoringServerTest
+{
+
+	@Test
+	public void testScoring() throws IOException {
+		final ContextEncodedProbBackoffLm<String> lm = getContextEncodedLm();
+		final LmScoringServer server = new LmScoringServer(lm, 2, LmScoringServer.DEFAULT_MAX_BATCH_SIZE);
+		final LmScoringClient client = new LmScoringClient(server.start(0));
+		try {
+			final List<List<String>> sentences = readSentences();
+			float total = 0.0f;
+			for (final List<String> sentence : sentences) {
+				Assert.assertEquals(lm.scoreSentence(sentence), client.scoreSentence(sentence), 0.0f);
+				total += client.scoreSentence(sentence);
+			}
+			Assert.assertEquals(PerplexityTest.TEST_PERPLEX_GOLD_PROB, total, 1e-1);
+			final float[] scores = client.scoreSentences(sentences);
+			for (int i = 0; i < scores.length; ++i)
+				Assert.assertEquals(lm.scoreSentence(sentences.get(i)), scores[i], 0.0f);
+			final List<String> ngram = Arrays.asList("This", "is", "a");
+			Assert.assertEquals(lm.getLogProb(ngram), client.getLogProb(ngram), 0.0f);
+
+			final List<String> sent = Arrays.asList("<s> This is a test sentence . </s>".split(" "));
+			final int[] indices = client.getWordIndices(sent);
+			final LmContextInfo localContext = new LmContextInfo();
+			final LmContextInfo remoteContext = new LmContextInfo();
+			for (int i = 0; i < indices.length; ++i) {
+				Assert.assertEquals(lm.getWordIndexer().getIndexPossiblyUnk(sent.get(i)), indices[i]);
+				final float localScore = lm.getLogProb(localContext.offset, localContext.order, indices[i], localContext);
+				final float remoteScore = client.getLogProb(remoteContext.offset, remoteContext.order, indices[i], remoteContext);
+				Assert.assertEquals(localScore, remoteScore, 0.0f);
+				Assert.assertEquals(localContext.offset, remoteContext.offset);
+				Assert.assertEquals(localContext.order, remoteContext.order);
+			}
+
+			final int[] words = new int[lm.getWordIndexer().numWords()];
+			for (int i = 0; i < words.length; ++i)
+				words[i] = i;
+			final float[] logProbs = new float[words.length];
+			final LmContextInfo[] outputContexts = new LmContextInfo[words.length];
+			for (int i = 0; i < words.length; ++i)
+				outputContexts[i] = new LmContextInfo();
+			client.getLogProbs(localContext.offset, localContext.order, words, logProbs, outputContexts);
+			final LmContextInfo expectedContext = new LmContextInfo();
+			for (int i = 0; i < words.length; ++i) {
+				Assert.assertEquals(lm.getLogProb(localContext.offset, localContext.order, words[i], expectedContext), logProbs[i], 0.0f);
+				Assert.assertEquals(expectedContext.offset, outputContexts[i].offset);
+				Assert.assertEquals(expectedContext.order, outputContexts[i].order);
+			}
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentClients() throws Exception {
+		final ContextEncodedProbBackoffLm<String> lm = getContextEncodedLm();
+		final LmScoringServer server = new LmScoringServer(lm, 2, 16);
+		final int port = server.start(0);
+		final List<List<String>> sentences = readSentences();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; ++t) {
+			threads.add(new Thread()
+			{
+				@Override
+				public void run() {
+					try {
+						final LmScoringClient client = new LmScoringClient(port);
+						try {
+							for (int iter = 0; iter < 5; ++iter) {
+								final float[] scores = client.scoreSentences(sentences);
+								for (int i = 0; i < scores.length; ++i)
+									Assert.assertEquals(lm.scoreSentence(sentences.get(i)), scores[i], 0.0f);
+							}
+						} finally {
+							client.close();
+						}
+					} catch (final Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+		try {
+			for (final Thread thread : threads)
+				thread.start();
+			for (final Thread thread : threads)
+				thread.join();
+		} finally {
+			server.close();
+		}
+		if (failure.get() != null) throw new RuntimeException(failure.get());
+	}
+
+	@Test
+	public void testCachedLm() throws IOException {
+		final ContextEncodedProbBackoffLm<String> lm = getContextEncodedLm();
+		// virtual threads are only tested on JVMs which have them
+		final boolean virtualThreads = VirtualThreads.isAvailable();
+		final LmScoringServer server = new LmScoringServer(LmScoringServer.wrapWithCache(lm, 12, virtualThreads), 2, 16, virtualThreads);
+		final LmScoringClient client = new LmScoringClient(server.start(0));
+		try {
+			final List<List<String>> sentences = readSentences();
+			for (int iter = 0; iter < 2; ++iter) {
+				final float[] scores = client.scoreSentences(sentences);
+				for (int i = 0; i < scores.length; ++i)
+					Assert.assertEquals(lm.scoreSentence(sentences.get(i)), scores[i], 1e-5f);
+			}
+			final int[] indices = client.getWordIndices(Arrays.asList("<s> This is a test".split(" ")));
+			final LmContextInfo localContext = new LmContextInfo();
+			final LmContextInfo remoteContext = new LmContextInfo();
+			for (final int index : indices) {
+				Assert.assertEquals(lm.getLogProb(localContext.offset, localContext.order, index, localContext),
+					client.getLogProb(remoteContext.offset, remoteContext.order, index, remoteContext), 0.0f);
+				Assert.assertEquals(localContext.offset, remoteContext.offset);
+			}
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testContextQueriesRequireContextEncodedLm() throws IOException {
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(), false,
+			new StringWordIndexer(), configOptions, Integer.MAX_VALUE);
+		final LmScoringServer server = new LmScoringServer(lm, 1, LmScoringServer.DEFAULT_MAX_BATCH_SIZE);
+		final LmScoringClient client = new LmScoringClient(server.start(0));
+		try {
+			try {
+				client.getLogProb(-1L, -1, 0, null);
+				Assert.fail();
+			} catch (final RuntimeException e) {
+				// expected
+			}
+			// the connection is still usable after an error
+			final List<String> sentence = Arrays.asList("This", "is", "a", "test");
+			Assert.assertEquals(lm.scoreSentence(sentence), client.scoreSentence(sentence), 0.0f);
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	private static ContextEncodedProbBackoffLm<String> getContextEncodedLm() {
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		return LmReaders.readContextEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(), new StringWordIndexer(), configOptions,
+			Integer.MAX_VALUE);
+	}
+
+	private static List<List<String>> readSentences() throws IOException {
+		final File file = FileUtils.getFile(PerplexityTest.TEST_PERPLEX_TXT);
+		final List<List<String>> sentences = new ArrayList<List<String>>();
+		for (final String line : Iterators.able(IOUtils.lineIterator(file.getPath())))
+			sentences.add(Arrays.asList(line.trim().split(" ")));
+		return sentences;
+	}
+
+}
@@ -0,0 +1,51 @@
+package edu.berkeley.nlp.lm.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.StupidBackoffLm;
+import edu.berkeley.nlp.lm.cache.ArrayEncodedCachingLmWrapper;
+
+public class LmWarmUpTest
+{
+
+	@Test
+	public void testTouch() {
+		final String arpa = FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath();
+		for (final boolean compress : new boolean[] { false, true }) {
+			final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(arpa, compress);
+			Assert.assertEquals(lm.getNgramMap().getNumNgrams(0) + lm.getNgramMap().getNumNgrams(1),
+				LmWarmUp.touchLowOrders(lm, LmWarmUp.DEFAULT_TOUCH_ORDER, Long.MAX_VALUE));
+			final StupidBackoffLm<String> stupidBackoffLm = (StupidBackoffLm<String>) LmReaders.readLmFromGoogleNgramDir(FileUtils.getFile("googledir")
+				.getPath(), compress, false);
+			Assert.assertEquals(stupidBackoffLm.getNgramMap().getNumNgrams(0) + stupidBackoffLm.getNgramMap().getNumNgrams(1),
+				LmWarmUp.touchLowOrders(stupidBackoffLm, LmWarmUp.DEFAULT_TOUCH_ORDER, Long.MAX_VALUE));
+		}
+		final ContextEncodedProbBackoffLm<String> lm = LmReaders.readContextEncodedLmFromArpa(arpa);
+		Assert.assertEquals(lm.getNgramMap().getNumNgrams(0), LmWarmUp.touchLowOrders(lm, 1, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testTouchFingerprinted() {
+		final ConfigOptions opts = new ConfigOptions();
+		opts.numFingerprintBits = 24;
+		final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(), false,
+			new StringWordIndexer(), opts, Integer.MAX_VALUE);
+		Assert.assertEquals(lm.getNgramMap().getNumNgrams(0) + lm.getNgramMap().getNumNgrams(1),
+			LmWarmUp.touchLowOrders(lm, LmWarmUp.DEFAULT_TOUCH_ORDER, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testReplay() {
+		final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(), false);
+		final String queryFile = FileUtils.getFile(PerplexityTest.TEST_PERPLEX_TXT).getPath();
+		Assert.assertEquals(98, LmWarmUp.replayQueries(ArrayEncodedCachingLmWrapper.wrapWithCacheNotThreadSafe(lm), queryFile, Long.MAX_VALUE));
+		// the budget is checked before each sentence
+		Assert.assertEquals(0, LmWarmUp.replayQueries(lm, queryFile, System.nanoTime() - 1));
+	}
+
+}
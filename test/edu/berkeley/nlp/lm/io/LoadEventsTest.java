@@ -0,0 +1,91 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.util.LoadEvents;
+import edu.berkeley.nlp.lm.util.LoadEvents.Phase;
+
+public class LoadEventsTest
+{
+
+	private static class RecordingListener implements LoadEvents.Listener
+	{
+		final List<Phase> started = new ArrayList<Phase>();
+
+		final List<Phase> ended = new ArrayList<Phase>();
+
+		@Override
+		public void phaseStarted(final Phase phase) {
+			started.add(phase);
+		}
+
+		@Override
+		public void phaseEnded(final Phase phase) {
+			ended.add(phase);
+		}
+
+		Phase find(final String name) {
+			for (final Phase phase : ended)
+				if (phase.getName().equals(name)) return phase;
+			Assert.fail("No phase " + name + " in " + ended);
+			return null;
+		}
+	}
+
+	@Test
+	public void testCompressedArpa() {
+		final RecordingListener listener = new RecordingListener();
+		LoadEvents.addListener(listener);
+		try {
+			LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(), true);
+		} finally {
+			LoadEvents.removeListener(listener);
+		}
+		Assert.assertEquals(listener.started.size(), listener.ended.size());
+		final Phase counting = listener.find("Counting values");
+		final Phase adding = listener.find("Adding n-grams");
+		Assert.assertTrue(counting.getNumNgrams() > 0);
+		Assert.assertEquals(counting.getNumNgrams(), adding.getNumNgrams());
+		Assert.assertTrue(adding.getNumBytes() > 0);
+		long compressedNgrams = 0;
+		for (final Phase phase : listener.ended) {
+			Assert.assertTrue(phase.getDurationNanos() >= 0);
+			if (phase.getName().equals("Compressing")) {
+				Assert.assertTrue(phase.getNgramOrder() > 0);
+				Assert.assertTrue(phase.getNumBytes() > 0);
+				compressedNgrams += phase.getNumNgrams();
+			}
+		}
+		Assert.assertTrue(compressedNgrams > 0);
+	}
+
+	@Test
+	public void testKneserNey() {
+		final RecordingListener listener = new RecordingListener();
+		LoadEvents.addListener(listener);
+		try {
+			final StringWordIndexer wordIndexer = new StringWordIndexer();
+			wordIndexer.setStartSymbol(ArpaLmReader.START_SYMBOL);
+			wordIndexer.setEndSymbol(ArpaLmReader.END_SYMBOL);
+			wordIndexer.setUnkSymbol(ArpaLmReader.UNK_SYMBOL);
+			LmReaders.readKneserNeyLmFromTextFile(Arrays.asList(FileUtils.getFile("big_test.txt").getPath()), wordIndexer, 3, new ConfigOptions(), false);
+		} finally {
+			LoadEvents.removeListener(listener);
+		}
+		final Phase writing = listener.find("Writing Kneser-Ney probabilities");
+		long counted = 0;
+		for (final Phase phase : listener.ended)
+			if (phase.getName().equals("Counting Kneser-Ney counts")) counted += phase.getNumNgrams();
+		Assert.assertEquals(counted, writing.getNumNgrams());
+		Assert.assertTrue(writing.getNumBytes() > 0);
+		listener.find("Rehashing");
+	}
+
+}
@@ -0,0 +1,65 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.util.LookupStatistics;
+
+public class LookupStatisticsTest
+{
+
+	@Test
+	public void testRecord() {
+		LookupStatistics.reset();
+		LookupStatistics.recordQuery(0);
+		LookupStatistics.recordQuery(2);
+		LookupStatistics.recordQuery(LookupStatistics.MAX_BUCKET + 10);
+		LookupStatistics.recordOovQuery();
+		LookupStatistics.recordNanFallback();
+		LookupStatistics.recordProbeLength(1);
+		LookupStatistics.recordProbeLength(3);
+		Assert.assertEquals(4L, LookupStatistics.getNumQueries());
+		Assert.assertEquals(1L, LookupStatistics.getNumOovQueries());
+		Assert.assertEquals(0.25, LookupStatistics.getOovRate(), 1e-9);
+		Assert.assertEquals(1L, LookupStatistics.getNumNanFallbacks());
+		final long[] depths = LookupStatistics.getBackoffDepthHistogram();
+		Assert.assertEquals(1L, depths[0]);
+		Assert.assertEquals(1L, depths[2]);
+		Assert.assertEquals(1L, depths[LookupStatistics.MAX_BUCKET]);
+		Assert.assertEquals(2.0, LookupStatistics.getMeanProbeLength(), 1e-9);
+		Assert.assertTrue(LookupStatistics.format().contains(LookupStatistics.MAX_BUCKET + "+:1"));
+		LookupStatistics.reset();
+		Assert.assertEquals(0L, LookupStatistics.getNumQueries());
+		Assert.assertEquals(0.0, LookupStatistics.getMeanBackoffDepth(), 1e-9);
+	}
+
+	@Test
+	public void testQueriesAreCounted() {
+		final ArrayEncodedProbBackoffLm<String> arrayLm = LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(),
+			false);
+		final ContextEncodedProbBackoffLm<String> contextLm = LmReaders.readContextEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA)
+			.getPath());
+		final List<String> sent = Arrays.asList("this", "is", "a", "xyzzyoovword", "sentence");
+		LookupStatistics.reset();
+		final float arrayScore = arrayLm.scoreSentence(sent);
+		final long numArrayQueries = LookupStatistics.getNumQueries();
+		final float contextScore = contextLm.scoreSentence(sent);
+		Assert.assertEquals(arrayScore, contextScore, 1e-3);
+		if (LookupStatistics.ENABLED) {
+			// the array-encoded LM makes one query for each word and the end symbol
+			Assert.assertEquals(sent.size() + 1, numArrayQueries);
+			Assert.assertTrue(LookupStatistics.getNumQueries() > numArrayQueries);
+			Assert.assertTrue(LookupStatistics.getNumOovQueries() >= 2L);
+			Assert.assertTrue(LookupStatistics.getMeanProbeLength() >= 1.0);
+		} else {
+			Assert.assertEquals(0L, LookupStatistics.getNumQueries());
+		}
+		LookupStatistics.reset();
+	}
+
+}
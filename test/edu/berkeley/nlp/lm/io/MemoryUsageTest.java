@@ -0,0 +1,89 @@
+package edu.berkeley.nlp.lm.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.cache.ArrayEncodedCachingLmWrapper;
+import edu.berkeley.nlp.lm.cache.ContextEncodedCachingLmWrapper;
+import edu.berkeley.nlp.lm.util.MemoryUsage;
+import edu.berkeley.nlp.lm.util.MemoryUsage.Component;
+
+public class MemoryUsageTest
+{
+
+	@Test
+	public void testHash() {
+		final ArrayEncodedProbBackoffLm<String> lm = getLm(false, new ConfigOptions());
+		final MemoryUsage usage = lm.getMemoryUsage();
+		checkOrders(lm, usage);
+		for (int ngramOrder = 1; ngramOrder < lm.getLmOrder(); ++ngramOrder) {
+			Assert.assertTrue(usage.getBytes(ngramOrder, Component.EMPTY_SLOTS) > 0);
+			Assert.assertTrue(usage.getBytes(ngramOrder, Component.WORD_RANGES) > 0);
+		}
+		Assert.assertEquals(0L, usage.getBytes(Component.SUFFIX_OFFSETS));
+		Assert.assertEquals(0L, usage.getBytes(Component.CACHE));
+		Assert.assertTrue(usage.getBytes(MemoryUsage.ALL_ORDERS, Component.VALUES) > 0);
+	}
+
+	@Test
+	public void testCompressedIsSmaller() {
+		final MemoryUsage hash = getLm(false, new ConfigOptions()).getMemoryUsage();
+		final ArrayEncodedProbBackoffLm<String> lm = getLm(true, new ConfigOptions());
+		final MemoryUsage compressed = lm.getMemoryUsage();
+		checkOrders(lm, compressed);
+		Assert.assertEquals(0L, compressed.getBytes(Component.WORD_RANGES));
+		Assert.assertTrue(compressed.getTotalBytes() < hash.getTotalBytes());
+	}
+
+	@Test
+	public void testFingerprintKeysAreSmaller() {
+		final ConfigOptions opts = new ConfigOptions();
+		opts.numFingerprintBits = 8;
+		final MemoryUsage full = getLm(false, new ConfigOptions()).getMemoryUsage();
+		final MemoryUsage fingerprints = getLm(false, opts).getMemoryUsage();
+		Assert.assertTrue(fingerprints.getBytes(Component.KEYS) < full.getBytes(Component.KEYS));
+	}
+
+	@Test
+	public void testContextEncoded() {
+		final ContextEncodedProbBackoffLm<String> lm = LmReaders.readContextEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath());
+		final MemoryUsage usage = lm.getMemoryUsage();
+		checkOrders(lm, usage);
+		for (int ngramOrder = 1; ngramOrder < lm.getLmOrder(); ++ngramOrder)
+			Assert.assertTrue(usage.getBytes(ngramOrder, Component.SUFFIX_OFFSETS) > 0);
+		final MemoryUsage cached = ContextEncodedCachingLmWrapper.wrapWithCacheNotThreadSafe(lm).getMemoryUsage();
+		Assert.assertTrue(cached.getBytes(Component.CACHE) > 0);
+		Assert.assertEquals(usage.getTotalBytes() + cached.getBytes(Component.CACHE), cached.getTotalBytes());
+	}
+
+	@Test
+	public void testCache() {
+		final ArrayEncodedProbBackoffLm<String> lm = getLm(false, new ConfigOptions());
+		final MemoryUsage cached = ArrayEncodedCachingLmWrapper.wrapWithCacheNotThreadSafe(lm).getMemoryUsage();
+		Assert.assertTrue(cached.getBytes(MemoryUsage.ALL_ORDERS, Component.CACHE) > 0);
+		Assert.assertEquals(lm.getMemoryUsage().getTotalBytes() + cached.getBytes(Component.CACHE), cached.getTotalBytes());
+		Assert.assertTrue(cached.toString().contains("cache"));
+	}
+
+	private static void checkOrders(final NgramLanguageModel<String> lm, final MemoryUsage usage) {
+		Assert.assertEquals(lm.getLmOrder(), usage.getNumNgramOrders());
+		long total = usage.getBytes(MemoryUsage.ALL_ORDERS);
+		for (int ngramOrder = 0; ngramOrder < lm.getLmOrder(); ++ngramOrder) {
+			Assert.assertTrue(usage.getBytes(ngramOrder, Component.VALUES) > 0);
+			if (ngramOrder > 0) Assert.assertTrue(usage.getBytes(ngramOrder, Component.KEYS) > 0);
+			total += usage.getBytes(ngramOrder);
+		}
+		Assert.assertEquals(usage.getTotalBytes(), total, lm.getLmOrder() + 1);
+	}
+
+	private static ArrayEncodedProbBackoffLm<String> getLm(final boolean compress, final ConfigOptions opts) {
+		return LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(), compress, new StringWordIndexer(), opts,
+			Integer.MAX_VALUE);
+	}
+
+}
@@ -1,7 +1,11 @@
 package edu.berkeley.nlp.lm.io;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -11,7 +15,12 @@ import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
 import edu.berkeley.nlp.lm.ConfigOptions;
 import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel;
 import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.NgramLanguageModel.StaticMethods;
 import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.map.HashNgramMap;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+import edu.berkeley.nlp.lm.values.ProbBackoffValueContainer;
 
 public class MissingEntryTest
 {
@@ -27,6 +36,63 @@ public class MissingEntryTest
 		testArrayEncodedLogProb(lm);
 	}
 
+	@Test
+	public void testArrayEncodedUnranked() {
+		final ConfigOptions opts = new ConfigOptions();
+		opts.storeRankedProbBackoffs = false;
+		final ArrayEncodedProbBackoffLm<String> lm = getLm(false, opts);
+		testArrayEncodedLogProb(lm);
+		checkNoFakeProbs(lm);
+	}
+
+	@Test
+	public void testFakeProbsFilledIn() {
+		final ArrayEncodedProbBackoffLm<String> lm = getLm(false);
+		checkNoFakeProbs(lm);
+		// "another test" was missing from the file, so it gets its backed-off probability
+		Assert.assertEquals(-0.60206 + -0.2218488, ((HashNgramMap<ProbBackoffPair>) lm.getNgramMap()).get(
+			StaticMethods.toIntArray(Arrays.asList("another", "test"), lm), 0, 2).prob, TOL);
+	}
+
+	@Test
+	public void testFingerprinted() {
+		for (final boolean detectMissingNgrams : new boolean[] { false, true }) {
+			final ConfigOptions opts = new ConfigOptions();
+			opts.numFingerprintBits = 24;
+			opts.detectMissingNgrams = detectMissingNgrams;
+			final ArrayEncodedProbBackoffLm<String> lm = getLm(false, opts);
+			testArrayEncodedLogProb(lm);
+			checkNoFakeProbs(lm);
+		}
+	}
+
+	@Test
+	public void testPrunedArpaHasNoFakeNgrams() throws IOException {
+		final ArrayEncodedProbBackoffLm<String> lm = getLm(false);
+		final File prunedFile = File.createTempFile("berkeleylmtest", ".arpa");
+		prunedFile.deleteOnExit();
+		LmReaders.writePrunedArpa(lm.getNgramMap(), lm.getWordIndexer(), 0.0, prunedFile);
+		final List<String> lines = IOUtils.readLinesHard(prunedFile.getPath());
+		// nothing is pruned at this threshold, and n-grams missing from the original file stay missing
+		Assert.assertTrue(lines.contains("ngram 1=8"));
+		Assert.assertTrue(lines.contains("ngram 2=7"));
+		Assert.assertTrue(lines.contains("ngram 3=8"));
+		Assert.assertTrue(lines.contains("ngram 4=1"));
+		final ArrayEncodedProbBackoffLm<String> prunedLm = LmReaders.readArrayEncodedLmFromArpa(prunedFile.getPath(), false, new StringWordIndexer(),
+			new ConfigOptions(), Integer.MAX_VALUE);
+		testArrayEncodedLogProb(prunedLm);
+		prunedFile.delete();
+	}
+
+	private static void checkNoFakeProbs(final ArrayEncodedProbBackoffLm<String> lm) {
+		final HashNgramMap<ProbBackoffPair> map = (HashNgramMap<ProbBackoffPair>) lm.getNgramMap();
+		final ProbBackoffValueContainer values = (ProbBackoffValueContainer) map.getValues();
+		for (int ngramOrder = 1; ngramOrder < map.getMaxNgramOrder(); ++ngramOrder) {
+			for (final long offset : map.getNgramOffsetsForOrder(ngramOrder))
+				Assert.assertFalse(Float.isNaN(values.getProb(ngramOrder, offset)));
+		}
+	}
+
 	@Test
 	public void testCompressedEncoded() {
 
@@ -41,6 +107,32 @@ public class MissingEntryTest
 		testContextEncodedLogProb(lm);
 	}
 
+	@Test
+	public void testContextEncodedCumulativeBackoffs() {
+		final ContextEncodedProbBackoffLm<String> lm = getContextEncodedLm();
+		lm.precomputeCumulativeBackoffs();
+		testContextEncodedLogProb(lm);
+	}
+
+	@Test
+	public void testMissingFoundInFirstPass() {
+		final File lmFile = FileUtils.getFile(BIG_TEST_ARPA);
+		final StringWordIndexer wordIndexer = new StringWordIndexer();
+		final FirstPassCallback<ProbBackoffPair> callback = new FirstPassCallback<ProbBackoffPair>(false, true);
+		new ArpaLmReader<String>(lmFile.getPath(), wordIndexer, Integer.MAX_VALUE).parse(callback);
+		final Set<List<String>> missing = new HashSet<List<String>>();
+		for (final int[] ngram : callback.getMissingNgrams()) {
+			missing.add(WordIndexer.StaticMethods.toList(wordIndexer, ngram));
+		}
+		Assert.assertEquals(5, callback.getMissingNgrams().size());
+		Assert.assertTrue(missing.contains(Arrays.asList("This another test".split(" "))));
+		Assert.assertTrue(missing.contains(Arrays.asList("another test is".split(" "))));
+		Assert.assertTrue(missing.contains(Arrays.asList("This another".split(" "))));
+		Assert.assertTrue(missing.contains(Arrays.asList("another test".split(" "))));
+		Assert.assertTrue(missing.contains(Arrays.asList("test is".split(" "))));
+		Assert.assertEquals(2, callback.getNumNgramsForEachOrder()[3 - 1] - 8);
+	}
+
 	/**
 	 * @return
 	 */
@@ -57,8 +149,11 @@ public class MissingEntryTest
 	 * @return
 	 */
 	private ArrayEncodedProbBackoffLm<String> getLm(boolean compress) {
+		return getLm(compress, new ConfigOptions());
+	}
+
+	private ArrayEncodedProbBackoffLm<String> getLm(boolean compress, final ConfigOptions configOptions) {
 		final File lmFile = FileUtils.getFile(BIG_TEST_ARPA);
-		final ConfigOptions configOptions = new ConfigOptions();
 		configOptions.unknownWordLogProb = 0.0f;
 		final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(lmFile.getPath(), compress, new StringWordIndexer(), configOptions,
 			Integer.MAX_VALUE);
@@ -0,0 +1,151 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+
+public class ModelRegistryTest
+{
+
+	private static final List<String> SENTENCE = Arrays.asList("the", "of", "a");
+
+	@Test
+	public void testReload() throws IOException, InterruptedException, ExecutionException {
+		final ArrayEncodedNgramLanguageModel<String> oldLm = LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(),
+			false);
+		final ArrayEncodedNgramLanguageModel<String> newLm = LmReaders.readLmFromGoogleNgramDir(FileUtils.getFile("googledir").getPath(), false, false);
+		final File tmpFile = writeBinary(newLm);
+		final ModelRegistry<String> registry = new ModelRegistry<String>(oldLm);
+		final ModelRegistry.Lease<String> oldLease = registry.acquire();
+		Assert.assertEquals(0, oldLease.getGeneration());
+		Assert.assertEquals(1, registry.reload(tmpFile.getPath()).get().intValue());
+		// open leases keep the old model
+		Assert.assertSame(oldLm, oldLease.get());
+		Assert.assertEquals(1, registry.getNumRetired());
+		final ModelRegistry.Lease<String> newLease = registry.acquire();
+		try {
+			Assert.assertEquals(1, newLease.getGeneration());
+			Assert.assertEquals(newLm.scoreSentence(SENTENCE), newLease.get().scoreSentence(SENTENCE), 0.0f);
+		} finally {
+			newLease.close();
+		}
+		oldLease.close();
+		Assert.assertEquals(0, registry.getNumRetired());
+		// failed loads keep the current model
+		try {
+			registry.reload(tmpFile.getPath() + ".missing").get();
+			Assert.fail();
+		} catch (final ExecutionException e) {
+		}
+		final ModelRegistry.Lease<String> lease = registry.acquire();
+		Assert.assertEquals(1, lease.getGeneration());
+		lease.close();
+		registry.close();
+		tmpFile.delete();
+	}
+
+	@Test
+	public void testConcurrentSwaps() throws InterruptedException {
+		final List<NgramLanguageModel<String>> lms = new ArrayList<NgramLanguageModel<String>>();
+		lms.add(LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(), false));
+		lms.add(LmReaders.readLmFromGoogleNgramDir(FileUtils.getFile("googledir").getPath(), false, false));
+		final ModelRegistry<String> registry = new ModelRegistry<String>(lms.get(0));
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; ++t) {
+			threads.add(new Thread()
+			{
+				@Override
+				public void run() {
+					try {
+						while (!done.get()) {
+							final ModelRegistry.Lease<String> lease = registry.acquire();
+							try {
+								final NgramLanguageModel<String> lm = lms.get(lease.getGeneration() % 2);
+								Assert.assertSame(lm, lease.get());
+								Assert.assertEquals(lm.scoreSentence(SENTENCE), lease.get().scoreSentence(SENTENCE), 0.0f);
+							} finally {
+								lease.close();
+							}
+						}
+					} catch (final Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+		for (final Thread thread : threads)
+			thread.start();
+		for (int i = 1; i <= 100; ++i)
+			Assert.assertEquals(i, registry.swap(lms.get(i % 2)));
+		done.set(true);
+		for (final Thread thread : threads)
+			thread.join();
+		if (failure.get() != null) throw new RuntimeException(failure.get());
+		Assert.assertEquals(0, registry.getNumRetired());
+		registry.close();
+	}
+
+	@Test
+	public void testSwapDuringClose() throws InterruptedException {
+		final NgramLanguageModel<String> lm = LmReaders.readArrayEncodedLmFromArpa(FileUtils.getFile(PerplexityTest.BIG_TEST_ARPA).getPath(), false);
+		for (int i = 0; i < 200; ++i) {
+			final ModelRegistry<String> registry = new ModelRegistry<String>(lm);
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			final AtomicInteger numSwaps = new AtomicInteger();
+			final Thread swapper = new Thread()
+			{
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							registry.swap(lm);
+							numSwaps.incrementAndGet();
+						}
+					} catch (final RuntimeException e) {
+						// the only expected failure
+						if (!"Registry is closed".equals(e.getMessage())) failure.set(e);
+					} catch (final Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+			swapper.start();
+			// close while swaps are under way
+			while (numSwaps.get() < 10)
+				Thread.yield();
+			registry.close();
+			swapper.join();
+			if (failure.get() != null) throw new RuntimeException(failure.get());
+			// every model, including the last one swapped in, was released
+			Assert.assertEquals(0, registry.getNumRetired());
+			try {
+				registry.acquire();
+				Assert.fail();
+			} catch (final RuntimeException e) {
+				// expected
+			}
+		}
+	}
+
+	private static File writeBinary(final NgramLanguageModel<String> lm) throws IOException {
+		final File tmpFile = File.createTempFile("berkeleylmtest", "binary");
+		tmpFile.deleteOnExit();
+		LmReaders.writeLmBinary(lm, tmpFile.getPath());
+		return tmpFile;
+	}
+
+}
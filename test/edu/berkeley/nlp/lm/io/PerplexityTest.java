@@ -3,7 +3,9 @@ package edu.berkeley.nlp.lm.io;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -22,6 +24,8 @@ import edu.berkeley.nlp.lm.cache.ContextEncodedCachingLmWrapper;
 import edu.berkeley.nlp.lm.cache.ContextEncodedDirectMappedLmCache;
 import edu.berkeley.nlp.lm.collections.Counter;
 import edu.berkeley.nlp.lm.collections.Iterators;
+import edu.berkeley.nlp.lm.map.HashNgramMap;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
 
 public class PerplexityTest
 {
@@ -140,6 +144,99 @@ public class PerplexityTest
 		testContextEncodedLogProb(lm, file, goldLogProb);
 	}
 
+	@Test
+	public void testContextEncodedCumulativeBackoffs() {
+		final File file = FileUtils.getFile(TEST_PERPLEX_TXT);
+		final float goldLogProb = TEST_PERPLEX_GOLD_PROB;
+		final ContextEncodedProbBackoffLm<String> lm = getContextEncodedLm(false);
+		lm.precomputeCumulativeBackoffs();
+		testContextEncodedLogProb(lm, file, goldLogProb);
+		final ContextEncodedProbBackoffLm<String> unrankedLm = getContextEncodedLm(true);
+		unrankedLm.precomputeCumulativeBackoffs();
+		testContextEncodedLogProb(unrankedLm, file, goldLogProb);
+	}
+
+	@Test
+	public void testContextEncodedMinimizedStates() {
+		final File file = FileUtils.getFile(TEST_PERPLEX_TXT);
+		final float goldLogProb = TEST_PERPLEX_GOLD_PROB;
+		final ContextEncodedProbBackoffLm<String> lm = getContextEncodedLm(false);
+		lm.precomputeExtensions();
+		testContextEncodedLogProb(lm, file, goldLogProb);
+		lm.precomputeCumulativeBackoffs();
+		testContextEncodedLogProb(lm, file, goldLogProb);
+		final ContextEncodedProbBackoffLm<String> unrankedLm = getContextEncodedLm(true);
+		unrankedLm.precomputeExtensions();
+		testContextEncodedLogProb(unrankedLm, file, goldLogProb);
+
+		// big_test.arpa has a backoff for every n-gram, so states only shrink in the tiny LM
+		final ConfigOptions configOptions = new ConfigOptions();
+		final String tinyArpa = FileUtils.getFile("tiny_test_fivegram.arpa").getPath();
+		final ContextEncodedProbBackoffLm<String> fullTinyLm = LmReaders.readContextEncodedLmFromArpa(tinyArpa, new StringWordIndexer(), configOptions,
+			Integer.MAX_VALUE);
+		configOptions.minimizeContextStates = true;
+		final ContextEncodedProbBackoffLm<String> tinyLm = LmReaders.readContextEncodedLmFromArpa(tinyArpa, new StringWordIndexer(), configOptions,
+			Integer.MAX_VALUE);
+		final List<String> sent = Arrays.asList("<s> This is another test sentence. </s>".split(" "));
+		final LmContextInfo fullContext = new LmContextInfo();
+		final LmContextInfo context = new LmContextInfo();
+		int fullOrderSum = 0;
+		int orderSum = 0;
+		for (final String word : sent) {
+			final float fullScore = fullTinyLm.getLogProb(fullContext.offset, fullContext.order, fullTinyLm.getWordIndexer().getIndexPossiblyUnk(word),
+				fullContext);
+			final float score = tinyLm.getLogProb(context.offset, context.order, tinyLm.getWordIndexer().getIndexPossiblyUnk(word), context);
+			Assert.assertEquals(fullScore, score, 1e-5);
+			Assert.assertTrue(context.order <= fullContext.order);
+			fullOrderSum += fullContext.order;
+			orderSum += context.order;
+		}
+		Assert.assertTrue(orderSum < fullOrderSum);
+
+		final int[] phrase = new int[sent.size()];
+		for (int i = 0; i < phrase.length; ++i)
+			phrase[i] = tinyLm.getWordIndexer().getIndexPossiblyUnk(sent.get(i));
+		Assert.assertEquals(0, tinyLm.getLeftStateLength(phrase, 0, phrase.length));
+		final int leftStateLength = tinyLm.getLeftStateLength(phrase, 1, phrase.length);
+		Assert.assertTrue(leftStateLength >= 1 && leftStateLength <= tinyLm.getLmOrder() - 1);
+		Assert.assertEquals(fullTinyLm.getLmOrder() - 1, fullTinyLm.getLeftStateLength(phrase, 1, phrase.length));
+	}
+
+	@Test
+	public void testContextEncodedGetLogProbs() {
+		final ContextEncodedProbBackoffLm<String> lm = getContextEncodedLm(false);
+		checkGetLogProbs(lm);
+		lm.precomputeExtensions();
+		checkGetLogProbs(lm);
+		checkGetLogProbs(getContextEncodedLm(true));
+	}
+
+	private static void checkGetLogProbs(final ContextEncodedProbBackoffLm<String> lm) {
+		final int numWords = lm.getWordIndexer().numWords();
+		// every word, plus a couple of OOVs
+		final int[] words = new int[numWords + 2];
+		for (int i = 0; i < numWords; ++i)
+			words[i] = i;
+		words[numWords] = -1;
+		words[numWords + 1] = numWords + 10;
+		final float[] logProbs = new float[words.length];
+		final LmContextInfo[] outputContexts = new LmContextInfo[words.length];
+		for (int i = 0; i < words.length; ++i)
+			outputContexts[i] = new LmContextInfo();
+		final LmContextInfo expectedContext = new LmContextInfo();
+		final LmContextInfo context = new LmContextInfo();
+		for (final String word : "<s> australian foreign minister alexander downer said sunday he felt more optimistic . </s>".split(" ")) {
+			lm.getLogProbs(context.offset, context.order, words, logProbs, outputContexts);
+			for (int i = 0; i < words.length; ++i) {
+				Assert.assertEquals(lm.getLogProb(context.offset, context.order, words[i], expectedContext), logProbs[i], 1e-6);
+				Assert.assertEquals(expectedContext.offset, outputContexts[i].offset);
+				Assert.assertEquals(expectedContext.order, outputContexts[i].order);
+			}
+			lm.getLogProb(context.offset, context.order, lm.getWordIndexer().getIndexPossiblyUnk(word), context);
+		}
+		lm.getLogProbs(context.offset, context.order, words, logProbs, null);
+	}
+
 	@Test
 	public void testCachedTiny() {
 		final File file = FileUtils.getFile(TEST_PERPLEX_TINY_TXT);
@@ -183,6 +280,7 @@ public class PerplexityTest
 		final ArrayEncodedProbBackoffLm<String> lm_ = getLm(false);
 		testArrayEncodedLogProb(ArrayEncodedCachingLmWrapper.wrapWithCacheNotThreadSafe(lm_, 16), file, goldLogProb);
 		testArrayEncodedLogProb(ArrayEncodedCachingLmWrapper.wrapWithCacheThreadSafe(lm_, 16), file, goldLogProb);
+		testArrayEncodedLogProb(ArrayEncodedCachingLmWrapper.wrapWithCacheShared(lm_, 16, 2), file, goldLogProb);
 	}
 
 	@Test
@@ -201,6 +299,40 @@ public class PerplexityTest
 		final ContextEncodedProbBackoffLm<String> lm_ = getContextEncodedLm(false);
 		testContextEncodedLogProb(ContextEncodedCachingLmWrapper.wrapWithCacheNotThreadSafe(lm_, 16), file, goldLogProb);
 		testContextEncodedLogProb(ContextEncodedCachingLmWrapper.wrapWithCacheThreadSafe(lm_, 16), file, goldLogProb);
+		testContextEncodedLogProb(ContextEncodedCachingLmWrapper.wrapWithCacheShared(lm_, 16, 2), file, goldLogProb);
+	}
+
+	@Test
+	public void testSharedCacheManyThreads() throws InterruptedException {
+		final File file = FileUtils.getFile(TEST_PERPLEX_TXT);
+		final float goldLogProb = TEST_PERPLEX_GOLD_PROB;
+		// more threads than caches, so threads compete for them
+		final ArrayEncodedNgramLanguageModel<String> arrayLm = ArrayEncodedCachingLmWrapper.wrapWithCacheShared(getLm(false), 16, 2);
+		final ContextEncodedNgramLanguageModel<String> contextLm = ContextEncodedCachingLmWrapper.wrapWithCacheShared(getContextEncodedLm(false), 16, 2);
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 3; ++i) {
+							testArrayEncodedLogProb(arrayLm, file, goldLogProb);
+							testContextEncodedLogProb(contextLm, file, goldLogProb);
+						}
+					} catch (final Throwable e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (final Thread thread : threads)
+			thread.join();
+		if (failure[0] != null) throw new RuntimeException(failure[0]);
 	}
 
 	@Test
@@ -212,6 +344,108 @@ public class PerplexityTest
 		testContextEncodedLogProb(ContextEncodedCachingLmWrapper.wrapWithCacheThreadSafe(lm_, 16), file, goldLogProb);
 	}
 
+	@Test
+	public void testVocabFiltered() {
+		final File file = FileUtils.getFile(TEST_PERPLEX_TINY_TXT);
+		final float goldLogProb = TEST_PERPLEX_TINY_GOLD_PROB;
+		final File lmFile = FileUtils.getFile(BIG_TEST_ARPA);
+		final Set<String> vocab = new HashSet<String>(Arrays.asList(IOUtils.readLinesHard(file.getPath()).get(0).trim().split(" ")));
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		for (final boolean compress : new boolean[] { true, false }) {
+			final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(lmFile.getPath(), compress, new StringWordIndexer(),
+				configOptions, Integer.MAX_VALUE, vocab);
+			Assert.assertTrue(lm.getWordIndexer().numWords() <= vocab.size() + 3);
+			testArrayEncodedLogProb(lm, file, goldLogProb);
+		}
+		final ContextEncodedProbBackoffLm<String> lm = LmReaders.readContextEncodedLmFromArpa(lmFile.getPath(), new StringWordIndexer(), configOptions,
+			Integer.MAX_VALUE, vocab);
+		Assert.assertTrue(lm.getWordIndexer().numWords() <= vocab.size() + 3);
+		testContextEncodedLogProb(lm, file, goldLogProb);
+	}
+
+	@Test
+	public void testEntropyPruned() {
+		final File file = FileUtils.getFile(TEST_PERPLEX_TXT);
+		final float goldLogProb = TEST_PERPLEX_GOLD_PROB;
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		final ArrayEncodedProbBackoffLm<String> lm = getLm(false);
+		for (final boolean compress : new boolean[] { true, false }) {
+			testArrayEncodedLogProb(LmReaders.pruneArrayEncodedLm(lm.getNgramMap(), lm.getWordIndexer(), 0.0, compress, configOptions), file, goldLogProb);
+		}
+		testContextEncodedLogProb(LmReaders.pruneContextEncodedLm(lm.getNgramMap(), lm.getWordIndexer(), 0.0, configOptions), file, goldLogProb);
+
+		final double threshold = 1e-6;
+		final ArrayEncodedProbBackoffLm<String> prunedLm = LmReaders.pruneArrayEncodedLm(lm.getNgramMap(), lm.getWordIndexer(), threshold, false,
+			configOptions);
+		Assert.assertEquals(lm.getNgramMap().getNumNgrams(0), prunedLm.getNgramMap().getNumNgrams(0));
+		Assert.assertTrue(prunedLm.getNgramMap().getNumNgrams(2) < lm.getNgramMap().getNumNgrams(2));
+		final ContextEncodedProbBackoffLm<String> prunedContextLm = LmReaders.pruneContextEncodedLm(lm.getNgramMap(), lm.getWordIndexer(), threshold,
+			configOptions);
+		for (final String line : IOUtils.readLinesHard(file.getPath())) {
+			final List<String> sent = Arrays.asList(line.trim().split(" "));
+			final float score = prunedLm.scoreSentence(sent);
+			Assert.assertFalse(Float.isNaN(score) || Float.isInfinite(score));
+			Assert.assertEquals(score, prunedContextLm.scoreSentence(sent), 1e-3);
+		}
+	}
+
+	@Test
+	public void testFingerprinted() {
+		final File file = FileUtils.getFile(TEST_PERPLEX_TXT);
+		final float goldLogProb = TEST_PERPLEX_GOLD_PROB;
+		final File lmFile = FileUtils.getFile(BIG_TEST_ARPA);
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		configOptions.numFingerprintBits = 24;
+		final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(lmFile.getPath(), false, new StringWordIndexer(), configOptions,
+			Integer.MAX_VALUE);
+		final HashNgramMap<ProbBackoffPair> map = (HashNgramMap<ProbBackoffPair>) lm.getNgramMap();
+		for (int ngramOrder = 0; ngramOrder < lm.getLmOrder(); ++ngramOrder)
+			Assert.assertTrue(map.getFalsePositiveRate(ngramOrder) < 1e-4);
+		testArrayEncodedLogProb(lm, file, goldLogProb);
+		// keys cannot be recovered, so the n-grams cannot be enumerated for pruning
+		try {
+			LmReaders.pruneArrayEncodedLm(map, lm.getWordIndexer(), 0.0, false, configOptions);
+			Assert.fail();
+		} catch (final RuntimeException e) {
+			Assert.assertTrue(e.getMessage().contains("enumerate"));
+		}
+	}
+
+	@Test
+	public void testSortedVocabulary() {
+		final File file = FileUtils.getFile(TEST_PERPLEX_TXT);
+		final float goldLogProb = TEST_PERPLEX_GOLD_PROB;
+		final File lmFile = FileUtils.getFile(BIG_TEST_ARPA);
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		configOptions.sortVocabularyByFrequency = true;
+		for (final boolean compress : new boolean[] { true, false }) {
+			final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(lmFile.getPath(), compress, new StringWordIndexer(),
+				configOptions, Integer.MAX_VALUE);
+			checkSortedVocabulary(lm);
+			testArrayEncodedLogProb(lm, file, goldLogProb);
+		}
+		final ContextEncodedProbBackoffLm<String> lm = LmReaders.readContextEncodedLmFromArpa(lmFile.getPath(), new StringWordIndexer(), configOptions,
+			Integer.MAX_VALUE);
+		checkSortedVocabulary(lm);
+		testContextEncodedLogProb(lm, file, goldLogProb);
+	}
+
+	private static void checkSortedVocabulary(final NgramLanguageModel<String> lm) {
+		float lastLogProb = 0.0f;
+		for (int i = 0; i < lm.getWordIndexer().numWords(); ++i) {
+			final String word = lm.getWordIndexer().getWord(i);
+			// not in the ARPA file, so it is added last
+			if (word.equals(lm.getWordIndexer().getUnkSymbol())) continue;
+			final float logProb = lm.getLogProb(Arrays.asList(word));
+			Assert.assertTrue(logProb <= lastLogProb);
+			lastLogProb = logProb;
+		}
+	}
+
 	/**
 	 * @return
 	 */
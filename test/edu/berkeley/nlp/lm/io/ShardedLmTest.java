@@ -0,0 +1,106 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.StupidBackoffLm;
+import edu.berkeley.nlp.lm.map.NgramMap;
+import edu.berkeley.nlp.lm.map.NgramMap.Entry;
+import edu.berkeley.nlp.lm.util.LongRef;
+
+public class ShardedLmTest
+{
+
+	private static final int NUM_SHARDS = 3;
+
+	@Test
+	public void testHash() throws IOException {
+		checkSharded(false);
+	}
+
+	@Test
+	public void testCompressed() throws IOException {
+		checkSharded(true);
+	}
+
+	private static void checkSharded(final boolean compress) throws IOException {
+		final StupidBackoffLm<String> lm = (StupidBackoffLm<String>) LmReaders.readLmFromGoogleNgramDir(FileUtils.getFile("googledir").getPath(), compress,
+			false);
+		final NgramMap<LongRef> map = lm.getNgramMap();
+		final int maxOrder = map.getMaxNgramOrder();
+		final LmScoringServer[] servers = new LmScoringServer[NUM_SHARDS];
+		final int[] ports = new int[NUM_SHARDS];
+		long numTopOrderNgrams = 0;
+		for (int shard = 0; shard < NUM_SHARDS; ++shard) {
+			final StupidBackoffLm<String> shardLm = MakeShardedLmBinaries.makeShard(lm, shard, NUM_SHARDS, compress);
+			Assert.assertEquals(map.getNumNgrams(0), shardLm.getNgramMap().getNumNgrams(0));
+			if (shardLm.getLmOrder() == maxOrder) numTopOrderNgrams += shardLm.getNgramMap().getNumNgrams(maxOrder - 1);
+			servers[shard] = new LmScoringServer(failOnNegativeWords(shardLm), 1, LmScoringServer.DEFAULT_MAX_BATCH_SIZE);
+			ports[shard] = servers[shard].start(0);
+		}
+		// the highest order is partitioned
+		Assert.assertEquals(map.getNumNgrams(maxOrder - 1), numTopOrderNgrams);
+		final ShardedStupidBackoffLm<String> shardedLm = new ShardedStupidBackoffLm<String>(lm.getWordIndexer(), ports);
+		try {
+			final List<int[]> ngrams = new ArrayList<int[]>();
+			for (int ngramOrder = 0; ngramOrder < maxOrder; ++ngramOrder) {
+				for (final Entry<LongRef> entry : map.getNgramsForOrder(ngramOrder))
+					ngrams.add(entry.key);
+			}
+			// n-grams which are not in the model back off
+			final Random random = new Random(0);
+			final int numWords = (int) map.getNumNgrams(0);
+			for (int i = 0; i < 200; ++i) {
+				final int[] ngram = new int[1 + random.nextInt(maxOrder)];
+				for (int j = 0; j < ngram.length; ++j)
+					ngram[j] = random.nextInt(numWords);
+				ngrams.add(ngram);
+			}
+			final float[] logProbs = shardedLm.getLogProbs(ngrams);
+			for (int i = 0; i < ngrams.size(); ++i) {
+				final int[] ngram = ngrams.get(i);
+				Assert.assertEquals(lm.getLogProb(ngram), logProbs[i], 0.0f);
+				Assert.assertEquals(lm.getLogProb(ngram), shardedLm.getLogProb(ngram), 0.0f);
+			}
+			// an error from one shard leaves the connections to all shards usable
+			final List<int[]> badNgrams = new ArrayList<int[]>(ngrams);
+			badNgrams.add(ngrams.size() / 2, new int[] { 0, -1 });
+			try {
+				shardedLm.getLogProbs(badNgrams);
+				Assert.fail();
+			} catch (final RuntimeException e) {
+				// expected
+			}
+			Assert.assertArrayEquals(logProbs, shardedLm.getLogProbs(ngrams), 0.0f);
+			for (final String sentence : new String[] { "the (", "of the ( a", "a ) ( the of a", "xxx the" }) {
+				final List<String> words = Arrays.asList(sentence.split(" "));
+				Assert.assertEquals(lm.scoreSentence(words), shardedLm.scoreSentence(words), 0.0f);
+			}
+		} finally {
+			shardedLm.close();
+			for (final LmScoringServer server : servers)
+				server.close();
+		}
+	}
+
+	private static StupidBackoffLm<String> failOnNegativeWords(final StupidBackoffLm<String> lm) {
+		return new StupidBackoffLm<String>(lm.getLmOrder(), lm.getWordIndexer(), lm.getNgramMap(), new ConfigOptions())
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public int getSuffixCounts(final int[] ngram, final int startPos, final int endPos, final long[] counts) {
+				if (ngram[endPos - 1] < 0) throw new RuntimeException("Negative word index " + ngram[endPos - 1]);
+				return super.getSuffixCounts(ngram, startPos, endPos, counts);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,153 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.AliasTableSampler;
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.ContextEncodedNgramLanguageModel.LmContextInfo;
+import edu.berkeley.nlp.lm.ContextEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.NgramLanguageModel;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.collections.Counter;
+import edu.berkeley.nlp.lm.map.HashNgramMap;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+
+public class SuccessorTest
+{
+
+	@Test
+	public void testEnumeration() {
+		final ContextEncodedProbBackoffLm<String> lm = getLm(PerplexityTest.BIG_TEST_ARPA, true);
+		final HashNgramMap<ProbBackoffPair> map = (HashNgramMap<ProbBackoffPair>) lm.getNgramMap();
+		Assert.assertEquals(map.getNumNgrams(0), map.getNumSuccessors(0, -1));
+		for (int ngramOrder = 1; ngramOrder < map.getMaxNgramOrder(); ++ngramOrder) {
+			long numSuccessors = 0;
+			for (final long contextOffset : map.getNgramOffsetsForOrder(ngramOrder - 1)) {
+				final long n = map.getNumSuccessors(contextOffset, ngramOrder - 1);
+				for (long i = 0; i < n; ++i) {
+					final long offset = map.getSuccessorOffset(contextOffset, ngramOrder - 1, i);
+					Assert.assertEquals(contextOffset, map.getNextContextOffset(offset, ngramOrder));
+					Assert.assertEquals(offset, map.getOffset(contextOffset, ngramOrder - 1, map.getNextWord(offset, ngramOrder)));
+				}
+				numSuccessors += n;
+			}
+			Assert.assertEquals(map.getNumNgrams(ngramOrder), numSuccessors);
+		}
+	}
+
+	@Test
+	public void testNextWordLogProbs() {
+		for (final String arpa : new String[] { PerplexityTest.BIG_TEST_ARPA, "tiny_test_fivegram.arpa" }) {
+			final ContextEncodedProbBackoffLm<String> lm = getLm(arpa, true);
+			final ContextEncodedProbBackoffLm<String> unindexedLm = getLm(arpa, false);
+			final List<String> sent = Arrays.asList("<s> This is a test sentence . </s>".split(" "));
+			final LmContextInfo context = new LmContextInfo();
+			final float[] logProbs = new float[lm.getWordIndexer().numWords()];
+			final float[] unindexedLogProbs = new float[lm.getWordIndexer().numWords()];
+			for (final String word : sent) {
+				lm.getNextWordLogProbs(context.offset, context.order, logProbs);
+				unindexedLm.getNextWordLogProbs(context.offset, context.order, unindexedLogProbs);
+				for (int index = 0; index < logProbs.length; ++index) {
+					Assert.assertEquals(lm.getLogProb(context.offset, context.order, index, null), logProbs[index], 1e-5);
+					Assert.assertEquals(unindexedLogProbs[index], logProbs[index], 1e-5);
+				}
+				lm.getLogProb(context.offset, context.order, lm.getWordIndexer().getIndexPossiblyUnk(word), context);
+			}
+			final List<String> history = Arrays.asList("This", "is");
+			final Counter<String> distribution = NgramLanguageModel.StaticMethods.getDistributionOverNextWords(lm, history);
+			final List<String> ngram = Arrays.asList("<s>", "This", "is", null);
+			for (int index = 0; index < lm.getWordIndexer().numWords(); ++index) {
+				final String word = lm.getWordIndexer().getWord(index);
+				if (word.equals(lm.getWordIndexer().getStartSymbol())) continue;
+				ngram.set(3, word);
+				Assert.assertEquals(Math.exp(lm.getLogProb(ngram) * Math.log(10)), distribution.getCount(word), 1e-5);
+			}
+		}
+	}
+
+	@Test
+	public void testSampleNextWord() {
+		final ContextEncodedProbBackoffLm<String> lm = getLm("tiny_test_fivegram.arpa", true);
+		final Random random = new Random(1);
+		checkSamples(lm, new SamplerFunction()
+		{
+			@Override
+			public int sample(final long contextOffset, final int contextOrder) {
+				return lm.sampleNextWord(contextOffset, contextOrder, random);
+			}
+		});
+		for (int i = 0; i < 100; ++i) {
+			final List<String> sample = NgramLanguageModel.StaticMethods.sample(random, lm);
+			Assert.assertFalse(sample.isEmpty());
+			Assert.assertFalse(sample.contains(lm.getWordIndexer().getStartSymbol()));
+			Assert.assertFalse(sample.contains(lm.getWordIndexer().getEndSymbol()));
+		}
+	}
+
+	@Test
+	public void testAliasTableSamplerWithTinyCache() {
+		final ContextEncodedProbBackoffLm<String> lm = getLm("tiny_test_fivegram.arpa", true);
+		final Random random = new Random(2);
+		// a cache with two entries is evicted all the time
+		final AliasTableSampler<String> sampler = new AliasTableSampler<String>(lm, 1);
+		checkSamples(lm, new SamplerFunction()
+		{
+			@Override
+			public int sample(final long contextOffset, final int contextOrder) {
+				return sampler.sample(contextOffset, contextOrder, random);
+			}
+		});
+		for (int i = 0; i < 100; ++i)
+			Assert.assertFalse(sampler.sampleSentence(random).isEmpty());
+	}
+
+	@Test
+	public void testSamplerRequiresIndex() {
+		try {
+			new AliasTableSampler<String>(getLm("tiny_test_fivegram.arpa", false));
+			Assert.fail();
+		} catch (final RuntimeException e) {
+			// expected
+		}
+	}
+
+	private static interface SamplerFunction
+	{
+		public int sample(long contextOffset, int contextOrder);
+	}
+
+	private static void checkSamples(final ContextEncodedProbBackoffLm<String> lm, final SamplerFunction sampler) {
+		for (final String history : new String[] { "is", "<s> This is", "test sentence." }) {
+			final String[] words = history.split(" ");
+			final int[] context = new int[words.length];
+			for (int i = 0; i < words.length; ++i)
+				context[i] = lm.getWordIndexer().getIndexPossiblyUnk(words[i]);
+			final LmContextInfo contextInfo = lm.getOffsetForNgram(context, 0, context.length);
+			// the word indexer may contain words which are not in the LM (and are never sampled)
+			final float[] logProbs = new float[(int) lm.getNgramMap().getNumNgrams(0)];
+			lm.getNextWordLogProbs(contextInfo.offset, contextInfo.order, logProbs);
+			double total = 0.0;
+			for (final float logProb : logProbs)
+				total += Math.exp(logProb * Math.log(10));
+			final int numSamples = 50000;
+			final int[] counts = new int[logProbs.length];
+			for (int i = 0; i < numSamples; ++i)
+				counts[sampler.sample(contextInfo.offset, contextInfo.order)]++;
+			for (int index = 0; index < logProbs.length; ++index)
+				Assert.assertEquals(Math.exp(logProbs[index] * Math.log(10)) / total, (double) counts[index] / numSamples, 0.01);
+		}
+	}
+
+	private ContextEncodedProbBackoffLm<String> getLm(final String arpa, final boolean indexSuccessors) {
+		final ConfigOptions configOptions = new ConfigOptions();
+		configOptions.unknownWordLogProb = 0.0f;
+		configOptions.indexSuccessors = indexSuccessors;
+		return LmReaders.readContextEncodedLmFromArpa(FileUtils.getFile(arpa).getPath(), new StringWordIndexer(), configOptions, Integer.MAX_VALUE);
+	}
+
+}
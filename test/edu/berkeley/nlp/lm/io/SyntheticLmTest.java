@@ -0,0 +1,103 @@
+package edu.berkeley.nlp.lm.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.nlp.lm.ArrayEncodedNgramLanguageModel;
+import edu.berkeley.nlp.lm.ArrayEncodedProbBackoffLm;
+import edu.berkeley.nlp.lm.ConfigOptions;
+import edu.berkeley.nlp.lm.StringWordIndexer;
+import edu.berkeley.nlp.lm.WordIndexer;
+import edu.berkeley.nlp.lm.values.ProbBackoffPair;
+
+public class SyntheticLmTest
+{
+
+	private static final int VOCAB_SIZE = 60;
+
+	private static final int LM_ORDER = 4;
+
+	@Test
+	public void testNoMissingNgrams() {
+		final FirstPassCallback<ProbBackoffPair> callback = new FirstPassCallback<ProbBackoffPair>(false, true);
+		final SyntheticLmReader<String> reader = getReader(0, new StringWordIndexer());
+		reader.parse(callback);
+		Assert.assertEquals(0, callback.getMissingNgrams().size());
+		final long[] expectedNumNgrams = reader.countNgrams();
+		for (int ngramOrder = 0; ngramOrder < LM_ORDER; ++ngramOrder) {
+			final long numNgrams = callback.getNumNgramsForEachOrder()[ngramOrder];
+			Assert.assertEquals(expectedNumNgrams[ngramOrder], numNgrams);
+			if (ngramOrder > 0) Assert.assertTrue(numNgrams > 0);
+		}
+	}
+
+	@Test
+	public void testNormalized() {
+		final StringWordIndexer wordIndexer = new StringWordIndexer();
+		final ArrayEncodedProbBackoffLm<String> lm = LmReaders.readArrayEncodedLmFromArpa(getReader(0, wordIndexer), false, wordIndexer,
+			new ConfigOptions());
+		final int start = wordIndexer.getIndexPossiblyUnk(wordIndexer.getStartSymbol());
+		final int[][] contexts = { {}, { start }, { start, indexOf(wordIndexer, "w2") }, { indexOf(wordIndexer, "w2"), indexOf(wordIndexer, "w3"), start } };
+		for (final int[] context : contexts) {
+			final int[] ngram = new int[context.length + 1];
+			System.arraycopy(context, 0, ngram, 0, context.length);
+			double sum = 0.0;
+			for (int w = 0; w < wordIndexer.numWords(); ++w) {
+				if (w == start) continue;
+				ngram[context.length] = w;
+				sum += Math.pow(10.0, lm.getLogProb(ngram));
+			}
+			Assert.assertEquals(1.0, sum, 1e-4);
+		}
+	}
+
+	@Test
+	public void testDeterministic() throws IOException {
+		final String first = writeArpa(7);
+		Assert.assertEquals(first, writeArpa(7));
+		Assert.assertFalse(first.equals(writeArpa(8)));
+	}
+
+	@Test
+	public void testGoogleDir() throws IOException {
+		final File dir = File.createTempFile("berkeleylm", "google");
+		dir.delete();
+		final SyntheticLmReader<String> reader = getReader(0, new StringWordIndexer());
+		reader.writeGoogleNgramDir(dir.getPath());
+		final ArrayEncodedNgramLanguageModel<String> lm = LmReaders.readLmFromGoogleNgramDir(dir.getPath(), false, false);
+		Assert.assertEquals(LM_ORDER, lm.getLmOrder());
+		Assert.assertEquals(VOCAB_SIZE + 2, lm.getWordIndexer().numWords());
+		final WordIndexer<String> wordIndexer = lm.getWordIndexer();
+		Assert.assertTrue(lm.getLogProb(new int[] { indexOf(wordIndexer, "<S>"), indexOf(wordIndexer, "w2") }) < 0.0f);
+		for (final File orderDir : dir.listFiles()) {
+			for (final File file : orderDir.listFiles())
+				file.delete();
+			orderDir.delete();
+		}
+		dir.delete();
+	}
+
+	private static int indexOf(final WordIndexer<String> wordIndexer, final String word) {
+		final int index = wordIndexer.getIndexPossiblyUnk(word);
+		Assert.assertTrue(index >= 0);
+		return index;
+	}
+
+	private static String writeArpa(final int seed) throws IOException {
+		final File file = File.createTempFile("berkeleylm", ".arpa");
+		final StringWordIndexer wordIndexer = new StringWordIndexer();
+		getReader(seed, wordIndexer).parse(new KneserNeyFileWritingLmReaderCallback<String>(file, wordIndexer));
+		final List<String> lines = IOUtils.readLinesHard(file.getPath());
+		file.delete();
+		return lines.toString();
+	}
+
+	private static SyntheticLmReader<String> getReader(final int seed, final StringWordIndexer wordIndexer) {
+		return new SyntheticLmReader<String>(LM_ORDER, VOCAB_SIZE, 1.0, 0.6, seed, wordIndexer);
+	}
+
+}